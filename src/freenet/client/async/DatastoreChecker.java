@@ -107,7 +107,6 @@ public class DatastoreChecker implements PrioRunnable {
 		Key[] checkKeys = getter.listKeys();
 		short prio = getter.getPriorityClass();
 		if(logMINOR) Logger.minor(this, "Queueing transient request "+getter+" priority "+prio+" keys "+checkKeys.length);
-		// FIXME check using store.probablyInStore
 		ArrayList<Key> finalKeysToCheck = new ArrayList<Key>(checkKeys.length);
 		synchronized(this) {
 			for(Key key : checkKeys) {
@@ -182,7 +181,10 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
+		// Check all the keys at once, so the store can use its filter and read the rest in order.
+		KeyBlock[] fetched = blocks == null ? node.fetch(keys, true, true, false, false) : null;
+		for(int i = 0; i < keys.length; i++) {
+			Key key = keys[i];
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
 					anyValid = true;
@@ -193,7 +195,7 @@ public class DatastoreChecker implements PrioRunnable {
 			if(blocks != null)
 				block = blocks.get(key);
 			else
-				block = node.fetch(key, true, true, false, false, null);
+				block = fetched[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -4,8 +4,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -16,9 +16,8 @@ import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeCHK;
 import freenet.node.SendableGet;
-import freenet.support.BinaryBloomFilter;
+import freenet.support.BlockedBloomFilter;
 import freenet.support.BloomFilter;
-import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
@@ -54,9 +53,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private final int perSegmentK;
     /** The overall bloom filter, containing all the keys, salted with the global hash. When a key
      * is found, it is removed from this. */
-    private final CountingBloomFilter filter;
+    private final BlockedBloomFilter filter;
     /** The per-segment bloom filters, containing the keys for each segment. These are not changed. */
-    private final BinaryBloomFilter[] segmentFilters;
+    private final BlockedBloomFilter[] segmentFilters;
     private boolean finishedSetup;
     private final boolean persistent;
     /** Does the main bloom filter need writing? */
@@ -99,28 +98,19 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         perSegmentSize = (perSegmentSize + 7) & ~7;
         perSegmentBloomFilterSizeBytes = perSegmentSize / 8;
         perSegmentK = BloomFilter.optimialK(perSegmentSize, segBlocks);
-        segmentFilters = new BinaryBloomFilter[segments];
-        byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
-        for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
-        }
-        byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        segmentFilters = new BlockedBloomFilter[segments];
+        for(int i=0;i<segments;i++)
+            segmentFilters[i] = new BlockedBloomFilter(perSegmentBloomFilterSizeBytes * 8, perSegmentK, false);
+        filter = new BlockedBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, true);
         filter.setWarnOnRemoveFromEmpty();
     }
     
+    /** Restore the bloom filters for a download.
+     * @param oldFilters True if the filters on disk were written by the old, MersenneTwister 
+     * based filters. They will be regenerated, and must then be written out again. */
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
-            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
+            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt,
+            boolean oldFilters) 
     throws IOException, StorageFormatException {
         this.storage = storage;
         this.fetcher = callback;
@@ -141,39 +131,37 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         if(perSegmentK < 0)
             throw new StorageFormatException("Bad per segment bloom filter K");
         int segments = storage.segments.length;
-        segmentFilters = new BinaryBloomFilter[segments];
+        segmentFilters = new BlockedBloomFilter[segments];
         byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        try {
-            storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+        if(oldFilters) {
+            // Different hashes, so the old bits are useless.
             mustRegenerateSegmentFilters = true;
+        } else {
+            try {
+                storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+                mustRegenerateSegmentFilters = true;
+                Arrays.fill(segmentsFilterBuffer, (byte)0);
+            }
         }
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
         for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
+            segmentFilters[i] = new BlockedBloomFilter(perSegmentBloomFilterSizeBytes * 8, perSegmentK, false,
+                    segmentsFilterBuffer, i * perSegmentBloomFilterSizeBytes);
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        if(!newSalt) {
+        if(!newSalt && !oldFilters) {
             try {
                 storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
             } catch (ChecksumFailedException e) {
                 Logger.error(this, "Checksummed read for main filters at "+storage.offsetMainBloomFilter+" failed for "+this+": "+e);
                 mustRegenerateMainFilter = true;
+                Arrays.fill(filterBuffer, (byte)0);
             }
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new BlockedBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, true, filterBuffer, 0);
         filter.setWarnOnRemoveFromEmpty();
     }
 
@@ -213,7 +201,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
      * once. Include a checksum. */
     void initialWriteSegmentBloomFilters(long fileOffset) throws IOException {
         OutputStream cos = storage.writeChecksummedTo(fileOffset, totalSegmentBloomFiltersSize());
-        for(BinaryBloomFilter segFilter : segmentFilters) {
+        for(BlockedBloomFilter segFilter : segmentFilters) {
             segFilter.writeTo(cos);
         }
         cos.close();
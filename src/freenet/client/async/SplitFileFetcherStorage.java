@@ -211,6 +211,11 @@ public class SplitFileFetcherStorage {
     final long offsetOriginalDetails;
     /** Offset to start of the basic settings in bytes */
     final long offsetBasicSettings;
+    /** Length of the basic settings, not including their checksum */
+    private int basicSettingsLength;
+    /** True if the file has filters from before {@link #FLAG_BLOCKED_BLOOM_FILTERS}, which 
+     * haven't been regenerated yet. */
+    private boolean oldBloomFilters;
     /** Length of all section checksums */
     final int checksumLength;
     /** Checksum implementation */
@@ -222,6 +227,17 @@ public class SplitFileFetcherStorage {
     static final long END_MAGIC = 0x28b32d99416eb6efL;
     /** Current format version */
     static final int VERSION = 1;
+    /** Set if the bloom filters are {@link freenet.support.BlockedBloomFilter}'s. Without it, they
+     * were written by the old filters, and must be regenerated. 
+     * 
+     * This is a one-way migration. Builds from before the flag reject any file with flags set
+     * ("Unknown flags"), so after a downgrade the download fails to resume and starts again from
+     * scratch. Clearing the flag wouldn't help, as the old filters can't read the new bits. A file
+     * written by an older build only gets the flag once its filters have been regenerated, so 
+     * until then it can still be read by the older build. */
+    static final int FLAG_BLOCKED_BLOOM_FILTERS = 1;
+    /** All the flags we understand. */
+    static final int FLAGS = FLAG_BLOCKED_BLOOM_FILTERS;
     
     /** List of segments we need to tryStartDecode() on because their metadata was corrupted on
      * startup. */
@@ -562,40 +578,8 @@ public class SplitFileFetcherStorage {
                 metadataTemp.free();
                 raf.pwrite(offsetOriginalDetails, encodedURI, 0, encodedURI.length);
                 raf.pwrite(offsetBasicSettings, encodedBasicSettings, 0, encodedBasicSettings.length);
-                
-                // This bit tricky because version is included in the checksum.
-                // When the RAF is encrypted, we use HMAC's and this is important.
-                // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
-                // FIXME if not, we need something that is ...
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeInt(encodedBasicSettings.length - checksumLength);
-                byte[] bufToWrite = baos.toByteArray();
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                dos.writeInt(0); // flags
-                dos.writeShort(checksumChecker.getChecksumTypeID());
-                dos.writeInt(VERSION);
-                byte[] version = baos.toByteArray();
-                byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+version.length);
-                System.arraycopy(version, 0, bufToChecksum, bufToWrite.length, version.length);
-                byte[] checksum = 
-                    checksumChecker.generateChecksum(bufToChecksum);
-                // Pointers.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length, bufToWrite, 0, 
-                        bufToWrite.length);
-                // Checksum.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length, 
-                        checksum, 0, checksum.length);
-                // Version.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length + 
-                        checksum.length, version, 0, version.length);
-                // Write magic last.
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                dos.writeLong(END_MAGIC);
-                byte[] buf = baos.toByteArray();
-                raf.pwrite(totalLength - 8, buf, 0, 8);
+                basicSettingsLength = encodedBasicSettings.length - checksumLength;
+                writeFooter();
             }
         } finally {
             lock.unlock();
@@ -603,6 +587,42 @@ public class SplitFileFetcherStorage {
         if(logMINOR) Logger.minor(this, "Fetching "+thisKey+" on "+this+" for "+fetcher);
     }
     
+    /** Write the end of the file: the length of the basic settings, a checksum, the flags, the 
+     * checksum type, the version and the magic number. */
+    private void writeFooter() throws IOException {
+        // This bit tricky because version is included in the checksum.
+        // When the RAF is encrypted, we use HMAC's and this is important.
+        // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
+        // FIXME if not, we need something that is ...
+        long offset = rafLength - (22 + checksumLength);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(basicSettingsLength);
+        byte[] bufToWrite = baos.toByteArray();
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeInt(oldBloomFilters ? 0 : FLAG_BLOCKED_BLOOM_FILTERS);
+        dos.writeShort(checksumChecker.getChecksumTypeID());
+        dos.writeInt(VERSION);
+        byte[] version = baos.toByteArray();
+        byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+version.length);
+        System.arraycopy(version, 0, bufToChecksum, bufToWrite.length, version.length);
+        byte[] checksum = 
+            checksumChecker.generateChecksum(bufToChecksum);
+        // Pointers.
+        raf.pwrite(offset, bufToWrite, 0, bufToWrite.length);
+        // Checksum.
+        raf.pwrite(offset + bufToWrite.length, checksum, 0, checksum.length);
+        // Version.
+        raf.pwrite(offset + bufToWrite.length + checksum.length, version, 0, version.length);
+        // Write magic last.
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeLong(END_MAGIC);
+        byte[] buf = baos.toByteArray();
+        raf.pwrite(rafLength - 8, buf, 0, 8);
+    }
+    
     /** Construct a SplitFileFetcherStorage from a stored RandomAccessBuffer, and appropriate local
      * settings passed in. Ideally this would work with only basic system utilities such as 
      * those on ClientContext, i.e. we'd be able to restore the splitfile download without knowing
@@ -663,8 +683,9 @@ public class SplitFileFetcherStorage {
         raf.pread(rafLength-18, flagsBuf, 0, 4);
         dis = new DataInputStream(new ByteArrayInputStream(flagsBuf));
         int flags = dis.readInt();
-        if(flags != 0)
+        if((flags & ~FLAGS) != 0)
             throw new StorageFormatException("Unknown flags: "+flags);
+        oldBloomFilters = (flags & FLAG_BLOCKED_BLOOM_FILTERS) == 0;
         // 4 bytes basic settings length and a checksum, which includes both the settings length and the version.
         buf = new byte[14];
         raf.pread(rafLength-(22+checksumLength), buf, 0, 4);
@@ -677,7 +698,7 @@ public class SplitFileFetcherStorage {
         if(!checksumChecker.checkChecksum(buf, 0, 14, checksum))
             throw new StorageFormatException("Checksum failed on basic settings length and version");
         dis = new DataInputStream(new ByteArrayInputStream(buf));
-        int basicSettingsLength = dis.readInt();
+        basicSettingsLength = dis.readInt();
         if(basicSettingsLength < 0 || basicSettingsLength + 12 + 4 + checksumLength > raf.size() || 
                 basicSettingsLength > 1024*1024)
             throw new StorageFormatException("Bad basic settings length");
@@ -827,7 +848,7 @@ public class SplitFileFetcherStorage {
             for(int i=0;i<crossSegments;i++) {
                 this.crossSegments[i] = new SplitFileFetcherCrossSegmentStorage(this, i, dis);
             }
-            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt);
+            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt, oldBloomFilters);
         } catch (IOException e) {
             // We are reading from an array! Bad as written perhaps?
             throw new StorageFormatException("Cannot read basic settings even though passed checksum: "+e, e);
@@ -978,6 +999,11 @@ public class SplitFileFetcherStorage {
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
+                            if(oldBloomFilters) {
+                                // Only once the new filters are on disk.
+                                oldBloomFilters = false;
+                                writeFooter();
+                            }
                         } catch (IOException e) {
                             if(persistent)
                                 failOnDiskError(e);
@@ -1070,8 +1070,9 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			if(t == null)
 				val = "none";
 			else
-				val = (int)t.getBandwidth()+"B/sec delay "+
-					t.getDelay()+"ms (RTT "+t.getRoundTripTime()+"ms window "+t.getWindowSize()+')';
+				val = (int)peerNodeStatus.getThrottlePacingRate()+"B/sec delay "+
+					t.getDelay()+"ms (RTT "+peerNodeStatus.getThrottleRoundTripTime()+"ms window "+
+					peerNodeStatus.getThrottleWindowSize()+' '+peerNodeStatus.getCongestionControl()+')';
 			peerRow.addChild("td", "class", "peer-idle" /* FIXME */).addChild("#", val);
 			// time delta
 			peerRow.addChild("td", "class", "peer-idle" /* FIXME */).addChild("#", TimeUtil.formatTime(peerNodeStatus.getClockDelta()));
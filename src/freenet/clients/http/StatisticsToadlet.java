@@ -41,12 +41,14 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.node.stats.StorePhase;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.math.LatencyHistogram;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -823,8 +825,76 @@ public class StatisticsToadlet extends Toadlet {
 			} catch (StatsNotAvailableException e) {
 				row.addChild("td", "N/A");
 			}
+
+			StoreAccessStats[] tiers = stats.getSessionTierAccessStats();
+			if(tiers != null) {
+				for(int i = 0; i < tiers.length; i++)
+					drawStoreTierRow(storeSizeTable, i == 0 ? l10n("fastTier") : l10n("slowTier"), tiers[i], nodeUptimeSeconds);
+			}
 		}
 
+		drawStoreLatencyTable(scrollDiv, storeStats);
+	}
+
+	/** Latency percentiles for each phase of fetches and puts, for the stores which time them. */
+	private void drawStoreLatencyTable(HTMLNode parent, Map<DataStoreInstanceType, DataStoreStats> storeStats) {
+		HTMLNode table = null;
+		StorePhase[] phases = StorePhase.values();
+		for (Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats.entrySet()) {
+			DataStoreInstanceType instance = entry.getKey();
+			StoreAccessStats access = entry.getValue().getSessionAccessStats();
+			if(access == null || access.latency(StorePhase.FETCH) == null) continue;
+			if(table == null) {
+				parent.addChild("p", l10n("storeLatency"));
+				table = parent.addChild("table", "border", "0");
+				HTMLNode row = table.addChild("tr");
+				row.addChild("th", "");
+				for(StorePhase phase : phases)
+					row.addChild("th", l10n("storePhase."+phase.name()));
+				row.addChild("th", l10n("bytesRead"));
+				row.addChild("th", l10n("bytesWritten"));
+			}
+			HTMLNode row = table.addChild("tr");
+			row.addChild("th", l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")");
+			for(StorePhase phase : phases) {
+				LatencyHistogram latency = access.latency(phase);
+				if(latency == null || latency.count() == 0)
+					row.addChild("td", "-");
+				else
+					row.addChild("td", formatNanos(latency.percentileNanos(0.5)) + " / " +
+							formatNanos(latency.percentileNanos(0.99)) + " / " + formatNanos(latency.maxNanos()));
+			}
+			row.addChild("td", access.bytesRead() < 0 ? "N/A" : SizeUtil.formatSize(access.bytesRead()));
+			row.addChild("td", access.bytesWritten() < 0 ? "N/A" : SizeUtil.formatSize(access.bytesWritten()));
+		}
+	}
+
+	private String formatNanos(long nanos) {
+		if(nanos < 1000) return nanos + "ns";
+		if(nanos < 1000 * 1000) return fix1p2.format(nanos / 1000.0) + "\u00b5s";
+		if(nanos < 1000 * 1000 * 1000) return fix1p2.format(nanos / (1000.0 * 1000)) + "ms";
+		return fix1p2.format(nanos / (1000.0 * 1000 * 1000)) + "s";
+	}
+
+	/** Where the hits of one store came from, if it has more than one tier. */
+	private void drawStoreTierRow(HTMLNode storeSizeTable, String name, StoreAccessStats access, long nodeUptimeSeconds) {
+		HTMLNode row = storeSizeTable.addChild("tr");
+		row.addChild("td", "\u00a0\u00a0" + name);
+		for(int i = 0; i < 4; i++)
+			row.addChild("td", "");
+		row.addChild("td", thousandPoint.format(access.readRequests()));
+		row.addChild("td", thousandPoint.format(access.successfulReads()));
+		try {
+			row.addChild("td", fix1p4.format(access.successRate()) + "%");
+		} catch (StatsNotAvailableException e) {
+			row.addChild("td", "N/A");
+		}
+		row.addChild("td", thousandPoint.format(access.writes()));
+		row.addChild("td", fix1p2.format(access.accessRate(nodeUptimeSeconds)) + " /s");
+		row.addChild("td", fix1p2.format(access.writeRate(nodeUptimeSeconds)) + " /s");
+		row.addChild("td", thousandPoint.format(access.falsePos()));
+		for(int i = 0; i < 5; i++)
+			row.addChild("td", "");
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -28,6 +28,12 @@ public enum HMAC {
   }
 
   public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
+    return createMac(hash, key).doFinal(data);
+  }
+
+  /** Create an initialised Mac, which can be reused for many messages with the same key, but
+   * is not thread-safe. */
+  public static Mac createMac(HMAC hash, byte[] key) {
     if(key.length != hash.digestSize)
       throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
                                          key.length+" expected "+hash.digestSize);
@@ -46,7 +52,7 @@ public enum HMAC {
       Logger.error(HMAC.class, "Impossible InvalidKeyException", e);
       throw new Error(e);
     }
-    return mac.doFinal(data);
+    return mac;
   }
 
   public static boolean verify(HMAC hash, byte[] key, byte[] data, byte[] mac) {
@@ -59,6 +59,7 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
 		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
+		PeerNode indexed = null;
 
 		if(opn != null) {
 			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
@@ -67,6 +68,13 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 			}
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
+			// Probably a connected peer whose address has changed. Try the one it is probably
+			// from before trying every peer's setup key.
+			indexed = crypto.getPeerNodeBySequenceNumber(buf, offset, length);
+			if(indexed != null && indexed.handleReceivedPacket(buf, offset, length, now, peer)) {
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
+			}
 		}
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
@@ -74,7 +82,7 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
 			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
+				if(pn == opn || pn == indexed) continue;
 				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
 					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 					return DECODED.DECODED;
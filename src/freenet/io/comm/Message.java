@@ -19,16 +19,15 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
+import freenet.support.Buffer;
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
@@ -36,6 +35,7 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NullOutputStream;
 
 /**
  * A Message which can be read from and written to a DatagramPacket.
@@ -49,6 +49,9 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * The fields are stored by their ordinal in the MessageType's MessageLayout: primitives
+ * unboxed in a long[], anything else in an Object[].
+ *
  * @author ian
  */
 public class Message {
@@ -70,7 +73,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageLayout _layout;
+	/** Primitive fields by ordinal. Floats and doubles are stored as their raw bits. */
+	private final long[] _primitives;
+	/** Other fields by ordinal, or null if the type has none. */
+	private final Object[] _objects;
+	/** Bit i is set if field i has been set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -78,6 +87,11 @@ public class Message {
 	private boolean needsLoadRT;
 	private boolean needsLoadBulk;
 	
+	/**
+	 * Decode a message, and any sub-messages, from a fully received message buffer.
+	 * Buffer fields (block data) are not copied, they refer to buf, so the caller must not
+	 * reuse or change buf afterwards. The same applies to decodeMessageLax().
+	 */
 	public static Message decodeMessageFromPacket(byte[] buf, int offset, int length, PeerContext peer, int overhead) {
 		ByteBufferInputStream bb = new ByteBufferInputStream(buf, offset, length);
 		return decodeMessage(bb, peer, length + overhead, true, false, false);
@@ -107,15 +121,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m.decodeFields(bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -151,6 +157,46 @@ public class Message {
 		return m;
 	}
 
+	/** Read the fields, in order, directly into the arrays. */
+	private void decodeFields(ByteBufferInputStream bb) throws IOException {
+		final MessageLayout layout = _layout;
+		for (int i = 0; i < layout.size(); i++) {
+			switch (layout.kinds[i]) {
+			case MessageLayout.BOOLEAN:
+				// Only 0 and 1 are written, anything else indicates a problem, as in Serializer.
+				final byte bool = bb.readByte();
+				if (bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: " + bool);
+				_primitives[i] = bool;
+				break;
+			case MessageLayout.BYTE:
+				_primitives[i] = bb.readByte();
+				break;
+			case MessageLayout.SHORT:
+				_primitives[i] = bb.readShort();
+				break;
+			case MessageLayout.INT:
+			case MessageLayout.FLOAT:
+				_primitives[i] = bb.readInt();
+				break;
+			case MessageLayout.LONG:
+			case MessageLayout.DOUBLE:
+				_primitives[i] = bb.readLong();
+				break;
+			case MessageLayout.LIST: // Special handling for LinkedList to deal with element type
+				set(layout.names[i], Serializer.readListFromDataInputStream(layout.listTypes[i], bb));
+				break;
+			default:
+				if (layout.types[i] == Buffer.class)
+					// Block data: don't copy it, see decodeMessageFromPacket().
+					_objects[i] = Buffer.readShared(bb);
+				else
+					set(layout.names[i], Serializer.readFromDataInputStream(layout.types[i], bb));
+			}
+			_set |= 1L << i;
+		}
+	}
+
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
@@ -158,6 +204,9 @@ public class Message {
 	private Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
+		_layout = spec.getLayout();
+		_primitives = new long[_layout.size()];
+		_objects = _layout.hasObjects ? new Object[_layout.size()] : null;
 		if (source == null) {
 			_internal = true;
 			_sourceRef = null;
@@ -174,7 +223,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_layout = m._layout;
+		_primitives = m._primitives.clone();
+		_objects = m._objects == null ? null : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +235,96 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The ordinal of the field if it is set and is of the given kind, otherwise -1,
+	 * in which case the caller should fall back to the boxed value, which fails in the same
+	 * way as it always has if the field isn't set or is of a different type. */
+	private int primitiveToGet(String key, byte kind) {
+		int i = _layout.ordinal(key);
+		if (i < 0 || _layout.kinds[i] != kind || (_set & (1L << i)) == 0) return -1;
+		return i;
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.BOOLEAN);
+		if (i < 0) return (Boolean) getObject(key);
+		return _primitives[i] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.BYTE);
+		if (i < 0) return (Byte) getObject(key);
+		return (byte) _primitives[i];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.SHORT);
+		if (i < 0) return (Short) getObject(key);
+		return (short) _primitives[i];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.INT);
+		if (i < 0) return (Integer) getObject(key);
+		return (int) _primitives[i];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.LONG);
+		if (i < 0) return (Long) getObject(key);
+		return _primitives[i];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.DOUBLE);
+		if (i < 0) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[i]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int i = primitiveToGet(key, MessageLayout.FLOAT);
+		if (i < 0) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[i]);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it isn't set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _layout.ordinal(key);
+		if (i < 0 || (_set & (1L << i)) == 0) return null;
+		return get(i);
+	}
+
+	private Object get(int i) {
+		long p = _primitives[i];
+		switch (_layout.kinds[i]) {
+		case MessageLayout.BOOLEAN:
+			return Boolean.valueOf(p != 0);
+		case MessageLayout.BYTE:
+			return Byte.valueOf((byte) p);
+		case MessageLayout.SHORT:
+			return Short.valueOf((short) p);
+		case MessageLayout.INT:
+			return Integer.valueOf((int) p);
+		case MessageLayout.LONG:
+			return Long.valueOf(p);
+		case MessageLayout.FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) p));
+		case MessageLayout.DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(p));
+		default:
+			return _objects[i];
+		}
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,32 +332,59 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** @return The ordinal of the field if it is of the given kind, otherwise -1, in which
+	 * case the caller should set the boxed value, which is checked as it always has been. */
+	private int primitiveToSet(String key, byte kind) {
+		int i = _layout.ordinal(key);
+		if (i < 0 || _layout.kinds[i] != kind) return -1;
+		return i;
+	}
+
+	private void setPrimitive(int i, long value) {
+		_primitives[i] = value;
+		_set |= 1L << i;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		int i = primitiveToSet(key, MessageLayout.BOOLEAN);
+		if (i < 0) set(key, Boolean.valueOf(b));
+		else setPrimitive(i, b ? 1 : 0);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		int i = primitiveToSet(key, MessageLayout.BYTE);
+		if (i < 0) set(key, Byte.valueOf(b));
+		else setPrimitive(i, b);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		int i = primitiveToSet(key, MessageLayout.SHORT);
+		if (i < 0) set(key, Short.valueOf(s));
+		else setPrimitive(i, s);
 	}
 
-	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+	public void set(String key, int n) {
+		int i = primitiveToSet(key, MessageLayout.INT);
+		if (i < 0) set(key, Integer.valueOf(n));
+		else setPrimitive(i, n);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		int i = primitiveToSet(key, MessageLayout.LONG);
+		if (i < 0) set(key, Long.valueOf(l));
+		else setPrimitive(i, l);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		int i = primitiveToSet(key, MessageLayout.DOUBLE);
+		if (i < 0) set(key, Double.valueOf(d));
+		else setPrimitive(i, Double.doubleToRawLongBits(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		int i = primitiveToSet(key, MessageLayout.FLOAT);
+		if (i < 0) set(key, Float.valueOf(f));
+		else setPrimitive(i, Float.floatToRawIntBits(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,45 +394,182 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int i = _layout.ordinal(key);
+		switch (_layout.kinds[i]) {
+		case MessageLayout.BOOLEAN:
+			setPrimitive(i, ((Boolean) value) ? 1 : 0);
+			break;
+		case MessageLayout.BYTE:
+			setPrimitive(i, (Byte) value);
+			break;
+		case MessageLayout.SHORT:
+			setPrimitive(i, (Short) value);
+			break;
+		case MessageLayout.INT:
+			setPrimitive(i, (Integer) value);
+			break;
+		case MessageLayout.LONG:
+			setPrimitive(i, (Long) value);
+			break;
+		case MessageLayout.FLOAT:
+			setPrimitive(i, Float.floatToRawIntBits((Float) value));
+			break;
+		case MessageLayout.DOUBLE:
+			setPrimitive(i, Double.doubleToRawLongBits((Double) value));
+			break;
+		default:
+			_objects[i] = value;
+			_set |= 1L << i;
+		}
 	}
 
 	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+		byte[] buf = new byte[encodedLength(true)];
+		int length = encodeToPacket(buf, 0, true);
+		if (logDEBUG) Logger.debug(this, "Length: "+length+", hash: "+Fields.hashCode(buf));
+		return buf;
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+	/** @return The number of bytes encodeToPacket() will write. */
+	public int encodedLength() {
+		return encodedLength(true);
+	}
 
-		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+	/**
+	 * Encode the message directly into a buffer.
+	 * @param buf The buffer, which must have at least encodedLength() bytes after offset.
+	 * @return The number of bytes written.
+	 */
+	public int encodeToPacket(byte[] buf, int offset) {
+		return encodeToPacket(buf, offset, true);
+	}
+
+	private int encodedLength(boolean includeSubMessages) {
+		final MessageLayout layout = _layout;
+		int length = 4 + layout.primitiveLength;
+		if (layout.hasObjects) {
+			for (int i = 0; i < layout.size(); i++) {
+				if (layout.kinds[i] >= MessageLayout.OBJECT)
+					length += objectLength(i);
 			}
-			dos.flush();
+		}
+		if (_subMessages != null && includeSubMessages) {
+			for (Message subMessage : _subMessages)
+				length += 2 + subMessage.encodedLength(false);
+		}
+		return length;
+	}
+
+	private int objectLength(int i) {
+		Object o = _objects[i];
+		if (o == null) throw new IllegalStateException(_layout.names[i]+" not set in "+this);
+		// The common ones, otherwise find out by writing it.
+		if (o.getClass() == ShortBuffer.class) return 2 + ((ShortBuffer) o).getLength();
+		if (o.getClass() == Buffer.class) return 4 + ((Buffer) o).getLength();
+		DataOutputStream dos = new DataOutputStream(new NullOutputStream());
+		try {
+			Serializer.writeToDataOutputStream(o, dos);
 		} catch (IOException e) {
-			e.printStackTrace();
 			throw new IllegalStateException(e.getMessage());
 		}
+		return dos.size();
+	}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
+	private int encodeToPacket(byte[] buf, int offset, boolean includeSubMessages) {
+		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
+		final MessageLayout layout = _layout;
+		int pos = offset;
+		pos = writeInt(buf, pos, _spec.getName().hashCode());
+		DataOutputStream dos = null;
+		ArrayOutputStream out = null;
+		for (int i = 0; i < layout.size(); i++) {
+			byte kind = layout.kinds[i];
+			if (kind < MessageLayout.OBJECT && (_set & (1L << i)) == 0)
+				throw new IllegalStateException(layout.names[i]+" not set in "+this);
+			long p = _primitives[i];
+			switch (kind) {
+			case MessageLayout.BOOLEAN:
+			case MessageLayout.BYTE:
+				buf[pos++] = (byte) p;
+				break;
+			case MessageLayout.SHORT:
+				buf[pos++] = (byte) (p >> 8);
+				buf[pos++] = (byte) p;
+				break;
+			case MessageLayout.INT:
+				pos = writeInt(buf, pos, (int) p);
+				break;
+			case MessageLayout.FLOAT:
+				// Same as DataOutputStream.writeFloat(), which collapses NaNs.
+				pos = writeInt(buf, pos, Float.floatToIntBits(Float.intBitsToFloat((int) p)));
+				break;
+			case MessageLayout.LONG:
+				pos = writeLong(buf, pos, p);
+				break;
+			case MessageLayout.DOUBLE:
+				pos = writeLong(buf, pos, Double.doubleToLongBits(Double.longBitsToDouble(p)));
+				break;
+			default:
+				if (_objects[i] == null)
+					throw new IllegalStateException(layout.names[i]+" not set in "+this);
+				if (out == null) {
+					out = new ArrayOutputStream(buf);
+					dos = new DataOutputStream(out);
+				}
+				out.pos = pos;
 				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
+					Serializer.writeToDataOutputStream(_objects[i], dos);
 				} catch (IOException e) {
-					e.printStackTrace();
+					// Impossible, we are writing to an array.
 					throw new IllegalStateException(e.getMessage());
 				}
+				pos = out.pos;
 			}
 		}
 
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+		if (_subMessages != null && includeSubMessages) {
+			for (Message subMessage : _subMessages) {
+				int length = subMessage.encodeToPacket(buf, pos + 2, false);
+				buf[pos] = (byte) (length >> 8);
+				buf[pos + 1] = (byte) length;
+				pos += 2 + length;
+			}
+		}
+		return pos - offset;
+	}
+
+	private static int writeInt(byte[] buf, int pos, int x) {
+		buf[pos] = (byte) (x >> 24);
+		buf[pos + 1] = (byte) (x >> 16);
+		buf[pos + 2] = (byte) (x >> 8);
+		buf[pos + 3] = (byte) x;
+		return pos + 4;
+	}
+
+	private static int writeLong(byte[] buf, int pos, long x) {
+		pos = writeInt(buf, pos, (int) (x >> 32));
+		return writeInt(buf, pos, (int) x);
+	}
+
+	/** Writes to a byte array from pos, which the caller keeps track of. */
+	private static class ArrayOutputStream extends OutputStream {
+		private final byte[] buf;
+		int pos;
+
+		ArrayOutputStream(byte[] buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		}
 	}
 
 	@Override
@@ -313,9 +577,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (String name : _layout.names) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +599,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _layout.ordinal(fieldName);
+		return i >= 0 && (_set & (1L << i)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -138,6 +138,25 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	/** @return True if the filter is or()ed with another, so it can match messages which
+	 * it couldn't on its own. */
+	boolean hasOr() {
+		return _or != null;
+	}
+
+	/** @return The value the field must have for this filter (but not any or()ed filters) to
+	 * match, or null if it can have any value. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i >= 0 ? _fields.get(i) : null;
+		}
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -0,0 +1,277 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The filters waiting for messages in MessageCore, indexed by message type, source and UID, so
+ * that an incoming message is only matched against the filters which could match it, rather
+ * than against every filter. Filters which are or()ed with other filters, or don't have a type,
+ * could match anything, so they are matched against every message, as before.
+ *
+ * The filters are also kept in order of timeout, which is the order in which they get to match
+ * a message: when more than one filter matches, the one which times out first gets it, as if we
+ * were still scanning a single list. This is also used as a deadline queue, so that filters are
+ * timed out when they expire without looking at every filter for every message.
+ *
+ * Not thread-safe: MessageCore only uses it while holding the lock on it.
+ */
+final class MessageFilterIndex implements Iterable<MessageFilter> {
+
+	/** A message type, and optionally a source and a UID. A filter is indexed under the
+	 * fields it sets, and a message under every combination of its fields that a filter
+	 * could set. */
+	static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Object uid;
+		private final int hashCode;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int hash = type.hashCode();
+			if(source != null) hash = hash * 31 + source.hashCode();
+			if(uid != null) hash = hash * 31 + uid.hashCode();
+			hashCode = hash;
+		}
+
+		/** @return The key to index the filter under, or null if it can match messages of any
+		 * type, source or UID, and must be matched against every message. */
+		static Key forFilter(MessageFilter filter) {
+			if(filter.hasOr() || filter.getType() == null) return null;
+			return new Key(filter.getType(), filter.getSource(), filter.getField(DMT.UID));
+		}
+
+		/** @return The keys of all the filters which could match the message, i.e. with and
+		 * without its source and UID. */
+		static Key[] forMessage(Message m) {
+			MessageType type = m.getSpec();
+			PeerContext source = m.getSource();
+			Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+			if(source == null && uid == null)
+				return new Key[] { new Key(type, null, null) };
+			if(source == null)
+				return new Key[] { new Key(type, null, uid), new Key(type, null, null) };
+			if(uid == null)
+				return new Key[] { new Key(type, source, null), new Key(type, null, null) };
+			return new Key[] { new Key(type, source, uid), new Key(type, source, null),
+					new Key(type, null, uid), new Key(type, null, null) };
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode || !type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			return uid == null ? k.uid == null : uid.equals(k.uid);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The filter's timeout when it was added. */
+		final long timeout;
+		/** Filters with the same timeout are matched in the order they were added. */
+		final long id;
+		/** Null if the filter is in wildcards. */
+		final Key key;
+
+		Entry(MessageFilter filter, long id, Key key) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.id = id;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if(timeout != other.timeout) return timeout < other.timeout ? -1 : 1;
+			if(id != other.id) return id < other.id ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/** Every filter, in order of timeout. */
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	private final HashMap<Key, TreeSet<Entry>> byKey = new HashMap<Key, TreeSet<Entry>>();
+	/** Filters which must be matched against every message. */
+	private final TreeSet<Entry> wildcards = new TreeSet<Entry>();
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	/** Filters found to have timed out since the last takeTimedOut(). */
+	private ArrayList<MessageFilter> timedOut;
+	private long counter;
+
+	/** Add a filter, in order of its current timeout.
+	 * @return False if the filter was already added, in which case it is moved. */
+	boolean add(MessageFilter filter) {
+		boolean existed = remove(filter);
+		Entry entry = new Entry(filter, counter++, Key.forFilter(filter));
+		entries.put(filter, entry);
+		byTimeout.add(entry);
+		if(entry.key == null) {
+			wildcards.add(entry);
+		} else {
+			TreeSet<Entry> bucket = byKey.get(entry.key);
+			if(bucket == null) {
+				bucket = new TreeSet<Entry>();
+				byKey.put(entry.key, bucket);
+			}
+			bucket.add(entry);
+		}
+		return !existed;
+	}
+
+	/** @return False if the filter wasn't there. */
+	boolean remove(MessageFilter filter) {
+		Entry entry = entries.remove(filter);
+		if(entry == null) return false;
+		unindex(entry);
+		return true;
+	}
+
+	private void unindex(Entry entry) {
+		byTimeout.remove(entry);
+		if(entry.key == null) {
+			wildcards.remove(entry);
+		} else {
+			TreeSet<Entry> bucket = byKey.get(entry.key);
+			bucket.remove(entry);
+			if(bucket.isEmpty()) byKey.remove(entry.key);
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Find the filter which gets the message, and remove it. Filters which have expired are
+	 * removed too, and can be collected with takeTimedOut().
+	 * @return The filter, or null if none of them match.
+	 */
+	MessageFilter match(Message m, long now) {
+		expire(now);
+		Entry best = null;
+		for(Key key : Key.forMessage(m)) {
+			TreeSet<Entry> bucket = byKey.get(key);
+			if(bucket != null) best = match(bucket, m, now, best);
+		}
+		if(!wildcards.isEmpty()) best = match(wildcards, m, now, best);
+		if(best == null) return null;
+		entries.remove(best.filter);
+		unindex(best);
+		return best.filter;
+	}
+
+	/** @return The first filter in the set which matches the message, if it comes before best,
+	 * otherwise best. */
+	private Entry match(TreeSet<Entry> set, Message m, long now, Entry best) {
+		Iterator<Entry> it = set.iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(best != null && entry.compareTo(best) > 0) break;
+			MessageFilter f = entry.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				it.remove();
+				removeOther(set, entry);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				it.remove();
+				removeOther(set, entry);
+				addTimedOut(f);
+			} else if(status == MATCHED.MATCHED) {
+				return entry;
+			}
+		}
+		return best;
+	}
+
+	/** Remove an entry which has just been removed from set from everywhere else. */
+	private void removeOther(TreeSet<Entry> set, Entry entry) {
+		entries.remove(entry.filter);
+		if(set != byTimeout) byTimeout.remove(entry);
+		if(entry.key == null) {
+			if(set != wildcards) wildcards.remove(entry);
+		} else {
+			TreeSet<Entry> bucket = byKey.get(entry.key);
+			if(set != bucket) bucket.remove(entry);
+			if(bucket.isEmpty()) byKey.remove(entry.key);
+		}
+	}
+
+	/** Remove the filters at the front of the deadline queue which have timed out. Cheap if
+	 * none have. Filters which are timed out early by their callbacks are dealt with by
+	 * MessageCore.removeTimedOutFilters(). */
+	private void expire(long now) {
+		while(!byTimeout.isEmpty()) {
+			Entry entry = byTimeout.first();
+			if(entry.timeout >= now || !entry.filter.timedOut(now)) return;
+			byTimeout.pollFirst();
+			removeOther(byTimeout, entry);
+			addTimedOut(entry.filter);
+		}
+	}
+
+	private void addTimedOut(MessageFilter f) {
+		if(timedOut == null)
+			timedOut = new ArrayList<MessageFilter>();
+		timedOut.add(f);
+	}
+
+	/** @return The filters which match() found to have timed out, and removed, or null. */
+	ArrayList<MessageFilter> takeTimedOut() {
+		ArrayList<MessageFilter> ret = timedOut;
+		timedOut = null;
+		return ret;
+	}
+
+	/** Iterates over all the filters in order of timeout. Supports remove(). */
+	@Override
+	public Iterator<MessageFilter> iterator() {
+		final Iterator<Entry> it = byTimeout.iterator();
+		return new Iterator<MessageFilter>() {
+
+			private Entry last;
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public MessageFilter next() {
+				last = it.next();
+				return last.filter;
+			}
+
+			@Override
+			public void remove() {
+				it.remove();
+				removeOther(byTimeout, last);
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,115 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * The fields of a MessageType compiled into a flat layout: each field has an ordinal, in the
+ * order they are sent, and a kind, so that Message can keep primitive fields unboxed in a
+ * long[] and encode and decode them directly, without going through Serializer.
+ *
+ * Built by MessageType.getLayout() once all the fields have been added.
+ */
+final class MessageLayout {
+
+	static final byte BOOLEAN = 0;
+	static final byte BYTE = 1;
+	static final byte SHORT = 2;
+	static final byte INT = 3;
+	static final byte LONG = 4;
+	static final byte FLOAT = 5;
+	static final byte DOUBLE = 6;
+	/** Anything else, written by Serializer. */
+	static final byte OBJECT = 7;
+	/** A LinkedList, written by Serializer with the element type in listTypes. */
+	static final byte LIST = 8;
+
+	/** Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
+	final String[] names;
+	final Class<?>[] types;
+	final byte[] kinds;
+	/** The element type of each LIST field. */
+	final Class<?>[] listTypes;
+	private final HashMap<String, Integer> ordinals;
+	/** The number of bytes the primitive fields take up when encoded. */
+	final int primitiveLength;
+	final boolean hasObjects;
+
+	MessageLayout(MessageType spec) {
+		LinkedList<String> fields = spec.getOrderedFields();
+		int count = fields.size();
+		if(count > MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in "+spec.getName()+": "+count);
+		names = new String[count];
+		types = new Class<?>[count];
+		kinds = new byte[count];
+		listTypes = new Class<?>[count];
+		ordinals = new HashMap<String, Integer>(count * 2);
+		int length = 0;
+		boolean objects = false;
+		int i = 0;
+		for(String name : fields) {
+			Class<?> type = spec.getFields().get(name);
+			names[i] = name;
+			types[i] = type;
+			kinds[i] = kindOf(type);
+			if(kinds[i] == LIST)
+				listTypes[i] = spec.getLinkedListTypes().get(name);
+			if(kinds[i] >= OBJECT)
+				objects = true;
+			else
+				length += length(kinds[i]);
+			ordinals.put(name, i);
+			i++;
+		}
+		primitiveLength = length;
+		hasObjects = objects;
+	}
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Float.class) return FLOAT;
+		if(type == Double.class) return DOUBLE;
+		if(type == LinkedList.class) return LIST;
+		return OBJECT;
+	}
+
+	/** @return The encoded length of a primitive kind. */
+	static int length(byte kind) {
+		switch(kind) {
+		case BOOLEAN:
+		case BYTE:
+			return 1;
+		case SHORT:
+			return 2;
+		case INT:
+		case FLOAT:
+			return 4;
+		case LONG:
+		case DOUBLE:
+			return 8;
+		default:
+			throw new IllegalArgumentException("Not a primitive: "+kind);
+		}
+	}
+
+	/** @return The ordinal of the field, or -1 if the message type doesn't have it. */
+	int ordinal(String name) {
+		Integer i = ordinals.get(name);
+		return i == null ? -1 : i;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+}
@@ -40,6 +40,8 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Built when the first message of this type is created, after the fields are added. */
+	private volatile MessageLayout layout;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -70,6 +72,16 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		layout = null;
+	}
+
+	MessageLayout getLayout() {
+		MessageLayout l = layout;
+		if(l == null) {
+			l = new MessageLayout(this);
+			layout = l;
+		}
+		return l;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
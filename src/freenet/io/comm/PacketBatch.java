@@ -0,0 +1,69 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import freenet.io.comm.Peer.LocalAddressException;
+
+/**
+ * Encrypted packets waiting to be sent together by
+ * {@link PacketSocketHandler#sendPackets(PacketBatch)}. The destination address is checked
+ * when a packet is added, so the caller gets the same LocalAddressException as from
+ * sendPacket(), and the socket doesn't need to check it again. Not thread-safe.
+ */
+public final class PacketBatch {
+
+	private byte[][] data = new byte[8][];
+	private Peer[] destinations = new Peer[8];
+	/** Null if the address hasn't been looked up yet. */
+	private InetAddress[] addresses = new InetAddress[8];
+	private boolean[] allowLocalAddresses = new boolean[8];
+	private int size;
+
+	public void add(byte[] block, Peer destination, boolean allowLocal) throws LocalAddressException {
+		InetAddress address = destination.getAddress(false, allowLocal);
+		if(size == data.length) {
+			int newLength = size * 2;
+			data = Arrays.copyOf(data, newLength);
+			destinations = Arrays.copyOf(destinations, newLength);
+			addresses = Arrays.copyOf(addresses, newLength);
+			allowLocalAddresses = Arrays.copyOf(allowLocalAddresses, newLength);
+		}
+		data[size] = block;
+		destinations[size] = destination;
+		addresses[size] = address;
+		allowLocalAddresses[size] = allowLocal;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public byte[] getData(int i) {
+		return data[i];
+	}
+
+	public Peer getDestination(int i) {
+		return destinations[i];
+	}
+
+	public InetAddress getAddress(int i) {
+		return addresses[i];
+	}
+
+	public boolean allowLocalAddresses(int i) {
+		return allowLocalAddresses[i];
+	}
+
+	public void clear() {
+		Arrays.fill(data, 0, size, null);
+		Arrays.fill(destinations, 0, size, null);
+		Arrays.fill(addresses, 0, size, null);
+		size = 0;
+	}
+
+}
@@ -22,6 +22,12 @@ public interface PacketSocketHandler extends SocketHandler {
      */
     public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
 
+    /**
+     * Send all the packets in a batch, in order, and clear it. Statistics are recorded once for
+     * each run of packets to the same peer rather than for each packet.
+     */
+    public void sendPackets(PacketBatch batch);
+
     /**
      * Get the size of the transport layer headers, for byte accounting purposes.
      */
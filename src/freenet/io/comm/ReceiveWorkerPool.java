@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.io.NativeThread;
+
+/**
+ * Decodes received packets on a few threads, so a slow decrypt doesn't hold up receiving. Each
+ * source address always goes to the same worker, so a peer's packets are handled in the order
+ * they arrived.
+ *
+ * Receive buffers are recycled. The receive thread gets one from {@link #getBuffer()}, and it
+ * belongs to the pool again once it has been passed to {@link #dispatch(byte[], int, Peer,
+ * long)} or {@link #recycle(byte[])}. A worker only returns it to the free list after the
+ * processor has returned, so the processor must not keep a reference to it.
+ */
+class ReceiveWorkerPool {
+
+	/** Handles a received packet on a worker thread. */
+	interface Processor {
+		void process(byte[] buf, int offset, int length, Peer peer, long now);
+	}
+
+	private final Worker[] workers;
+	/** Receive buffers which the workers have finished with. */
+	private final BlockingQueue<byte[]> freeBuffers;
+	private final int bufferSize;
+	private final Processor processor;
+	private volatile boolean active = true;
+
+	ReceiveWorkerPool(int threads, int queueLength, int bufferSize, Processor processor) {
+		this.bufferSize = bufferSize;
+		this.processor = processor;
+		workers = new Worker[threads];
+		for(int i = 0; i < threads; i++)
+			workers[i] = new Worker(queueLength);
+		freeBuffers = new ArrayBlockingQueue<byte[]>(threads * queueLength);
+	}
+
+	void start(Executor executor, String name) {
+		for(int i = 0; i < workers.length; i++)
+			executor.execute(workers[i], name+" "+i);
+	}
+
+	void stop() {
+		active = false;
+	}
+
+	/** @return A buffer to receive the next packet into. */
+	byte[] getBuffer() {
+		byte[] buf = freeBuffers.poll();
+		if(buf == null) buf = new byte[bufferSize];
+		return buf;
+	}
+
+	/** Give back a buffer which wasn't dispatched, e.g. because nothing was received. */
+	void recycle(byte[] buf) {
+		freeBuffers.offer(buf);
+	}
+
+	/**
+	 * Queue a packet on the worker for its source address.
+	 * @return False if the worker's queue was full, so the packet was dropped.
+	 */
+	boolean dispatch(byte[] buf, int length, Peer peer, long now) {
+		Worker worker = workers[(peer.hashCode() & Integer.MAX_VALUE) % workers.length];
+		if(worker.queue.offer(new ReceivedPacket(buf, length, peer, now)))
+			return true;
+		recycle(buf);
+		return false;
+	}
+
+	private static final class ReceivedPacket {
+		final byte[] buf;
+		final int length;
+		final Peer peer;
+		final long received;
+
+		ReceivedPacket(byte[] buf, int length, Peer peer, long received) {
+			this.buf = buf;
+			this.length = length;
+			this.peer = peer;
+			this.received = received;
+		}
+	}
+
+	/** Decodes the packets from some of the source addresses, in the order they arrived. */
+	private class Worker implements PrioRunnable {
+		final BlockingQueue<ReceivedPacket> queue;
+
+		Worker(int queueLength) {
+			queue = new ArrayBlockingQueue<ReceivedPacket>(queueLength);
+		}
+
+		@Override
+		public void run() {
+			while(active) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == null) continue;
+				processor.process(packet.buf, 0, packet.length, packet.peer, packet.received);
+				recycle(packet.buf);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.PriorityLevel.MAX_PRIORITY.value;
+		}
+	}
+
+}
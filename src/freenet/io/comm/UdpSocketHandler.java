@@ -50,6 +50,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Decodes received packets, so a slow decrypt doesn't hold up receiving. Null if there is
+	 * only one core, in which case we decode on the receive thread. */
+	private final ReceiveWorkerPool workers;
+	/** Packets dropped because a worker's queue was full. Receive thread only. */
+	private long droppedPackets;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -160,6 +165,19 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
 		tracker.startSend(startupTime);
+		int threads = Math.min(MAX_RECEIVE_THREADS, Runtime.getRuntime().availableProcessors());
+		if(threads > 1) {
+			workers = new ReceiveWorkerPool(threads, RECEIVE_QUEUE_LENGTH, MAX_RECEIVE_SIZE, new ReceiveWorkerPool.Processor() {
+
+				@Override
+				public void process(byte[] buf, int offset, int length, Peer peer, long now) {
+					processPacket(buf, offset, length, peer, now);
+				}
+
+			});
+		} else {
+			workers = null;
+		}
 	}
 
 	/** Must be called, or we will NPE in run() */
@@ -222,6 +240,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
+			if(workers != null)
+				packet.setData(workers.getBuffer());
 			try {
 				realRun(packet);
 			} catch (Throwable t) {
@@ -248,33 +268,47 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+			if(workers == null) {
+				processPacket(packet.getData(), packet.getOffset(), packet.getLength(), peer, now);
+				return;
+			}
+			if(!workers.dispatch(packet.getData(), packet.getLength(), peer, now)) {
+				// The worker is behind; the kernel would have dropped it if we were too.
+				if(droppedPackets++ % 1000 == 0)
+					Logger.normal(this, "Receive queue full, dropped "+droppedPackets+" packets so far on "+this);
 			}
 		} else {
+			if(workers != null) workers.recycle(packet.getData());
 			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
+	private void processPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
 	private static final int MAX_RECEIVE_SIZE = 1500;
+	/** Decoding is CPU bound, and beyond a few threads we just contend on the peers' locks. */
+	private static final int MAX_RECEIVE_THREADS = 4;
+	/** About 30ms of a 100Mbit link per worker, several times the socket buffer. */
+	private static final int RECEIVE_QUEUE_LENGTH = 256;
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
@@ -335,15 +369,129 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		try {
 			_sock.send(packet);
 			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
+			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal(address));
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+			onSendFailed(address, destination, e);
+		}
+	}
+
+	@Override
+	public void sendPackets(PacketBatch batch) {
+		try {
+			if(!_active) {
+				Logger.error(this, "Trying to send packets but no longer active");
+				return;
+			}
+			sendBatch(_sock, batch, batchListener);
+		} finally {
+			batch.clear();
+		}
+	}
+
+	private final BatchListener batchListener = new BatchListener() {
+
+		@Override
+		public void sendSlowly(byte[] data, Peer destination, boolean allowLocalAddresses) {
+			try {
+				sendPacket(data, destination, allowLocalAddresses);
+			} catch (LocalAddressException e) {
+				Logger.error(this, "Caught exception while sending packet", e);
+			}
+		}
+
+		@Override
+		public boolean sendAll() {
+			// If we are testing dropping packets, do it the slow way.
+			return _dropProbability > 0;
+		}
+
+		@Override
+		public void sent(Peer destination, InetAddress address, int packets, int bytes) {
+			if(logMINOR) Logger.minor(this, "Sent "+packets+" packets length "+bytes+" to "+destination);
+			recordSent(destination, address, packets * getHeadersLength(address) + bytes);
+		}
+
+		@Override
+		public void failed(Peer destination, InetAddress address, IOException e) {
+			onSendFailed(address, destination, e);
+		}
+
+	};
+
+	/** Callbacks for {@link UdpSocketHandler#sendBatch(DatagramSocket, PacketBatch, BatchListener)}. */
+	interface BatchListener {
+		/** @return True to send every packet with sendSlowly(). */
+		boolean sendAll();
+		/** Send a packet on its own, e.g. because its address hasn't been looked up. */
+		void sendSlowly(byte[] data, Peer destination, boolean allowLocalAddresses);
+		/** A run of consecutive packets to the same peer has been sent.
+		 * @param bytes The total length of the packets, not including UDP/IP headers. */
+		void sent(Peer destination, InetAddress address, int packets, int bytes);
+		/** A packet couldn't be sent. The rest of the batch is still sent. */
+		void failed(Peer destination, InetAddress address, IOException e);
+	}
+
+	/**
+	 * Send a batch of packets through one reused DatagramPacket. Consecutive packets to the same
+	 * peer are reported together. Doesn't clear the batch.
+	 */
+	static void sendBatch(DatagramSocket sock, PacketBatch batch, BatchListener listener) {
+		DatagramPacket packet = null;
+		boolean sendAll = listener.sendAll();
+		Peer runDestination = null;
+		InetAddress runAddress = null;
+		int runPackets = 0;
+		int runBytes = 0;
+		for(int i = 0; i < batch.size(); i++) {
+			byte[] data = batch.getData(i);
+			Peer destination = batch.getDestination(i);
+			InetAddress address = batch.getAddress(i);
+			if(address == null || sendAll) {
+				listener.sendSlowly(data, destination, batch.allowLocalAddresses(i));
+				continue;
 			}
+			if(packet == null)
+				packet = new DatagramPacket(data, data.length);
+			else
+				packet.setData(data);
+			packet.setAddress(address);
+			packet.setPort(destination.getPort());
+			try {
+				sock.send(packet);
+			} catch (IOException e) {
+				listener.failed(destination, address, e);
+				continue;
+			}
+			if(!destination.equals(runDestination)) {
+				if(runDestination != null)
+					listener.sent(runDestination, runAddress, runPackets, runBytes);
+				runDestination = destination;
+				runAddress = address;
+				runPackets = 0;
+				runBytes = 0;
+			}
+			runPackets++;
+			runBytes += data.length;
+		}
+		if(runDestination != null)
+			listener.sent(runDestination, runAddress, runPackets, runBytes);
+	}
+
+	private void recordSent(Peer destination, InetAddress address, int bytes) {
+		tracker.sentPacketTo(destination);
+		collector.addInfo(address, destination.getPort(), 0, bytes, isLocal(address));
+	}
+
+	private boolean isLocal(InetAddress address) {
+		return (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+	}
+
+	private void onSendFailed(InetAddress address, Peer destination, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
 		}
 	}
 
@@ -400,6 +548,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
+		if(workers != null)
+			workers.start(node.executor, "UDP packet decoder for port "+listenPort);
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
 
@@ -408,6 +558,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized (this) {
 			_active = false;
 			_sock.close();
+			if(workers != null) workers.stop();
 
 			if(!_started) return;
 			while (!_isDone) {
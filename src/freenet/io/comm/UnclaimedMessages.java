@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.io.comm.MessageFilterIndex.Key;
+
+/**
+ * The messages which no filter or the Dispatcher wanted yet, oldest first, indexed in the same
+ * way as MessageFilterIndex, so that a new filter is only matched against the messages it could
+ * match rather than against all of them.
+ *
+ * Not thread-safe: MessageCore only uses it while holding the lock on its filters.
+ */
+final class UnclaimedMessages implements Iterable<Message> {
+
+	/** Every message, oldest first, and the keys it was indexed under, which we can't
+	 * recompute later because the source is only weakly referenced. */
+	private final LinkedHashMap<Message, Key[]> all = new LinkedHashMap<Message, Key[]>();
+	/** Each message is in every bucket for MessageFilterIndex.Key.forMessage(). */
+	private final HashMap<Key, LinkedHashSet<Message>> byKey = new HashMap<Key, LinkedHashSet<Message>>();
+
+	void add(Message m) {
+		if(all.containsKey(m)) return;
+		Key[] keys = Key.forMessage(m);
+		all.put(m, keys);
+		for(Key key : keys) {
+			LinkedHashSet<Message> bucket = byKey.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Message>();
+				byKey.put(key, bucket);
+			}
+			bucket.add(m);
+		}
+	}
+
+	private void remove(Message m) {
+		Key[] keys = all.remove(m);
+		if(keys == null) return;
+		for(Key key : keys) {
+			LinkedHashSet<Message> bucket = byKey.get(key);
+			if(bucket == null) continue;
+			bucket.remove(m);
+			if(bucket.isEmpty()) byKey.remove(key);
+		}
+	}
+
+	/** @return The oldest message, or null if there are none. */
+	Message oldest() {
+		return all.isEmpty() ? null : all.keySet().iterator().next();
+	}
+
+	/** Remove and return the oldest message, or null if there are none. */
+	Message removeOldest() {
+		Message m = oldest();
+		if(m != null) remove(m);
+		return m;
+	}
+
+	/**
+	 * Remove and return the oldest message which the filter matches, ignoring its timeout
+	 * because the messages have already arrived.
+	 * @return The message, or null if the filter doesn't match any of them.
+	 */
+	Message removeMatch(MessageFilter filter, long now) {
+		Key key = Key.forFilter(filter);
+		Iterable<Message> candidates = key == null ? all.keySet() : byKey.get(key);
+		if(candidates == null) return null;
+		for(Message m : candidates) {
+			if(filter.match(m, true, now) == MATCHED.MATCHED) {
+				// Changes the set we are iterating over, but we return straight away.
+				remove(m);
+				return m;
+			}
+		}
+		return null;
+	}
+
+	int size() {
+		return all.size();
+	}
+
+	/** Iterates over the messages, oldest first. Read only. */
+	@Override
+	public Iterator<Message> iterator() {
+		return Collections.unmodifiableSet(all.keySet()).iterator();
+	}
+
+}
@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * The original PacketThrottle algorithm: slow start until the first loss, then add a bit to
+ * the window for every packet acknowledged and multiply it by a constant for every packet
+ * lost, like TCP.
+ */
+class AIMDCongestionControl implements CongestionControl {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
+	static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
+	static final double SLOW_START_DIVISOR = 3.0;
+
+	private final int packetSize;
+	/** The size of the window, in packets.
+	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+	 * But mostly it is because of the non-slow-start division by _windowSize! */
+	private float _windowSize = 2;
+	private boolean slowStart = true;
+	private long _roundTripTime = 500;
+
+	AIMDCongestionControl(int packetSize) {
+		this.packetSize = packetSize;
+	}
+
+	@Override
+	public void onRoundTripTime(long rtt, long now) {
+		_roundTripTime = rtt;
+	}
+
+	@Override
+	public void onPacketAcknowledged(double maxWindowSize, long now) {
+		if(slowStart) {
+			if(logMINOR) Logger.minor(this, "Still in slow start");
+			_windowSize += _windowSize / SLOW_START_DIVISOR;
+			// Avoid craziness if there is lag in detecting packet loss.
+			if(_windowSize > maxWindowSize) slowStart = false;
+			// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+			// But mostly it is because of the non-slow-start division by _windowSize!
+			if(_windowSize < 1.0F) _windowSize = 1.0F;
+		} else {
+			_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+		}
+		// Ensure that we the window size does not grow dramatically larger than the largest window
+		// that has actually been in flight at one time.
+		if(_windowSize > maxWindowSize)
+			_windowSize = (float) maxWindowSize;
+	}
+
+	@Override
+	public void onPacketsLost(int numPackets, long now) {
+		_windowSize *= Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
+		if (_windowSize < 1.0F) {
+			_windowSize = 1.0F;
+		}
+		slowStart = false;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return _windowSize;
+	}
+
+	/** One window per round trip, as PacketThrottle has always estimated it. */
+	@Override
+	public double getPacingRate() {
+		long delay = Math.max(PacketThrottle.MIN_DELAY, (long) (_roundTripTime / _windowSize));
+		return packetSize * 1000.0 / delay;
+	}
+
+	@Override
+	public String getState() {
+		return slowStart ? "slow start" : "congestion avoidance";
+	}
+
+}
@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Congestion control along the lines of BBR: rather than treating every lost packet as a sign
+ * of congestion, estimate the bottleneck bandwidth (the fastest rate packets have been
+ * acknowledged over the last few round trips) and the minimum round trip time (over the last
+ * few seconds), and keep about twice their product in flight.
+ *
+ * The round trip is divided into rounds of one minimum RTT. Until the bandwidth estimate stops
+ * growing we are in startup, where the window doubles every round, as in slow start. After
+ * that, the window cycles through a round of probing for more bandwidth, a round of draining
+ * any queue that built up, and several rounds at the estimate. We send whatever the window
+ * allows rather than pacing packets, so the pacing gain is applied to the window.
+ *
+ * Losses end startup, but otherwise only matter if more than MAX_LOSS_RATE of a round's
+ * packets are lost, and then only once per round, so a burst of losses doesn't collapse the
+ * window as it does with AIMD.
+ */
+class BandwidthDelayCongestionControl implements CongestionControl {
+
+	/** The minimum RTT is forgotten after this long, so we notice if the path changes. */
+	static final long MIN_RTT_WINDOW = 10 * 1000;
+	/** The bandwidth estimate is the maximum over this many rounds. */
+	static final int BANDWIDTH_ROUNDS = 10;
+	/** Startup ends when the bandwidth estimate hasn't grown by this much... */
+	static final double STARTUP_GROWTH = 1.25;
+	/** ... for this many rounds. */
+	static final int STARTUP_ROUNDS = 3;
+	/** The window is this many times the bandwidth-delay product. */
+	static final double WINDOW_GAIN = 2.0;
+	/** Probe for more bandwidth, then drain the queue, then cruise. */
+	static final double[] GAIN_CYCLE = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+	static final double MAX_LOSS_RATE = 0.02;
+	/** How much the bandwidth estimate is reduced by when a round loses too many packets. */
+	static final double LOSS_DECREASE_MULTIPLE = 0.875;
+	static final double MIN_WINDOW = 2;
+
+	private final int packetSize;
+	private double windowSize = MIN_WINDOW;
+	/** The latest round trip time, used until we have a bandwidth estimate. */
+	private long roundTripTime = 500;
+	private long minRoundTripTime = -1;
+	private long minRoundTripTimeSet;
+
+	private boolean startup = true;
+	private double startupBandwidth;
+	private int startupStalledRounds;
+	private int cycle;
+
+	/** When the current round started, or -1 before the first ack. */
+	private long roundStart = -1;
+	private int roundAcked;
+	private int roundLost;
+	private boolean roundReduced;
+	/** Packets acknowledged per millisecond in each of the last BANDWIDTH_ROUNDS rounds. */
+	private final double[] bandwidthSamples = new double[BANDWIDTH_ROUNDS];
+	private int rounds;
+	/** The maximum of bandwidthSamples, in packets per millisecond. */
+	private double bandwidth;
+
+	BandwidthDelayCongestionControl(int packetSize) {
+		this.packetSize = packetSize;
+	}
+
+	@Override
+	public void onRoundTripTime(long rtt, long now) {
+		roundTripTime = rtt;
+		if(minRoundTripTime == -1 || rtt <= minRoundTripTime || now - minRoundTripTimeSet > MIN_RTT_WINDOW) {
+			minRoundTripTime = rtt;
+			minRoundTripTimeSet = now;
+		}
+	}
+
+	@Override
+	public void onPacketAcknowledged(double maxWindowSize, long now) {
+		if(roundStart == -1) roundStart = now;
+		roundAcked++;
+		long elapsed = now - roundStart;
+		if(minRoundTripTime > 0 && elapsed >= minRoundTripTime)
+			endRound(now, elapsed);
+		if(startup || bandwidth == 0)
+			windowSize += 1;
+		else
+			windowSize = WINDOW_GAIN * GAIN_CYCLE[cycle] * bandwidthDelayProduct();
+		if(windowSize < MIN_WINDOW) windowSize = MIN_WINDOW;
+		// As with AIMD, don't grow far beyond what has actually been in flight.
+		if(windowSize > maxWindowSize) windowSize = maxWindowSize;
+	}
+
+	@Override
+	public void onPacketsLost(int numPackets, long now) {
+		roundLost += numPackets;
+		if(startup) {
+			// Loss means we have found the bottleneck, or gone past it.
+			endStartup();
+			if(bandwidth > 0)
+				windowSize = Math.max(MIN_WINDOW, WINDOW_GAIN * GAIN_CYCLE[cycle] * bandwidthDelayProduct());
+		} else if(!roundReduced && roundLost > Math.max(1, roundAcked * MAX_LOSS_RATE)) {
+			// Persistent loss: the bottleneck is slower than we think.
+			roundReduced = true;
+			for(int i = 0; i < bandwidthSamples.length; i++)
+				bandwidthSamples[i] *= LOSS_DECREASE_MULTIPLE;
+			bandwidth *= LOSS_DECREASE_MULTIPLE;
+			windowSize = Math.max(MIN_WINDOW, windowSize * LOSS_DECREASE_MULTIPLE);
+		}
+	}
+
+	private void endRound(long now, long elapsed) {
+		bandwidthSamples[rounds++ % BANDWIDTH_ROUNDS] = (double) roundAcked / elapsed;
+		bandwidth = 0;
+		for(double sample : bandwidthSamples)
+			bandwidth = Math.max(bandwidth, sample);
+		if(startup) {
+			if(bandwidth >= startupBandwidth * STARTUP_GROWTH) {
+				startupBandwidth = bandwidth;
+				startupStalledRounds = 0;
+			} else if(++startupStalledRounds >= STARTUP_ROUNDS) {
+				endStartup();
+			}
+		} else {
+			cycle = (cycle + 1) % GAIN_CYCLE.length;
+		}
+		roundStart = now;
+		roundAcked = 0;
+		roundLost = 0;
+		roundReduced = false;
+	}
+
+	private void endStartup() {
+		if(!startup) return;
+		startup = false;
+		// Drain the queue startup will have built up.
+		cycle = 1;
+	}
+
+	/** @return The number of packets the path can hold, at the estimated bandwidth and minimum
+	 * round trip time. */
+	private double bandwidthDelayProduct() {
+		return bandwidth * minRoundTripTime;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return windowSize;
+	}
+
+	@Override
+	public double getPacingRate() {
+		if(startup || bandwidth == 0)
+			return packetSize * 1000.0 * windowSize / Math.max(PacketThrottle.MIN_DELAY, roundTripTime);
+		return packetSize * 1000.0 * GAIN_CYCLE[cycle] * bandwidth;
+	}
+
+	@Override
+	public String getState() {
+		return (startup ? "startup" : "cycle "+cycle)+" bandwidth "+(bandwidth * 1000)+" packets/sec min RTT "+minRoundTripTime;
+	}
+
+}
@@ -0,0 +1,39 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * A congestion control algorithm behind a PacketThrottle: it is told about round trip times,
+ * acknowledged packets and lost packets, and decides how many packets may be in flight to the
+ * peer, and how fast we should be able to send to it.
+ *
+ * Not thread-safe: PacketThrottle only calls it while holding its own lock.
+ * @see CongestionControlType
+ */
+interface CongestionControl {
+
+	/** A packet was acknowledged after rtt milliseconds. Called before onPacketAcknowledged(). */
+	void onRoundTripTime(long rtt, long now);
+
+	/**
+	 * A packet was acknowledged.
+	 * @param maxWindowSize The window size must not get bigger than this. See
+	 * PacketThrottle.notifyOfPacketAcknowledged().
+	 */
+	void onPacketAcknowledged(double maxWindowSize, long now);
+
+	/** numPackets packets were lost. Always positive. */
+	void onPacketsLost(int numPackets, long now);
+
+	/** @return The number of packets we may have in flight. May be less than 1, PacketThrottle
+	 * doesn't let the window drop below one packet. */
+	double getWindowSize();
+
+	/** @return The rate we expect to be able to send at, in bytes per second. */
+	double getPacingRate();
+
+	/** @return A short description of the algorithm's state, for logging. */
+	String getState();
+
+}
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * The congestion control algorithms a PacketThrottle can use. Chosen per node, by the
+ * node.congestionControl option.
+ */
+public enum CongestionControlType {
+
+	/** Loss based: additive increase, multiplicative decrease on every lost packet. */
+	AIMD {
+		@Override
+		CongestionControl create(int packetSize) {
+			return new AIMDCongestionControl(packetSize);
+		}
+	},
+	/** Delay based, like BBR: estimates the bottleneck bandwidth and the minimum round trip
+	 * time, and keeps about twice their product in flight. Copes better with long fat links,
+	 * and doesn't back off as far on a burst of losses. */
+	BANDWIDTH_DELAY {
+		@Override
+		CongestionControl create(int packetSize) {
+			return new BandwidthDelayCongestionControl(packetSize);
+		}
+	};
+
+	abstract CongestionControl create(int packetSize);
+
+	public static CongestionControlType getDefault() {
+		return AIMD;
+	}
+
+	/** @throws IllegalArgumentException If there is no such algorithm. */
+	public static CongestionControlType fromName(String name) {
+		for(CongestionControlType type : values()) {
+			if(type.name().equalsIgnoreCase(name))
+				return type;
+		}
+		throw new IllegalArgumentException("Unknown congestion control algorithm: "+name);
+	}
+
+}
@@ -35,27 +35,42 @@ public class PacketThrottle {
 		});
 	}
 
-	protected static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
-	protected static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
-	protected static final double SLOW_START_DIVISOR = 3.0;
 	protected static final long MAX_DELAY = 1000;
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
 	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
-	/** The size of the window, in packets.
-	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
 	private final int PACKET_SIZE;
-	private boolean slowStart = true;
+	private CongestionControlType type;
+	/** Decides the window size. */
+	private CongestionControl algorithm;
 	
 	public PacketThrottle(int packetSize) {
+		this(packetSize, CongestionControlType.getDefault());
+	}
+
+	public PacketThrottle(int packetSize, CongestionControlType type) {
 		PACKET_SIZE = packetSize;
+		this.type = type;
+		algorithm = type.create(packetSize);
+	}
+
+	/** Switch to a different congestion control algorithm, which starts from scratch. */
+	public synchronized void setCongestionControl(CongestionControlType type) {
+		if(this.type == type) return;
+		this.type = type;
+		algorithm = type.create(PACKET_SIZE);
+		algorithm.onRoundTripTime(_roundTripTime, System.currentTimeMillis());
+		notifyAll();
+	}
+
+	public synchronized CongestionControlType getCongestionControl() {
+		return type;
 	}
 
 	public synchronized void setRoundTripTime(long rtt) {
 		_roundTripTime = Math.max(rtt, 10);
+		algorithm.onRoundTripTime(_roundTripTime, System.currentTimeMillis());
 		if(logMINOR) Logger.minor(this, "Set round trip time to "+rtt+" on "+this);
 	}
 
@@ -65,11 +80,7 @@ public class PacketThrottle {
         }
         _droppedPackets += numPackets;
         _totalPackets += numPackets;
-        _windowSize *= Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
-        if (_windowSize < 1.0F) {
-            _windowSize = 1.0F;
-        }
-        slowStart = false;
+        algorithm.onPacketsLost(numPackets, System.currentTimeMillis());
         if (logMINOR) {
             Logger.minor(this, "notifyOfPacketsLost(): " + this);
         }
@@ -88,23 +99,8 @@ public class PacketThrottle {
 		// This is similar but not identical to RFC2861
 		// See [freenet-dev] Major weakness in our current link-level congestion control
         int windowSize = (int)getWindowSize();
-
-    	if(slowStart) {
-    		if(logMINOR) Logger.minor(this, "Still in slow start");
-    		_windowSize += _windowSize / SLOW_START_DIVISOR;
-    		// Avoid craziness if there is lag in detecting packet loss.
-    		if(_windowSize > maxWindowSize) slowStart = false;
-    		// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-    		// But mostly it is because of the non-slow-start division by _windowSize!
-    		if(_windowSize < 1.0F) _windowSize = 1.0F;
-    	} else {
-    		_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
-    	}
-    	// Ensure that we the window size does not grow dramatically larger than the largest window
-    	// that has actually been in flight at one time.
-    	if(_windowSize > maxWindowSize)
-    		_windowSize = (float) maxWindowSize;
-    	if(_windowSize > (windowSize + 1))
+        algorithm.onPacketAcknowledged(maxWindowSize, System.currentTimeMillis());
+    	if(algorithm.getWindowSize() > (windowSize + 1))
     		notifyAll();
     	if(logMINOR)
     		Logger.minor(this, "notifyOfPacketAcked(): "+this);
@@ -114,32 +110,35 @@ public class PacketThrottle {
      * need lots of sanity checking here. */
 	public synchronized long getDelay() {
 		// return (long) (_roundTripTime / _simulatedWindowSize);
-		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
+		return Math.max(MIN_DELAY, (long) (_roundTripTime / algorithm.getWindowSize()));
 	}
 
 	@Override
 	public synchronized String toString() {
 		return Double.toString(getBandwidth()) + " k/sec, (w: "
-				+ _windowSize + ", r:" + _roundTripTime + ", d:"
-				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+" : "+super.toString();
+				+ algorithm.getWindowSize() + ", r:" + _roundTripTime + ", d:"
+				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+
+				" "+type+": "+algorithm.getState()+" : "+super.toString();
 	}
 
 	public synchronized long getRoundTripTime() {
 		return _roundTripTime;
 	}
 
+	/** @return The number of packets we may have in flight, never less than one. */
 	public synchronized double getWindowSize() {
-		return Math.max(1.0, _windowSize);
+		return Math.max(1.0, algorithm.getWindowSize());
 	}
 
 	/**
 	 * returns the number of bytes-per-second in the transmition link (?).
-	 * FIXME: Will not return more than 1M/s due to MIN_DELAY in getDelay().
+	 * FIXME: Will not return more than 1M/s due to MIN_DELAY in getDelay(), unless the
+	 * congestion control algorithm estimates the bandwidth itself.
 	 */
 	public synchronized double getBandwidth() {
 		//PACKET_SIZE=1024 [bytes?]
 		//1000 ms/sec
-		return ((PACKET_SIZE * 1000.0 / getDelay()));
+		return algorithm.getPacingRate();
 	}
 	
 	public synchronized void maybeDisconnected() {
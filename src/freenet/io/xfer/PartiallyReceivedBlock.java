@@ -48,7 +48,14 @@ public class PartiallyReceivedBlock {
 		});
 	}
 	
+	/** The whole block, or null if it is still being received, in which case the packets
+	 * received so far are in _buffers. */
 	byte[] _data;
+	/** The packets as they were received, or null once _data has been filled in. They are
+	 * kept as they are, usually slices of the messages they arrived in, rather than copied
+	 * into _data, so forwarding the block while it is being received doesn't copy it, and
+	 * the block is only put together once, when someone wants it. */
+	Buffer[] _buffers;
 	boolean[] _received;
 	int _receivedCount;
 	public final int _packets, _packetSize;
@@ -73,7 +80,7 @@ public class PartiallyReceivedBlock {
 	}
 	
 	public PartiallyReceivedBlock(int packets, int packetSize) {
-		_data = new byte[packets * packetSize];
+		_buffers = new Buffer[packets];
 		_received = new boolean[packets];
 		_packets = packets;
 		_packetSize = packetSize;
@@ -129,7 +136,7 @@ public class PartiallyReceivedBlock {
 				return;
 			
 			_receivedCount++;
-			packet.copyTo(_data, position * _packetSize);
+			_buffers[position] = packet;
 			_received[position] = true;
 			
 			// FIXME keep it as as an array
@@ -158,9 +165,23 @@ public class PartiallyReceivedBlock {
 	}
 	
 	public synchronized byte[] getBlock() throws AbortedException {
-		if(allReceived()) return _data;
+		if(allReceived()) return assemble();
 		throw new RuntimeException("Tried to get block before all packets received");
 	}
+
+	/** Copy the received packets into _data, if we haven't already. Only called once all the
+	 * packets have been received. */
+	private byte[] assemble() {
+		assert(Thread.holdsLock(this));
+		if(_data == null) {
+			byte[] data = new byte[_packets * _packetSize];
+			for(int x = 0; x < _packets; x++)
+				_buffers[x].copyTo(data, x * _packetSize);
+			_data = data;
+			_buffers = null;
+		}
+		return _data;
+	}
 	
 	public synchronized Buffer getPacket(int x) throws AbortedException {
 		if (_aborted) {
@@ -169,6 +190,7 @@ public class PartiallyReceivedBlock {
 		if (!_received[x]) {
 			throw new IllegalStateException("that packet is not received");
 		}
+		if(_data == null) return _buffers[x];
 		return new Buffer(_data, x * _packetSize, _packetSize);
 	}
 	
@@ -194,7 +216,7 @@ public class PartiallyReceivedBlock {
 			}
 			if(_receivedCount == _packets) {
 				if(logMINOR) Logger.minor(this, "Already received");
-				return _data;
+				return assemble();
 			}
 			Logger.normal(this, "Aborting PRB: "+reason+" : "+description+" on "+this, new Exception("debug"));
 			_aborted = true;
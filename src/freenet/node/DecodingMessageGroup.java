@@ -2,6 +2,7 @@ package freenet.node;
 
 public interface DecodingMessageGroup {
 	
+	/** The message may keep references to data, so it must not be reused or changed afterwards. */
 	void processDecryptedMessage(byte[] data, int offset, int length, int overhead);
 	
 	void complete();
@@ -10,7 +10,9 @@ import java.security.MessageDigest;
 import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.ECDH;
@@ -181,11 +183,20 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
 		// Disconnected node connecting on a new IP address?
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2) {
+			// Auth packets don't identify the setup key, but a handshake takes several packets
+			// from the same address, so try whoever the last one was from first.
+			PeerNode recent = getRecentAuthPeer(peer);
+			if(recent != null && recent != opn) {
+				if(tryProcessAuth(buf, offset, length, recent, peer, false, now)) {
+					return DECODED.DECODED;
+				}
+			}
 			for(PeerNode pn: peers) {
-				if(pn == opn) continue;
+				if(pn == opn || pn == recent) continue;
 				if(logDEBUG)
 					Logger.debug(this, "Trying auth with "+pn);
 				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) {
+					addRecentAuthPeer(peer, pn);
 					return DECODED.DECODED;
 				}
 				if(pn.handshakeUnknownInitiator()) {
@@ -792,6 +803,31 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		}
 	}
 
+	/** The peer whose setup key last matched an auth packet from an address which isn't theirs.
+	 * LOCKING: Synchronize on the map. */
+	private final LinkedHashMap<Peer, PeerNode> recentAuthPeers = new LinkedHashMap<Peer, PeerNode>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Peer, PeerNode> eldest) {
+			return size() > RECENT_AUTH_PEERS_SIZE;
+		}
+	};
+
+	private static final int RECENT_AUTH_PEERS_SIZE = 128;
+
+	private PeerNode getRecentAuthPeer(Peer peer) {
+		synchronized(recentAuthPeers) {
+			return recentAuthPeers.get(peer);
+		}
+	}
+
+	private void addRecentAuthPeer(Peer peer, PeerNode pn) {
+		synchronized(recentAuthPeers) {
+			recentAuthPeers.put(peer, pn);
+		}
+	}
+
 	private final LRUMap<InetAddress, Long> throttleRekeysByIP = LRUMap.createSafeMap(InetAddressComparator.COMPARATOR);
 
 	private static final int REKEY_BY_IP_TABLE_SIZE = 1024;
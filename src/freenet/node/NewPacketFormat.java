@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -12,6 +11,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
 import freenet.crypt.BlockCipher;
 import freenet.crypt.HMAC;
 import freenet.crypt.PCFBMode;
@@ -31,7 +33,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -97,6 +99,11 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Serialises decoding received packets: the sequence number watch lists, receiveBuffers
+	 * and receiveMaps. The socket handler may decode on several threads, and while it keeps
+	 * each address on one thread, the same peer can be tried for packets from other addresses.
+	 * Taken before any other lock here. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -120,34 +127,37 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
-		NPFPacket packet = null;
-		SessionKey s = null;
-		for(int i = 0; i < 3; i++) {
-			if(i == 0) {
-				s = pn.getCurrentKeyTracker();
-			} else if (i == 1) {
-				s = pn.getPreviousKeyTracker();
-			} else {
-				s = pn.getUnverifiedKeyTracker();
+		List<byte[]> finished;
+		synchronized(receiveLock) {
+			NPFPacket packet = null;
+			SessionKey s = null;
+			for(int i = 0; i < 3; i++) {
+				if(i == 0) {
+					s = pn.getCurrentKeyTracker();
+				} else if (i == 1) {
+					s = pn.getPreviousKeyTracker();
+				} else {
+					s = pn.getUnverifiedKeyTracker();
+				}
+				if(s == null) continue;
+				packet = tryDecipherPacket(buf, offset, length, s);
+				if(packet != null) {
+					if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
+					break;
+				}
 			}
-			if(s == null) continue;
-			packet = tryDecipherPacket(buf, offset, length, s);
-			if(packet != null) {
-				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
-				break;
+			if(packet == null) {
+				if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
+				return false;
 			}
-		}
-		if(packet == null) {
-			if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
-			return false;
-		}
 
-		pn.receivedPacket(false, true);
-		pn.verified(s);
-		pn.maybeRekey();
-		pn.reportIncomingBytes(length);
+			pn.receivedPacket(false, true);
+			pn.verified(s);
+			pn.maybeRekey();
+			pn.reportIncomingBytes(length);
 
-		List<byte[]> finished = handleDecryptedPacket(packet, s);
+			finished = handleDecryptedPacket(packet, s);
+		}
 		if(logMINOR && !finished.isEmpty()) 
 			Logger.minor(this, "Decoded messages: "+finished.size());
 		DecodingMessageGroup group = pn.startProcessingDecryptedMessages(finished.size());
@@ -216,11 +226,19 @@ public class NewPacketFormat implements PacketFormat {
 
 			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
 			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
+			boolean wholeMessage = false;
 			if(recvBuffer == null) {
 				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
 				recvBuffer = new PartiallyReceivedBuffer(this);
-				if(fragment.firstFragment) {
+				if(fragment.firstFragment && fragment.fragmentLength == fragment.messageLength) {
+					// The usual case: the whole message is in one fragment, so use it as it is.
+					if(!recvBuffer.setWholeMessage(fragment.fragmentData)) {
+						dontAck = true;
+						continue;
+					}
+					wholeMessage = true;
+				} else if(fragment.firstFragment) {
 					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
 						dontAck = true;
 						continue;
@@ -247,7 +265,7 @@ public class NewPacketFormat implements PacketFormat {
 				}
 			}
 
-			if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
+			if(!wholeMessage && !recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
 				dontAck = true;
 				continue;
 			}
@@ -315,6 +333,7 @@ public class NewPacketFormat implements PacketFormat {
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		SessionKeyIndex keyIndex = sessionKey.getIndex();
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
 			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
@@ -324,6 +343,7 @@ public class NewPacketFormat implements PacketFormat {
 			int seqNum = keyContext.watchListOffset;
 			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
 				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
+				if(keyIndex != null) keyIndex.add(keyContext.seqNumWatchList[i], sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
 		}
@@ -354,7 +374,10 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
 			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+				int slot = i % keyContext.seqNumWatchList.length;
+				if(keyIndex != null) keyIndex.remove(keyContext.seqNumWatchList[slot], sessionKey);
+				encryptSequenceNumber(seqNum++, sessionKey, keyContext.seqNumWatchList[slot]);
+				if(keyIndex != null) keyIndex.add(keyContext.seqNumWatchList[slot], sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
 
@@ -382,23 +405,23 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
+	/** Must NOT modify buf contents unless the HMAC is valid. If it is, the packet is ours, so
+	 * nobody else will try to decode it, and we decrypt it in place. Uses the session key's
+	 * scratch buffers, so the only allocations are the NPFPacket and what it contains. Caller
+	 * must hold receiveLock. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
+		int payloadOffset = offset + HMAC_LENGTH;
+		int payloadLength = length - HMAC_LENGTH;
 
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
+		Mac mac = sessionKey.getIncomingMac();
+		byte[] localHash = sessionKey.getReceiveHashBuffer();
+		mac.update(buf, payloadOffset, payloadLength);
+		try {
+			mac.doFinal(localHash, 0);
+		} catch (ShortBufferException e) {
+			throw new Error("Impossible: " + e, e);
+		}
+		if (!hmacMatches(buf, offset, localHash)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
 			}
@@ -406,10 +429,12 @@ public class NewPacketFormat implements PacketFormat {
 			return null;
 		}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+		byte[] IV = sessionKey.getReceiveIVBuffer();
+		makeIV(IV, sequenceNumber, sessionKey);
+		PCFBMode payloadCipher = sessionKey.getIncomingPCFB(IV);
+		payloadCipher.blockDecipher(buf, payloadOffset, payloadLength);
 
-		NPFPacket p = NPFPacket.create(payload, pn);
+		NPFPacket p = NPFPacket.create(buf, payloadOffset, payloadLength, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -429,24 +454,46 @@ public class NewPacketFormat implements PacketFormat {
 		return (((i1 < i2) && ((i2 - i1) > halfValue)) || ((i1 > i2) && (i1 - i2 < halfValue)));
 	}
 
+	/** Compare the truncated HMAC at the start of a packet in constant time. */
+	private static boolean hmacMatches(byte[] buf, int offset, byte[] hash) {
+		int diff = 0;
+		for(int i = 0; i < HMAC_LENGTH; i++) {
+			diff |= buf[offset + i] ^ hash[i];
+		}
+		return diff == 0;
+	}
+
+	/** The IV for a packet is the IV nonce with the sequence number in its last 4 bytes,
+	 * encrypted with the IV cipher. */
+	private static void makeIV(byte[] IV, int sequenceNumber, SessionKey sessionKey) {
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
+		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
+		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
+		IV[IV.length - 1] = (byte) (sequenceNumber);
+
+		sessionKey.ivCipher.encipher(IV, IV);
+	}
+
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
 		byte[] seqNumBytes = new byte[4];
+		encryptSequenceNumber(seqNum, sessionKey, seqNumBytes);
+		return seqNumBytes;
+	}
+
+	/** Encrypt a sequence number into a 4 byte buffer, e.g. a watch list slot which is being
+	 * reused. Caller must hold receiveLock (or be a test). */
+	static void encryptSequenceNumber(int seqNum, SessionKey sessionKey, byte[] seqNumBytes) {
 		seqNumBytes[0] = (byte) (seqNum >>> 24);
 		seqNumBytes[1] = (byte) (seqNum >>> 16);
 		seqNumBytes[2] = (byte) (seqNum >>> 8);
 		seqNumBytes[3] = (byte) (seqNum);
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
+		byte[] IV = sessionKey.getReceiveIVBuffer();
+		makeIV(IV, seqNum, sessionKey);
 
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
+		PCFBMode cipher = sessionKey.getIncomingPCFB(IV);
 		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
-		return seqNumBytes;
 	}
 
 	@Override
@@ -1262,9 +1309,25 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 			return resize(messageLength);
 		}
 
+		/** Use data, which is the whole message, as the buffer, rather than copying it. */
+		private boolean setWholeMessage(byte[] data) {
+			if(!reserve(data.length)) return false;
+			messageLength = data.length;
+			buffer = data;
+			return true;
+		}
+
 		private boolean resize(int length) {
 			if(logDEBUG) Logger.debug(this, "Resizing from " + buffer.length + " to " + length);
 
+			if(!reserve(length)) return false;
+			buffer = Arrays.copyOf(buffer, length);
+
+			return true;
+		}
+
+		/** Account for the buffer growing from its current length to length. */
+		private boolean reserve(int length) {
 			synchronized(npf.receiveBufferSizeLock) {
 				if((npf.receiveBufferUsed + (length - buffer.length)) > MAX_RECEIVE_BUFFER_SIZE) {
 					if(logMINOR) Logger.minor(this, "Could not resize buffer, would excede max size");
@@ -1274,9 +1337,6 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 				npf.receiveBufferUsed += (length - buffer.length);
 				if(logDEBUG) Logger.debug(this, "Added " + (length - buffer.length) + " to buffer. Total is now " + npf.receiveBufferUsed);
 			}
-
-			buffer = Arrays.copyOf(buffer, length);
-
 			return true;
 		}
 	}
@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -66,6 +67,7 @@ import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.TrafficClass;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControlType;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -106,11 +108,16 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.NullFreenetStore;
 import freenet.store.PubkeyStore;
+import freenet.store.OffHeapFreenetStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreTraceRecord;
+import freenet.store.StoreTraceWriter;
+import freenet.store.TieredFreenetStore;
+import freenet.store.TracingFreenetStore;
 import freenet.store.caching.CachingFreenetStore;
 import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
@@ -230,6 +237,14 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
+		} else if(store instanceof OffHeapFreenetStore) {
+			OffHeapFreenetStore<T> ramstore = (OffHeapFreenetStore<T>)store;
+			try {
+				ramstore.migrateTo(newStore, canReadClientCache);
+			} catch (IOException e) {
+				Logger.error(this, "Caught migrating old store: "+e, e);
+			}
+			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
 			Logger.error(this, "Migrating from from a saltedhashstore not fully supported yet: will not keep old keys");
 		}
@@ -488,6 +503,15 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeSaltHashUseMmap;
+	private int storeSaltHashWriteBehindSlots;
+	private boolean storeRAMOffHeap;
+	/** Directory for the fast tier of the salt-hash store and cache, or null if disabled. */
+	private File storeFastTierDir;
+	private long storeFastTierSize;
+	private String storeTraceFile;
+	/** If not null, every store access is recorded here. */
+	private StoreTraceWriter storeTrace;
 	private int storeSaltHashSlotFilterPersistenceTime;
 
 	/** Minimum total datastore size */
@@ -775,6 +799,12 @@ public class Node implements TimeSkewDetectorCallback {
 		return trafficClass;
 	}
 
+	/** The congestion control algorithm used for each peer's PacketThrottle. */
+	private volatile CongestionControlType congestionControl;
+	public CongestionControlType getCongestionControl() {
+		return congestionControl;
+	}
+
 	/*
 	 * Gets minimum bandwidth in bytes considered usable.
 	 *
@@ -1317,6 +1347,47 @@ public class Node implements TimeSkewDetectorCallback {
 			 trafficClass = TrafficClass.getDefault();
 		 }
 
+		class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+			@Override
+			public String get() {
+				return congestionControl.name();
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException {
+				CongestionControlType type;
+				try {
+					type = CongestionControlType.fromName(val);
+				} catch (IllegalArgumentException e) {
+					throw new InvalidConfigValueException(e);
+				}
+				congestionControl = type;
+				// Existing connections start again with the new algorithm.
+				if(peers != null) {
+					for(PeerNode pn : peers.myPeers())
+						pn.getThrottle().setCongestionControl(type);
+				}
+			}
+
+			@Override
+			public String[] getPossibleValues() {
+				ArrayList<String> array = new ArrayList<String>();
+				for (CongestionControlType type : CongestionControlType.values())
+					array.add(type.name());
+				return array.toArray(new String[0]);
+			}
+		}
+		nodeConfig.register("congestionControl", CongestionControlType.getDefault().name(), sortOrder++, true, false,
+				"Node.congestionControl", "Node.congestionControlLong",
+				new CongestionControlCallback());
+		String congestionControlValue = nodeConfig.getString("congestionControl");
+		try {
+			congestionControl = CongestionControlType.fromName(congestionControlValue);
+		} catch (IllegalArgumentException e) {
+			Logger.error(this, "Invalid congestionControl: "+congestionControlValue+" resetting the value to default.", e);
+			congestionControl = CongestionControlType.getDefault();
+		}
+
 		// FIXME maybe these should persist? They need to be private.
 		decrementAtMax = random.nextDouble() <= DECREMENT_AT_MAX_PROB;
 		decrementAtMin = random.nextDouble() <= DECREMENT_AT_MIN_PROB;
@@ -2075,6 +2146,136 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashUseMmap", false, sortOrder++, true, false,
+				"Node.storeSaltHashUseMmap", "Node.storeSaltHashUseMmapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeSaltHashUseMmap;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeSaltHashUseMmap = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashUseMmap");
+			}
+		});
+		storeSaltHashUseMmap = nodeConfig.getBoolean("storeSaltHashUseMmap");
+
+		nodeConfig.register("storeSaltHashWriteBehindSlots", 0, sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehindSlots", "Node.storeSaltHashWriteBehindSlotsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				synchronized(Node.this) {
+					return storeSaltHashWriteBehindSlots;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					storeSaltHashWriteBehindSlots = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashWriteBehindSlots");
+			}
+		}, false);
+		storeSaltHashWriteBehindSlots = nodeConfig.getInt("storeSaltHashWriteBehindSlots");
+
+		nodeConfig.register("storeRAMOffHeap", false, sortOrder++, true, false, "Node.storeRAMOffHeap", "Node.storeRAMOffHeapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeRAMOffHeap;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeRAMOffHeap = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeRAMOffHeap");
+			}
+		});
+		storeRAMOffHeap = nodeConfig.getBoolean("storeRAMOffHeap");
+
+		nodeConfig.register("storeFastTierDir", "", sortOrder++, true, false, "Node.storeFastTierDir", "Node.storeFastTierDirLong", new StringCallback() {
+			@Override
+			public String get() {
+				synchronized(Node.this) {
+					return storeFastTierDir == null ? "" : storeFastTierDir.getPath();
+				}
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeFastTierDir = val.length() == 0 ? null : new File(val);
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeFastTierDir");
+			}
+		});
+		String fastTierDir = nodeConfig.getString("storeFastTierDir");
+		storeFastTierDir = fastTierDir.length() == 0 ? null : new File(fastTierDir);
+
+		nodeConfig.register("storeFastTierSize", 0L, sortOrder++, true, false, "Node.storeFastTierSize", "Node.storeFastTierSizeLong", new LongCallback() {
+			@Override
+			public Long get() {
+				synchronized(Node.this) {
+					return storeFastTierSize;
+				}
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					storeFastTierSize = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeFastTierSize");
+			}
+		}, true);
+		storeFastTierSize = nodeConfig.getLong("storeFastTierSize");
+
+		nodeConfig.register("storeTraceFile", "", sortOrder++, true, false, "Node.storeTraceFile", "Node.storeTraceFileLong", new StringCallback() {
+			@Override
+			public String get() {
+				synchronized(Node.this) {
+					return storeTraceFile;
+				}
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeTraceFile = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeTraceFile");
+			}
+		});
+		storeTraceFile = nodeConfig.getString("storeTraceFile");
+		if(storeTraceFile.length() > 0) {
+			try {
+				storeTrace = new StoreTraceWriter(new File(storeTraceFile), random);
+				System.out.println("Recording datastore accesses to "+storeTraceFile);
+				final StoreTraceWriter trace = storeTrace;
+				shutdownHook.addLateJob(new Thread() {
+					@Override
+					public void run() {
+						trace.close();
+					}
+				});
+			} catch (IOException e) {
+				Logger.error(this, "Unable to create store trace "+storeTraceFile+": "+e, e);
+				System.err.println("Unable to create store trace "+storeTraceFile+": "+e);
+			}
+		}
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -2460,6 +2661,11 @@ public class Node implements TimeSkewDetectorCallback {
 		getPubKey.setLocalSlashdotcache(pubKeySlashdotcache);
 		sskSlashdotcache = new SSKStore(getPubKey);
 		sskSlashdotcacheStore = new SlashdotStore<SSKBlock>(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
+		if(storeTrace != null) {
+			new TracingFreenetStore<CHKBlock>(chkSlashdotcache, chkSlashdotcacheStore, storeTrace, StoreTraceRecord.TIER_SLASHDOT);
+			new TracingFreenetStore<DSAPublicKey>(pubKeySlashdotcache, pubKeySlashdotcacheStore, storeTrace, StoreTraceRecord.TIER_SLASHDOT);
+			new TracingFreenetStore<SSKBlock>(sskSlashdotcache, sskSlashdotcacheStore, storeTrace, StoreTraceRecord.TIER_SLASHDOT);
+		}
 
 		// MAXIMUM seclevel = no slashdot cache.
 
@@ -2893,13 +3099,22 @@ public class Node implements TimeSkewDetectorCallback {
 		this.clientCore.alerts.register(masterPasswordUserAlert);
 	}
 
+	/** Create a RAM store for the callback, either on the heap or off-heap depending on storeRAMOffHeap. */
+	private <T extends StorableBlock> void makeRAMStore(StoreCallback<T> callback, long maxKeys) {
+		int keys = (int) Math.min(Integer.MAX_VALUE, maxKeys);
+		if(storeRAMOffHeap)
+			new OffHeapFreenetStore<T>(callback, keys);
+		else
+			new RAMFreenetStore<T>(callback, keys);
+	}
+
 	private void initRAMClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(chkClientcache, maxClientCacheKeys);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(pubKeyClientcache, maxClientCacheKeys);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(sskClientcache, maxClientCacheKeys);
 	}
 
 	private void initNoClientCacheFS() {
@@ -2927,18 +3142,18 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMFS() {
 		chkDatastore = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(chkDatastore, maxStoreKeys);
 		chkDatacache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(chkDatacache, maxCacheKeys);
 		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(pubKeyDatastore, maxStoreKeys);
 		pubKeyDatacache = new PubkeyStore();
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(pubKeyDatacache, maxCacheKeys);
 		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(sskDatastore, maxStoreKeys);
 		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(sskDatacache, maxCacheKeys);
 	}
 
 	private long cachingFreenetStoreMaxSize;
@@ -3126,12 +3341,30 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashUseMmap, storeSaltHashWriteBehindSlots);
 		cb.setStore(fs);
+		FreenetStore<T> tiered = fs;
+		// Half for the store and half for the cache, like the main store.
+		long fastTierKeys = storeFastTierSize / sizePerKey / 2;
+		if(storeFastTierDir != null && fastTierKeys > 0 && !store.equals("clientcache")) {
+			System.out.println("Initializing "+type+" Data"+store+" fast tier in "+storeFastTierDir+" (" + fastTierKeys + " keys)");
+			if(!storeFastTierDir.isDirectory() && !storeFastTierDir.mkdirs())
+				throw new IOException("Unable to create fast tier directory "+storeFastTierDir);
+			SaltedHashFreenetStore<T> fastFs = SaltedHashFreenetStore.<T>construct(storeFastTierDir, type+"-"+store, cb,
+			        random, fastTierKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+			        storeSaltHashUseMmap, storeSaltHashWriteBehindSlots);
+			tiered = new TieredFreenetStore<T>(cb, fastFs, fs);
+		}
+		FreenetStore<T> ret = tiered;
 		if(cachingFreenetStoreMaxSize > 0)
-			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
-		else
-			return fs;
+			ret = new CachingFreenetStore<T>(cb, tiered, cachingFreenetStoreTracker);
+		if(storeTrace != null) {
+			int tier = store.equals("store") ? StoreTraceRecord.TIER_STORE :
+				store.equals("cache") ? StoreTraceRecord.TIER_CACHE : StoreTraceRecord.TIER_CLIENTCACHE;
+			ret = new TracingFreenetStore<T>(cb, ret, storeTrace, tier);
+		}
+		return ret;
 	}
 
 	public void start(boolean noSwaps) throws NodeInitException {
@@ -3662,6 +3895,69 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch many keys from the local stores at once, e.g. to check which blocks of a splitfile we
+	 * already have. Each store is only asked for the keys which were not found in the stores
+	 * before it, all together, so it can check them in whatever order suits it. Parameters are as
+	 * for {@link #fetch(Key, boolean, boolean, boolean, boolean, BlockMetadata)}. This doesn't
+	 * update the location statistics, as it isn't a request.
+	 * @return The block for each key, or null if we don't have it.
+	 */
+	public KeyBlock[] fetch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		boolean ignoreOldBlocks = !writeLocalToDatastore && !canReadClientCache;
+		boolean readSlashdotCache = forULPR || useSlashdotCache || canReadClientCache;
+		// CHKs
+		if(canReadClientCache)
+			fetchFrom(chkClientcache, keys, blocks, NodeCHK.class, !canWriteClientCache, false, false, false);
+		if(readSlashdotCache)
+			fetchFrom(chkSlashdotcache, keys, blocks, NodeCHK.class, false, false, false, false);
+		fetchFrom(chkDatastore, keys, blocks, NodeCHK.class, !canWriteDatastore, false, false, ignoreOldBlocks);
+		fetchFrom(oldCHK, keys, blocks, NodeCHK.class, !canWriteDatastore, false, false, ignoreOldBlocks);
+		fetchFrom(chkDatacache, keys, blocks, NodeCHK.class, !canWriteDatastore, false, false, ignoreOldBlocks);
+		fetchFrom(oldCHKCache, keys, blocks, NodeCHK.class, !canWriteDatastore, false, false, ignoreOldBlocks);
+		// SSKs
+		if(canReadClientCache)
+			fetchFrom(sskClientcache, keys, blocks, NodeSSK.class, !canWriteClientCache, canReadClientCache, forULPR, false);
+		if(readSlashdotCache)
+			fetchFrom(sskSlashdotcache, keys, blocks, NodeSSK.class, false, canReadClientCache, forULPR, false);
+		fetchFrom(sskDatastore, keys, blocks, NodeSSK.class, !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+		fetchFrom(oldSSK, keys, blocks, NodeSSK.class, !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+		fetchFrom(sskDatacache, keys, blocks, NodeSSK.class, !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+		fetchFrom(oldSSKCache, keys, blocks, NodeSSK.class, !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+		return blocks;
+	}
+
+	/** Fetch the keys of the given type which haven't been found yet from one store. If the store
+	 * fails, log it and leave the keys for the next store. */
+	private static <T extends KeyBlock> void fetchFrom(StoreCallback<T> store, Key[] keys, KeyBlock[] blocks, Class<? extends Key> type,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) {
+		if(store == null) return;
+		int count = 0;
+		for(int i = 0; i < keys.length; i++)
+			if(blocks[i] == null && type.isInstance(keys[i])) count++;
+		if(count == 0) return;
+		int[] indexes = new int[count];
+		byte[][] routingKeys = new byte[count][];
+		byte[][] fullKeys = new byte[count][];
+		for(int i = 0, j = 0; i < keys.length; i++) {
+			if(blocks[i] != null || !type.isInstance(keys[i])) continue;
+			indexes[j] = i;
+			routingKeys[j] = keys[i].getRoutingKey();
+			fullKeys[j] = keys[i].getFullKey();
+			j++;
+		}
+		List<T> fetched;
+		try {
+			fetched = store.getStore().fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		} catch (IOException e) {
+			Logger.error(Node.class, "Cannot fetch data from "+store.getStore()+": "+e, e);
+			return;
+		}
+		for(int j = 0; j < count; j++)
+			blocks[indexes[j]] = fetched.get(j);
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -46,6 +46,8 @@ public class NodeCrypto {
 	final RandomSource random;
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
+	/** Finds the peer for a data packet from an unknown address. */
+	final SessionKeyIndex sessionKeyIndex = new SessionKeyIndex();
 	public FNPPacketMangler packetMangler;
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
@@ -266,6 +268,18 @@ public class NodeCrypto {
 		socket.setLowLevelFilter(new IncomingPacketFilterImpl(packetMangler, node, this));
 		packetMangler.start();
 		socket.start();
+		node.ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sessionKeyIndex.purge(SessionKeyIndex.PURGE_SLOTS);
+				} finally {
+					node.ticker.queueTimedJob(this, SessionKeyIndex.PURGE_INTERVAL);
+				}
+			}
+
+		}, SessionKeyIndex.PURGE_INTERVAL);
 	}
 
 	public SimpleFieldSet exportPrivateFieldSet() {
@@ -470,6 +484,16 @@ public class NodeCrypto {
 			return node.peers.getDarknetPeers();
 	}
 
+	/**
+	 * @return The peer a data packet is probably from, judging by its encrypted sequence
+	 * number, or null. The caller must still try to decrypt it.
+	 */
+	public PeerNode getPeerNodeBySequenceNumber(byte[] buf, int offset, int length) {
+		SessionKey key = sessionKeyIndex.get(buf, offset, length);
+		if(key == null || !key.isInUse()) return null;
+		return key.pn;
+	}
+
 	public boolean allowConnection(PeerNode pn, FreenetInetAddress addr) {
     	if(config.oneConnectionPerAddress()) {
     		// Disallow multiple connections to the same address
@@ -20,8 +20,12 @@ import freenet.l10n.NodeL10n;
 import freenet.node.RequestTracker.CountedRequests;
 import freenet.node.RequestTracker.WaitingForSlots;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
+import freenet.node.stats.StoreAccessStats;
 import freenet.node.stats.StoreLocationStats;
+import freenet.node.stats.StorePhase;
 import freenet.store.StoreCallback;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
@@ -36,6 +40,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
+import freenet.support.math.LatencyHistogram;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.math.TrivialRunningAverage;
@@ -1950,6 +1955,30 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return threads;
 	}
 
+	/** Latency percentiles in microseconds and bytes read and written, for each store which
+	 * times its accesses, e.g. storeLatency.CHK.STORE.FETCH.p99 */
+	private void exportStoreLatencies(SimpleFieldSet fs) {
+		for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : node.getDataStoreStats().entrySet()) {
+			StoreAccessStats access = entry.getValue().getSessionAccessStats();
+			if(access == null || access.latency(StorePhase.FETCH) == null) continue;
+			DataStoreInstanceType instance = entry.getKey();
+			String prefix = "storeLatency." + instance.key.name() + "." + instance.store.name() + ".";
+			for(StorePhase phase : StorePhase.values()) {
+				LatencyHistogram latency = access.latency(phase);
+				if(latency == null) continue;
+				String name = prefix + phase.name() + ".";
+				fs.put(name + "count", latency.count());
+				fs.put(name + "mean", latency.meanNanos() / 1000);
+				fs.put(name + "p50", latency.percentileNanos(0.5) / 1000);
+				fs.put(name + "p90", latency.percentileNanos(0.9) / 1000);
+				fs.put(name + "p99", latency.percentileNanos(0.99) / 1000);
+				fs.put(name + "max", latency.maxNanos() / 1000);
+			}
+			fs.put(prefix + "bytesRead", access.bytesRead());
+			fs.put(prefix + "bytesWritten", access.bytesWritten());
+		}
+	}
+
 	public SimpleFieldSet exportVolatileFieldSet() {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		long now = System.currentTimeMillis();
@@ -2214,6 +2243,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("percentStoreHitsOfAccesses", percentStoreHitsOfAccesses);
 		fs.put("overallAccesses", overallAccesses);
 		fs.put("avgStoreAccessRate", avgStoreAccessRate);
+		exportStoreLatencies(fs);
 
 		Runtime rt = Runtime.getRuntime();
 		float freeMemory = rt.freeMemory();
@@ -0,0 +1,578 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.io.comm.PacketBatch;
+import freenet.io.comm.PacketSocketHandler;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.TimeUtil;
+import freenet.support.io.NativeThread;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * One of the PacketSender's threads, which assembles, encrypts and sends packets for, and
+ * looks after, the peers assigned to it. Each peer only belongs to one shard, so everything
+ * for a peer still happens on one thread, but encryption etc for different peers can happen
+ * in parallel. The shards share the node's output bandwidth limiter.
+ */
+class PacketSenderShard implements Runnable {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+				logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+			}
+		});
+	}
+
+	private final PacketSender sender;
+	private final Node node;
+	/** Shard 0 also does the jobs which aren't for a particular peer. */
+	final int index;
+	final NativeThread myThread;
+	/** The latest time we received any packet from any of our peers, updated as we look at
+	 * them. */
+	volatile long lastReceivedPacketFromAnyNode;
+	private final MersenneTwister localRandom;
+	/** Packets queued by sendEncryptedPacket() while we are sending, by socket. Only used
+	 * by the batching thread. */
+	private final Map<PacketSocketHandler, PacketBatch> batches = new HashMap<PacketSocketHandler, PacketBatch>();
+	/** The thread sending a burst of packets in sendBatched(), normally ours, or null. */
+	private volatile Thread batchingThread;
+	/** When each peer next needs looking at. Only used on our thread, apart from waking up
+	 * peers. */
+	private final PeerSchedule<PeerNode> schedule = new PeerSchedule<PeerNode>();
+	/** The peers the schedule was built from. */
+	private PeerNode[] scheduledPeers;
+	/** The peers we look at this time around, and when to look at them next. Only used on our
+	 * thread. */
+	private final ArrayList<PeerNode> duePeers = new ArrayList<PeerNode>();
+	private long[] dueTimes = new long[16];
+	private long nextOldOpennetCheckTime;
+
+	PacketSenderShard(PacketSender sender, Node node, int index, int shards) {
+		this.sender = sender;
+		this.node = node;
+		this.index = index;
+		String name = "PacketSender thread for " + node.getDarknetPortNumber();
+		if(shards > 1) name += " (" + (index + 1) + " of " + shards + ")";
+		myThread = new NativeThread(this, name, NativeThread.PriorityLevel.MAX_PRIORITY.value, false);
+		myThread.setDaemon(true);
+		localRandom = node.createRandom();
+	}
+
+	/**
+	 * @return The batch to add an encrypted packet to, if we are called from sendBatched(),
+	 * otherwise null and the caller should send it immediately.
+	 */
+	PacketBatch getBatch(PacketSocketHandler socket) {
+		if(batchingThread != Thread.currentThread()) return null;
+		PacketBatch batch = batches.get(socket);
+		if(batch == null) {
+			batch = new PacketBatch();
+			batches.put(socket, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Send a burst of packets to a peer, as sendBurst(), batching them up to be sent together
+	 * at the end.
+	 * @return The number of packets sent.
+	 */
+	@SuppressWarnings("deprecation") // TokenBucket
+	int sendBatched(PeerNode pn, long now, freenet.support.TokenBucket throttle, int maxPacketSize) throws BlockedTooLongException {
+		batchingThread = Thread.currentThread();
+		try {
+			return sendBurst(pn, now, throttle, maxPacketSize);
+		} finally {
+			flushBatches();
+		}
+	}
+
+	private void flushBatches() {
+		batchingThread = null;
+		for(Map.Entry<PacketSocketHandler, PacketBatch> entry : batches.entrySet()) {
+			if(entry.getValue().size() > 0)
+				entry.getKey().sendPackets(entry.getValue());
+		}
+	}
+
+	/**
+	 * Send a full packet to a peer, and any further full packets it has queued along with it,
+	 * up to {@link PacketSender#MAX_PACKETS_PER_FLUSH}. Stops early if the peer is throttled
+	 * and there isn't bandwidth for another packet.
+	 * 
+	 * The throttle is shared by all the shards. So for a throttled peer we take a full packet's
+	 * worth of tokens before sending each packet, and give them back afterwards, once the
+	 * packet itself has been paid for by sentThrottledBytes(). A shard can then only send if
+	 * the tokens are still there, and the shards can't overdraw the bucket between them.
+	 * @return The number of packets sent.
+	 */
+	@SuppressWarnings("deprecation") // TokenBucket
+	static int sendBurst(PeerNode pn, long now, freenet.support.TokenBucket throttle, int maxPacketSize) throws BlockedTooLongException {
+		boolean throttled = pn.shouldThrottle();
+		int sent = 0;
+		while(sent < PacketSender.MAX_PACKETS_PER_FLUSH) {
+			if(throttled && !throttle.instantGrab(maxPacketSize)) break;
+			boolean sentPacket;
+			try {
+				sentPacket = pn.maybeSendPacket(now, false);
+			} finally {
+				if(throttled) throttle.recycle(maxPacketSize);
+			}
+			if(!sentPacket) break;
+			sent++;
+			if(!pn.fullPacketQueued()) break;
+		}
+		return sent;
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In PacketSender.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in PacketSender: " + t, t);
+				System.err.println("Caught in PacketSender: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Send loop. Strategy:
+	 * - Each peer can tell us when its data needs to be sent by. This is usually 100ms after it
+	 * is posted. It could vary by message type. Acknowledgements also become valid 100ms after 
+	 * being queued.
+	 * - If any peer's data is overdue, send the data from the most overdue peer.
+	 * - If there are peers with more than a packet's worth of data queued, send the data from the
+	 * peer with the oldest data.
+	 * - If there are peers with overdue ack's, send to the peer whose acks are oldest.
+	 * 
+	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
+	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
+	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * 
+	 * We only look at the peers whose time has come in the schedule, or which have been woken
+	 * because they have queued messages or received packets, so the cost of each packet doesn't
+	 * grow with the number of peers. Every peer is looked at within MAX_PEER_CHECK_INTERVAL
+	 * anyway, for maintenance. Each shard only looks at its own peers.
+	 */
+	private void realRun() {
+		long now = System.currentTimeMillis();
+		PeerNode[] nodes = node.peers.myPeers();
+		if(nodes != scheduledPeers) {
+			// PeerManager replaces the array when a peer is added or removed. Look at all of
+			// ours now, and after that only when they are due.
+			schedule.clear();
+			for(PeerNode pn : nodes) {
+				if(sender.shardFor(pn) == this)
+					schedule.schedule(pn, now);
+			}
+			scheduledPeers = nodes;
+		}
+
+		long nextActionTime = Long.MAX_VALUE;
+		long oldTempNow = now;
+
+		final boolean canSendThrottled;
+		/** When throttled peers can next send a packet. */
+		final long throttledSendTime;
+
+		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
+		// Only a hint, as the other shards may take the tokens first. sendBurst() reserves them.
+		long count = node.outputThrottle.getCount();
+		if(count > MAX_PACKET_SIZE) {
+			canSendThrottled = true;
+			throttledSendTime = now;
+		} else {
+			long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
+			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
+			if(logMINOR)
+				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
+			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottled = false;
+			throttledSendTime = now + canSendAt;
+		}
+		
+		/** The earliest time at which a peer needs to send a packet, which is before
+		 * now. Throttled if canSendThrottled, otherwise not throttled. 
+		 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
+		long lowestUrgentSendTime = Long.MAX_VALUE;
+		/** The peer(s) which lowestUrgentSendTime is referring to */
+		ArrayList<PeerNode> urgentSendPeers = null;
+		/** The earliest time at which a peer needs to send a packet, which is after
+		 * now, where there is a full packet's worth of data to send. 
+		 * Throttled if canSendThrottled, otherwise not throttled. */
+		long lowestFullPacketSendTime = Long.MAX_VALUE;
+		/** The peer(s) which lowestFullPacketSendTime is referring to */
+		ArrayList<PeerNode> urgentFullPacketPeers = null;
+		/** The earliest time at which a peer needs to send an ack, before now. */
+		long lowestAckTime = Long.MAX_VALUE;
+		/** The peer(s) which lowestAckTime is referring to */
+		ArrayList<PeerNode> ackPeers = null;
+		/** The earliest time at which a peer needs to handshake. */
+		long lowestHandshakeTime = Long.MAX_VALUE;
+		/** The peer(s) which lowestHandshakeTime is referring to */
+		ArrayList<PeerNode> handshakePeers = null;
+
+		// Only look at the peers which have been woken up or are due, then schedule each of
+		// them for whenever it next needs us, or for a routine check. Due peers come in order
+		// of time, so once we have found an urgent packet, the rest can wait.
+		duePeers.clear();
+		schedule.takeWoken(duePeers);
+		int wokenPeers = duePeers.size();
+		try {
+		for(int i = 0; ; i++) {
+			PeerNode pn;
+			if(i < wokenPeers) {
+				pn = duePeers.get(i);
+			} else {
+				if(lowestUrgentSendTime <= now && schedule.nextTime() > lowestUrgentSendTime) break;
+				pn = schedule.pollDue(now);
+				if(pn == null) break;
+				duePeers.add(pn);
+			}
+			if(dueTimes.length < duePeers.size())
+				dueTimes = Arrays.copyOf(dueTimes, dueTimes.length * 2);
+			if(pn.cachedRemoved()) {
+				dueTimes[i] = -1; // Forget about it.
+				continue;
+			}
+			now = System.currentTimeMillis();
+			long peerTime = now + PacketSender.MAX_PEER_CHECK_INTERVAL / 2 + localRandom.nextInt((int) (PacketSender.MAX_PEER_CHECK_INTERVAL / 2));
+			try {
+			
+			// Basic peer maintenance.
+			
+			// For purposes of detecting not having received anything, which indicates a 
+			// serious connectivity problem, we want to look for *any* packets received, 
+			// including auth packets.
+			lastReceivedPacketFromAnyNode =
+				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
+			pn.maybeOnConnect();
+			if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
+				// Might as well do it properly.
+				node.peers.disconnectAndRemove(pn, true, true, false);
+			}
+
+			if(pn.isConnected()) {
+				
+				boolean shouldThrottle = pn.shouldThrottle();
+				
+				pn.checkForLostPackets();
+
+				// Is the node dead?
+				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
+				if(now - pn.lastReceivedDataPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
+					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
+					// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
+					pn.disconnected(true, false);
+					continue;
+				} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
+					// FIXME better to disconnect immediately??? Or check canSend()???
+					Logger.normal(this, "Disconnecting from " + pn + " - haven't received acks recently");
+					// Do it properly.
+					// There appears to be connectivity from them to us but not from us to them.
+					// So it is helpful for them to know that we are disconnecting.
+					node.peers.disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
+					continue;
+				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
+					/*
+					 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
+					 code will only execute because of the scheduled-runnable in start() which executes
+					 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
+					 as being incompatible.
+					 */
+					pn.invalidate(now);
+					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+					continue;
+				}
+
+				// The peer is connected.
+				
+				if(canSendThrottled || !shouldThrottle) {
+					// We can send to this peer.
+					long sendTime = pn.getNextUrgentTime(now);
+					if(sendTime != Long.MAX_VALUE) {
+						if(sendTime <= now) {
+							// Message is urgent.
+							if(sendTime < lowestUrgentSendTime) {
+								lowestUrgentSendTime = sendTime;
+								if(urgentSendPeers != null)
+									urgentSendPeers.clear();
+								else
+									urgentSendPeers = new ArrayList<PeerNode>();
+							}
+							if(sendTime <= lowestUrgentSendTime)
+								urgentSendPeers.add(pn);
+						} else if(pn.fullPacketQueued()) {
+							if(sendTime < lowestFullPacketSendTime) {
+								lowestFullPacketSendTime = sendTime;
+								if(urgentFullPacketPeers != null)
+									urgentFullPacketPeers.clear();
+								else
+									urgentFullPacketPeers = new ArrayList<PeerNode>();
+							}
+							if(sendTime <= lowestFullPacketSendTime)
+								urgentFullPacketPeers.add(pn);
+							// It can send now if it isn't chosen this time.
+							peerTime = now;
+						}
+					}
+					// Should spam the logs, unless there is a deadlock
+					if(sendTime < Long.MAX_VALUE && logMINOR)
+						Logger.minor(this, "Next urgent time: " + sendTime + "(in "+(sendTime - now)+") for " + pn);
+					peerTime = Math.min(peerTime, sendTime);
+				} else if(shouldThrottle && !canSendThrottled) {
+					long ackTime = pn.timeSendAcks();
+					if(ackTime != Long.MAX_VALUE) {
+						if(ackTime <= now) {
+							if(ackTime < lowestAckTime) {
+								lowestAckTime = ackTime;
+								if(ackPeers != null)
+									ackPeers.clear();
+								else
+									ackPeers = new ArrayList<PeerNode>();
+							}
+							if(ackTime <= lowestAckTime)
+								ackPeers.add(pn);
+						}
+					}
+					peerTime = Math.min(peerTime, ackTime);
+					peerTime = Math.min(peerTime, pn.timeCheckForLostPackets());
+					// Anything else it has to send must wait for the bandwidth.
+					long sendTime = pn.getNextUrgentTime(now);
+					if(sendTime != Long.MAX_VALUE)
+						peerTime = Math.min(peerTime, Math.max(sendTime, throttledSendTime));
+				}
+			} else
+				// Not connected
+
+				if(pn.noContactDetails())
+					pn.startARKFetcher();
+
+			long handshakeTime = pn.timeSendHandshake(now);
+			if(handshakeTime != Long.MAX_VALUE) {
+				if(handshakeTime < lowestHandshakeTime) {
+					lowestHandshakeTime = handshakeTime;
+					if(handshakePeers != null)
+						handshakePeers.clear();
+					else
+						handshakePeers = new ArrayList<PeerNode>();
+				}
+				if(handshakeTime <= lowestHandshakeTime)
+					handshakePeers.add(pn);
+			}
+			peerTime = Math.min(peerTime, handshakeTime);
+			
+			long tempNow = System.currentTimeMillis();
+			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
+				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
+			oldTempNow = tempNow;
+			} finally {
+				dueTimes[i] = peerTime;
+			}
+		}
+		} finally {
+			// Not until now, so we only look at each of them once.
+			for(int i = 0; i < duePeers.size(); i++) {
+				if(dueTimes[i] >= 0)
+					schedule.schedule(duePeers.get(i), dueTimes[i]);
+			}
+		}
+		
+		// We may send a packet, send an ack-only packet, or send a handshake.
+		
+		PeerNode toSendPacket = null;
+		PeerNode toSendAckOnly = null;
+		PeerNode toSendHandshake = null;
+		
+		long t = Long.MAX_VALUE;
+		
+		if(lowestUrgentSendTime <= now) {
+			// We need to send a full packet.
+			toSendPacket = urgentSendPeers.get(localRandom.nextInt(urgentSendPeers.size()));
+			t = lowestUrgentSendTime;
+		} else if(lowestFullPacketSendTime < Long.MAX_VALUE) {
+			toSendPacket = urgentFullPacketPeers.get(localRandom.nextInt(urgentFullPacketPeers.size()));
+			t = lowestFullPacketSendTime;
+		} else if(lowestAckTime <= now) {
+			// We need to send an ack
+			toSendAckOnly = ackPeers.get(localRandom.nextInt(ackPeers.size()));
+			t = lowestAckTime;
+		}
+		
+		if(lowestHandshakeTime <= now && t > lowestHandshakeTime) {
+			toSendHandshake = handshakePeers.get(localRandom.nextInt(handshakePeers.size()));
+			toSendPacket = null;
+			toSendAckOnly = null;
+		}
+		
+		if(toSendPacket != null) {
+			try {
+				if(sendBatched(toSendPacket, now, node.outputThrottle, MAX_PACKET_SIZE) > 0) {
+					// Look at it again straight away, it may have more to send.
+					schedule.schedule(toSendPacket, now);
+				}
+			} catch (BlockedTooLongException e) {
+				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
+				toSendPacket.forceDisconnect();
+			}
+		} else if(toSendAckOnly != null) {
+			try {
+				if(toSendAckOnly.maybeSendPacket(now, true)) {
+					schedule.schedule(toSendAckOnly, now);
+				}
+			} catch (BlockedTooLongException e) {
+				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
+				toSendAckOnly.forceDisconnect();
+			}
+		}
+		
+		/* Estimating of nextActionTime logic:
+		* FullPackets:
+		*  - A full packet available, bandwidth available  -->> now
+		*  - A full packet available for non-throttled peer -->> now
+		*  - A full packet available, no bandwidth -->> wait till bandwidth available
+		*  - No packet -->> don't care, will wake up anyway when one arrives, goto Nothing
+		* UrgentMessages: Only applies when there's enough bandwidth to send a full packet, Includes any urgent acks 
+		*  - There's an urgent message, deadline(urgentMessage) > now -->> deadline(urgentMessage)
+		*  - There's an urgent message, deadline(urgentMessage) <= now -->> now
+		*  - There's an urgent message, but there's not enough bandwidth for a full packet -->> wait till bandwidth available
+		*  - There's no urgent message -->> don't care, goto Nothing 
+		* Nothing:
+		*  -->> timeCheckForLostPackets 
+		*/
+		
+		if(toSendHandshake != null) {
+			// Send handshake if necessary
+			long beforeHandshakeTime = System.currentTimeMillis();
+			toSendHandshake.getOutgoingMangler().sendHandshake(toSendHandshake, false);
+			long afterHandshakeTime = System.currentTimeMillis();
+			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
+				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+			// Its handshake time has changed.
+			schedule.schedule(toSendHandshake, now);
+		}
+		
+		// Each peer has been scheduled for when it next needs us, taking into account whether
+		// the data can be sent already, including those we didn't choose this time.
+		nextActionTime = Math.min(nextActionTime, schedule.nextTime());
+		
+		/* Attempt to connect to old-opennet-peers.
+		 * Constantly send handshake packets, in order to get through a NAT.
+		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
+		 * Well worth it to allow us to reconnect more quickly. */
+
+		OpennetManager om = node.getOpennet();
+		if(index == 0 && om != null && node.getUptime() > SECONDS.toMillis(30) && now >= nextOldOpennetCheckTime) {
+			nextOldOpennetCheckTime = now + PacketSender.MAX_COALESCING_DELAY;
+			OpennetPeerNode[] peers = om.getOldPeers();
+
+			for(OpennetPeerNode pn : peers) {
+				long lastConnected = pn.timeLastConnected(now);
+				if(lastConnected <= 0)
+					Logger.error(this, "Last connected is zero or negative for old-opennet-peer "+pn);
+				// Will be removed by next line.
+				if(now - lastConnected > OpennetManager.MAX_TIME_ON_OLD_OPENNET_PEERS) {
+					om.purgeOldOpennetPeer(pn);
+					if(logMINOR) Logger.minor(this, "Removing old opennet peer (too old): "+pn+" age is "+TimeUtil.formatTime(now - lastConnected));
+					continue;
+				}
+				if(pn.isConnected()) continue; // Race condition??
+				if(pn.noContactDetails()) {
+					pn.startARKFetcher();
+					continue;
+				}
+				if(pn.shouldSendHandshake()) {
+					// Send handshake if necessary
+					long beforeHandshakeTime = System.currentTimeMillis();
+					pn.getOutgoingMangler().sendHandshake(pn, true);
+					long afterHandshakeTime = System.currentTimeMillis();
+					if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
+						Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+				}
+			}
+
+		}
+
+		long oldNow = now;
+
+		// Send may have taken some time
+		now = System.currentTimeMillis();
+
+		if((now - oldNow) > SECONDS.toMillis(10))
+			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+
+		long sleepTime = nextActionTime - now;
+		
+		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
+		sleepTime = Math.min(sleepTime, PacketSender.MAX_COALESCING_DELAY);
+
+		if(index == 0 && now - node.startupTime > MINUTES.toMillis(5))
+			if(now - sender.lastReceivedPacketFromAnyNode() > Node.ALARM_TIME) {
+				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
+				sender.lastReportedNoPackets = now;
+			}
+
+		if(sleepTime > 0) {
+			// Update logging only when have time to do so
+			try {
+				if(logMINOR)
+					Logger.minor(this, "Sleeping for " + sleepTime);
+				synchronized(this) {
+					wait(sleepTime);
+				}
+			} catch(InterruptedException e) {
+			// Ignore, just wake up. Probably we got interrupt()ed
+			// because a new packet came in.
+			}
+		} else {
+			if(logDEBUG)
+				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+		}
+	}
+
+	/** Wake up, and send any queued packets for the peer. */
+	void wakeUp(PeerNode pn) {
+		schedule.wakeUp(pn);
+		// Wake up if needed
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/** Look at the peer next time we wake up, which will be within MAX_COALESCING_DELAY. */
+	void checkSoon(PeerNode pn) {
+		schedule.wakeUp(pn);
+	}
+
+	@Override
+	public String toString() {
+		return myThread.getName();
+	}
+}
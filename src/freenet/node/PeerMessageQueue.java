@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -17,6 +20,10 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ *
+ * Messages are queued without locking, see incoming, and the PacketSender can find out
+ * whether there is anything to send without locking too, unless something has changed since
+ * it last looked. Only choosing and removing messages takes the lock.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -38,6 +45,27 @@ public class PeerMessageQueue {
 	
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
+
+	/** Messages queued since the queues were last looked at. Queueing a message only adds it
+	 * here, and updates the counters below, so the threads queueing messages never wait for
+	 * the lock on the queues, which the PacketSender holds while it chooses what to send.
+	 * Whoever next takes the lock moves them into queuesByPriority, see drainIncoming(). */
+	private final ConcurrentLinkedQueue<MessageItem> incoming = new ConcurrentLinkedQueue<MessageItem>();
+	/** The number of messages in incoming. Incremented after adding, so may briefly be
+	 * negative. */
+	private final AtomicInteger incomingCount = new AtomicInteger();
+	/** No message in incoming can become urgent before this time. */
+	private final AtomicLong incomingEarliestUrgentTime = new AtomicLong(Long.MAX_VALUE);
+	/** The total length of the messages queued, including those in incoming. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicInteger queuedMessages = new AtomicInteger();
+
+	/** Incremented, with the lock held, whenever queuesByPriority changes. */
+	private volatile int version;
+	/** The next urgent time of queuesByPriority, valid if cachedVersion == version. Lets
+	 * getNextUrgentTime() answer without taking the lock while nothing has changed. */
+	private volatile long cachedUrgentTime;
+	private volatile int cachedVersion = -1;
 	
 	private class PrioQueue {
 		
@@ -413,34 +441,6 @@ public class PeerMessageQueue {
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
-		}
-		
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
@@ -730,33 +730,17 @@ public class PeerMessageQueue {
 	 * this queue. The value returned is the estimated number of bytes
 	 * needed for sending the all messages in this queue. Note that if the
 	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * Does not take the lock on the queue.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
-	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
+	public int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+		return (int) Math.min(Integer.MAX_VALUE, queuedBytes.get() + 2L * queuedMessages.get());
 	}
 
 	public synchronized long getMessageQueueLengthBytes() {
+		drainIncoming();
 		long x = 0;
 		for(PrioQueue pq : queuesByPriority) {
 			if(pq.nonEmptyItemsWithID != null)
@@ -767,14 +751,44 @@ public class PeerMessageQueue {
 		return x;
 	}
 
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the end, both the common case
-		short prio = addMe.getPriority();
-		queuesByPriority[prio].addLast(addMe);
-		if(addMe.sendLoadRT)
-			mustSendLoadRT = true;
-		if(addMe.sendLoadBulk)
-			mustSendLoadBulk = true;
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedMessages.incrementAndGet();
+		incoming.add(addMe);
+		incomingCount.incrementAndGet();
+		PrioQueue queue = queuesByPriority[addMe.getPriority()];
+		// Round-robin queues may send it straight away if its UID hasn't been sent recently.
+		long urgent = queue.roundRobinBetweenUIDs ? addMe.submitted : addMe.submitted + queue.timeout;
+		while(true) {
+			long earliest = incomingEarliestUrgentTime.get();
+			if(earliest <= urgent || incomingEarliestUrgentTime.compareAndSet(earliest, urgent)) break;
+		}
+	}
+
+	/** Move the messages in incoming to the queues. Must be called with the lock held before
+	 * looking at or changing the queues. */
+	private void drainIncoming() {
+		assert(Thread.holdsLock(this));
+		version++;
+		// Reset first, so a message added while we drain keeps its time, and at worst we
+		// keep an early time for a message we have drained, until the next time we drain.
+		incomingEarliestUrgentTime.set(Long.MAX_VALUE);
+		MessageItem item;
+		while((item = incoming.poll()) != null) {
+			incomingCount.decrementAndGet();
+			queuesByPriority[item.getPriority()].addLast(item);
+			if(item.sendLoadRT)
+				mustSendLoadRT = true;
+			if(item.sendLoadBulk)
+				mustSendLoadBulk = true;
+		}
+	}
+
+	/** A message has been taken off the queues. */
+	private void dequeued(MessageItem item) {
+		queuedBytes.addAndGet(-item.getLength());
+		queuedMessages.decrementAndGet();
 	}
 
 	/**
@@ -784,6 +798,9 @@ public class PeerMessageQueue {
 	 * between UID's send order. Try to avoid it.
 	 */
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
+		drainIncoming();
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedMessages.incrementAndGet();
 		//Assume it goes on the front
 		short prio = addMe.getPriority();
 		queuesByPriority[prio].addFirst(addMe);
@@ -794,6 +811,7 @@ public class PeerMessageQueue {
 	}
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
+		drainIncoming();
 		int size = 0;
 		for(PrioQueue queue : queuesByPriority)
 			size += queue.size();
@@ -803,6 +821,8 @@ public class PeerMessageQueue {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		for(MessageItem item : output)
+			dequeued(item);
 		return output;
 	}
 
@@ -817,12 +837,23 @@ public class PeerMessageQueue {
 	 * Set to Long.MAX_VALUE if you want an accurate value.
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
-	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
-		for(PrioQueue queue: queuesByPriority) {
-			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
-			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
+	public long getNextUrgentTime(long t, long returnIfBefore) {
+		// Nothing has changed since we last worked it out.
+		int v = version;
+		if(cachedVersion == v) {
+			long cached = cachedUrgentTime;
+			if(incomingCount.get() <= 0 && version == v)
+				return Math.min(t, cached);
+		}
+		synchronized(this) {
+			drainIncoming();
+			long urgent = Long.MAX_VALUE;
+			for(PrioQueue queue: queuesByPriority)
+				urgent = Math.min(urgent, queue.getNextUrgentTime(urgent, Long.MIN_VALUE));
+			cachedUrgentTime = urgent;
+			cachedVersion = version;
+			return Math.min(t, urgent);
 		}
-		return t;
 	}
 
 	/**
@@ -833,6 +864,10 @@ public class PeerMessageQueue {
 	 * <code>now</code>
 	 */
 	public boolean mustSendNow(long now) {
+		// Nothing new can be urgent yet, and neither is anything already queued.
+		int v = version;
+		if(cachedVersion == v && cachedUrgentTime > now && incomingEarliestUrgentTime.get() > now && version == v)
+			return false;
 		return getNextUrgentTime(Long.MAX_VALUE, now) <= now;
 	}
 
@@ -844,13 +879,8 @@ public class PeerMessageQueue {
 	 * @return <code>true</code> if <code>minSize</code> + the length of all
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
-	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+	public boolean mustSendSize(int minSize, int maxSize) {
+		return minSize + queuedBytes.get() > maxSize;
 	}
 
 	/** Grab a message to send. WARNING: PeerMessageQueue not only removes the message,
@@ -858,6 +888,13 @@ public class PeerMessageQueue {
 	 * not to call this function if you are not going to be able to send the message: 
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+		drainIncoming();
+		MessageItem item = grab(minPriority);
+		if(item != null) dequeued(item);
+		return item;
+	}
+
+	private MessageItem grab(int minPriority) {
 		long now = System.currentTimeMillis();
 		
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
@@ -921,14 +958,17 @@ public class PeerMessageQueue {
 	
 	public boolean removeMessage(MessageItem message) {
 		synchronized(this) {
+			drainIncoming();
 			short prio = message.getPriority();
 			if(!queuesByPriority[prio].removeMessage(message)) return false;
+			dequeued(message);
 		}
 		message.onFailed();
 		return true;
 	}
 
 	public synchronized void removeUIDsFromMessageQueues(Long[] list) {
+		drainIncoming();
 		for(PrioQueue queue : queuesByPriority) {
 			queue.removeUIDs(list);
 		}
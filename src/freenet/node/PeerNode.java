@@ -51,6 +51,7 @@ import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PacketBatch;
 import freenet.io.comm.Peer;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.io.comm.PeerParseException;
@@ -443,6 +444,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		this.backedOffPercentBulk = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
 		this.myBootID = node2.bootID;
 		this.bootID = new AtomicLong();
+		this._lastThrottle = new PacketThrottle(Node.PACKET_SIZE, node2.getCongestionControl());
 		version = fs.get("version");
 		Version.seenVersion(version);
 		try {
@@ -1093,17 +1095,19 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender
+			// It will wake up before the maximum coalescing delay (100ms) because
+			// it wakes up every 100ms *anyway*, but it must look at us when it does.
+			node.ps.checkSoon(this);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
 	}
 
 	@Override
@@ -3706,7 +3710,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return Version.getArbitraryBuildNumber(getVersion(), -1);
 	}
 
-	private final PacketThrottle _lastThrottle = new PacketThrottle(Node.PACKET_SIZE);
+	private final PacketThrottle _lastThrottle;
 
 	@Override
 	public PacketThrottle getThrottle() {
@@ -5364,7 +5368,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			pf = packetFormat;
 			if(pf == null) return false;
 		}
-		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
+		if(!pf.handleReceivedPacket(buf, offset, length, now, replyTo)) return false;
+		// We may need to send acks, resend lost packets etc.
+		node.ps.checkSoon(this);
+		return true;
 	}
 
 	public void checkForLostPackets() {
@@ -5385,6 +5392,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return pf.timeCheckForLostPackets();
 	}
 
+	synchronized boolean hasSessionKey(SessionKey key) {
+		return key == currentTracker || key == previousTracker || key == unverifiedTracker;
+	}
+
 	/** Only called for new format connections, for which we don't care about PacketTracker */
 	public void dumpTracker(SessionKey brokenKey) {
 		long now = System.currentTimeMillis();
@@ -5409,7 +5420,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 
 	@Override
 	public void sendEncryptedPacket(byte[] data) throws LocalAddressException {
-		crypto.socket.sendPacket(data, getPeer(), allowLocalAddresses());
+		PacketBatch batch = node.ps.getBatch(crypto.socket);
+		if(batch != null)
+			batch.add(data, getPeer(), allowLocalAddresses());
+		else
+			crypto.socket.sendPacket(data, getPeer(), allowLocalAddresses());
 	}
 	
 	@Override
@@ -9,6 +9,7 @@ import java.util.Map;
 import freenet.clients.http.DarknetConnectionsToadlet;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Peer;
+import freenet.io.xfer.CongestionControlType;
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.PeerNode.IncomingLoadSummaryStats;
 
@@ -96,6 +97,16 @@ public class PeerNodeStatus {
 	private double percentTimeRoutableConnection;
 	
 	private PacketThrottle throttle;
+
+	/** The congestion window, in packets, when the status was taken. */
+	private final double throttleWindowSize;
+
+	/** The rate the congestion control algorithm expects us to send at, in bytes per second. */
+	private final double throttlePacingRate;
+
+	private final long throttleRoundTripTime;
+
+	private final CongestionControlType congestionControl;
 	
 	private long clockDelta;
 	
@@ -186,6 +197,10 @@ public class PeerNodeStatus {
 		this.totalBytesOutSinceStartup = peerNode.getTotalOutputSinceStartup();
 		this.percentTimeRoutableConnection = peerNode.getPercentTimeRoutableConnection();
 		this.throttle = peerNode.getThrottle();
+		this.throttleWindowSize = throttle.getWindowSize();
+		this.throttlePacingRate = throttle.getBandwidth();
+		this.throttleRoundTripTime = throttle.getRoundTripTime();
+		this.congestionControl = throttle.getCongestionControl();
 		this.clockDelta = peerNode.getClockDelta();
 		this.recordStatus = peerNode.recordStatus();
 		this.isSeedClient = peerNode instanceof SeedClientPeerNode;
@@ -456,6 +471,22 @@ public class PeerNodeStatus {
 		return throttle;
 	}
 
+	public double getThrottleWindowSize() {
+		return throttleWindowSize;
+	}
+
+	public double getThrottlePacingRate() {
+		return throttlePacingRate;
+	}
+
+	public long getThrottleRoundTripTime() {
+		return throttleRoundTripTime;
+	}
+
+	public CongestionControlType getCongestionControl() {
+		return congestionControl;
+	}
+
 	public long getClockDelta() {
 		return clockDelta;
 	}
@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * When each peer next needs the attention of the PacketSender, so that it only looks at the
+ * peers which are due, rather than at every peer every time it wakes up.
+ *
+ * Each peer has at most one time. Peers can also be woken, from any thread, in which case they
+ * are due the next time the PacketSender looks, whatever their time. Everything else must be
+ * called on the thread of the PacketSenderShard which owns the schedule. Generic only so it can
+ * be tested without real peers.
+ */
+class PeerSchedule<T> {
+
+	private final TreeSet<Entry<T>> queue = new TreeSet<Entry<T>>();
+	private final HashMap<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+	private final Set<T> woken = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	/** Breaks ties between peers due at the same time, first come first served. */
+	private long counter;
+
+	private static class Entry<T> implements Comparable<Entry<T>> {
+		final T peer;
+		final long time;
+		final long id;
+
+		Entry(T peer, long time, long id) {
+			this.peer = peer;
+			this.time = time;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(Entry<T> other) {
+			if(time != other.time) return time < other.time ? -1 : 1;
+			if(id != other.id) return id < other.id ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/** Look at a peer at the given time, replacing any time it already had. */
+	void schedule(T peer, long time) {
+		Entry<T> old = entries.remove(peer);
+		if(old != null) queue.remove(old);
+		Entry<T> entry = new Entry<T>(peer, time, counter++);
+		entries.put(peer, entry);
+		queue.add(entry);
+	}
+
+	void remove(T peer) {
+		Entry<T> old = entries.remove(peer);
+		if(old != null) queue.remove(old);
+	}
+
+	void clear() {
+		queue.clear();
+		entries.clear();
+	}
+
+	/** Look at a peer next time, whenever it was scheduled for. Ignored if the peer isn't
+	 * scheduled. Can be called on any thread. */
+	void wakeUp(T peer) {
+		woken.add(peer);
+	}
+
+	/** Remove the peers which have been woken and add them to the list. The caller must
+	 * schedule them again. */
+	void takeWoken(List<T> due) {
+		if(woken.isEmpty()) return;
+		Iterator<T> it = woken.iterator();
+		while(it.hasNext()) {
+			T peer = it.next();
+			it.remove();
+			Entry<T> entry = entries.remove(peer);
+			if(entry == null) continue;
+			queue.remove(entry);
+			due.add(peer);
+		}
+	}
+
+	/** Remove and return the peer with the earliest time, if it is not after now. The caller
+	 * must schedule it again.
+	 * @return The peer, or null if none are due. */
+	T pollDue(long now) {
+		if(queue.isEmpty()) return null;
+		Entry<T> entry = queue.first();
+		if(entry.time > now) return null;
+		queue.pollFirst();
+		entries.remove(entry.peer);
+		return entry.peer;
+	}
+
+	/** @return The earliest time any peer is scheduled for, or Long.MAX_VALUE. Whether any
+	 * peers have been woken is not taken into account. */
+	long nextTime() {
+		return queue.isEmpty() ? Long.MAX_VALUE : queue.first().time;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+}
@@ -3,7 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import javax.crypto.Mac;
+
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
 
 /**
  * Class representing a single session key.
@@ -31,6 +35,13 @@ public class SessionKey {
 	
 	public final NewPacketFormatKeyContext packetContext;
 
+	/* Reused when decoding received packets, so we don't allocate for every packet. Created
+	 * on first use, and only used while holding the receive lock of our peer's NewPacketFormat. */
+	private Mac incomingMac;
+	private PCFBMode incomingPCFB;
+	private byte[] receiveIV;
+	private byte[] receiveHash;
+
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
 			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID) {
@@ -46,7 +57,50 @@ public class SessionKey {
 		this.trackerID = trackerID;
 	}
 	
+	/** The HMAC for received packets. Caller must hold NewPacketFormat's receive lock. */
+	Mac getIncomingMac() {
+		if(incomingMac == null)
+			incomingMac = HMAC.createMac(HMAC.SHA2_256, hmacKey);
+		return incomingMac;
+	}
+
+	/** A buffer for the HMAC of a received packet. Caller must hold NewPacketFormat's receive
+	 * lock. */
+	byte[] getReceiveHashBuffer() {
+		if(receiveHash == null)
+			receiveHash = new byte[getIncomingMac().getMacLength()];
+		return receiveHash;
+	}
+
+	/** A buffer for an IV for incommingCipher. Caller must hold NewPacketFormat's receive lock. */
+	byte[] getReceiveIVBuffer() {
+		if(receiveIV == null)
+			receiveIV = new byte[ivCipher.getBlockSize() / 8];
+		return receiveIV;
+	}
+
+	/** Get incommingCipher in PCFB mode, reset to the given IV. Caller must hold
+	 * NewPacketFormat's receive lock. */
+	PCFBMode getIncomingPCFB(byte[] iv) {
+		if(incomingPCFB == null)
+			incomingPCFB = PCFBMode.create(incommingCipher, iv);
+		else
+			incomingPCFB.reset(iv);
+		return incomingPCFB;
+	}
+
 	public void disconnected() {
 		packetContext.disconnected();
 	}
+
+	/** Is this still one of our peer's current, previous or unverified keys? */
+	boolean isInUse() {
+		return pn != null && pn.hasSessionKey(this);
+	}
+
+	/** Where to record the sequence numbers we are watching for, or null if we have no peer
+	 * (in tests). */
+	SessionKeyIndex getIndex() {
+		return pn == null ? null : pn.crypto.sessionKeyIndex;
+	}
 }
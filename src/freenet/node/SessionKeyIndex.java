@@ -0,0 +1,180 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+
+/**
+ * Finds which session key, and therefore which peer, a data packet is probably for, from the
+ * encrypted sequence number which follows its HMAC. NewPacketFormat adds each sequence number
+ * on a key's watch list when it encrypts it, and removes it when the list moves on, so a
+ * packet from an address we don't recognise (e.g. after a NAT rebinding) can be tried on one
+ * peer rather than on all of them.
+ *
+ * This is only a hint: encrypted sequence numbers are 32 bits, so two keys may collide, and
+ * the caller must still decrypt and check the HMAC.
+ *
+ * Every peer has a watch list of over a thousand sequence numbers for each of up to three keys,
+ * so the index is an open addressing hash table of plain ints rather than a map of boxed
+ * Integers. Encrypted sequence numbers are effectively random, so they are their own hash.
+ * Keys which are dropped leave their entries behind. Rather than checking them on the receive
+ * path, NodeCrypto calls {@link #purge(int)} every {@link #PURGE_INTERVAL} to check the next
+ * {@link #PURGE_SLOTS} slots, so dead entries are cleared a little at a time.
+ */
+class SessionKeyIndex {
+
+	/** Must be a power of 2. Enough for a few peers; the table grows as needed. */
+	static final int MIN_CAPACITY = 8192;
+	static final int PURGE_SLOTS = 16384;
+	static final long PURGE_INTERVAL = SECONDS.toMillis(10);
+
+	private int[] seqNums = new int[MIN_CAPACITY];
+	/** The key for each slot, or null if the slot is empty. */
+	private SessionKey[] owners = new SessionKey[MIN_CAPACITY];
+	private int size;
+	/** The next slot to check in purge(). */
+	private int purgeCursor;
+
+	synchronized void add(byte[] encryptedSeqNum, SessionKey key) {
+		int seqNum = toInt(encryptedSeqNum, 0);
+		int slot = find(seqNum);
+		if(owners[slot] == null) {
+			seqNums[slot] = seqNum;
+			size++;
+		}
+		owners[slot] = key;
+		if(size * 2 > owners.length)
+			resize(owners.length * 2);
+	}
+
+	/** Remove an entry, if it is still for this key. */
+	synchronized void remove(byte[] encryptedSeqNum, SessionKey key) {
+		int slot = find(toInt(encryptedSeqNum, 0));
+		if(owners[slot] == key)
+			removeSlot(slot);
+	}
+
+	/** @return The session key the packet is probably encrypted with, or null. */
+	SessionKey get(byte[] buf, int offset, int length) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return null;
+		int seqNum = toInt(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		synchronized(this) {
+			return owners[find(seqNum)];
+		}
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized int capacity() {
+		return owners.length;
+	}
+
+	/**
+	 * Remove the entries in the next few slots whose keys their peer no longer uses. Checking
+	 * a key takes the peer's lock, so this is done without holding ours, and must not be
+	 * called on the receive path.
+	 * @param slots How many slots to check.
+	 */
+	void purge(int slots) {
+		int[] deadSeqNums;
+		SessionKey[] deadOwners;
+		int count = 0;
+		synchronized(this) {
+			slots = Math.min(slots, owners.length);
+			deadSeqNums = new int[slots];
+			deadOwners = new SessionKey[slots];
+			int mask = owners.length - 1;
+			for(int i = 0; i < slots; i++) {
+				int slot = (purgeCursor + i) & mask;
+				if(owners[slot] == null) continue;
+				deadSeqNums[count] = seqNums[slot];
+				deadOwners[count] = owners[slot];
+				count++;
+			}
+			purgeCursor = (purgeCursor + slots) & mask;
+		}
+		// Keep only the entries whose keys are dead. Only a few keys, so lists will do.
+		ArrayList<SessionKey> live = new ArrayList<SessionKey>();
+		ArrayList<SessionKey> dead = new ArrayList<SessionKey>();
+		int deadCount = 0;
+		for(int i = 0; i < count; i++) {
+			SessionKey key = deadOwners[i];
+			boolean inUse;
+			if(live.contains(key))
+				inUse = true;
+			else if(dead.contains(key))
+				inUse = false;
+			else {
+				inUse = key.isInUse();
+				(inUse ? live : dead).add(key);
+			}
+			if(inUse) continue;
+			deadSeqNums[deadCount] = deadSeqNums[i];
+			deadOwners[deadCount] = key;
+			deadCount++;
+		}
+		if(deadCount == 0) return;
+		synchronized(this) {
+			for(int i = 0; i < deadCount; i++) {
+				int slot = find(deadSeqNums[i]);
+				if(owners[slot] == deadOwners[i])
+					removeSlot(slot);
+			}
+			if(owners.length > MIN_CAPACITY && size * 8 < owners.length)
+				resize(owners.length / 2);
+		}
+	}
+
+	/** @return The slot holding the sequence number, or the empty slot where it would go. */
+	private int find(int seqNum) {
+		int mask = owners.length - 1;
+		int slot = seqNum & mask;
+		while(owners[slot] != null && seqNums[slot] != seqNum)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/** Empty a slot, moving back any later entries which would no longer be found. */
+	private void removeSlot(int slot) {
+		int mask = owners.length - 1;
+		int next = slot;
+		while(true) {
+			next = (next + 1) & mask;
+			if(owners[next] == null) break;
+			int home = seqNums[next] & mask;
+			// Move it back if the gap is between its home slot and where it is.
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				seqNums[slot] = seqNums[next];
+				owners[slot] = owners[next];
+				slot = next;
+			}
+		}
+		owners[slot] = null;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		int[] oldSeqNums = seqNums;
+		SessionKey[] oldOwners = owners;
+		seqNums = new int[capacity];
+		owners = new SessionKey[capacity];
+		for(int i = 0; i < oldOwners.length; i++) {
+			if(oldOwners[i] == null) continue;
+			int slot = find(oldSeqNums[i]);
+			seqNums[slot] = oldSeqNums[i];
+			owners[slot] = oldOwners[i];
+		}
+		purgeCursor &= capacity - 1;
+	}
+
+	private static int toInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+				((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+}
@@ -31,4 +31,8 @@ public interface DataStoreStats {
 	
 	StoreAccessStats getTotalAccessStats() throws StatsNotAvailableException;
 
+	/** Session statistics for each tier of a tiered store, fastest first, or null if the store
+	 * has only one tier. */
+	StoreAccessStats[] getSessionTierAccessStats();
+
 }
@@ -1,5 +1,7 @@
 package freenet.node.stats;
 
+import freenet.support.math.LatencyHistogram;
+
 public abstract class StoreAccessStats {
 	
 	public abstract long hits();
@@ -36,7 +38,42 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** Fetches answered by an in-memory write cache in front of the store, if any. These are
+	 * included in hits(). */
+	public long cacheHits() {
+		return 0;
+	}
+
+	/** Fetches which missed the write cache and went to the store. */
+	public long cacheMisses() {
+		return 0;
+	}
+
+	/** Blocks written from the write cache to the store. */
+	public long cacheEvictions() {
+		return 0;
+	}
+
+	/** Statistics for each tier of a tiered store, fastest first, or null if the store has
+	 * only one tier. */
+	public StoreAccessStats[] tiers() {
+		return null;
+	}
+
+	/** How long one phase of fetches and puts has taken this session, or null if the store
+	 * doesn't time it. */
+	public LatencyHistogram latency(StorePhase phase) {
+		return null;
+	}
 
+	/** Bytes read from disk this session, or -1 if not known. */
+	public long bytesRead() {
+		return -1;
+	}
 
+	/** Bytes written to disk this session, or -1 if not known. */
+	public long bytesWritten() {
+		return -1;
+	}
 
 }
@@ -81,4 +81,9 @@ public class StoreCallbackStats implements DataStoreStats {
 		if(totalAccessStats == null) throw new StatsNotAvailableException();
 		return totalAccessStats;
 	}
+
+	@Override
+	public StoreAccessStats[] getSessionTierAccessStats() {
+		return sessionAccessStats.tiers();
+	}
 }
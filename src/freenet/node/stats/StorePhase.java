@@ -0,0 +1,27 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.stats;
+
+/**
+ * The parts of a datastore fetch or put which are timed separately, see
+ * {@link StoreAccessStats#latency(StorePhase)}.
+ */
+public enum StorePhase {
+	/** A whole fetch. */
+	FETCH,
+	/** A whole put. */
+	PUT,
+	/** Waiting for the store's locks. */
+	LOCK_WAIT,
+	/** Hashing the routing key. */
+	KEY_DIGEST,
+	/** Reading one slot's metadata or data from disk. */
+	DISK_READ,
+	/** Writing one slot to disk, or to the write queue. */
+	DISK_WRITE,
+	/** Decrypting one slot. */
+	DECRYPT,
+	/** Encrypting one slot. */
+	ENCRYPT
+}
@@ -36,6 +36,16 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		}
 	}
 	
+	@Override
+	public byte[] getRawData(CHKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] getRawHeaders(CHKBlock block) {
+		return block.getRawHeaders();
+	}
+
 	@Override
 	public int dataLength() {
 		return CHKBlock.DATA_LENGTH;
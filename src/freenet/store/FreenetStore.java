@@ -2,6 +2,7 @@ package freenet.store;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
@@ -76,6 +77,23 @@ public interface FreenetStore<T extends StorableBlock> extends Closeable {
 	 */
 	public boolean probablyInStore(byte[] routingKey);
 
+	/**
+	 * Check whether many routing keys are probably in the store. This can be much cheaper than
+	 * checking them one at a time, e.g. a store on disk can check them in the order they are
+	 * stored in.
+	 * @return For each key, <code>false</code> <b>only</b> if it does not exist in store.
+	 */
+	public boolean[] probablyInStore(byte[][] routingKeys);
+
+	/**
+	 * Retrieve many blocks, in whatever order is fastest for the store. Parameters are as for
+	 * {@link #fetch(byte[], byte[], boolean, boolean, boolean, boolean, BlockMetadata)}.
+	 * @param fullKeys The full keys, or null.
+	 * @return A list with, for each key, the block, or null if it cannot be found.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException;
+
 	public abstract StoreAccessStats getSessionAccessStats();
 
 	public abstract StoreAccessStats getTotalAccessStats();
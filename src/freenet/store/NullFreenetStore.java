@@ -1,6 +1,9 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
@@ -50,6 +53,17 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return false;
 	}
 
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		return new boolean[routingKeys.length];
+	}
+
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		return new ArrayList<T>(Collections.<T>nCopies(routingKeys.length, null));
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean oldBlock) throws IOException,
@@ -0,0 +1,734 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import freenet.keys.KeyVerifyException;
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * In memory store which keeps the blocks outside the Java heap.
+ *
+ * Blocks are kept in fixed size slots in direct buffers ("arenas"), which are allocated as the
+ * store fills up. An open addressing table of slot numbers on the heap maps routing keys to
+ * slots. Replacement is CLOCK rather than strict LRU, so a fetch only has to set a bit.
+ *
+ * Fetches do not take the store lock: they look up the slot without locking, and read it under
+ * an optimistic read of the arena's StampedLock, falling back to a read lock if it was written
+ * meanwhile. Everything that changes the store (put, eviction, resizing) is serialized on the
+ * store's monitor, and writes a slot while holding its arena's write lock.
+ *
+ * Direct buffers count towards -XX:MaxDirectMemorySize, not the heap. If an arena cannot be
+ * allocated the store stops growing and recycles the slots it already has.
+ */
+public class OffHeapFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(OffHeapFreenetStore.class);
+	}
+
+	/** Target size of a single arena. */
+	static final int ARENA_BYTES = 64 * 1024 * 1024;
+
+	private static final byte FLAG_OCCUPIED = 1;
+	private static final byte FLAG_OLD_BLOCK = 2;
+
+	/** Index entry for a slot that has been removed. Lookups skip it, inserts may reuse it. */
+	private static final int TOMBSTONE = -1;
+	private static final int MIN_INDEX_SIZE = 16;
+	private static final int MAX_INDEX_SIZE = 1 << 30;
+	/** A fetch which keeps losing races with writers gives up and counts as a miss. */
+	private static final int MAX_FETCH_ATTEMPTS = 16;
+
+	private final StoreCallback<T> callback;
+
+	private final int routingKeyLength;
+	private final int fullKeyLength;
+	private final int headerLength;
+	private final int dataLength;
+	private final boolean storeFullKeys;
+
+	// Slot layout: flags, routing key, full key (if stored), header, data.
+	private final int keyOffset;
+	private final int fullKeyOffset;
+	private final int headerOffset;
+	private final int dataOffset;
+	private final int slotSize;
+	private final int slotsPerArena;
+
+	private volatile Arena[] arenas;
+	/** Slot number + 1, 0 for never used, or TOMBSTONE. */
+	private volatile AtomicIntegerArray index;
+
+	// The following are only modified while synchronized on this.
+	private volatile int maxKeys;
+	private volatile int keyCount;
+	private int tombstones;
+	/** Slots below this have been handed out at least once. */
+	private int nextSlot;
+	/** Empty slots below nextSlot. */
+	private int[] freeSlots;
+	private int freeCount;
+	private int clockHand;
+	/** Set when we fail to allocate an arena, so we don't keep trying on every put. */
+	private boolean outOfMemory;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	private static final class Arena {
+		final int slots;
+		final ByteBuffer buf;
+		final StampedLock lock;
+		/** CLOCK reference bits, set by fetches. */
+		final AtomicIntegerArray referenced;
+
+		Arena(int slots, int slotSize) {
+			this.slots = slots;
+			buf = ByteBuffer.allocateDirect(slots * slotSize);
+			lock = new StampedLock();
+			referenced = new AtomicIntegerArray(slots);
+		}
+	}
+
+	private final static class Block {
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		final boolean oldBlock;
+
+		Block(byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
+	}
+
+	public OffHeapFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this.callback = callback;
+		routingKeyLength = callback.routingKeyLength();
+		storeFullKeys = callback.storeFullKeys();
+		fullKeyLength = storeFullKeys ? callback.fullKeyLength() : 0;
+		headerLength = callback.headerLength();
+		dataLength = callback.dataLength();
+		keyOffset = 1;
+		fullKeyOffset = keyOffset + routingKeyLength;
+		headerOffset = fullKeyOffset + fullKeyLength;
+		dataOffset = headerOffset + headerLength;
+		slotSize = dataOffset + dataLength;
+		slotsPerArena = Math.max(1, ARENA_BYTES / slotSize);
+		this.maxKeys = Math.max(0, maxKeys);
+		arenas = new Arena[0];
+		index = new AtomicIntegerArray(indexSize(this.maxKeys));
+		freeSlots = new int[16];
+		callback.setStore(this);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		int hash = hash(routingKey);
+		for(int attempt = 0; attempt < MAX_FETCH_ATTEMPTS; attempt++) {
+			int slot = lookup(routingKey, hash);
+			if(slot < 0) break;
+			Block block = readSlot(slot, routingKey);
+			// Evicted or moved since the lookup.
+			if(block == null) continue;
+			if(ignoreOldBlocks && block.oldBlock) {
+				Logger.normal(this, "Ignoring old block");
+				return null;
+			}
+			try {
+				T ret =
+					callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+				hits.incrementAndGet();
+				if(!dontPromote)
+					reference(slot);
+				if(meta != null && block.oldBlock)
+					meta.setOldBlock();
+				return ret;
+			} catch (KeyVerifyException e) {
+				remove(routingKey, hash);
+				break;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	@Override
+	public long getMaxKeys() {
+		return maxKeys;
+	}
+
+	@Override
+	public long hits() {
+		return hits.get();
+	}
+
+	@Override
+	public long keyCount() {
+		return keyCount;
+	}
+
+	@Override
+	public long misses() {
+		return misses.get();
+	}
+
+	@Override
+	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+
+		writes.incrementAndGet();
+		int hash = hash(routingKey);
+		int slot = lookup(routingKey, hash);
+		if(slot >= 0) {
+			if(callback.collisionPossible()) {
+				boolean equals = slotEquals(slot, data, header, fullKey);
+				if(equals) {
+					if(!isOldBlock)
+						clearOldBlock(slot);
+					return;
+				}
+				if(overwrite) {
+					writeSlot(slot, routingKey, fullKey, header, data, isOldBlock);
+				} else {
+					throw new KeyCollisionException();
+				}
+				return;
+			} else {
+				if(!isOldBlock)
+					clearOldBlock(slot);
+				return;
+			}
+		}
+		slot = allocateSlot();
+		if(slot < 0) return;
+		writeSlot(slot, routingKey, fullKey, header, data, isOldBlock);
+		insert(slot, hash);
+		keyCount++;
+	}
+
+	@Override
+	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+			throws IOException {
+		int newMax = (int)Math.max(0, Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		this.maxKeys = newMax;
+		outOfMemory = false;
+		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
+		while(keyCount > newMax) {
+			int victim = victim();
+			evict(victim);
+			pushFree(victim);
+		}
+		if(nextSlot > newMax)
+			compact(newMax);
+		rebuildIndex(indexSize(Math.max(newMax, keyCount)));
+	}
+
+	@Override
+	public long writes() {
+		return writes.get();
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return -1;
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		return lookup(routingKey, hash(routingKey)) >= 0;
+	}
+
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = new boolean[routingKeys.length];
+		for(int i = 0; i < routingKeys.length; i++)
+			result[i] = probablyInStore(routingKeys[i]);
+		return result;
+	}
+
+	/** The blocks are in memory, so there is no better order than one at a time. */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i = 0; i < routingKeys.length; i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		return blocks;
+	}
+
+	public synchronized void clear() {
+		arenas = new Arena[0];
+		index = new AtomicIntegerArray(indexSize(maxKeys));
+		keyCount = 0;
+		tombstones = 0;
+		nextSlot = 0;
+		freeCount = 0;
+		clockHand = 0;
+		outOfMemory = false;
+	}
+
+	public synchronized void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
+		byte[] routingKey = new byte[routingKeyLength];
+		for(int slot = 0; slot < nextSlot; slot++) {
+			if(!isOccupied(slot)) continue;
+			readKey(slot, routingKey);
+			Block block = readSlot(slot, routingKey);
+			if(block == null) continue;
+
+			T ret;
+			try {
+				ret = callback.construct(block.data, block.header, routingKey.clone(), block.fullKey, canReadClientCache, false, null, null);
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Caught while migrating: "+e, e);
+				continue;
+			}
+			try {
+				target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
+			} catch (KeyCollisionException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/** @return The number of bytes allocated off-heap for block storage. */
+	public long allocatedBytes() {
+		long slots = 0;
+		for(Arena arena : arenas)
+			slots += arena.slots;
+		return slots * slotSize;
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return hits.get();
+			}
+
+			@Override
+			public long misses() {
+				return misses.get();
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return writes.get();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return null;
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		return false;
+	}
+
+	@Override
+	public void setUserAlertManager(UserAlertManager userAlertManager) {
+		// Do nothing
+	}
+
+	@Override
+	public FreenetStore<T> getUnderlyingStore() {
+		return this;
+	}
+
+	@Override
+	public void close() {
+		// Do nothing
+	}
+
+	// Index. Lookups may run concurrently with changes; the caller must check the slot.
+
+	private static int hash(byte[] routingKey) {
+		int h = Arrays.hashCode(routingKey);
+		return h ^ (h >>> 16);
+	}
+
+	private static int indexSize(int keys) {
+		long wanted = Math.max(MIN_INDEX_SIZE, 2L * keys);
+		if(wanted >= MAX_INDEX_SIZE) return MAX_INDEX_SIZE;
+		return Integer.highestOneBit((int)wanted - 1) << 1;
+	}
+
+	/** @return The slot which appears to hold the key, or -1. */
+	private int lookup(byte[] routingKey, int hash) {
+		AtomicIntegerArray index = this.index;
+		int mask = index.length() - 1;
+		int pos = hash & mask;
+		for(int i = 0; i <= mask; i++) {
+			int entry = index.get(pos);
+			if(entry == 0) return -1;
+			if(entry > 0 && keyMatches(entry - 1, routingKey))
+				return entry - 1;
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	/** Position in the index of the entry for the slot. Caller must hold the lock. */
+	private int findEntry(int slot, int hash) {
+		AtomicIntegerArray index = this.index;
+		int mask = index.length() - 1;
+		int pos = hash & mask;
+		for(int i = 0; i <= mask; i++) {
+			int entry = index.get(pos);
+			if(entry == slot + 1) return pos;
+			if(entry == 0) break;
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(int slot, int hash) {
+		AtomicIntegerArray index = this.index;
+		if((keyCount + 1 + tombstones) * 4L > index.length() * 3L) {
+			rebuildIndex(indexSize(Math.max(maxKeys, keyCount + 1)));
+			index = this.index;
+		}
+		int mask = index.length() - 1;
+		int pos = hash & mask;
+		while(true) {
+			int entry = index.get(pos);
+			if(entry == 0 || entry == TOMBSTONE) {
+				if(entry == TOMBSTONE) tombstones--;
+				index.set(pos, slot + 1);
+				return;
+			}
+			pos = (pos + 1) & mask;
+		}
+	}
+
+	private void rebuildIndex(int size) {
+		AtomicIntegerArray newIndex = new AtomicIntegerArray(size);
+		int mask = size - 1;
+		byte[] routingKey = new byte[routingKeyLength];
+		for(int slot = 0; slot < nextSlot; slot++) {
+			if(!isOccupied(slot)) continue;
+			readKey(slot, routingKey);
+			int pos = hash(routingKey) & mask;
+			while(newIndex.get(pos) != 0)
+				pos = (pos + 1) & mask;
+			newIndex.set(pos, slot + 1);
+		}
+		index = newIndex;
+		tombstones = 0;
+		if(logMINOR) Logger.minor(this, "Rebuilt index: "+size+" entries for "+keyCount+" keys");
+	}
+
+	// Slots.
+
+	private Arena arena(int slot) {
+		return arenas[slot / slotsPerArena];
+	}
+
+	private int offset(int slot) {
+		return (slot % slotsPerArena) * slotSize;
+	}
+
+	private boolean keyMatches(int slot, byte[] routingKey) {
+		Arena[] arenas = this.arenas;
+		int arenaIndex = slot / slotsPerArena;
+		if(arenaIndex >= arenas.length || slot % slotsPerArena >= arenas[arenaIndex].slots) return false;
+		ByteBuffer buf = arenas[arenaIndex].buf;
+		int offset = offset(slot);
+		if((buf.get(offset) & FLAG_OCCUPIED) == 0) return false;
+		offset += keyOffset;
+		for(int i = 0; i < routingKeyLength; i++) {
+			if(buf.get(offset + i) != routingKey[i]) return false;
+		}
+		return true;
+	}
+
+	/** Read a slot if it still holds the key. Does not need the lock. */
+	private Block readSlot(int slot, byte[] routingKey) {
+		Arena[] arenas = this.arenas;
+		int arenaIndex = slot / slotsPerArena;
+		if(arenaIndex >= arenas.length) return null;
+		Arena arena = arenas[arenaIndex];
+		if(slot % slotsPerArena >= arena.slots) return null;
+		int offset = offset(slot);
+		long stamp = arena.lock.tryOptimisticRead();
+		if(stamp != 0) {
+			Block block = readSlot(arena, offset, routingKey);
+			if(arena.lock.validate(stamp))
+				return block;
+		}
+		stamp = arena.lock.readLock();
+		try {
+			return readSlot(arena, offset, routingKey);
+		} finally {
+			arena.lock.unlockRead(stamp);
+		}
+	}
+
+	private Block readSlot(Arena arena, int offset, byte[] routingKey) {
+		ByteBuffer buf = arena.buf.duplicate();
+		byte flags = buf.get(offset);
+		if((flags & FLAG_OCCUPIED) == 0) return null;
+		for(int i = 0; i < routingKeyLength; i++) {
+			if(buf.get(offset + keyOffset + i) != routingKey[i]) return null;
+		}
+		byte[] fullKey = null;
+		if(storeFullKeys) {
+			fullKey = new byte[fullKeyLength];
+			buf.position(offset + fullKeyOffset);
+			buf.get(fullKey);
+		}
+		byte[] header = new byte[headerLength];
+		buf.position(offset + headerOffset);
+		buf.get(header);
+		byte[] data = new byte[dataLength];
+		buf.get(data);
+		return new Block(header, data, fullKey, (flags & FLAG_OLD_BLOCK) != 0);
+	}
+
+	private void reference(int slot) {
+		Arena[] arenas = this.arenas;
+		int arenaIndex = slot / slotsPerArena;
+		if(arenaIndex < arenas.length && slot % slotsPerArena < arenas[arenaIndex].slots)
+			arenas[arenaIndex].referenced.lazySet(slot % slotsPerArena, 1);
+	}
+
+	// The following must only be called while synchronized on this.
+
+	private boolean isOccupied(int slot) {
+		return (arena(slot).buf.get(offset(slot)) & FLAG_OCCUPIED) != 0;
+	}
+
+	private void readKey(int slot, byte[] routingKey) {
+		ByteBuffer buf = arena(slot).buf.duplicate();
+		buf.position(offset(slot) + keyOffset);
+		buf.get(routingKey);
+	}
+
+	private boolean slotEquals(int slot, byte[] data, byte[] header, byte[] fullKey) {
+		ByteBuffer buf = arena(slot).buf;
+		int offset = offset(slot);
+		return regionEquals(buf, offset + dataOffset, dataLength, data) &&
+			regionEquals(buf, offset + headerOffset, headerLength, header) &&
+			(storeFullKeys ? regionEquals(buf, offset + fullKeyOffset, fullKeyLength, fullKey) : true);
+	}
+
+	/** Compare a slot field with a value, which is stored zero padded (or truncated) to the field length. */
+	private static boolean regionEquals(ByteBuffer buf, int offset, int length, byte[] value) {
+		int valueLength = value == null ? 0 : Math.min(length, value.length);
+		if(value != null && value.length > length) return false;
+		for(int i = 0; i < valueLength; i++) {
+			if(buf.get(offset + i) != value[i]) return false;
+		}
+		for(int i = valueLength; i < length; i++) {
+			if(buf.get(offset + i) != 0) return false;
+		}
+		return true;
+	}
+
+	private void writeSlot(int slot, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean isOldBlock) {
+		Arena arena = arena(slot);
+		ByteBuffer buf = arena.buf.duplicate();
+		int offset = offset(slot);
+		long stamp = arena.lock.writeLock();
+		try {
+			buf.put(offset, (byte)(FLAG_OCCUPIED | (isOldBlock ? FLAG_OLD_BLOCK : 0)));
+			putField(buf, offset + keyOffset, routingKeyLength, routingKey);
+			if(storeFullKeys)
+				putField(buf, offset + fullKeyOffset, fullKeyLength, fullKey);
+			putField(buf, offset + headerOffset, headerLength, header);
+			putField(buf, offset + dataOffset, dataLength, data);
+		} finally {
+			arena.lock.unlockWrite(stamp);
+		}
+	}
+
+	private static void putField(ByteBuffer buf, int offset, int length, byte[] value) {
+		int valueLength = value == null ? 0 : Math.min(length, value.length);
+		buf.position(offset);
+		if(valueLength > 0)
+			buf.put(value, 0, valueLength);
+		for(int i = valueLength; i < length; i++)
+			buf.put((byte)0);
+	}
+
+	private void setFlags(int slot, byte flags) {
+		Arena arena = arena(slot);
+		long stamp = arena.lock.writeLock();
+		try {
+			arena.buf.put(offset(slot), flags);
+		} finally {
+			arena.lock.unlockWrite(stamp);
+		}
+	}
+
+	private void clearOldBlock(int slot) {
+		byte flags = arena(slot).buf.get(offset(slot));
+		if((flags & FLAG_OLD_BLOCK) != 0)
+			setFlags(slot, (byte)(flags & ~FLAG_OLD_BLOCK));
+	}
+
+	private void copySlot(int from, int to) {
+		byte[] buf = new byte[slotSize];
+		ByteBuffer src = arena(from).buf.duplicate();
+		src.position(offset(from));
+		src.get(buf);
+		Arena arena = arena(to);
+		ByteBuffer dst = arena.buf.duplicate();
+		dst.position(offset(to));
+		long stamp = arena.lock.writeLock();
+		try {
+			dst.put(buf);
+		} finally {
+			arena.lock.unlockWrite(stamp);
+		}
+		arena.referenced.set(to % slotsPerArena, arena(from).referenced.get(from % slotsPerArena));
+	}
+
+	/** @return A slot to write a new block to, evicting one if the store is full, or -1 if we have
+	 * no memory at all. */
+	private int allocateSlot() {
+		if(keyCount < maxKeys) {
+			if(freeCount > 0)
+				return freeSlots[--freeCount];
+			if(!outOfMemory && nextSlot < maxKeys) {
+				if(hasSlot(nextSlot) || growArenas())
+					return nextSlot++;
+			}
+		}
+		if(keyCount == 0) return -1;
+		int victim = victim();
+		evict(victim);
+		return victim;
+	}
+
+	private boolean hasSlot(int slot) {
+		int arenaIndex = slot / slotsPerArena;
+		return arenaIndex < arenas.length && slot % slotsPerArena < arenas[arenaIndex].slots;
+	}
+
+	/** Add an arena for nextSlot, or replace the last one if it was sized for a smaller store. */
+	private boolean growArenas() {
+		int arenaIndex = nextSlot / slotsPerArena;
+		int slots = Math.min(slotsPerArena, maxKeys - arenaIndex * slotsPerArena);
+		Arena arena;
+		try {
+			arena = new Arena(slots, slotSize);
+		} catch (OutOfMemoryError e) {
+			outOfMemory = true;
+			Logger.error(this, "Unable to allocate "+(long)slots * slotSize+
+					" bytes off-heap, store will stay at "+nextSlot+" keys rather than "+maxKeys+
+					". Increase -XX:MaxDirectMemorySize or reduce the store size.");
+			return false;
+		}
+		Arena[] newArenas;
+		if(arenaIndex < arenas.length) {
+			// Nothing else writes to the old arena once we hold the lock, so readers still
+			// using it see consistent, if soon stale, slots.
+			Arena old = arenas[arenaIndex];
+			ByteBuffer src = old.buf.duplicate();
+			src.clear();
+			arena.buf.put(src);
+			for(int i = 0; i < old.slots; i++)
+				arena.referenced.set(i, old.referenced.get(i));
+			newArenas = arenas.clone();
+		} else {
+			newArenas = Arrays.copyOf(arenas, arenas.length + 1);
+		}
+		newArenas[arenaIndex] = arena;
+		arenas = newArenas;
+		return true;
+	}
+
+	/** Choose an occupied slot to evict with CLOCK. */
+	private int victim() {
+		for(int i = 0; i < 2 * nextSlot + 1; i++) {
+			if(clockHand >= nextSlot) clockHand = 0;
+			int slot = clockHand++;
+			if(!isOccupied(slot)) continue;
+			if(arena(slot).referenced.getAndSet(slot % slotsPerArena, 0) != 0) continue;
+			return slot;
+		}
+		throw new IllegalStateException("No slot to evict with "+keyCount+" keys");
+	}
+
+	private void evict(int slot) {
+		byte[] routingKey = new byte[routingKeyLength];
+		readKey(slot, routingKey);
+		int pos = findEntry(slot, hash(routingKey));
+		if(pos >= 0) {
+			index.set(pos, TOMBSTONE);
+			tombstones++;
+		}
+		setFlags(slot, (byte)0);
+		arena(slot).referenced.set(slot % slotsPerArena, 0);
+		keyCount--;
+	}
+
+	private synchronized void remove(byte[] routingKey, int hash) {
+		int slot = lookup(routingKey, hash);
+		if(slot < 0) return;
+		evict(slot);
+		pushFree(slot);
+	}
+
+	private void pushFree(int slot) {
+		if(freeCount == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+		freeSlots[freeCount++] = slot;
+	}
+
+	/** Move every block to a slot below newMax and release the arenas we no longer need. */
+	private void compact(int newMax) {
+		freeCount = 0;
+		for(int slot = 0; slot < newMax; slot++) {
+			if(!isOccupied(slot)) pushFree(slot);
+		}
+		byte[] routingKey = new byte[routingKeyLength];
+		for(int slot = newMax; slot < nextSlot; slot++) {
+			if(!isOccupied(slot)) continue;
+			int to = freeSlots[--freeCount];
+			copySlot(slot, to);
+			readKey(slot, routingKey);
+			int pos = findEntry(slot, hash(routingKey));
+			if(pos >= 0) index.set(pos, to + 1);
+			setFlags(slot, (byte)0);
+		}
+		nextSlot = newMax;
+		if(clockHand >= nextSlot) clockHand = 0;
+		int keepArenas = (newMax + slotsPerArena - 1) / slotsPerArena;
+		if(keepArenas < arenas.length)
+			arenas = Arrays.copyOf(arenas, keepArenas);
+	}
+
+}
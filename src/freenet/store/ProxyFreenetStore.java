@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
@@ -67,7 +68,7 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 	
 	@Override
 	public FreenetStore<T> getUnderlyingStore() {
-		return this.backDatastore;
+		return this.backDatastore.getUnderlyingStore();
 	}
 
 	@Override
@@ -88,6 +89,43 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.probablyInStore(routingKey);
 	}
 
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		return backDatastore.probablyInStore(routingKeys);
+	}
+
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		return backDatastore.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+	}
+
+	/**
+	 * Fetch the keys which are still null in <code>blocks</code> from the underlying store, all
+	 * together, and fill them in.
+	 */
+	protected void fetchMissing(List<T> blocks, byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		int missingCount = 0;
+		for(T block : blocks)
+			if(block == null) missingCount++;
+		if(missingCount == 0) return;
+		int[] missing = new int[missingCount];
+		byte[][] missingRoutingKeys = new byte[missingCount][];
+		byte[][] missingFullKeys = fullKeys == null ? null : new byte[missingCount][];
+		for(int i = 0, j = 0; i < routingKeys.length; i++) {
+			if(blocks.get(i) != null) continue;
+			missing[j] = i;
+			missingRoutingKeys[j] = routingKeys[i];
+			if(fullKeys != null)
+				missingFullKeys[j] = fullKeys[i];
+			j++;
+		}
+		List<T> fetched = backDatastore.fetch(missingRoutingKeys, missingFullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		for(int j = 0; j < missingCount; j++)
+			blocks.set(missing[j], fetched.get(j));
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		return backDatastore.start(ticker, longStart);
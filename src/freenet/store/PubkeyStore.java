@@ -40,6 +40,16 @@ public class PubkeyStore extends StoreCallback<DSAPublicKey> {
 		}
 	}
 	
+	@Override
+	public byte[] getRawData(DSAPublicKey key) {
+		return key.asPaddedBytes();
+	}
+
+	@Override
+	public byte[] getRawHeaders(DSAPublicKey key) {
+		return empty;
+	}
+
 	@Override
 	public int dataLength() {
 		return DSAPublicKey.PADDED_SIZE;
@@ -1,8 +1,10 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
@@ -165,6 +167,24 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		return blocksByRoutingKey.get(key) != null;
 	}
 
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = new boolean[routingKeys.length];
+		for(int i = 0; i < routingKeys.length; i++)
+			result[i] = probablyInStore(routingKeys[i]);
+		return result;
+	}
+
+	/** The blocks are in memory, so there is no better order than one at a time. */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i = 0; i < routingKeys.length; i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		return blocks;
+	}
+
 	public void clear() {
 		blocksByRoutingKey.clear();
 	}
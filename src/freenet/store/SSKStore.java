@@ -40,6 +40,16 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
 	
+	@Override
+	public byte[] getRawData(SSKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] getRawHeaders(SSKBlock block) {
+		return block.getRawHeaders();
+	}
+
 	@Override
 	public int dataLength() {
 		return SSKBlock.DATA_LENGTH;
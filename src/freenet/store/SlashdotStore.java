@@ -1,11 +1,11 @@
 package freenet.store;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
@@ -16,15 +16,16 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.Logger.LogLevel;
-import freenet.support.api.Bucket;
-import freenet.support.io.TempBucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.LockableRandomAccessBufferFactory;
 
 /** Short-term cache. Used to cache all blocks retrieved in the last 30 minutes (on low 
  * security levels), or just to cache data fetched through ULPRs (on higher security levels).
  * - Strict LRU.
  * - Size limit.
  * - Strictly enforced time limit.
- * - Blocks are encrypted, and kept in temp files.
+ * - Blocks are kept in fixed-size slots in one temporary buffer (the slab), which is encrypted
+ *   if temp files are. Free slots are kept on a stack and reused.
  * 
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
@@ -42,11 +43,24 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	}
 	
 	private class DiskBlock {
-		Bucket data;
+		/** Slot in the slab. */
+		int slot;
+		/** Set when the slot is freed, after which it may be reused for another block. */
+		boolean freed;
 		long lastAccessed;
 	}
 	
-	private final TempBucketFactory bf;
+	private final LockableRandomAccessBufferFactory rafFactory;
+	
+	/** Slot contents: full key, header, data. Created on the first write, with a slot per key. */
+	private LockableRandomAccessBuffer slab;
+	private int slabSlots;
+	/** Unused slots, as a stack. */
+	private int[] freeSlots;
+	private int freeCount;
+	/** Held for reading while using a slot, and for writing while the slab is replaced. Taken 
+	 * before the lock on the store. */
+	private final ReadWriteLock slabLock = new ReentrantReadWriteLock();
 	
 	private long maxLifetime;
 	
@@ -70,12 +84,13 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	private final int headerSize;
 	private final int dataSize;
 	private final int fullKeySize;
+	private final int slotSize;
 	
-	public SlashdotStore(StoreCallback<T> callback, int maxKeys, long maxLifetime, long purgePeriod, Ticker ticker, TempBucketFactory tbf) {
+	public SlashdotStore(StoreCallback<T> callback, int maxKeys, long maxLifetime, long purgePeriod, Ticker ticker, LockableRandomAccessBufferFactory rafFactory) {
 		this.callback = callback;
 		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
 		this.maxKeys = maxKeys;
-		this.bf = tbf;
+		this.rafFactory = rafFactory;
 		this.ticker = ticker;
 		this.maxLifetime = maxLifetime;
 		this.purgePeriod = purgePeriod;
@@ -83,6 +98,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		this.headerSize = callback.headerLength();
 		this.dataSize = callback.dataLength();
 		this.fullKeySize = callback.fullKeyLength();
+		this.slotSize = fullKeySize + headerSize + dataSize;
 		Runnable purgeOldData = new Runnable() {
 
 			@Override
@@ -106,32 +122,40 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		DiskBlock block;
 		long timeAccessed;
-		synchronized(this) {
-			block = blocksByRoutingKey.get(key);
-			if(block == null) {
-				misses++;
-				return null;
-			}
-			timeAccessed = block.lastAccessed;
-		}
 		byte[] fk = new byte[fullKeySize];
 		byte[] header = new byte[headerSize];
 		byte[] data = new byte[dataSize];
-		InputStream in = block.data.getInputStream();
+		slabLock.readLock().lock();
 		try {
-			DataInputStream dis = new DataInputStream(in);
-			dis.readFully(fk);
-			dis.readFully(header);
-			dis.readFully(data);
+			long offset;
+			synchronized(this) {
+				block = blocksByRoutingKey.get(key);
+				if(block == null) {
+					misses++;
+					return null;
+				}
+				timeAccessed = block.lastAccessed;
+				offset = (long) block.slot * slotSize;
+			}
+			slab.pread(offset, fk, 0, fullKeySize);
+			slab.pread(offset + fullKeySize, header, 0, headerSize);
+			slab.pread(offset + fullKeySize + headerSize, data, 0, dataSize);
+			synchronized(this) {
+				if(block.freed) {
+					// Purged while we were reading it, so the slot may hold another block.
+					misses++;
+					return null;
+				}
+			}
 		} finally {
-			in.close();
+			slabLock.readLock().unlock();
 		}
 		try {
 			T ret =
 				callback.construct(data, header, routingKey, fk, canReadClientCache, canReadSlashdotCache, null, null);
 			synchronized(this) {
 				hits++;
-				if(!dontPromote) {
+				if(!dontPromote && !block.freed) {
 					block.lastAccessed = System.currentTimeMillis();
 					blocksByRoutingKey.push(key, block);
 				}
@@ -139,9 +163,11 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 			if(logDEBUG) Logger.debug(this, "Block was last accessed "+(System.currentTimeMillis() - timeAccessed)+"ms ago");
 			return ret;
 		} catch (KeyVerifyException e) {
-			block.data.free();
 			synchronized(this) {
-				blocksByRoutingKey.removeKey(key);
+				if(blocksByRoutingKey.get(key) == block) {
+					blocksByRoutingKey.removeKey(key);
+					freeSlot(block);
+				}
 				misses++;
 			}
 			return null;
@@ -179,6 +205,24 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		return blocksByRoutingKey.containsKey(key);
 	}
 
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = new boolean[routingKeys.length];
+		for(int i = 0; i < routingKeys.length; i++)
+			result[i] = probablyInStore(routingKeys[i]);
+		return result;
+	}
+
+	/** The blocks are in memory, so there is no better order than one at a time. */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i = 0; i < routingKeys.length; i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		return blocks;
+	}
+
 	/**
 	 * @param isOldBlock Ignored, we don't distinguish between stuff that should be cached and
 	 * stuff that shouldn't be cached; really it's all in the latter category anyway here!
@@ -188,33 +232,123 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		Bucket bucket = bf.makeBucket(fullKeySize + dataSize + headerSize);
-		OutputStream os = bucket.getOutputStream();
+		slabLock.readLock().lock();
 		try {
-		os.write(fullKey);
-		os.write(header);
-		os.write(data);
+			DiskBlock stored;
+			synchronized(this) {
+				stored = allocateSlot();
+			}
+			if(stored == null) return;
+			long offset = (long) stored.slot * slotSize;
+			try {
+				slab.pwrite(offset, fullKey, 0, fullKeySize);
+				slab.pwrite(offset + fullKeySize, header, 0, headerSize);
+				slab.pwrite(offset + fullKeySize + headerSize, data, 0, dataSize);
+			} catch (IOException e) {
+				synchronized(this) {
+					freeSlot(stored);
+				}
+				throw e;
+			}
+			// Not visible to fetches until now, so the slot can't be read half written.
+			purgeOldData(new ByteArrayWrapper(routingkey), stored);
 		} finally {
-		os.close();
+			slabLock.readLock().unlock();
+		}
+	}
+	
+	/** Take a free slot, creating the slab if necessary. If there are none, the least recently 
+	 * used block is dropped early. Caller must hold the slab read lock and the store lock.
+	 * @return The new block, or null if there are no slots. */
+	private DiskBlock allocateSlot() throws IOException {
+		if(slab == null) {
+			if(maxKeys <= 0) return null;
+			createSlab(maxKeys);
+		}
+		if(freeCount == 0) {
+			if(blocksByRoutingKey.isEmpty()) return null; // All being written.
+			freeSlot(blocksByRoutingKey.popValue());
+		}
+		DiskBlock block = new DiskBlock();
+		block.slot = freeSlots[--freeCount];
+		return block;
+	}
+	
+	/** Caller must hold the store lock. */
+	private void freeSlot(DiskBlock block) {
+		if(block.freed) return;
+		block.freed = true;
+		freeSlots[freeCount++] = block.slot;
+	}
+	
+	/** Create an empty slab. Caller must hold the store lock, and either the slab write lock or 
+	 * the slab read lock when there is no slab yet. */
+	private void createSlab(int slots) throws IOException {
+		slab = rafFactory.makeRAF((long) slots * slotSize);
+		slabSlots = slots;
+		freeSlots = new int[slots];
+		// Hand out the low slots first.
+		for(int i = 0; i < slots; i++)
+			freeSlots[i] = slots - 1 - i;
+		freeCount = slots;
+	}
+	
+	/** Move the blocks to a new slab with a slot for each of maxKeys blocks. Blocks which don't 
+	 * fit are dropped, least recently used first. */
+	private void resizeSlab() throws IOException {
+		slabLock.writeLock().lock();
+		try {
+			LockableRandomAccessBuffer oldSlab;
+			List<DiskBlock> blocks = new ArrayList<DiskBlock>();
+			synchronized(this) {
+				if(slab == null || slabSlots == maxKeys) return;
+				while(blocksByRoutingKey.size() > maxKeys)
+					freeSlot(blocksByRoutingKey.popValue());
+				for(Enumeration<DiskBlock> e = blocksByRoutingKey.values(); e.hasMoreElements();)
+					blocks.add(e.nextElement());
+				oldSlab = slab;
+				if(maxKeys <= 0) {
+					slab = null;
+					slabSlots = 0;
+					freeSlots = null;
+					freeCount = 0;
+				} else {
+					createSlab(maxKeys);
+					byte[] buf = new byte[slotSize];
+					for(DiskBlock block : blocks) {
+						oldSlab.pread((long) block.slot * slotSize, buf, 0, slotSize);
+						block.slot = freeSlots[--freeCount];
+						slab.pwrite((long) block.slot * slotSize, buf, 0, slotSize);
+					}
+				}
+			}
+			oldSlab.close();
+			oldSlab.free();
+		} finally {
+			slabLock.writeLock().unlock();
 		}
-		
-		DiskBlock stored = new DiskBlock();
-		stored.data = bucket;
-		purgeOldData(new ByteArrayWrapper(routingkey), stored);
 	}
 
 	@Override
 	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
 		if(maxStoreKeys > Integer.MAX_VALUE) throw new IllegalArgumentException();
-		this.maxKeys = (int) maxStoreKeys;
+		synchronized(this) {
+			this.maxKeys = (int) maxStoreKeys;
+		}
 		if(shrinkNow) {
 			purgeOldData();
+			resizeSlab();
 		} else {
 			ticker.queueTimedJob(new Runnable() {
 
 				@Override
 				public void run() {
 					purgeOldData();
+					try {
+						resizeSlab();
+					} catch (IOException e) {
+						Logger.error(this, "Unable to resize slashdot cache: "+e, e);
+					}
 					// Don't re-schedule
 				}
 				
@@ -232,32 +366,24 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	}
 	
 	protected void purgeOldData(ByteArrayWrapper key, DiskBlock addFirst) {
-		List<DiskBlock> blocks = null;
 		DiskBlock oldBlock;
 		synchronized(this) {
 			long now = System.currentTimeMillis();
 			if(addFirst != null) {
 				addFirst.lastAccessed = now;
 				oldBlock = blocksByRoutingKey.push(key, addFirst);
-				if(oldBlock != null) {
-	                if(blocks == null) blocks = new ArrayList<DiskBlock>();
-	                blocks.add(oldBlock);
-				}
+				if(oldBlock != null)
+					freeSlot(oldBlock);
 				writes++;
 			}
 			while(true) {
 				if(blocksByRoutingKey.isEmpty()) break;
 				DiskBlock block = blocksByRoutingKey.peekValue();
 				if(now - block.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
-				if(blocks == null) blocks = new ArrayList<DiskBlock>();
-				blocks.add(block);
+				freeSlot(block);
 				blocksByRoutingKey.popValue();
 			}
 		}
-		if(blocks == null) return;
-		for(DiskBlock block : blocks) {
-			block.data.free();
-		}
 	}
 
 	public synchronized Long getLifetime() {
@@ -317,6 +443,21 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public void close() {
-		// Do nothing
+		slabLock.writeLock().lock();
+		try {
+			synchronized(this) {
+				blocksByRoutingKey.clear();
+				if(slab != null) {
+					slab.close();
+					slab.free();
+					slab = null;
+				}
+				slabSlots = 0;
+				freeSlots = null;
+				freeCount = 0;
+			}
+		} finally {
+			slabLock.writeLock().unlock();
+		}
 	}
 }
@@ -86,6 +86,13 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store.getBloomFalsePositive();
 	}
 
+	/** The data of a block, as passed to FreenetStore.put(). Used to copy blocks between
+	 * stores. */
+	public abstract byte[] getRawData(T block);
+
+	/** The headers of a block, as passed to FreenetStore.put(). */
+	public abstract byte[] getRawHeaders(T block);
+
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
 
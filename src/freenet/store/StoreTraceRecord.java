@@ -0,0 +1,102 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * One datastore access in a trace written by {@link StoreTraceWriter}. Fixed size:
+ * hashed routing key (8), time (8), latency (4), size (4), type (1), tier (1), flags (1).
+ */
+public class StoreTraceRecord {
+
+	public static final int TYPE_CHK = 0;
+	public static final int TYPE_SSK = 1;
+	public static final int TYPE_PUBKEY = 2;
+	static final String[] TYPE_NAMES = { "CHK", "SSK", "PUBKEY" };
+
+	public static final int TIER_STORE = 0;
+	public static final int TIER_CACHE = 1;
+	public static final int TIER_CLIENTCACHE = 2;
+	public static final int TIER_SLASHDOT = 3;
+	static final String[] TIER_NAMES = { "store", "cache", "clientcache", "slashdot" };
+
+	/** Set for a put, unset for a fetch. */
+	static final int FLAG_PUT = 1;
+	/** Set if a fetch found the block. */
+	static final int FLAG_HIT = 2;
+
+	static final int LENGTH = 8 + 8 + 4 + 4 + 1 + 1 + 1;
+
+	/** The routing key, hashed with the trace's salt. */
+	final long keyHash;
+	/** Milliseconds since the trace started. */
+	final long time;
+	/** Microseconds taken by the store. */
+	final int latency;
+	/** Bytes of data and headers fetched or written. */
+	final int size;
+	final int type;
+	final int tier;
+	final int flags;
+
+	StoreTraceRecord(long keyHash, long time, int latency, int size, int type, int tier, int flags) {
+		this.keyHash = keyHash;
+		this.time = time;
+		this.latency = latency;
+		this.size = size;
+		this.type = type;
+		this.tier = tier;
+		this.flags = flags;
+	}
+
+	boolean isPut() {
+		return (flags & FLAG_PUT) != 0;
+	}
+
+	boolean isHit() {
+		return (flags & FLAG_HIT) != 0;
+	}
+
+	void writeTo(DataOutputStream dos) throws IOException {
+		dos.writeLong(keyHash);
+		dos.writeLong(time);
+		dos.writeInt(latency);
+		dos.writeInt(size);
+		dos.writeByte(type);
+		dos.writeByte(tier);
+		dos.writeByte(flags);
+	}
+
+	/** @return The next record, or null at the end of the trace. A partly written record at the
+	 * end, e.g. after a crash, is ignored. */
+	static StoreTraceRecord read(DataInputStream dis) throws IOException {
+		try {
+			long keyHash = dis.readLong();
+			long time = dis.readLong();
+			int latency = dis.readInt();
+			int size = dis.readInt();
+			int type = dis.readUnsignedByte();
+			int tier = dis.readUnsignedByte();
+			int flags = dis.readUnsignedByte();
+			if(type >= TYPE_NAMES.length || tier >= TIER_NAMES.length)
+				throw new IOException("Corrupt trace record");
+			return new StoreTraceRecord(keyHash, time, latency, size, type, tier, flags);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/** The type of block a store callback is for. */
+	static int typeOf(StoreCallback<?> callback) {
+		if(callback instanceof CHKStore) return TYPE_CHK;
+		if(callback instanceof SSKStore) return TYPE_SSK;
+		if(callback instanceof PubkeyStore) return TYPE_PUBKEY;
+		throw new IllegalArgumentException("Unknown store type "+callback);
+	}
+
+}
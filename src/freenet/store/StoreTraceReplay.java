@@ -0,0 +1,302 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.SHA256;
+import freenet.keys.CHKBlock;
+import freenet.keys.SSKBlock;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.caching.CachingFreenetStore;
+import freenet.store.caching.CachingFreenetStoreTracker;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.Fields;
+import freenet.support.PooledExecutor;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+
+/**
+ * Replays a trace written by {@link StoreTraceWriter} against a fresh store of each type and
+ * tier in the trace, as fast as possible, and reports throughput, latency percentiles and hit
+ * ratios. The blocks are dummies of the right size, keyed by the hashed routing keys, so no
+ * crypto is done and the trace doesn't need to contain any data.
+ *
+ * Usage: StoreTraceReplay trace ram|saltedhash|caching maxKeys [directory]
+ */
+public class StoreTraceReplay {
+
+	private final String storeType;
+	private final int maxKeys;
+	private final File dir;
+	private final PooledExecutor executor = new PooledExecutor();
+	private final TrivialTicker ticker = new TrivialTicker(executor);
+	private CachingFreenetStoreTracker cachingTracker;
+	/** Indexed by type and tier. */
+	private final Replayed[][] stores = new Replayed[StoreTraceRecord.TYPE_NAMES.length][StoreTraceRecord.TIER_NAMES.length];
+
+	StoreTraceReplay(String storeType, int maxKeys, File dir) {
+		this.storeType = storeType;
+		this.maxKeys = maxKeys;
+		this.dir = dir;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3 || args.length > 4) {
+			System.err.println("Usage: StoreTraceReplay trace ram|saltedhash|caching maxKeys [directory]");
+			System.exit(1);
+		}
+		String storeType = args[1];
+		if(!(storeType.equals("ram") || storeType.equals("saltedhash") || storeType.equals("caching"))) {
+			System.err.println("Unknown store type "+storeType);
+			System.exit(1);
+		}
+		File dir = new File(args.length > 3 ? args[3] : "store-trace-replay");
+		StoreTraceReplay replay = new StoreTraceReplay(storeType, Integer.parseInt(args[2]), dir);
+		try {
+			replay.replay(new File(args[0]));
+		} finally {
+			replay.close();
+		}
+		System.exit(0);
+	}
+
+	void replay(File traceFile) throws IOException {
+		executor.start();
+		long start;
+		long records = 0;
+		long traceTime = 0;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 65536))) {
+			StoreTraceWriter.readHeader(dis);
+			start = System.nanoTime();
+			StoreTraceRecord record;
+			while((record = StoreTraceRecord.read(dis)) != null) {
+				getStore(record.type, record.tier).replay(record);
+				records++;
+				traceTime = record.time;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println("Replayed "+records+" accesses from "+(traceTime / 1000)+"s of trace in "+
+				(elapsed / 1000000)+"ms, "+(records * 1000L * 1000 * 1000 / Math.max(1, elapsed))+" per second, using "+
+				storeType+" stores of "+maxKeys+" keys");
+		for(Replayed[] byTier : stores)
+			for(Replayed store : byTier)
+				if(store != null) store.report();
+	}
+
+	private Replayed getStore(int type, int tier) throws IOException {
+		Replayed store = stores[type][tier];
+		if(store == null) {
+			store = new Replayed(StoreTraceRecord.TYPE_NAMES[type]+"-"+StoreTraceRecord.TIER_NAMES[tier], makeCallback(type));
+			stores[type][tier] = store;
+		}
+		return store;
+	}
+
+	private static ReplayCallback makeCallback(int type) {
+		switch(type) {
+		case StoreTraceRecord.TYPE_CHK:
+			return new ReplayCallback(CHKBlock.DATA_LENGTH, CHKBlock.TOTAL_HEADERS_LENGTH);
+		case StoreTraceRecord.TYPE_SSK:
+			return new ReplayCallback(SSKBlock.DATA_LENGTH, SSKBlock.TOTAL_HEADERS_LENGTH);
+		default:
+			return new ReplayCallback(DSAPublicKey.PADDED_SIZE, 0);
+		}
+	}
+
+	private FreenetStore<ReplayBlock> makeStore(String name, ReplayCallback callback) throws IOException {
+		if(storeType.equals("ram"))
+			return new RAMFreenetStore<ReplayBlock>(callback, maxKeys);
+		File storeDir = new File(dir, name);
+		FileUtil.removeAll(storeDir);
+		if(!storeDir.mkdirs())
+			throw new IOException("Unable to create "+storeDir);
+		SaltedHashFreenetStore<ReplayBlock> fs = SaltedHashFreenetStore.construct(storeDir, name, callback,
+				new Random(), maxKeys, true, SemiOrderedShutdownHook.get(), false, false, null, null);
+		fs.start(null, true);
+		if(storeType.equals("saltedhash"))
+			return fs;
+		if(cachingTracker == null)
+			cachingTracker = new CachingFreenetStoreTracker(16 * 1024 * 1024, 5000, ticker);
+		return new CachingFreenetStore<ReplayBlock>(callback, fs, cachingTracker);
+	}
+
+	void close() {
+		for(Replayed[] byTier : stores)
+			for(Replayed store : byTier)
+				if(store != null) store.store.close();
+		FileUtil.removeAll(dir);
+	}
+
+	/** A store and what happened to it. */
+	private class Replayed {
+		final String name;
+		final FreenetStore<ReplayBlock> store;
+		final byte[] data;
+		final byte[] header;
+		final LatencyList fetchLatencies = new LatencyList();
+		final LatencyList putLatencies = new LatencyList();
+		long tracedHits;
+		long hits;
+		long collisions;
+
+		Replayed(String name, ReplayCallback callback) throws IOException {
+			this.name = name;
+			store = makeStore(name, callback);
+			data = new byte[callback.dataLength()];
+			header = new byte[callback.headerLength()];
+		}
+
+		void replay(StoreTraceRecord record) throws IOException {
+			byte[] routingKey = SHA256.digest(Fields.longToBytes(record.keyHash));
+			long start = System.nanoTime();
+			if(record.isPut()) {
+				try {
+					store.put(new ReplayBlock(routingKey), data, header, false, false);
+				} catch (KeyCollisionException e) {
+					collisions++;
+				}
+				putLatencies.add(System.nanoTime() - start);
+			} else {
+				ReplayBlock block = store.fetch(routingKey, null, false, false, false, false, null);
+				fetchLatencies.add(System.nanoTime() - start);
+				if(block != null) hits++;
+				if(record.isHit()) tracedHits++;
+			}
+		}
+
+		void report() {
+			int fetches = fetchLatencies.size();
+			System.out.println(name+": "+fetches+" fetches, hit ratio "+ratio(hits, fetches)+
+					" (traced "+ratio(tracedHits, fetches)+"), "+putLatencies.size()+" puts, "+collisions+" collisions");
+			fetchLatencies.report("  fetch");
+			putLatencies.report("  put");
+		}
+
+		private String ratio(long count, long total) {
+			return total == 0 ? "-" : String.format("%.3f", (double) count / total);
+		}
+	}
+
+	private static class LatencyList {
+		private long[] latencies = new long[1024];
+		private int size;
+
+		void add(long latency) {
+			if(size == latencies.length)
+				latencies = Arrays.copyOf(latencies, size * 2);
+			latencies[size++] = latency;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void report(String prefix) {
+			if(size == 0) return;
+			long[] sorted = Arrays.copyOf(latencies, size);
+			Arrays.sort(sorted);
+			System.out.println(prefix+" latency (us): p50 "+percentile(sorted, 0.5)+" p90 "+percentile(sorted, 0.9)+
+					" p99 "+percentile(sorted, 0.99)+" p99.9 "+percentile(sorted, 0.999)+" max "+sorted[size - 1] / 1000);
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			return sorted[(int) Math.min(sorted.length - 1, (long) (p * sorted.length))] / 1000;
+		}
+	}
+
+	/** A block with no content, identified only by its routing key. */
+	static class ReplayBlock implements StorableBlock {
+		private final byte[] routingKey;
+
+		ReplayBlock(byte[] routingKey) {
+			this.routingKey = routingKey;
+		}
+
+		@Override
+		public byte[] getRoutingKey() {
+			return routingKey;
+		}
+
+		@Override
+		public byte[] getFullKey() {
+			return routingKey;
+		}
+	}
+
+	static class ReplayCallback extends StoreCallback<ReplayBlock> {
+		private final int dataLength;
+		private final int headerLength;
+
+		ReplayCallback(int dataLength, int headerLength) {
+			this.dataLength = dataLength;
+			this.headerLength = headerLength;
+		}
+
+		@Override
+		public int dataLength() {
+			return dataLength;
+		}
+
+		@Override
+		public int headerLength() {
+			return headerLength;
+		}
+
+		@Override
+		public int routingKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean storeFullKeys() {
+			return false;
+		}
+
+		@Override
+		public boolean constructNeedsKey() {
+			return true;
+		}
+
+		@Override
+		public int fullKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean collisionPossible() {
+			return false;
+		}
+
+		@Override
+		public ReplayBlock construct(byte[] data, byte[] headers, byte[] routingKey, byte[] fullKey,
+				boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownPubKey) {
+			return new ReplayBlock(routingKey);
+		}
+
+		@Override
+		public byte[] getRawData(ReplayBlock block) {
+			return new byte[dataLength];
+		}
+
+		@Override
+		public byte[] getRawHeaders(ReplayBlock block) {
+			return new byte[headerLength];
+		}
+
+		@Override
+		public byte[] routingKeyFromFullKey(byte[] keyBuf) {
+			return keyBuf;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import freenet.crypt.SHA256;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * Records datastore accesses to a file, so they can be replayed against different stores with
+ * {@link StoreTraceReplay}. See {@link TracingFreenetStore}.
+ *
+ * The file is a header (magic, version, start time) followed by {@link StoreTraceRecord}'s.
+ * Routing keys are hashed with a random salt which is not written, so the trace shows which
+ * accesses were for the same key, but not which keys they were. Recording stops when the file
+ * reaches {@link #MAX_LENGTH}.
+ */
+public class StoreTraceWriter {
+
+	static final long MAGIC = 0x5e9f4c2a81d7b3e6L;
+	static final int VERSION = 2;
+	static final long MAX_LENGTH = 1L << 30;
+
+	private final File file;
+	private final DataOutputStream dos;
+	private final byte[] salt;
+	private final long startTime;
+	private long length;
+	private boolean closed;
+
+	public StoreTraceWriter(File file, Random random) throws IOException {
+		this.file = file;
+		salt = new byte[32];
+		random.nextBytes(salt);
+		startTime = System.currentTimeMillis();
+		dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		dos.writeLong(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeLong(startTime);
+		length = 8 + 4 + 8;
+	}
+
+	/**
+	 * Record an access.
+	 * @param type A StoreTraceRecord.TYPE_* constant.
+	 * @param tier A StoreTraceRecord.TIER_* constant.
+	 * @param latency Nanoseconds taken by the store.
+	 * @param size Bytes fetched or written.
+	 */
+	public void record(int type, int tier, boolean put, boolean hit, long latency, int size, byte[] routingKey) {
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(salt);
+		md.update(routingKey);
+		long keyHash = Fields.bytesToLong(md.digest());
+		SHA256.returnMessageDigest(md);
+		int flags = (put ? StoreTraceRecord.FLAG_PUT : 0) | (hit ? StoreTraceRecord.FLAG_HIT : 0);
+		StoreTraceRecord record = new StoreTraceRecord(keyHash, System.currentTimeMillis() - startTime,
+				(int) Math.min(Integer.MAX_VALUE, latency / 1000), size, type, tier, flags);
+		synchronized(this) {
+			if(closed) return;
+			try {
+				record.writeTo(dos);
+				length += StoreTraceRecord.LENGTH;
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write store trace "+file+": "+e, e);
+				close();
+				return;
+			}
+			if(length >= MAX_LENGTH) {
+				Logger.normal(this, "Store trace "+file+" is full");
+				close();
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		try {
+			dos.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to close store trace "+file+": "+e, e);
+		}
+	}
+
+	/** Read the header of a trace.
+	 * @return The time the trace started. */
+	static long readHeader(DataInputStream dis) throws IOException {
+		if(dis.readLong() != MAGIC)
+			throw new IOException("Not a store trace");
+		int version = dis.readInt();
+		if(version != VERSION)
+			throw new IOException("Unknown store trace version "+version);
+		return dis.readLong();
+	}
+
+}
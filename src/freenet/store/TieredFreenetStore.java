@@ -0,0 +1,316 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.stats.StorePhase;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.Fields;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.math.LatencyHistogram;
+
+/**
+ * A small fast store (e.g. a salted hash store on an SSD) in front of a large slow one (e.g. on
+ * a hard disk).
+ *
+ * The slow store holds every block, and the fast store holds copies of the blocks which are
+ * fetched most often. So a block is only ever written once to the slow store, and the fast store
+ * can drop a block at any time without losing it. Fetches try the fast store first. Hits in the
+ * slow store are counted per routing key, and a block is copied to the fast store ("promoted")
+ * once it has been hit {@link #PROMOTE_HITS} times. The counts are halved regularly so only
+ * recent hits matter. Blocks drop out of the fast store ("demoted") when promoted blocks are
+ * written over them.
+ *
+ * A put updates the fast copy only if the block was promoted, as recorded in its counter, rather
+ * than asking the fast store, whose probablyInStore() may say yes to anything. If the counter has
+ * since gone to another key, a stale copy stays until it is demoted.
+ *
+ * Statistics for each tier are available through {@link StoreAccessStats#tiers()}.
+ */
+public class TieredFreenetStore<T extends StorableBlock> extends ProxyFreenetStore<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(TieredFreenetStore.class);
+	}
+
+	/** Hits in the slow store before a block is promoted. */
+	static final int PROMOTE_HITS = 2;
+	private static final int MIN_COUNTERS = 1024;
+	private static final int MAX_COUNTERS = 1 << 20;
+
+	private final StoreCallback<T> callback;
+	private final FreenetStore<T> fastStore;
+	/** Hit counters, indexed by a hash of the routing key. Each holds the key's hash in the top
+	 * half, so a different key in the same slot starts again from 0, then the PROMOTED flag,
+	 * and the count below it. */
+	private final AtomicLongArray counters;
+	private static final long TAG_MASK = 0xFFFFFFFF00000000L;
+	/** Set once the key has been promoted. */
+	private static final long PROMOTED = 0x80000000L;
+	private static final long COUNT_MASK = 0x7FFFFFFFL;
+	/** Slow store hits since the counters were last halved. */
+	private final AtomicLong hitsSinceDecay = new AtomicLong();
+	private final AtomicLong promotions = new AtomicLong();
+
+	/**
+	 * @param callback The callback for both stores. It will use this store.
+	 * @param fastStore The small, fast store.
+	 * @param slowStore The large, slow store, which holds every block.
+	 */
+	public TieredFreenetStore(StoreCallback<T> callback, FreenetStore<T> fastStore, FreenetStore<T> slowStore) {
+		super(slowStore);
+		this.callback = callback;
+		this.fastStore = fastStore;
+		// Track a few times as many keys as fit in the fast store.
+		long wanted = Math.max(MIN_COUNTERS, Math.min(MAX_COUNTERS, fastStore.getMaxKeys() * 4));
+		counters = new AtomicLongArray(Integer.highestOneBit((int) wanted));
+		callback.setStore(this);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		T block = fastStore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		if(block != null) return block;
+		BlockMetadata slowMeta = new BlockMetadata();
+		block = backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, slowMeta);
+		if(block == null) return null;
+		if(meta != null && slowMeta.isOldBlock())
+			meta.setOldBlock();
+		if(!dontPromote && countHit(routingKey) >= PROMOTE_HITS)
+			promote(block, slowMeta.isOldBlock());
+		return block;
+	}
+
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = backDatastore.probablyInStore(routingKeys);
+		boolean[] fast = fastStore.probablyInStore(routingKeys);
+		for(int i = 0; i < result.length; i++)
+			result[i] |= fast[i];
+		return result;
+	}
+
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = fastStore.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		// Bulk checks don't count as hits for promotion: we don't know whether the blocks are old.
+		fetchMissing(blocks, routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		return blocks;
+	}
+
+	/** Count a hit in the slow store.
+	 * @return The number of recent hits for this key, including this one. */
+	private int countHit(byte[] routingKey) {
+		int hash = Fields.hashCode(routingKey);
+		int slot = slot(hash);
+		long tag = tag(hash);
+		int count;
+		while(true) {
+			long old = counters.get(slot);
+			long value;
+			if((old & TAG_MASK) == tag) {
+				count = (int) (old & COUNT_MASK) + 1;
+				value = (old & ~COUNT_MASK) | count;
+			} else {
+				count = 1;
+				value = tag | count;
+			}
+			if(counters.compareAndSet(slot, old, value)) break;
+		}
+		if(hitsSinceDecay.incrementAndGet() >= counters.length()) {
+			hitsSinceDecay.set(0);
+			decay();
+		}
+		return count;
+	}
+
+	private int slot(int hash) {
+		return (hash ^ (hash >>> 16)) & (counters.length() - 1);
+	}
+
+	private static long tag(int hash) {
+		return ((long) hash) << 32;
+	}
+
+	/** Halve all the counts. Races with countHit() only lose a hit or a halving. */
+	private void decay() {
+		for(int i = 0; i < counters.length(); i++) {
+			long old = counters.get(i);
+			long count = old & COUNT_MASK;
+			if(count == 0) continue;
+			counters.compareAndSet(i, old, (old & ~COUNT_MASK) | (count >> 1));
+		}
+	}
+
+	private void setPromoted(byte[] routingKey) {
+		int hash = Fields.hashCode(routingKey);
+		int slot = slot(hash);
+		while(true) {
+			long old = counters.get(slot);
+			if((old & TAG_MASK) != tag(hash)) return;
+			if(counters.compareAndSet(slot, old, old | PROMOTED)) return;
+		}
+	}
+
+	private boolean wasPromoted(byte[] routingKey) {
+		int hash = Fields.hashCode(routingKey);
+		long value = counters.get(slot(hash));
+		return (value & TAG_MASK) == tag(hash) && (value & PROMOTED) != 0;
+	}
+
+	private void promote(T block, boolean oldBlock) {
+		try {
+			fastStore.put(block, callback.getRawData(block), callback.getRawHeaders(block), false, oldBlock);
+			promotions.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Promoted block to the fast store");
+		} catch (KeyCollisionException e) {
+			// Already there.
+		} catch (IOException e) {
+			Logger.error(this, "Unable to promote block: "+e, e);
+			return;
+		}
+		setPromoted(block.getRoutingKey());
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite,
+			boolean oldBlock) throws IOException, KeyCollisionException {
+		backDatastore.put(block, data, header, overwrite, oldBlock);
+		// Keep the copy up to date, e.g. if an SSK was overwritten or the block is no longer old.
+		if(wasPromoted(block.getRoutingKey())) {
+			try {
+				fastStore.put(block, data, header, overwrite, oldBlock);
+			} catch (KeyCollisionException e) {
+				// The slow store accepted it, so the copy must be stale.
+				Logger.error(this, "Fast store has a different block than the slow store for the same key");
+			}
+		}
+	}
+
+	/** Number of blocks copied to the fast store since startup. */
+	public long promotions() {
+		return promotions.get();
+	}
+
+	public FreenetStore<T> getFastStore() {
+		return fastStore;
+	}
+
+	@Override
+	public long hits() {
+		return fastStore.hits() + backDatastore.hits();
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return sumKnown(fastStore.getBloomFalsePositive(), backDatastore.getBloomFalsePositive());
+	}
+
+	/** -1 means not supported. */
+	private static long sumKnown(long fast, long slow) {
+		if(fast < 0) return slow;
+		if(slow < 0) return fast;
+		return fast + slow;
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new TierAccessStats(fastStore.getSessionAccessStats(), backDatastore.getSessionAccessStats());
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		StoreAccessStats fast = fastStore.getTotalAccessStats();
+		StoreAccessStats slow = backDatastore.getTotalAccessStats();
+		if(fast == null || slow == null) return null;
+		return new TierAccessStats(fast, slow);
+	}
+
+	/** Every fetch goes to the fast store, and only its misses go to the slow store. Every
+	 * write goes to the slow store. */
+	private static class TierAccessStats extends StoreAccessStats {
+		private final StoreAccessStats fast;
+		private final StoreAccessStats slow;
+
+		TierAccessStats(StoreAccessStats fast, StoreAccessStats slow) {
+			this.fast = fast;
+			this.slow = slow;
+		}
+
+		@Override
+		public long hits() {
+			return fast.hits() + slow.hits();
+		}
+
+		@Override
+		public long misses() {
+			return slow.misses();
+		}
+
+		@Override
+		public long falsePos() {
+			return fast.falsePos() + slow.falsePos();
+		}
+
+		@Override
+		public long writes() {
+			return slow.writes();
+		}
+
+		@Override
+		public StoreAccessStats[] tiers() {
+			return new StoreAccessStats[] { fast, slow };
+		}
+
+		/** The slow tier's, since that's where the disk I/O is, unless only the fast tier
+		 * times its accesses. */
+		@Override
+		public LatencyHistogram latency(StorePhase phase) {
+			LatencyHistogram latency = slow.latency(phase);
+			return latency != null ? latency : fast.latency(phase);
+		}
+
+		@Override
+		public long bytesRead() {
+			return sumKnown(fast.bytesRead(), slow.bytesRead());
+		}
+
+		@Override
+		public long bytesWritten() {
+			return sumKnown(fast.bytesWritten(), slow.bytesWritten());
+		}
+	}
+
+	@Override
+	public void setUserAlertManager(UserAlertManager userAlertManager) {
+		fastStore.setUserAlertManager(userAlertManager);
+		backDatastore.setUserAlertManager(userAlertManager);
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		// Both must be started, even if the first wants to wait.
+		boolean fastDelayed = fastStore.start(ticker, longStart);
+		boolean slowDelayed = backDatastore.start(ticker, longStart);
+		return fastDelayed | slowDelayed;
+	}
+
+	@Override
+	public void close() {
+		fastStore.close();
+		backDatastore.close();
+	}
+
+}
@@ -0,0 +1,69 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Records every fetch and put on a store with a {@link StoreTraceWriter}. Latencies include
+ * everything below this store, e.g. a {@link freenet.store.caching.CachingFreenetStore}.
+ */
+public class TracingFreenetStore<T extends StorableBlock> extends ProxyFreenetStore<T> {
+
+	private final StoreTraceWriter trace;
+	private final int type;
+	private final int tier;
+	private final int blockSize;
+
+	/**
+	 * @param callback The callback for the store. It will use this store.
+	 * @param tier A StoreTraceRecord.TIER_* constant.
+	 */
+	public TracingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, StoreTraceWriter trace, int tier) {
+		super(backDatastore);
+		this.trace = trace;
+		this.type = StoreTraceRecord.typeOf(callback);
+		this.tier = tier;
+		this.blockSize = callback.dataLength() + callback.headerLength();
+		callback.setStore(this);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		long start = System.nanoTime();
+		T block = backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		trace.record(type, tier, false, block != null, System.nanoTime() - start, block == null ? 0 : blockSize, routingKey);
+		return block;
+	}
+
+	/** Each key is recorded as a fetch, taking an equal share of the time for the batch. */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		long start = System.nanoTime();
+		List<T> blocks = backDatastore.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		long latency = routingKeys.length == 0 ? 0 : (System.nanoTime() - start) / routingKeys.length;
+		for(int i = 0; i < routingKeys.length; i++) {
+			boolean hit = blocks.get(i) != null;
+			trace.record(type, tier, false, hit, latency, hit ? blockSize : 0, routingKeys[i]);
+		}
+		return blocks;
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite,
+			boolean oldBlock) throws IOException, KeyCollisionException {
+		long start = System.nanoTime();
+		try {
+			backDatastore.put(block, data, header, overwrite, oldBlock);
+		} finally {
+			trace.record(type, tier, true, false, System.nanoTime() - start,
+					data.length + (header == null ? 0 : header.length), block.getRoutingKey());
+		}
+	}
+
+}
@@ -1,66 +1,236 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.stats.StorePhase;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.io.NativeThread;
+import freenet.support.math.LatencyHistogram;
 
 /**
  * CachingFreenetStore
- * 
+ *
+ * Write-back cache in front of another store. Blocks are kept in a fixed number of segments,
+ * chosen by the routing key. Each segment is an open addressing hash table keyed directly on
+ * the routing key bytes, so a lookup allocates nothing and takes no lock: the table is an
+ * {@link AtomicReferenceArray}, and is only ever modified (or replaced when it grows) while
+ * holding the segment's lock.
+ *
+ * Blocks are written to the underlying store by {@link CachingFreenetStoreTracker}, one segment
+ * after another, picking the victim within a segment with the CLOCK algorithm: a block which
+ * has been fetched since the hand last passed it gets a second chance.
+ *
  * @author Simon Vocella <voxsim@gmail.com>
- * 
+ *
  */
 public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetStore<T> {
     private static volatile boolean logMINOR;
- 
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+
+	/** Number of segments. Must be a power of 2. */
+	static final int SEGMENTS = 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+	/* If this flag is true, we don't accept puts anymore. Only set while holding all the
+	 * segment locks. */
+	private volatile boolean shuttingDown;
 	/***
 	 * True if close() has been called
 	 */
 	private AtomicBoolean closeCalled = new AtomicBoolean(false);
 
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	private final Segment<T>[] segments;
+	/** Next segment to write to disk from. */
+	private final AtomicInteger segmentHand = new AtomicInteger();
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
-	
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
     static { Logger.registerClass(CachingFreenetStore.class); }
-    
+
 	private final static class Block<T> {
+		final byte[] routingKey;
 		T block;
 		byte[] data;
 		byte[] header;
 		boolean overwrite;
 		boolean isOldBlock;
+		/** Set when fetched, cleared when the CLOCK hand passes. */
+		volatile boolean referenced;
+
+		Block(byte[] routingKey) {
+			this.routingKey = routingKey;
+		}
+	}
+
+	/** Marks a removed entry, so that lookups continue past it. */
+	private static final Block<Object> REMOVED = new Block<Object>(null);
+
+	/** One part of the cache. Reads are lock-free, everything else synchronizes on the segment. */
+	private final static class Segment<T> {
+		/** Capacity is a power of 2, and at most 3/4 of it is used (including REMOVED). */
+		private volatile AtomicReferenceArray<Block<T>> table;
+		private int count;
+		private int used;
+		private int hand;
+
+		Segment() {
+			table = new AtomicReferenceArray<Block<T>>(INITIAL_SEGMENT_CAPACITY);
+		}
+
+		Block<T> get(byte[] routingKey, int hash) {
+			AtomicReferenceArray<Block<T>> t = table;
+			int mask = t.length() - 1;
+			for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				Block<T> b = t.get(i);
+				if (b == null)
+					return null;
+				if (b != REMOVED && Arrays.equals(b.routingKey, routingKey))
+					return b;
+			}
+			return null;
+		}
+
+		/** Add or replace a block. Caller must hold the lock. */
+		void put(Block<T> block, int hash) {
+			if (used + 1 > table.length() / 4 * 3)
+				rehash();
+			AtomicReferenceArray<Block<T>> t = table;
+			int mask = t.length() - 1;
+			int free = -1;
+			for (int i = hash & mask;; i = (i + 1) & mask) {
+				Block<T> b = t.get(i);
+				if (b == null) {
+					if (free == -1) {
+						free = i;
+						used++;
+					}
+					break;
+				}
+				if (b == REMOVED) {
+					if (free == -1)
+						free = i;
+				} else if (Arrays.equals(b.routingKey, block.routingKey)) {
+					t.set(i, block);
+					return;
+				}
+			}
+			t.set(free, block);
+			count++;
+		}
+
+		/** Remove the block for this key if it is still the same block. Caller must hold the
+		 * lock. */
+		boolean remove(Block<T> block, int hash) {
+			AtomicReferenceArray<Block<T>> t = table;
+			int mask = t.length() - 1;
+			for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				Block<T> b = t.get(i);
+				if (b == null)
+					return false;
+				if (b != REMOVED && Arrays.equals(b.routingKey, block.routingKey)) {
+					// It might have changed if there was a put() with overwrite=true.
+					if (!b.block.equals(block.block))
+						return false;
+					t.set(i, removed());
+					count--;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** Choose the next block to write with CLOCK. Caller must hold the lock.
+		 * @return null if the segment is empty. */
+		Block<T> victim() {
+			if (count == 0)
+				return null;
+			AtomicReferenceArray<Block<T>> t = table;
+			int mask = t.length() - 1;
+			// Two passes are enough: the first clears every referenced flag.
+			for (int n = 0; n <= 2 * mask + 1; n++) {
+				int i = hand;
+				hand = (hand + 1) & mask;
+				Block<T> b = t.get(i);
+				if (b == null || b == REMOVED)
+					continue;
+				if (b.referenced) {
+					b.referenced = false;
+					continue;
+				}
+				return b;
+			}
+			return null;
+		}
+
+		/** Copy the live entries into a new table, big enough to be half full. Readers still
+		 * using the old table see a consistent, if slightly out of date, view. */
+		private void rehash() {
+			int capacity = INITIAL_SEGMENT_CAPACITY;
+			while (capacity < (count + 1) * 2)
+				capacity <<= 1;
+			AtomicReferenceArray<Block<T>> old = table;
+			AtomicReferenceArray<Block<T>> t = new AtomicReferenceArray<Block<T>>(capacity);
+			int mask = capacity - 1;
+			for (int j = 0; j < old.length(); j++) {
+				Block<T> b = old.get(j);
+				if (b == null || b == REMOVED)
+					continue;
+				int i = hash(b.routingKey) & mask;
+				while (t.get(i) != null)
+					i = (i + 1) & mask;
+				t.set(i, b);
+			}
+			used = count;
+			hand = 0;
+			table = t;
+		}
+
+		synchronized boolean isEmpty() {
+			return count == 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Block<T> removed() {
+			return (Block<T>) (Block<?>) REMOVED;
+		}
 	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker) {
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		@SuppressWarnings("unchecked")
+		Segment<T>[] segments = (Segment<T>[]) new Segment<?>[SEGMENTS];
+		this.segments = segments;
+		for(int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment<T>();
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
 		this.sizeBlock = callback.getTotalBlockSize();
-		
+
 		callback.setStore(this);
 		shutdownHook.addEarlyJob(new NativeThread("Close CachingFreenetStore", NativeThread.HIGH_PRIORITY, true) {
 			@Override
@@ -70,129 +240,156 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		});
 	}
 
+	/** Routing keys are already hashes, but not necessarily good ones in every byte. */
+	static int hash(byte[] routingKey) {
+		int h = Arrays.hashCode(routingKey);
+		return h ^ (h >>> 16);
+	}
+
+	private Segment<T> segmentFor(int hash) {
+		return segments[(hash >>> 24) & (SEGMENTS - 1)];
+	}
+
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache,
-			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) 
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta)
 			throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
-		
+		T ret = fetchCached(routingKey, canReadClientCache, canReadSlashdotCache, meta);
+		if(ret != null) return ret;
+		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+	}
+
+	/** Get a block from the cache, counting the hit or miss.
+	 * @return The block, or null if it isn't in the cache. */
+	private T fetchCached(byte[] routingKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) {
+		int hash = hash(routingKey);
+		Block<T> block = segmentFor(hash).get(routingKey, hash);
+
 		if(block != null) {
+			if(!block.referenced)
+				block.referenced = true;
 			try {
-				return this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				T ret = this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				hits.incrementAndGet();
+				return ret;
 			} catch (KeyVerifyException e) {
 				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
 			}
 		}
-		
-		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
+
+		misses.incrementAndGet();
+		return null;
 	}
 
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
+		int hash = hash(routingKey);
+		return segmentFor(hash).get(routingKey, hash) != null || backDatastore.probablyInStore(routingKey);
+	}
+
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = backDatastore.probablyInStore(routingKeys);
+		for(int i = 0; i < routingKeys.length; i++) {
+			if(result[i]) continue;
+			int hash = hash(routingKeys[i]);
+			result[i] = segmentFor(hash).get(routingKeys[i], hash) != null;
 		}
-		
-		return block != null || backDatastore.probablyInStore(routingKey);
+		return result;
 	}
-	
+
+	/** Blocks in the cache are returned directly, the rest are fetched from the underlying store
+	 * together. */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(byte[] routingKey : routingKeys)
+			blocks.add(fetchCached(routingKey, canReadClientCache, canReadSlashdotCache, null));
+		fetchMissing(blocks, routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		return blocks;
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
-		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> storeBlock = new Block<T>();
+		int hash = hash(routingKey);
+		Segment<T> segment = segmentFor(hash);
+
+		Block<T> storeBlock = new Block<T>(routingKey);
 		storeBlock.block = block;
 		storeBlock.data = data;
 		storeBlock.header = header;
 		storeBlock.overwrite = overwrite;
 		storeBlock.isOldBlock = isOldBlock;
-		
+
 		boolean cacheIt = true;
-		
+
 		//Case cache it
-		configLock.writeLock().lock();
-		
-		try {
+		synchronized(segment) {
 			if(!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
-			
+				Block<T> previousBlock = segment.get(routingKey, hash);
+
 				if(!collisionPossible || overwrite) {
 					if(previousBlock == null) {
 						cacheIt = tracker.add(sizeBlock);
 					}
-					
+
 					if(cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						segment.put(storeBlock, hash);
 					}
 				} else {
-					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
+					//Case cache it but is it in the cache? If so, throw a KCE
 					if(previousBlock != null) {
 						if(block.equals(previousBlock.block))
 							return;
 						throw new KeyCollisionException();
 					}
-					
-					//Is probablyInStore()? If so, remove it from blocksByRoutingKey, and set a flag so we don't call put()
+
+					//Is probablyInStore()? If so, set a flag so we don't cache it
 					if(backDatastore.probablyInStore(routingKey)) {
 						cacheIt = false;
 					} else {
 						cacheIt = tracker.add(sizeBlock);
-						
+
 						if(cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							segment.put(storeBlock, hash);
 						}
 					}
 				}
 			} else {
 				cacheIt = false;
 			}
-		} finally {
-			configLock.writeLock().unlock();
 		}
-		
+
 		//Case don't cache it
 		if(!cacheIt) {
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
 			return;
 		}
 	}
-	
-	/** Try to write one block to disk.
-	 * @return The number of bytes written to disk if we successfully wrote a block, 0 if we wrote 
-	 * a block but can't remove it because it changed while we were writing it, and -1 if there 
+
+	/** Try to write one block to disk. Each call takes the block from the next non-empty
+	 * segment, so concurrent puts are only held up for one segment at a time.
+	 * @return The number of bytes written to disk if we successfully wrote a block, 0 if we wrote
+	 * a block but can't remove it because it changed while we were writing it, and -1 if there
 	 * were no blocks to write because the cache is empty.
 	 */
 	long pushLeastRecentlyBlock() {
 		Block<T> block = null;
-		ByteArrayWrapper key = null;
-		
-		configLock.writeLock().lock();
-		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
-		} finally {
-			configLock.writeLock().unlock();
+		Segment<T> segment = null;
+
+		int start = segmentHand.getAndIncrement();
+		for(int i = 0; i < SEGMENTS && block == null; i++) {
+			segment = segments[(start + i) & (SEGMENTS - 1)];
+			synchronized(segment) {
+				block = segment.victim();
+			}
 		}
-			
+		if(block == null) return -1;
+
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
 		} catch (IOException e) {
@@ -200,19 +397,14 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		} catch (KeyCollisionException e) {
 			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
 		}
-		
-		configLock.writeLock().lock();
-		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
-			
-			/** it might have changed if there was a put() with overwrite=true. 
+
+		synchronized(segment) {
+			/** it might have changed if there was a put() with overwrite=true.
 			 *  If it has changed, return 0 , i.e. don't remove it*/
-			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
+			if(segment.remove(block, hash(block.routingKey))) {
+				evictions.incrementAndGet();
+				return sizeBlock;
 			}
-		} finally {
-			configLock.writeLock().unlock();
 		}
 		return 0;
 	}
@@ -233,24 +425,110 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 
 	/** Close this store but not the underlying store. */
 	private void innerClose() {
-		configLock.writeLock().lock();
-		try {
+		setShuttingDown(0);
+		tracker.unregisterCachingFS(this);
+	}
+
+	/** Set shuttingDown while holding every segment lock, so that no put() can add a block
+	 * after unregisterCachingFS() has written everything out. */
+	private void setShuttingDown(int i) {
+		if(i == SEGMENTS) {
 			shuttingDown = true;
-			tracker.unregisterCachingFS(this);
-		} finally {
-			configLock.writeLock().unlock();
+			return;
 		}
+		synchronized(segments[i]) {
+			setShuttingDown(i + 1);
+		}
+	}
+
+	@Override
+	public long hits() {
+		// A fetch that misses the cache is counted by the underlying store.
+		return hits.get() + backDatastore.hits();
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		StoreAccessStats underlying = backDatastore.getSessionAccessStats();
+		return underlying == null ? null : new CacheAccessStats(underlying);
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		StoreAccessStats underlying = backDatastore.getTotalAccessStats();
+		return underlying == null ? null : new CacheAccessStats(underlying);
 	}
-	
+
+	/** The underlying store's statistics, plus this session's cache hits and evictions. */
+	private class CacheAccessStats extends StoreAccessStats {
+		private final StoreAccessStats underlying;
+
+		CacheAccessStats(StoreAccessStats underlying) {
+			this.underlying = underlying;
+		}
+
+		@Override
+		public long hits() {
+			return hits.get() + underlying.hits();
+		}
+
+		@Override
+		public long misses() {
+			return underlying.misses();
+		}
+
+		@Override
+		public long falsePos() {
+			return underlying.falsePos();
+		}
+
+		@Override
+		public long writes() {
+			return underlying.writes();
+		}
+
+		@Override
+		public long cacheHits() {
+			return hits.get();
+		}
+
+		@Override
+		public long cacheMisses() {
+			return misses.get();
+		}
+
+		@Override
+		public long cacheEvictions() {
+			return evictions.get();
+		}
+
+		@Override
+		public StoreAccessStats[] tiers() {
+			return underlying.tiers();
+		}
+
+		@Override
+		public LatencyHistogram latency(StorePhase phase) {
+			return underlying.latency(phase);
+		}
+
+		@Override
+		public long bytesRead() {
+			return underlying.bytesRead();
+		}
+
+		@Override
+		public long bytesWritten() {
+			return underlying.bytesWritten();
+		}
+	}
+
 	/** Only for unit tests */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		} finally {
-			configLock.readLock().unlock();
+		for(Segment<T> segment : segments) {
+			if(!segment.isEmpty())
+				return false;
 		}
-		return isEmpty;
+		return true;
 	}
 }
@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plain positional {@link FileChannel} reads and writes. This is what the store has always
+ * done, and is the default.
+ */
+class ChannelStoreFileIO implements StoreFileIO {
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+
+	ChannelStoreFileIO(RandomAccessFile raf) {
+		this.raf = raf;
+		this.fc = raf.getChannel();
+	}
+
+	@Override
+	public void readFully(ByteBuffer buf, long position) throws IOException {
+		int start = buf.position();
+		do {
+			int status = fc.read(buf, position + buf.position() - start);
+			if (status == -1)
+				throw new EOFException();
+		} while (buf.hasRemaining());
+	}
+
+	@Override
+	public int read(ByteBuffer buf, long position) throws IOException {
+		int start = buf.position();
+		while (buf.hasRemaining()) {
+			int status = fc.read(buf, position + buf.position() - start);
+			if (status == -1)
+				break;
+		}
+		int read = buf.position() - start;
+		return (read == 0 && start != buf.limit()) ? -1 : read;
+	}
+
+	@Override
+	public void writeFully(ByteBuffer buf, long position) throws IOException {
+		int start = buf.position();
+		do {
+			int status = fc.write(buf, position + buf.position() - start);
+			if (status == -1)
+				throw new EOFException();
+		} while (buf.hasRemaining());
+	}
+
+	/**
+	 * FileChannel has no positional gathering write, so this moves the channel's position.
+	 * Nothing else uses the position, but two gathering writes must not overlap.
+	 */
+	@Override
+	public synchronized void writeFully(ByteBuffer[] bufs, long position) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buf : bufs)
+			remaining += buf.remaining();
+		fc.position(position);
+		while (remaining > 0) {
+			long written = fc.write(bufs);
+			if (written < 0)
+				throw new EOFException();
+			remaining -= written;
+		}
+	}
+
+	@Override
+	public void setLength(long length) throws IOException {
+		raf.setLength(length);
+	}
+
+	@Override
+	public void force() throws IOException {
+		fc.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		fc.close();
+	}
+
+}
@@ -5,9 +5,8 @@ package freenet.store.saltedhash;
 
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.PCFBMode;
@@ -15,7 +14,7 @@ import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.node.MasterKeys;
-import freenet.support.ByteArrayWrapper;
+import freenet.support.Fields;
 import freenet.support.Logger;
 
 /**
@@ -23,6 +22,11 @@ import freenet.support.Logger;
  * 
  * Manage all kind of digestion and encryption in store
  * 
+ * Entries are encrypted with Rijndael using a 256-bit block, which is not AES, so we can't
+ * use a JCA provider (and AES-NI) without changing the store format. Instead we cache the
+ * digested keys and expanded key schedules of recently used routing keys, as a key schedule
+ * costs about as much as decrypting a whole SSK, and is computed under a global lock.
+ * 
  * @author sdiz
  */
 public class CipherManager {
@@ -52,15 +56,64 @@ public class CipherManager {
 	}
 
 	/**
-	 * Cache for digested keys
+	 * A bounded cache keyed by routing key, safe for concurrent use without locking. It is
+	 * direct mapped: routing keys are hashes, so the hash of the key picks the slot, and a
+	 * new key simply replaces whatever was there.
 	 */
-	@SuppressWarnings("serial")
-	private Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
+	static class KeyCache<V> {
+
+		private static class Entry<V> {
+			final byte[] key;
+			final V value;
+
+			Entry(byte[] key, V value) {
+				this.key = key;
+				this.value = value;
+			}
+		}
+
+		private final AtomicReferenceArray<Entry<V>> entries;
+		private final int mask;
+
+		/** @param size Number of slots, must be a power of two. */
+		KeyCache(int size) {
+			assert Integer.bitCount(size) == 1;
+			entries = new AtomicReferenceArray<Entry<V>>(size);
+			mask = size - 1;
+		}
+
+		private int slot(byte[] key) {
+			int hash = Fields.hashCode(key);
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+
+		V get(byte[] key) {
+			Entry<V> entry = entries.get(slot(key));
+			if (entry != null && Arrays.equals(entry.key, key))
+				return entry.value;
+			return null;
+		}
+
+		void put(byte[] key, V value) {
+			entries.set(slot(key), new Entry<V>(key.clone(), value));
+		}
+
+		void clear() {
+			for (int i = 0; i < entries.length(); i++)
+				entries.set(i, null);
 		}
-	};
+	}
+
+	/**
+	 * Cache for digested keys
+	 */
+	private final KeyCache<byte[]> digestRoutingKeyCache = new KeyCache<byte[]>(1024);
+
+	/**
+	 * Cache for expanded key schedules. Rijndael only reads its key schedule, so they can be
+	 * shared between threads. About 2KB each.
+	 */
+	private final KeyCache<BlockCipher> keyScheduleCache = new KeyCache<BlockCipher>(128);
 
 	/**
 	 * Get digested routing key
@@ -69,12 +122,9 @@ public class CipherManager {
 	 * @return
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
-			if (dk != null)
-				return dk;
-		}
+		byte[] dk = digestRoutingKeyCache.get(plainKey);
+		if (dk != null)
+			return dk;
 
 		MessageDigest digest = SHA256.getMessageDigest();
 		try {
@@ -84,9 +134,7 @@ public class CipherManager {
 			byte[] hashedRoutingKey = digest.digest();
 			assert hashedRoutingKey.length == 0x20;
 
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+			digestRoutingKeyCache.put(plainKey, hashedRoutingKey);
 
 			return hashedRoutingKey;
 		} finally {
@@ -161,11 +209,22 @@ public class CipherManager {
 		System.arraycopy(salt, 0, iv2, 0, 0x10);
 		System.arraycopy(iv, 0, iv2, 0x10, 0x10);
 
+		BlockCipher aes = keyScheduleCache.get(key);
+		if (aes == null) {
+			aes = makeBlockCipher(key);
+			keyScheduleCache.put(key, aes);
+		}
+		return PCFBMode.create(aes, iv2);
+	}
+
+	/**
+	 * Create a block cipher for this key, running the full key schedule
+	 */
+	BlockCipher makeBlockCipher(byte[] key) {
 		try {
 			BlockCipher aes = new Rijndael(256, 256);
 			aes.initialize(key);
-
-			return PCFBMode.create(aes, iv2);
+			return aes;
 		} catch (UnsupportedCipherException e) {
 			Logger.error(this, "Rijndael not supported!", e);
 			throw new Error("Rijndael not supported!", e);
@@ -173,6 +232,8 @@ public class CipherManager {
 	}
 
 	public void shutdown() {
+		digestRoutingKeyCache.clear();
+		keyScheduleCache.clear();
 		MasterKeys.clear(salt);
 		MasterKeys.clear(diskSalt);
 	}
@@ -3,86 +3,195 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Offsets are hashed onto a fixed table of lock stripes. Each stripe is a single word holding
+ * the id of the owning thread (0 if free), so taking an uncontended lock is one CAS and there
+ * is no global monitor. Threads which have to wait block on one of a small number of shared
+ * monitors, which are only touched when somebody is actually waiting.
+ *
+ * Several offsets are always locked together by {@link #lockEntries(long[], int)}, which
+ * takes the stripes in ascending order. Since every caller (including the Cleaner, which locks
+ * a whole batch at once) does the same, and a thread never locks anything more while it holds
+ * a lock, this cannot deadlock.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+
+	/** Default number of stripes. The Cleaner holds RESIZE_MEMORY_ENTRIES of them at once,
+	 * so this needs to be large compared to that, or it will stall ordinary requests. */
+	static final int DEFAULT_STRIPES = 1 << 14;
+	/** Number of monitors waiting threads block on. */
+	private static final int MONITORS = 64;
+
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final int stripeMask;
+	/** Owning thread id for each stripe, or 0 if unlocked. */
+	private final AtomicLongArray owners;
+	private final Object[] monitors;
+	/** Number of threads waiting on each monitor, so unlock can skip the notify. */
+	private final AtomicIntegerArray waiters;
+	/** Whether each thread holds any locks. Only maintained with assertions enabled. */
+	private final ThreadLocal<boolean[]> holding = new ThreadLocal<boolean[]>() {
+		@Override
+		protected boolean[] initialValue() {
+			return new boolean[1];
+		}
+	};
 
 	LockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripes
+	 *            Number of lock stripes. Must be a power of two.
+	 */
+	LockManager(int stripes) {
+		if (stripes <= 0 || Integer.bitCount(stripes) != 1)
+			throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripeMask = stripes - 1;
+		owners = new AtomicLongArray(stripes);
+		monitors = new Object[MONITORS];
+		for (int i = 0; i < MONITORS; i++)
+			monitors[i] = new Object();
+		waiters = new AtomicIntegerArray(MONITORS);
+	}
+
+	private int stripe(long offset) {
+		// Slot offsets are already a hash of the key, except for the Cleaner's batches which
+		// are consecutive, and should be spread over consecutive stripes anyway.
+		return (int) (offset & stripeMask);
 	}
 
 	/**
-	 * Lock the entry
-	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * Lock the given entries.
+	 *
+	 * This lock is <strong>not</strong> re-entrant: while it is held, any other offset which
+	 * happens to share a stripe is locked too, so taking more locks could take stripes out of
+	 * order and deadlock. Lock everything that is needed in one call, and do not call this again
+	 * until it has been unlocked.
+	 *
+	 * @param offsets
+	 *            The offsets to lock. Duplicates are fine.
+	 * @param count
+	 *            Number of offsets to use from the start of the array.
+	 * @return The stripes that were locked, to pass to {@link #unlockEntries(int[])}, or
+	 *         <code>null</code> if we are shutting down or were interrupted, in which case
+	 *         nothing is locked.
 	 */
-	Condition lockEntry(long offset) {
+	int[] lockEntries(long[] offsets, int count) {
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking " + Arrays.toString(Arrays.copyOf(offsets, count)), new Exception());
 
-		Condition condition;
+		if (shutdown)
+			return null;
+		assert !holding.get()[0] : "Nested lockEntries()";
+
+		int[] stripes = new int[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = stripe(offsets[i]);
+		Arrays.sort(stripes);
+
+		long me = Thread.currentThread().getId();
+		int locked = 0;
+		for (int i = 0; i < count; i++) {
+			int stripe = stripes[i];
+			if (locked > 0 && stripes[locked - 1] == stripe)
+				continue; // Duplicate.
+			if (!lockStripe(stripe, me)) {
+				unlockStripes(Arrays.copyOf(stripes, locked));
+				return null;
+			}
+			stripes[locked++] = stripe;
+		}
+		assert setHolding(true);
+
+		if (logDEBUG)
+			Logger.debug(this, "locked " + Arrays.toString(Arrays.copyOf(offsets, count)), new Exception());
+		return locked == count ? stripes : Arrays.copyOf(stripes, locked);
+	}
+
+	/**
+	 * Lock a range of consecutive entries, as the Cleaner does.
+	 *
+	 * @see #lockEntries(long[], int)
+	 */
+	int[] lockEntries(long offset, int length) {
+		long[] offsets = new long[length];
+		for (int i = 0; i < length; i++)
+			offsets[i] = offset + i;
+		return lockEntries(offsets, length);
+	}
+
+	private boolean lockStripe(int stripe, long me) {
+		if (owners.compareAndSet(stripe, 0, me))
+			return true;
+
+		int m = stripe & (MONITORS - 1);
+		Object monitor = monitors[m];
+		waiters.incrementAndGet(m);
 		try {
-			entryLock.lock();
-			try {
-				do {
+			synchronized (monitor) {
+				while (!owners.compareAndSet(stripe, 0, me)) {
 					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
-			} finally {
-				entryLock.unlock();
+						return false;
+					monitor.wait(SECONDS.toMillis(10)); // 10s for checking shutdown
+				}
 			}
+			return true;
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
-			return null;
+			return false;
+		} finally {
+			waiters.decrementAndGet(m);
 		}
-
-		if (logDEBUG)
-			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
 	}
 
 	/**
-	 * Unlock the entry
+	 * Unlock entries locked by {@link #lockEntries(long[], int)}. Must be called by the same
+	 * thread.
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntries(int[] stripes) {
 		if (logDEBUG)
-			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
+			Logger.debug(this, "unlocking stripes " + Arrays.toString(stripes), new Exception("debug"));
 
-		entryLock.lock();
-		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
-		} finally {
-			entryLock.unlock();
+		assert setHolding(false);
+		unlockStripes(stripes);
+	}
+
+	/** @return true, so it can be called from an assert. */
+	private boolean setHolding(boolean held) {
+		holding.get()[0] = held;
+		return true;
+	}
+
+	private void unlockStripes(int[] stripes) {
+		for (int stripe : stripes) {
+			assert owners.get(stripe) == Thread.currentThread().getId();
+			owners.set(stripe, 0);
+			int m = stripe & (MONITORS - 1);
+			if (waiters.get(m) != 0) {
+				Object monitor = monitors[m];
+				synchronized (monitor) {
+					monitor.notifyAll();
+				}
+			}
 		}
 	}
 
@@ -91,14 +200,25 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (int stripe = 0; stripe <= stripeMask; stripe++) {
+			if (owners.get(stripe) == 0)
+				continue;
+			int m = stripe & (MONITORS - 1);
+			Object monitor = monitors[m];
+			waiters.incrementAndGet(m);
+			try {
+				synchronized (monitor) {
+					while (owners.get(stripe) != 0) {
+						try {
+							monitor.wait(SECONDS.toMillis(10));
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+				}
+			} finally {
+				waiters.decrementAndGet(m);
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,465 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+
+/**
+ * A {@link PersistentIntBuffer} which memory maps its file, so it takes no heap, and a write
+ * only touches the page it is on. Writing it out is a force() of the mapping, which only
+ * writes the pages that have changed.
+ *
+ * To recover from a crash without rebuilding everything, the buffer is divided into regions
+ * of {@link #REGION_INTS} entries, and a small side file (the buffer's file name plus
+ * ".dirty") has a byte for each region. Before we change a region for the first time since it
+ * was last written out, we set its byte and sync the side file. When we write out the
+ * mapping, we clear the bytes again. So after a crash, only the regions whose bytes are set
+ * can have lost changes, and we reset those to 0 ("not checked") when opening the file.
+ *
+ * With a persistence time of -1, changes go straight into the page cache, which gives the same
+ * guarantee as {@link ResizablePersistentIntBuffer}'s immediate writes, so we don't track
+ * regions at all.
+ */
+public class MappedPersistentIntBuffer implements PersistentIntBuffer {
+
+	/** Entries per region tracked in the side file: 256KiB of the file. */
+	static final int REGION_INTS = 1 << 16;
+	/** Entries per mapped segment: 1GiB of the file. */
+	private static final int SEGMENT_SHIFT = 28;
+	private static final int SEGMENT_INTS = 1 << SEGMENT_SHIFT;
+
+	private final File filename;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final RandomAccessFile dirtyRAF;
+	private final FileChannel dirtyChannel;
+	private final boolean isNew;
+	private final boolean recoversFromCrash;
+	private int size;
+	/** The mapped segments. Replaced when we resize. Protected by lock. */
+	private MappedByteBuffer[] maps;
+	/** Int views of maps. Absolute get and put are thread-safe. */
+	private IntBuffer[] segments;
+	/** Read locked for every access, write locked while remapping, and while writeOut() clears
+	 * the dirty regions: a put holds the read lock from marking its region to storing its value,
+	 * so none can be in between while we clear them. */
+	private final ReadWriteLock lock;
+	/** 1 for each region which has changed since it was last written out. Set only while
+	 * synchronized on dirtyLock, after the side file has been updated. */
+	private AtomicIntegerArray dirtyRegions;
+	private final Object dirtyLock = new Object();
+	private Ticker ticker;
+	/** Is the writer job scheduled? Protected by (this). */
+	private boolean scheduled;
+	/** Is the writer job running? Protected by (this). */
+	private boolean writing;
+	private boolean closed;
+
+	/**
+	 * Open the buffer, creating the file if necessary, and reset any regions which might have
+	 * lost changes in a crash.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 */
+	public MappedPersistentIntBuffer(File f, int size) throws IOException {
+		this.filename = f;
+		isNew = !f.exists();
+		File dirtyFile = dirtyFile(f);
+		// If the last run didn't use a mapped buffer we can't know what it lost.
+		recoversFromCrash = isNew || dirtyFile.exists();
+		this.lock = new ReentrantReadWriteLock();
+		this.size = size;
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		dirtyRAF = new RandomAccessFile(dirtyFile, "rw");
+		dirtyChannel = dirtyRAF.getChannel();
+		try {
+			raf.setLength(((long)size)*4);
+			map();
+			recover();
+		} catch (IOException e) {
+			raf.close();
+			dirtyRAF.close();
+			throw e;
+		}
+	}
+
+	static File dirtyFile(File f) {
+		return new File(f.getPath() + ".dirty");
+	}
+
+	private static int regions(int size) {
+		return (int)((((long)size) + REGION_INTS - 1) / REGION_INTS);
+	}
+
+	private void map() throws IOException {
+		int count = (int)((((long)size) + SEGMENT_INTS - 1) >>> SEGMENT_SHIFT);
+		maps = new MappedByteBuffer[count];
+		segments = new IntBuffer[count];
+		for(int i = 0; i < count; i++) {
+			long start = ((long)i) << SEGMENT_SHIFT;
+			long ints = Math.min(SEGMENT_INTS, size - start);
+			maps[i] = channel.map(FileChannel.MapMode.READ_WRITE, start * 4, ints * 4);
+			// Same byte order as ResizablePersistentIntBuffer (Fields.intsToBytes).
+			segments[i] = maps[i].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+	}
+
+	/** Reset regions the side file says may have lost changes, then clear it. */
+	private void recover() throws IOException {
+		int regions = regions(size);
+		byte[] dirty = new byte[regions];
+		long length = dirtyRAF.length();
+		if(length > 0) {
+			dirtyRAF.seek(0);
+			dirtyRAF.readFully(dirty, 0, (int)Math.min(regions, length));
+		}
+		int reset = 0;
+		for(int region = 0; region < regions; region++) {
+			if(dirty[region] == 0) continue;
+			int start = region * REGION_INTS;
+			int end = (int)Math.min(size, ((long)start) + REGION_INTS);
+			for(int i = start; i < end; i++)
+				segment(i).put(i & (SEGMENT_INTS - 1), 0);
+			reset++;
+		}
+		if(reset > 0) {
+			System.err.println("Slot filter " + filename + " was not written out before shutdown, reset " +
+					reset + " of " + regions + " regions.");
+			for(MappedByteBuffer map : maps)
+				map.force();
+		}
+		dirtyRegions = new AtomicIntegerArray(regions);
+		dirtyRAF.setLength(regions);
+		dirtyRAF.seek(0);
+		dirtyRAF.write(new byte[regions]);
+		dirtyChannel.force(false);
+	}
+
+	private IntBuffer segment(int offset) {
+		return segments[offset >>> SEGMENT_SHIFT];
+	}
+
+	@Override
+	public void fill(int value) {
+		lock.readLock().lock();
+		try {
+			for(int i = 0; i < size; i++)
+				segment(i).put(i & (SEGMENT_INTS - 1), value);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void start(Ticker ticker) {
+		synchronized(this) {
+			this.ticker = ticker;
+			if(anyDirty())
+				schedule(ResizablePersistentIntBuffer.getPersistenceTime());
+		}
+	}
+
+	@Override
+	public int get(int offset) {
+		lock.readLock().lock();
+		try {
+			if(closed) throw new IllegalStateException("Already shut down");
+			return segment(offset).get(offset & (SEGMENT_INTS - 1));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(int offset, int value) throws IOException {
+		put(offset, value, false);
+	}
+
+	@Override
+	public void put(int offset, int value, boolean noWrite) throws IOException {
+		lock.readLock().lock(); // Only resize needs write lock because it remaps.
+		try {
+			if(closed) throw new IllegalStateException("Already shut down");
+			int persistenceTime = ResizablePersistentIntBuffer.getPersistenceTime();
+			if(persistenceTime != -1 || noWrite) {
+				// Must be recorded before the page can reach the disk.
+				markDirty(offset / REGION_INTS);
+			}
+			segment(offset).put(offset & (SEGMENT_INTS - 1), value);
+			if(persistenceTime > 0) {
+				synchronized(this) {
+					if(ticker != null) {
+						if(!scheduled)
+							schedule(persistenceTime);
+					} else {
+						Logger.normal(this, "Will scheduling write of slot cache after startup: "+this+" in "+persistenceTime);
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void markDirty(int region) throws IOException {
+		if(dirtyRegions.get(region) != 0) return;
+		synchronized(dirtyLock) {
+			if(dirtyRegions.get(region) != 0) return;
+			dirtyChannel.write(ByteBuffer.wrap(new byte[] { 1 }), region);
+			dirtyChannel.force(false);
+			dirtyRegions.set(region, 1);
+		}
+	}
+
+	private boolean anyDirty() {
+		AtomicIntegerArray dirty = dirtyRegions;
+		for(int i = 0; i < dirty.length(); i++)
+			if(dirty.get(i) != 0) return true;
+		return false;
+	}
+
+	/** Caller must hold (this). */
+	private void schedule(int persistenceTime) {
+		if(ticker == null || persistenceTime <= 0) return;
+		Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
+		ticker.queueTimedJob(writer, persistenceTime);
+		scheduled = true;
+	}
+
+	/** Write out the mapping, then clear the regions which haven't changed again since.
+	 * Caller must either hold the write lock or no lock at all. */
+	private void writeOut() throws IOException {
+		boolean[] flushing;
+		// Otherwise a put which found its region already marked could store its value after
+		// the force() but before we clear the region in the file, and the change would be lost.
+		lock.writeLock().lock();
+		try {
+			if(closed) return;
+			synchronized(dirtyLock) {
+				flushing = new boolean[dirtyRegions.length()];
+				for(int i = 0; i < flushing.length; i++) {
+					if(dirtyRegions.get(i) != 0) {
+						flushing[i] = true;
+						dirtyRegions.set(i, 0);
+					}
+				}
+			}
+			// Puts carry on while we write, marking their regions again.
+			lock.readLock().lock();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			for(MappedByteBuffer map : maps)
+				map.force();
+			synchronized(dirtyLock) {
+				boolean changed = false;
+				for(int i = 0; i < flushing.length; i++) {
+					// If it has been marked again, it must stay marked in the file.
+					if(flushing[i] && dirtyRegions.get(i) == 0) {
+						dirtyChannel.write(ByteBuffer.wrap(new byte[] { 0 }), i);
+						changed = true;
+					}
+				}
+				if(changed)
+					dirtyChannel.force(false);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			Logger.normal(this, "Writing slot cache "+MappedPersistentIntBuffer.this);
+			synchronized(MappedPersistentIntBuffer.this) {
+				scheduled = false;
+				if(writing || closed) return;
+				writing = true;
+			}
+			try {
+				writeOut();
+			} catch (IOException e) {
+				Logger.error(this, "Write failed: "+e+" on "+filename, e);
+			} finally {
+				synchronized(MappedPersistentIntBuffer.this) {
+					writing = false;
+					MappedPersistentIntBuffer.this.notifyAll();
+				}
+			}
+			Logger.normal(this, "Written slot cache "+MappedPersistentIntBuffer.this);
+		}
+
+	};
+
+	@Override
+	public void shutdown() {
+		lock.writeLock().lock();
+		try {
+			synchronized(this) {
+				if(closed) return;
+			}
+			try {
+				Logger.normal(this, "Writing slot cache on shutdown: "+this);
+				writeOut();
+			} catch (IOException e) {
+				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
+			}
+			synchronized(this) {
+				closed = true;
+			}
+			close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void abort() {
+		lock.writeLock().lock();
+		try {
+			synchronized(this) {
+				if(closed) return;
+				closed = true;
+			}
+			close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Logger.error(this, "Close failed during shutdown: "+e+" on "+filename, e);
+		}
+		try {
+			dirtyRAF.close();
+		} catch (IOException e) {
+			Logger.error(this, "Close failed during shutdown: "+e+" on "+dirtyFile(filename), e);
+		}
+	}
+
+	@Override
+	public void resize(int size) {
+		lock.writeLock().lock();
+		try {
+			if(this.size == size) return;
+			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			try {
+				writeOut();
+				// We can't unmap, so drop the old mappings and let the GC release them.
+				maps = null;
+				segments = null;
+				int oldSize = this.size;
+				this.size = size;
+				raf.setLength(((long)size)*4);
+				map();
+				int regions = regions(size);
+				synchronized(dirtyLock) {
+					dirtyRegions = new AtomicIntegerArray(regions);
+					dirtyRAF.setLength(regions);
+					if(size > oldSize) {
+						// Make sure the new part reads back as 0 even if the file had junk there.
+						for(int i = oldSize; i < size; i++)
+							segment(i).put(i & (SEGMENT_INTS - 1), 0);
+					}
+					for(MappedByteBuffer map : maps)
+						map.force();
+					dirtyChannel.force(false);
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Failed to change size during resize on "+filename+" : "+e, e);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void forceWrite() {
+		Logger.normal(this, "Force write slot cache: "+this);
+		synchronized(this) {
+			if(closed) return;
+			while(writing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			writing = true;
+		}
+		try {
+			writeOut();
+		} catch (IOException e) {
+			Logger.error(this, "Write failed: "+e+" on "+filename, e);
+		} finally {
+			synchronized(this) {
+				writing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@Override
+	public boolean recoversFromCrash() {
+		return recoversFromCrash;
+	}
+
+	@Override
+	public String toString() {
+		return filename.getPath();
+	}
+
+	// Testing only! Hence no lock.
+	@Override
+	public void replaceAllEntries(int key, int value) {
+		for(int i = 0; i < size; i++) {
+			IntBuffer segment = segment(i);
+			int index = i & (SEGMENT_INTS - 1);
+			if(segment.get(index) == key) segment.put(index, value);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** Delete the side file, if the buffer is going to be opened without mapping. */
+	static void deleteDirtyFile(File f) {
+		File dirtyFile = dirtyFile(f);
+		if(!dirtyFile.exists()) return;
+		try {
+			FileUtil.secureDelete(dirtyFile);
+		} catch (IOException e) {
+			Logger.error(MappedPersistentIntBuffer.class, "Unable to delete "+dirtyFile+" : "+e, e);
+		}
+	}
+
+}
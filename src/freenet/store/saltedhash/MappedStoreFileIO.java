@@ -0,0 +1,260 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped access to a store file. The file is mapped as a series of segments of up to
+ * {@link #MAX_SEGMENT_SIZE} bytes (a single {@link MappedByteBuffer} can't exceed 2GB), rounded
+ * down to a whole number of records so that a single slot never straddles two segments.
+ *
+ * Reads and writes are plain memory copies, so there is no system call and no temporary
+ * buffer per access. The segments are remapped whenever {@link #setLength(long)} changes the
+ * file size. Anything outside the mapped region (e.g. if mapping a segment failed because we
+ * ran out of address space) falls back to the {@link FileChannel}, so this never behaves
+ * differently from {@link ChannelStoreFileIO}, only faster.
+ *
+ * We can't unmap explicitly, so when the store shrinks we simply drop the segments beyond
+ * the new end of file before truncating, and let the garbage collector release them.
+ */
+class MappedStoreFileIO implements StoreFileIO {
+
+	static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+	/** Used for anything outside the mapped region. */
+	private final ChannelStoreFileIO fallback;
+	private final long segmentSize;
+	/** The mapped segments. Replaced, never modified, when the file is remapped, so that
+	 * thread-local views can tell when they are stale. Protected by mapLock. */
+	private MappedByteBuffer[] segments;
+	/** Number of bytes at the start of the file which are covered by segments. Protected by
+	 * mapLock. */
+	private long mappedLength;
+	/** Read locked for every access, write locked while remapping. */
+	private final ReadWriteLock mapLock = new ReentrantReadWriteLock();
+
+	/** Position and limit on a MappedByteBuffer are not thread-safe, so each thread gets its
+	 * own duplicates of the segments. Cheap, and only recreated after a remap. */
+	private final ThreadLocal<SegmentViews> views = new ThreadLocal<SegmentViews>();
+
+	private static class SegmentViews {
+		final MappedByteBuffer[] source;
+		final ByteBuffer[] views;
+
+		SegmentViews(MappedByteBuffer[] source) {
+			this.source = source;
+			this.views = new ByteBuffer[source.length];
+		}
+	}
+
+	/**
+	 * @param raf
+	 *            The store file, which must already be open read-write.
+	 * @param recordLength
+	 *            The size of a single slot in this file.
+	 * @throws IOException
+	 *             If we can't map even the first segment.
+	 */
+	MappedStoreFileIO(RandomAccessFile raf, int recordLength) throws IOException {
+		if (recordLength <= 0 || recordLength > MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Bad record length " + recordLength);
+		this.raf = raf;
+		this.fc = raf.getChannel();
+		this.fallback = new ChannelStoreFileIO(raf);
+		this.segmentSize = ((long) (MAX_SEGMENT_SIZE / recordLength)) * recordLength;
+		this.segments = new MappedByteBuffer[0];
+		long length = raf.length();
+		map(length, true);
+		if (length > 0 && mappedLength == 0)
+			throw new IOException("Unable to map " + raf);
+	}
+
+	/**
+	 * Map the file up to the given length. Segments which are already mapped at the right
+	 * size are kept. Caller must hold the write lock, or be the constructor.
+	 *
+	 * @param partialTail
+	 *            If false, only map whole segments, leaving any remainder to the channel.
+	 */
+	private void map(long length, boolean partialTail) {
+		int count = (int) ((partialTail ? (length + segmentSize - 1) : length) / segmentSize);
+		MappedByteBuffer[] newSegments = new MappedByteBuffer[count];
+		long mapped = 0;
+		for (int i = 0; i < count; i++) {
+			long start = i * segmentSize;
+			long size = Math.min(segmentSize, length - start);
+			if (i < segments.length && segments[i] != null && segments[i].capacity() == size) {
+				newSegments[i] = segments[i];
+			} else {
+				try {
+					newSegments[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+				} catch (IOException e) {
+					// Probably out of address space. The rest of the file will be accessed
+					// through the channel.
+					Logger.error(this, "Unable to map " + size + " bytes at " + start + " of " + raf + " : " + e, e);
+					MappedByteBuffer[] shorter = new MappedByteBuffer[i];
+					System.arraycopy(newSegments, 0, shorter, 0, i);
+					newSegments = shorter;
+					break;
+				}
+			}
+			mapped = start + size;
+		}
+		segments = newSegments;
+		mappedLength = mapped;
+	}
+
+	private ByteBuffer view(MappedByteBuffer[] source, int segment) {
+		SegmentViews v = views.get();
+		if (v == null || v.source != source) {
+			v = new SegmentViews(source);
+			views.set(v);
+		}
+		ByteBuffer view = v.views[segment];
+		if (view == null)
+			view = v.views[segment] = source[segment].duplicate();
+		return view;
+	}
+
+	/**
+	 * Copy between the buffer and the mapping.
+	 *
+	 * @return False if the range is not entirely mapped, in which case nothing has been
+	 *         copied. Caller must hold the read lock.
+	 */
+	private boolean copy(ByteBuffer buf, long position, boolean write) {
+		int length = buf.remaining();
+		if (position < 0 || position + length > mappedLength)
+			return false;
+		MappedByteBuffer[] source = segments;
+		int oldLimit = buf.limit();
+		try {
+			while (buf.hasRemaining()) {
+				int segment = (int) (position / segmentSize);
+				int offset = (int) (position % segmentSize);
+				int count = (int) Math.min(buf.remaining(), segmentSize - offset);
+				ByteBuffer view = view(source, segment);
+				view.clear();
+				view.position(offset);
+				view.limit(offset + count);
+				buf.limit(buf.position() + count);
+				if (write)
+					view.put(buf);
+				else
+					buf.put(view);
+				buf.limit(oldLimit);
+				position += count;
+			}
+		} finally {
+			buf.limit(oldLimit);
+		}
+		return true;
+	}
+
+	@Override
+	public void readFully(ByteBuffer buf, long position) throws IOException {
+		mapLock.readLock().lock();
+		try {
+			if (copy(buf, position, false))
+				return;
+			fallback.readFully(buf, position);
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer buf, long position) throws IOException {
+		mapLock.readLock().lock();
+		try {
+			int length = buf.remaining();
+			if (copy(buf, position, false))
+				return length;
+			return fallback.read(buf, position);
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void writeFully(ByteBuffer buf, long position) throws IOException {
+		mapLock.readLock().lock();
+		try {
+			if (copy(buf, position, true))
+				return;
+			fallback.writeFully(buf, position);
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void writeFully(ByteBuffer[] bufs, long position) throws IOException {
+		// No system call to save here.
+		for (ByteBuffer buf : bufs) {
+			int length = buf.remaining();
+			writeFully(buf, position);
+			position += length;
+		}
+	}
+
+	@Override
+	public void setLength(long length) throws IOException {
+		mapLock.writeLock().lock();
+		try {
+			boolean shrinking = length < mappedLength;
+			if (shrinking) {
+				// Accessing a mapping beyond the end of the file is fatal (SIGBUS), so drop
+				// everything past the new length before truncating.
+				int keep = (int) (length / segmentSize);
+				MappedByteBuffer[] shorter = new MappedByteBuffer[keep];
+				System.arraycopy(segments, 0, shorter, 0, keep);
+				segments = shorter;
+				mappedLength = keep * segmentSize;
+			}
+			raf.setLength(length);
+			// The Cleaner shrinks the file a little at a time. Old mappings are only released
+			// by the garbage collector, so don't create a new one for the tail every time.
+			map(length, !shrinking);
+		} finally {
+			mapLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		mapLock.readLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		} finally {
+			mapLock.readLock().unlock();
+		}
+		fc.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapLock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			mappedLength = 0;
+			fc.close();
+		} finally {
+			mapLock.writeLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+
+import freenet.support.Ticker;
+
+/**
+ * A large resizable block of int's which is persisted to disk, used for the slot filter.
+ * How often it is written is controlled by
+ * {@link ResizablePersistentIntBuffer#setPersistenceTime(int)}.
+ *
+ * @see ResizablePersistentIntBuffer
+ * @see MappedPersistentIntBuffer
+ */
+public interface PersistentIntBuffer {
+
+	/** Should be called during startup to fill in an appropriate default value e.g. if the store
+	 * is completely new. */
+	void fill(int value);
+
+	void start(Ticker ticker);
+
+	int get(int offset);
+
+	void put(int offset, int value) throws IOException;
+
+	/** @param noWrite If true, don't write immediately even if the persistence time is -1, the
+	 * caller will call {@link #forceWrite()}. */
+	void put(int offset, int value, boolean noWrite) throws IOException;
+
+	/** Write everything and close. */
+	void shutdown();
+
+	/** Close without writing anything, as if we had crashed. */
+	void abort();
+
+	void resize(int size);
+
+	/** Write everything now. */
+	void forceWrite();
+
+	/** Was the file created when we opened it? */
+	boolean isNew();
+
+	/** @return True if, after an unclean shutdown, any entries which may not have reached the
+	 * disk were reset to 0 when we opened the file, so the caller doesn't need to rebuild it. */
+	boolean recoversFromCrash();
+
+	int size();
+
+	/** Testing only! */
+	void replaceAllEntries(int key, int value);
+
+}
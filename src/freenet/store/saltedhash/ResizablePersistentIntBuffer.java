@@ -19,10 +19,11 @@ import freenet.support.Ticker;
  * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ * messy and expensive. {@link MappedPersistentIntBuffer} does it anyway, when the store
+ * is memory mapped.
  * @author toad
  */
-public class ResizablePersistentIntBuffer {
+public class ResizablePersistentIntBuffer implements PersistentIntBuffer {
 	
 	private final File filename;
 	private final RandomAccessFile raf;
@@ -313,6 +314,11 @@ public class ResizablePersistentIntBuffer {
 	public boolean isNew() {
 		return isNew;
 	}
+
+	/** We write the whole buffer at once, so can't tell what was lost. */
+	public boolean recoversFromCrash() {
+		return false;
+	}
 	
 	public String toString() {
 		return filename.getPath();
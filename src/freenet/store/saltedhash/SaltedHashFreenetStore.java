@@ -12,17 +12,18 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -42,6 +43,7 @@ import freenet.l10n.NodeL10n;
 import freenet.node.FastRunnable;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.node.stats.StoreAccessStats;
+import freenet.node.stats.StorePhase;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
 import freenet.node.useralerts.UserAlertManager;
@@ -56,11 +58,13 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
 import freenet.support.WrapperKeepalive;
 import freenet.support.io.Closer;
 import freenet.support.io.Fallocate;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.math.LatencyHistogram;
 
 /**
  * Index-less data store based on salted hash.
@@ -91,7 +95,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * bit 28 - ENTRY_WRONG_STORE: 0 = Stored in correct store, 1 = stored in wrong store.
 	 * bit 0...23 - The first 3 bytes of the salted key.
 	 */
-	private final ResizablePersistentIntBuffer slotFilter;
+	private final PersistentIntBuffer slotFilter;
 	/** If true, don't create a slot filter, don't keep it up to date, don't
 	 * do anything with it. */
 	private boolean slotFilterDisabled;
@@ -128,6 +132,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private boolean preallocate = true;
 	public static boolean NO_CLEANER_SLEEP = false;
+	/** Number of threads the Cleaner walks the store with when resizing or rebuilding the
+	 * slot filter. */
+	public static int CLEANER_THREADS = 4;
+	/** Entries a Cleaner thread claims at a time. It reads their metadata in one go, then
+	 * processes them in order, and the Cleaner checkpoints its progress in these units. */
+	static int CLEANER_CHUNK_ENTRIES = 128 * 64;
+	/** Slots per counter in metaWrites. */
+	private static final int META_WRITES_BUCKET_ENTRIES = 128;
+	private static final int META_WRITES_BUCKETS = 1024;
+	/**
+	 * Bumped after every write to the metadata file, while still holding the slot's lock,
+	 * counting slots in buckets of META_WRITES_BUCKET_ENTRIES (wrapping around). The Cleaner
+	 * reads a whole chunk ahead without locking, and uses these to tell whether the part it is
+	 * about to lock and process may have been written since.
+	 */
+	private final AtomicIntegerArray metaWrites = new AtomicIntegerArray(META_WRITES_BUCKETS);
 
 	/**
 	 * true if close() hase been called
@@ -151,12 +171,40 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param useMmap
+	 *            If true, access the metadata and header+data files through memory mappings
+	 *            rather than positional reads and writes. See {@link MappedStoreFileIO}.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean useMmap) throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, useMmap, 0);
+	}
+
+	/**
+	 * @param useMmap
+	 *            If true, access the metadata and header+data files through memory mappings
+	 *            rather than positional reads and writes. See {@link MappedStoreFileIO}.
+	 * @param writeBehindSlots
+	 *            If positive, queue up to this many slot writes in memory and write them from a
+	 *            separate thread. See {@link WriteBehindQueue}.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean useMmap, int writeBehindSlots) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, useMmap, writeBehindSlots);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean useMmap, int writeBehindSlots) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -191,10 +239,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// If not already resizing, start resizing to the new store size.
 			prevStoreSize = storeSize;
 			storeSize = maxKeys;
+			cleanerCheckpoint = 0;
 			writeConfigFile();
 		}
 
-		newStore |= openStoreFiles(baseDir, name);
+		newStore |= openStoreFiles(baseDir, name, useMmap, writeBehindSlots);
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
 		if(bloomFile.exists()) {
@@ -207,7 +256,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		int size = (int)Math.max(storeSize, prevStoreSize);
 		slotFilterDisabled = !enableSlotFilters;
 		if(!slotFilterDisabled) {
-			slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size);
+			if(useMmap) {
+				slotFilter = new MappedPersistentIntBuffer(slotFilterFile, size);
+			} else {
+				MappedPersistentIntBuffer.deleteDirtyFile(slotFilterFile);
+				slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size);
+			}
 			System.err.println("Slot filter (" + slotFilterFile + ") for " + name + " is loaded (new="+slotFilter.isNew()+").");
 			if(newStore && slotFilter.isNew())
 				slotFilter.fill(SLOT_CHECKED);
@@ -222,6 +276,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			slotFilter = null;
 		}
 
+		if (crashed && ResizablePersistentIntBuffer.getPersistenceTime() != -1 &&
+				!(slotFilter != null && slotFilter.recoversFromCrash())) {
+			// Slot filter entries written since it was last saved may have been lost.
+			// Not critical as a few blocks wrong is something we can handle.
+			flags |= FLAG_REBUILD_BLOOM;
+			// A rebuild has to start again, a resize can carry on.
+			if (prevStoreSize == 0)
+				cleanerCheckpoint = 0;
+		}
+
 		if ((flags & FLAG_DIRTY) != 0)
 			System.err.println("Datastore(" + name + ") is dirty.");
 
@@ -247,6 +311,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			if (prevStoreSize == 0)
+				cleanerCheckpoint = 0;
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -315,6 +381,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		long start = System.nanoTime();
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -326,9 +393,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		} catch(InterruptedException e) {
 			throw new IOException("interrupted: " +e);
 		}
+		long locked = System.nanoTime();
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
+		long digested = System.nanoTime();
+		digestLatency.report(digested - locked);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
+			int[] lockMap = lockDigestedKey(digestedKey, true);
+			lockLatency.report(locked - start + System.nanoTime() - digested);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -336,38 +407,47 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			try {
 				Entry entry = probeEntry(digestedKey, routingKey, true);
-				if (entry == null) {
-					misses.incrementAndGet();
-					return null;
-				}
-
-				if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
-					if(ignoreOldBlocks) {
-						Logger.normal(this, "Ignoring old block");
-						return null;
-					}
-					if(meta != null)
-						meta.setOldBlock();
-				}
-
-				try {
-					T block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-					if (block == null) {
-						misses.incrementAndGet();
-						return null;
-					}
-					hits.incrementAndGet();
-					return block;
-				} catch (KeyVerifyException e) {
-					Logger.minor(this, "key verification exception", e);
-					misses.incrementAndGet();
-					return null;
-				}
+				return getBlock(entry, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockMap);
 			}
 		} finally {
 			configLock.readLock().unlock();
+			fetchLatency.reportSince(start);
+		}
+	}
+
+	/**
+	 * Turn an entry we have read, or <code>null</code> if the key wasn't found, into a block,
+	 * counting the hit or miss.
+	 */
+	private T getBlock(Entry entry, byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) {
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
+			if(ignoreOldBlocks) {
+				Logger.normal(this, "Ignoring old block");
+				return null;
+			}
+			if(meta != null)
+				meta.setOldBlock();
+		}
+
+		try {
+			T block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			if (block == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return block;
+		} catch (KeyVerifyException e) {
+			Logger.minor(this, "key verification exception", e);
+			misses.incrementAndGet();
+			return null;
 		}
 	}
 
@@ -425,6 +505,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
 
+		long start = System.nanoTime();
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -436,9 +517,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		} catch(InterruptedException e) {
 			throw new IOException("interrupted: " +e);
 		}
+		long locked = System.nanoTime();
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
+		long digested = System.nanoTime();
+		digestLatency.report(digested - locked);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
+			int[] lockMap = lockDigestedKey(digestedKey, false);
+			lockLatency.report(locked - start + System.nanoTime() - digested);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -555,10 +640,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				onWrite();
 				return true;
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				unlockDigestedKey(lockMap);
 			}
 		} finally {
 			configLock.readLock().unlock();
+			putLatency.reportSince(start);
 		}
 	}
 
@@ -571,11 +657,38 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	private StoreFileIO metaIO;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
+	private StoreFileIO hdIO;
 	private final int hdPadding;
+	/** If not null, metaIO and hdIO queue their writes here. */
+	private WriteBehindQueue writeQueue;
+
+	/** Scratch buffers for readEntry() and readHD(). Entry copies everything it needs out of
+	 * them, so they can be reused as soon as it has been constructed / setHD() has been called.
+	 * Shared between all stores to keep the per-thread cost down to one CHK slot. */
+	private static final ThreadLocal<ByteBuffer> metaScratch = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(0x80); // Entry.METADATA_LENGTH
+		}
+	};
+	private static final ThreadLocal<ByteBuffer> hdScratch = new ThreadLocal<ByteBuffer>();
+
+	private ByteBuffer getHDScratch() {
+		int length = headerBlockLength + dataBlockLength + hdPadding;
+		ByteBuffer buf = hdScratch.get();
+		if (buf == null || buf.capacity() < length) {
+			buf = ByteBuffer.allocate(length);
+			hdScratch.set(buf);
+		}
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
 
 	/**
 	 * Data entry
@@ -745,7 +858,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		private T getStorableBlock(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownKey) throws KeyVerifyException {
 			if (isFree() || header == null || data == null)
 				return null; // this is a free block
-			if (!cipherManager.decrypt(this, routingKey))
+			long start = System.nanoTime();
+			boolean decrypted = cipherManager.decrypt(this, routingKey);
+			decryptLatency.reportSince(start);
+			if (!decrypted)
 				return null;
 
 			T block = callback.construct(data, header, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, knownKey);
@@ -829,10 +945,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 * @param baseDir
 	 * @param name
+	 * @param useMmap
+	 * @param writeBehindSlots
 	 * @throws IOException
 	 * @return <code>true</code> iff this is a new datastore
 	 */
-	private boolean openStoreFiles(File baseDir, String name) throws IOException {
+	private boolean openStoreFiles(File baseDir, String name, boolean useMmap, int writeBehindSlots) throws IOException {
 		metaFile = new File(baseDir, name + ".metadata");
 		hdFile = new File(baseDir, name + ".hd");
 
@@ -855,6 +973,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".hd"), ex);
 		}
 
+		metaIO = new ChannelStoreFileIO(metaRAF);
+		hdIO = new ChannelStoreFileIO(hdRAF);
+		if (useMmap) {
+			try {
+				metaIO = new MappedStoreFileIO(metaRAF, Entry.METADATA_LENGTH);
+				hdIO = new MappedStoreFileIO(hdRAF, headerBlockLength + dataBlockLength + hdPadding);
+			} catch (IOException e) {
+				// E.g. a 32-bit JVM with a big store.
+				Logger.error(this, "Unable to memory map datastore " + name + ", using normal I/O: " + e, e);
+				System.err.println("Unable to memory map datastore " + name + ", using normal I/O: " + e);
+				metaIO = new ChannelStoreFileIO(metaRAF);
+			}
+		}
+		if (writeBehindSlots > 0) {
+			writeQueue = new WriteBehindQueue(name, metaIO, Entry.METADATA_LENGTH, hdIO,
+			        headerBlockLength + dataBlockLength + hdPadding, writeBehindSlots);
+			metaIO = writeQueue.getMetaIO();
+			hdIO = writeQueue.getHDIO();
+			writeQueue.start();
+		}
+
 		return newStore;
 	}
 
@@ -881,15 +1020,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		ByteBuffer mbf = metaScratch.get();
+		mbf.clear();
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		long start = System.nanoTime();
+		try {
+			metaIO.readFully(mbf, Entry.METADATA_LENGTH * offset);
+		} catch (EOFException e) {
+			Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+			throw e;
+		}
+		readLatency.reportSince(start);
+		bytesRead.addAndGet(Entry.METADATA_LENGTH);
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -929,7 +1071,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if (withData) {
 				ByteBuffer hdBuf = readHD(offset);
 				entry.setHD(hdBuf);
+				long decryptStart = System.nanoTime();
 				boolean decrypted = cipherManager.decrypt(entry, routingKey);
+				decryptLatency.reportSince(decryptStart);
 				if (!decrypted) {
 					if(logMINOR && validCache && likelyMatch)
 						Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
@@ -945,20 +1089,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	/**
-	 * Read header + data from disk
+	 * Read header + data from disk. The returned buffer is reused by the next call on the
+	 * same thread, so pass it to {@link Entry#setHD(ByteBuffer)} immediately.
 	 *
 	 * @param offset
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+		ByteBuffer buf = getHDScratch();
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-		do {
-			int status = hdFC.read(buf, pos + buf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (buf.hasRemaining());
+		long start = System.nanoTime();
+		hdIO.readFully(buf, pos);
+		readLatency.reportSince(start);
+		bytesRead.addAndGet(buf.position());
 		buf.flip();
 
 		return buf;
@@ -1014,39 +1158,59 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if(!slotFilterDisabled)
 			slotFilter.put((int)offset, entry.getSlotFilterEntry(digestedRoutingKey, entry.flag));
 		
+		long start = System.nanoTime();
 		cipherManager.encrypt(entry, random);
+		encryptLatency.reportSince(start);
 
-		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
-
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-			do {
-				int status = hdFC.write(bf, pos + bf.position());
-				if (status == -1)
-					throw new EOFException();
-			} while (bf.hasRemaining());
+		start = System.nanoTime();
+		ByteBuffer meta = entry.toMetaDataBuffer();
+		long written = meta.remaining();
+		ByteBuffer hd = entry.toHDBuffer();
+		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		if (hd != null)
+			written += hd.remaining();
+		try {
+			if (writeQueue != null) {
+				writeQueue.writeSlot(meta, Entry.METADATA_LENGTH * offset, hd, pos);
+			} else {
+				metaIO.writeFully(meta, Entry.METADATA_LENGTH * offset);
+				if (hd != null)
+					hdIO.writeFully(hd, pos);
+			}
+		} finally {
+			metaWritten(offset, 1);
 		}
+		writeLatency.reportSince(start);
+		bytesWritten.addAndGet(written);
 
 		entry.curOffset = offset;
 	}
 
+	/** Call after writing the metadata for slots, before unlocking them. */
+	private void metaWritten(long offset, int length) {
+		long last = (offset + length - 1) / META_WRITES_BUCKET_ENTRIES;
+		for (long bucket = offset / META_WRITES_BUCKET_ENTRIES; bucket <= last; bucket++)
+			metaWrites.incrementAndGet((int) (bucket % META_WRITES_BUCKETS));
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (writeQueue != null) {
+			try {
+				writeQueue.shutdown();
+			} catch (IOException e) {
+				Logger.error(this, "error flushing store", e);
+			}
+		}
 		try {
-			metaFC.force(true);
-			metaFC.close();
+			metaIO.force();
+			metaIO.close();
 		} catch (Exception e) {
 			Logger.error(this, "error flusing store", e);
 		}
 		try {
-			hdFC.force(true);
-			hdFC.close();
+			hdIO.force();
+			hdIO.close();
 		} catch (Exception e) {
 			Logger.error(this, "error flusing store", e);
 		}
@@ -1094,8 +1258,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
-			hdRAF.setLength(newHdLen);
+			metaIO.setLength(newMetaLen);
+			hdIO.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1115,7 +1279,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |(resvd)|  Checkpoint   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
@@ -1124,9 +1288,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *  Checkpoint = Entries already processed by an interrupted resize or slot filter rebuild
 	 * </pre>
 	 */
 	private final File configFile;
+	/** Was the store still marked dirty when we loaded the config file, i.e. did we crash? */
+	private boolean crashed;
 
 	/**
 	 * Load config file
@@ -1191,16 +1358,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
-					if (((flags & FLAG_DIRTY) != 0) && 
-							// FIXME figure out a way to do this consistently!
-							// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
-						flags |= FLAG_REBUILD_BLOOM;
+					// Whether the slot filter needs rebuilding is decided once it is open.
+					crashed = (flags & FLAG_DIRTY) != 0;
 
 					try {
 						raf.readInt(); // bloomFilterK
 						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpoint = raf.readLong();
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1256,7 +1420,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				raf.writeInt(flags);
 				raf.writeInt(0); // bloomFilterK
 				raf.writeInt(0);
-				raf.writeLong(0);
+				raf.writeLong(cleanerCheckpoint);
 				raf.writeLong(writes.get());
 				raf.writeLong(hits.get());
 				raf.writeLong(misses.get());
@@ -1276,6 +1440,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
+	/** Entries, counted from where the Cleaner starts, which an interrupted resize (if
+	 * prevStoreSize is set) or slot filter rebuild has already processed. Protected by configLock. */
+	private long cleanerCheckpoint = 0;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
@@ -1285,10 +1452,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final Entry NOT_MODIFIED = new Entry();
 
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize; resume is true if continuing from cleanerCheckpoint
+		void init(boolean resume);
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after reading RESIZE_MEMORY_ENTRIES entries, never from two threads at once
 		// return false to abort
 		boolean batch(long entriesLeft);
 
@@ -1299,6 +1466,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		// return <code>null</code> to free the entry
 		// return NOT_MODIFIED to keep the old entry
+		// may be called from several threads at once
 		SaltedHashFreenetStore<T>.Entry process(SaltedHashFreenetStore<T>.Entry entry);
 
 		/** Does this batch processor want to see free entries? */
@@ -1392,20 +1560,32 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			Logger.normal(this, "Starting datastore resize");
 			System.out.println("Resizing datastore "+name);
 
+			final long checkpoint;
+			configLock.readLock().lock();
+			try {
+				checkpoint = cleanerCheckpoint;
+			} finally {
+				configLock.readLock().unlock();
+			}
+
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
 				Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				boolean resumed;
 
 				@Override
-				public void init() {
+				public void init(boolean resume) {
+					resumed = resume;
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resume) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1438,9 +1618,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * CLEANER_THREADS)
+								oldEntryList.poll();
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
@@ -1459,18 +1641,41 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if (storeSize < _prevStoreSize)
 						setStoreFileSize(Math.max(storeSize, entriesLeft));
 
-					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
+					resolveOldEntries();
+
+					return _prevStoreSize == prevStoreSize;
+				}
+
+				private void resolveOldEntries() {
+					// try to resolve the list; not while holding it, as other workers add to
+					// it while holding the locks resolveOldEntry() needs
+					List<Entry> oldEntries;
+					synchronized (oldEntryList) {
+						oldEntries = new ArrayList<Entry>(oldEntryList);
+						oldEntryList.clear();
+					}
+					Iterator<Entry> it = oldEntries.iterator();
 					while (it.hasNext())
 						if (resolveOldEntry(it.next()))
 							it.remove();
-
-					return _prevStoreSize == prevStoreSize;
+					synchronized (oldEntryList) {
+						oldEntryList.addAll(oldEntries);
+						while (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * CLEANER_THREADS)
+							oldEntryList.poll();
+					}
 				}
 
 				@Override
 				public void abort() {
-					// Do nothing
+					// The entries in the list are no longer in their old slots, and a resumed
+					// resize won't see them again, so put back what we can. close() lets us
+					// finish before it shuts down the LockManager.
+					resolveOldEntries();
+					synchronized (oldEntryList) {
+						if (!oldEntryList.isEmpty())
+							Logger.normal(this, "Lost " + oldEntryList.size() + " entries while aborting resize of " + name);
+						oldEntryList.clear();
+					}
 				}
 
 				@Override
@@ -1480,6 +1685,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						cleanerCheckpoint = 0;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1487,7 +1693,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 								slotFilter.forceWrite();
 						}
 
-						flags &= ~FLAG_REBUILD_BLOOM;
+						// If we resumed, the slot filter for the part done before may be stale.
+						if (!resumed)
+							flags &= ~FLAG_REBUILD_BLOOM;
 						resizeCompleteCondition.signalAll();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1501,7 +1709,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, checkpoint);
 		}
 		
 		/**
@@ -1510,15 +1718,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		private void rebuildBloom(boolean sleep) {
 			if(slotFilterDisabled) return;
 			Logger.normal(this, "Start rebuilding slot filter (" + name + ")");
+
+			final long checkpoint;
+			configLock.readLock().lock();
+			try {
+				checkpoint = cleanerCheckpoint;
+			} finally {
+				configLock.readLock().unlock();
+			}
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resume) {
+					if (!resume) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1571,6 +1789,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1584,60 +1803,229 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, checkpoint);
 		}
 
 
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		// For the throughput shown by CleanerStatusUserAlert.
+		private volatile long runStartTime;
+		private volatile long runStartEntries;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
-
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		/**
+		 * One walk over the store. Workers claim CLEANER_CHUNK_ENTRIES consecutive entries at a time, in
+		 * order from the start of the walk (the end of the store if reverse), so the completed
+		 * chunks always form a prefix plus a few chunks in progress. The prefix is saved as
+		 * cleanerCheckpoint, so an interrupted walk resumes from there.
+		 */
+		private class Sweep {
+			final BatchProcessor<T> processor;
+			final long storeSize;
+			final boolean reverse;
+			final boolean sleep;
+			/** Entries already processed before this run. */
+			final long start;
+			final long chunks;
+			final int chunkEntries = CLEANER_CHUNK_ENTRIES;
+			private final AtomicLong nextChunk = new AtomicLong();
+			private final AtomicLong processed;
+			private final BitSet done = new BitSet();
+			/** All chunks below this are done. */
+			private int completeChunks;
+			private int batches;
+			private volatile boolean failed;
+
+			Sweep(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, long start) {
+				this.processor = processor;
+				this.storeSize = storeSize;
+				this.reverse = reverse;
+				this.sleep = sleep;
+				this.start = start;
+				this.chunks = (storeSize - start + chunkEntries - 1) / chunkEntries;
+				this.processed = new AtomicLong(start);
 			}
 
-			int i = 0;
-			processor.init();
-			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
+			/** Process chunks until there are none left.
+			 * @return False if we had to stop early. */
+			boolean work() {
+				try {
+					long chunk;
+					while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+						long low, high;
+						if (!reverse) {
+							low = start + chunk * chunkEntries;
+							high = Math.min(storeSize, low + chunkEntries);
+						} else {
+							high = storeSize - start - chunk * chunkEntries;
+							low = Math.max(0, high - chunkEntries);
+						}
+						if (shutdown || failed)
+							return false;
+						ReadAhead readAhead = new ReadAhead(low, (int) (high - low));
+						for (long pos = 0; pos < high - low; pos += RESIZE_MEMORY_ENTRIES) {
+							if (shutdown || failed)
+								return false;
+							int length = (int) Math.min(RESIZE_MEMORY_ENTRIES, high - low - pos);
+							long offset = reverse ? high - pos - length : low + pos;
+
+							batchProcessEntries(offset, length, processor, readAhead);
+							processed.addAndGet(length);
+							entriesLeft = storeSize - processed.get();
+							synchronized (processor) {
+								if (batches++ % 64 == 0)
+									System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
+									        + entriesTotal);
+								if (!processor.batch(storeSize - completed())) {
+									failed = true;
+									return false;
+								}
+							}
+
+							if (sleep)
+								Thread.sleep(100);
+						}
+						chunkDone(chunk);
 					}
+					return !failed;
+				} catch (InterruptedException e) {
+					failed = true;
+					return false;
+				} catch (Exception e) {
+					Logger.error(this, "Caught: "+e+" while cleaning " + name, e);
+					failed = true;
+					return false;
+				}
+			}
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			/** @return Entries from the start of the walk which have all been processed. */
+			synchronized long completed() {
+				return Math.min(storeSize, start + (long) completeChunks * chunkEntries);
+			}
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
+			private void chunkDone(long chunk) {
+				long checkpoint;
+				synchronized (this) {
+					done.set((int) chunk);
+					if (!done.get(completeChunks))
 						return;
-					}
+					while (done.get(completeChunks))
+						completeChunks++;
+					checkpoint = completed();
+				}
+				configLock.writeLock().lock();
+				try {
+					cleanerCheckpoint = checkpoint;
+				} finally {
+					configLock.writeLock().unlock();
+				}
+			}
+		}
+
+		/**
+		 * The metadata of a whole chunk, read in one I/O without locking it. Locking a whole
+		 * chunk at a time would hold up requests for too long, so each part is still locked
+		 * and processed separately, and only re-read if it may have been written in between.
+		 */
+		private class ReadAhead {
+			private final long offset;
+			private final ByteBuffer buf;
+			/** metaWrites for each bucket the chunk covers, from before it was read. */
+			private final int[] writes;
+
+			ReadAhead(long offset, int length) {
+				this.offset = offset;
+				long firstBucket = offset / META_WRITES_BUCKET_ENTRIES;
+				long lastBucket = (offset + length - 1) / META_WRITES_BUCKET_ENTRIES;
+				writes = new int[(int) (lastBucket - firstBucket + 1)];
+				for (int i = 0; i < writes.length; i++)
+					writes[i] = metaWrites.get((int) ((firstBucket + i) % META_WRITES_BUCKETS));
+				ByteBuffer b = ByteBuffer.allocate(length * Entry.METADATA_LENGTH);
+				try {
+					int read = metaIO.read(b, offset * Entry.METADATA_LENGTH);
+					if (read > 0)
+						bytesRead.addAndGet(read);
+					b.flip();
+				} catch (IOException e) {
+					if (!shutdown)
+						Logger.error(this, "unexpected IOException reading ahead", e);
+					b = null;
+				}
+				buf = b;
+			}
+
+			/**
+			 * @return The metadata read ahead for the given entries, as if just read from disk,
+			 *         or null if it may be out of date. Caller must hold the entries' locks.
+			 */
+			ByteBuffer get(long start, int length) {
+				if (buf == null)
+					return null;
+				long chunkBucket = offset / META_WRITES_BUCKET_ENTRIES;
+				long lastBucket = (start + length - 1) / META_WRITES_BUCKET_ENTRIES;
+				for (long bucket = start / META_WRITES_BUCKET_ENTRIES; bucket <= lastBucket; bucket++) {
+					if (metaWrites.get((int) (bucket % META_WRITES_BUCKETS)) != writes[(int) (bucket - chunkBucket)])
+						return null;
+				}
+				int from = (int) ((start - offset) * Entry.METADATA_LENGTH);
+				ByteBuffer part = buf.duplicate();
+				part.position(Math.min(from, buf.limit()));
+				part.limit(Math.min(from + length * Entry.METADATA_LENGTH, buf.limit()));
+				return part.slice();
+			}
+		}
 
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, long checkpoint) {
+			if (checkpoint < 0 || checkpoint >= storeSize)
+				checkpoint = 0;
+			if (checkpoint != 0)
+				System.err.println(name + " cleaner resuming after " + checkpoint + "/" + storeSize);
+
+			final Sweep sweep = new Sweep(processor, storeSize, reverse, sleep, checkpoint);
+			entriesTotal = storeSize;
+			entriesLeft = storeSize - checkpoint;
+			runStartEntries = checkpoint;
+			runStartTime = System.currentTimeMillis();
+
+			processor.init(checkpoint != 0);
+			// This thread is one of the workers.
+			int threads = Math.max(1, CLEANER_THREADS);
+			NativeThread[] workers = new NativeThread[threads - 1];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new NativeThread("Store-" + name + "-Cleaner-" + (i + 1), NativeThread.PriorityLevel.LOW_PRIORITY.value, false) {
+					@Override
+					public void realRun() {
+						sweep.work();
+					}
+				};
+				workers[i].setDaemon(true);
+				workers[i].start();
+			}
+			boolean success = sweep.work();
+			for (NativeThread worker : workers) {
+				while (worker.isAlive()) {
 					try {
-						if (sleep)
-							Thread.sleep(100);
+						worker.join();
 					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+						sweep.failed = true;
 					}
 				}
+			}
+
+			if (success && !sweep.failed && !shutdown)
 				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
+			else
 				processor.abort();
-			}
+		}
+
+		/** @return Entries processed per second in this run, or -1 if we don't know yet. */
+		long throughput() {
+			long elapsed = System.currentTimeMillis() - runStartTime;
+			if (elapsed < SECONDS.toMillis(10))
+				return -1;
+			long entries = entriesTotal - entriesLeft - runStartEntries;
+			return entries * 1000 / elapsed;
 		}
 
 		/**
@@ -1650,38 +2038,38 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 *            excess store size, read as much as possible.
 		 * @param processor
 		 *            batch processor
+		 * @param readAhead
+		 *            The metadata of the chunk, if it has been read already, or null.
 		 * @return <code>true</code> if operation complete successfully; <code>false</code>
 		 *         otherwise (e.g. can't acquire locks, node shutting down)
 		 */
-		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
+		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor, ReadAhead readAhead) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			// acquire all locks in the region, will unlock in the finally block
+			int[] locked = lockManager.lockEntries(offset, length);
+			if (locked == null)
+				return false;
 			try {
-				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
-						return false;
-				}
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
 
-				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
+				ByteBuffer buf = readAhead == null ? null : readAhead.get(offset, length);
 				boolean dirty = false;
-				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+				if (buf == null) {
+					buf = ByteBuffer.allocate((int) bufLen);
+					try {
+						int read = metaIO.read(buf, startFileOffset);
+						if (read > 0)
+							bytesRead.addAndGet(read);
+					} catch (IOException ioe) {
+						if (shutdown)
+							return false;
+						Logger.error(this, "unexpected IOException", ioe);
 					}
-				} catch (IOException ioe) {
-					if (shutdown)
-						return false;
-					Logger.error(this, "unexpected IOException", ioe);
+					buf.flip();
 				}
-				buf.flip();
 
 				try {
 					for (int j = 0; !shutdown && buf.limit() > j * Entry.METADATA_LENGTH; j++) {
@@ -1740,21 +2128,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
-							}
+							bytesWritten.addAndGet(buf.remaining());
+							metaIO.writeFully(buf, startFileOffset);
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
+						} finally {
+							metaWritten(offset, length);
 						}
 					}
 				}
 
 				return true;
 			} finally {
-				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				lockManager.unlockEntries(locked);
 			}
 		}
 
@@ -1765,7 +2151,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			int[] lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
 			if (lockMap == null)
 				return false;
 			try {
@@ -1800,7 +2186,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockMap);
 			}
 		}
 	}
@@ -1838,12 +2224,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortResizeProgress", //
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + throughput();
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""), 
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + throughput();
 		}
 
 		@Override
@@ -1852,12 +2238,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + throughput();
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
 				        new String[] { "name", "processed", "total" },
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal)  }) + throughput();
+		}
+
+		private String throughput() {
+			long rate = cleaner.throughput();
+			if (rate <= 0)
+				return "";
+			return " " + NodeL10n.getBase().getString("SaltedHashFreenetStore.cleanerThroughput",
+			        new String[] { "rate", "threads", "time" },
+			        new String[] { String.valueOf(rate), String.valueOf(Math.max(1, CLEANER_THREADS)),
+			                TimeUtil.formatTime(cleaner.entriesLeft * 1000 / rate) });
 		}
 
 		@Override
@@ -1924,6 +2320,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerCheckpoint = 0;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -1958,58 +2355,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	/**
 	 * Lock all possible offsets of a key. This method would release the locks if any locking
-	 * operation failed.
+	 * operation failed. The LockManager takes care of duplicates and of locking in a
+	 * deadlock-free order.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The locks to pass to {@link #unlockDigestedKey(int[])}, or <code>null</code> if
+	 *         the offsets could not be locked.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
+	private int[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = new long[OPTION_MAX_PROBE * 2];
 		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+		System.arraycopy(offsetArray, 0, offsets, 0, OPTION_MAX_PROBE);
+		int count = OPTION_MAX_PROBE;
 		if (usePrevStoreSize && prevStoreSize != 0) {
 			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
+			System.arraycopy(offsetArray, 0, offsets, count, OPTION_MAX_PROBE);
+			count += OPTION_MAX_PROBE;
 		}
 
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
-		}
+		return lockManager.lockEntries(offsets, count);
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(int[] lockMap) {
+		lockManager.unlockEntries(lockMap);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2040,8 +2408,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public void close(boolean abort) {
 		if (closeCalled.compareAndSet(false, true)) {
 			shutdown = true;
-			lockManager.shutdown();
 
+			// Wait for the Cleaner to stop, so it can still lock slots to put back any entries
+			// it is moving.
 			cleanerLock.lock();
 			try {
 				cleanerCondition.signalAll();
@@ -2050,6 +2419,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				cleanerLock.unlock();
 			}
 
+			lockManager.shutdown();
+
 			configLock.writeLock().lock();
 			try {
 				flushAndClose(abort);
@@ -2102,6 +2473,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final LatencyHistogram fetchLatency = new LatencyHistogram();
+	private final LatencyHistogram putLatency = new LatencyHistogram();
+	private final LatencyHistogram lockLatency = new LatencyHistogram();
+	private final LatencyHistogram digestLatency = new LatencyHistogram();
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final LatencyHistogram decryptLatency = new LatencyHistogram();
+	private final LatencyHistogram encryptLatency = new LatencyHistogram();
+	/** In StorePhase order. */
+	private final LatencyHistogram[] phaseLatencies = { fetchLatency, putLatency, lockLatency,
+			digestLatency, readLatency, writeLatency, decryptLatency, encryptLatency };
 	
 	private long initialHits;
 	private long initialMisses;
@@ -2194,6 +2578,147 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * Check the slot filter for all the keys first, then read the metadata of any slots it
+	 * doesn't know about, sorted by offset so the disk reads are one sequential pass. Reading the
+	 * metadata also fills in the slot filter.
+	 */
+	@Override
+	public boolean[] probablyInStore(byte[][] routingKeys) {
+		boolean[] result = new boolean[routingKeys.length];
+		configLock.readLock().lock();
+		try {
+			byte[][] digestedKeys = digestKeys(routingKeys);
+			long[] probes = new long[routingKeys.length * OPTION_MAX_PROBE * 2];
+			// No need to read anything if the slot filter says it's there.
+			int probeCount = sortedProbes(digestedKeys, probes, result, true);
+			for(int p = 0; p < probeCount; p++) {
+				int i = (int) probes[p];
+				if(result[i]) continue;
+				long offset = probes[p] >>> 32;
+				int[] lockMap = lockManager.lockEntries(offset, 1);
+				if(lockMap == null) {
+					// Shutting down.
+					result[i] = true;
+					continue;
+				}
+				try {
+					result[i] = readEntry(offset, digestedKeys[i], routingKeys[i], false) != null;
+				} catch (IOException e) {
+					Logger.error(this, "Unable to read slot "+offset+" of "+name+": "+e, e);
+					result[i] = true;
+				} finally {
+					unlockDigestedKey(lockMap);
+				}
+			}
+			return result;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Skip the slots the slot filter rules out, then read the rest of the slots for all the keys,
+	 * both for the current and the previous store size, in one pass sorted by offset. Each slot
+	 * is locked only while it is read, so a block moved by a resize at the same time may be
+	 * missed.
+	 */
+	@Override
+	public List<T> fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		List<T> blocks = new ArrayList<T>(Collections.<T>nCopies(routingKeys.length, null));
+		// Keys we have found, or can't probe in order and have to fetch one at a time.
+		boolean[] done = new boolean[routingKeys.length];
+		boolean[] unsorted = new boolean[routingKeys.length];
+		configLock.readLock().lock();
+		try {
+			byte[][] digestedKeys = digestKeys(routingKeys);
+			long[] probes = new long[routingKeys.length * OPTION_MAX_PROBE * 2];
+			int probeCount = sortedProbes(digestedKeys, probes, unsorted, false);
+			System.arraycopy(unsorted, 0, done, 0, done.length);
+			for(int p = 0; p < probeCount; p++) {
+				int i = (int) probes[p];
+				if(done[i]) continue;
+				long offset = probes[p] >>> 32;
+				int[] lockMap = lockManager.lockEntries(offset, 1);
+				if(lockMap == null) return blocks; // Shutting down.
+				try {
+					Entry entry = readEntry(offset, digestedKeys[i], routingKeys[i], true);
+					if(entry == null) continue;
+					done[i] = true;
+					blocks.set(i, getBlock(entry, routingKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+				} catch (EOFException e) {
+					if (prevStoreSize == 0) // may occur on store shrinking
+						Logger.error(this, "EOFException on fetch", e);
+				} finally {
+					unlockDigestedKey(lockMap);
+				}
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+		for(int i = 0; i < routingKeys.length; i++) {
+			if(unsorted[i])
+				blocks.set(i, fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+			else if(!done[i])
+				misses.incrementAndGet();
+		}
+		return blocks;
+	}
+
+	private byte[][] digestKeys(byte[][] routingKeys) {
+		byte[][] digestedKeys = new byte[routingKeys.length][];
+		for(int i = 0; i < routingKeys.length; i++)
+			digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+		return digestedKeys;
+	}
+
+	/**
+	 * List the slots which might hold each key, for the current and the previous store size,
+	 * leaving out those the slot filter says hold something else, and sort them by offset.
+	 * Caller must hold the config read lock.
+	 * @param probes Filled in with the offset in the top half and the key index in the bottom
+	 * half of each slot to read. Must have room for <code>OPTION_MAX_PROBE * 2</code> slots per
+	 * key.
+	 * @param skipped Set for the keys none of whose slots are listed: those with slots too big
+	 * for the slot filter, and, if <code>stopAtLikelyMatch</code>, those the slot filter says
+	 * are probably here.
+	 * @return The number of slots to read.
+	 */
+	private int sortedProbes(byte[][] digestedKeys, long[] probes, boolean[] skipped, boolean stopAtLikelyMatch) {
+		int probeCount = 0;
+		for(int i = 0; i < digestedKeys.length; i++) {
+			byte[] digestedKey = digestedKeys[i];
+			int firstProbe = probeCount;
+			for(int pass = 0; pass < 2 && !skipped[i]; pass++) {
+				long size = pass == 0 ? storeSize : prevStoreSize;
+				if(size == 0) continue;
+				for(long offset : getOffsetFromDigestedKey(digestedKey, size)) {
+					if(offset > Integer.MAX_VALUE) {
+						skipped[i] = true; // FIXME!
+						break;
+					}
+					if(!slotFilterDisabled) {
+						int cache = slotFilter.get((int)offset);
+						if((cache & SLOT_CHECKED) != 0) {
+							if(!slotCacheLikelyMatch(cache, digestedKey))
+								continue;
+							if(stopAtLikelyMatch) {
+								skipped[i] = true;
+								break;
+							}
+						}
+					}
+					if(storeFileOffsetReady == -1 || offset < storeFileOffsetReady)
+						probes[probeCount++] = (offset << 32) | i;
+				}
+			}
+			if(skipped[i]) probeCount = firstProbe;
+		}
+		Arrays.sort(probes, 0, probeCount);
+		return probeCount;
+	}
+
 	public void destruct() {
 		metaFile.delete();
 		hdFile.delete();
@@ -2229,6 +2754,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public LatencyHistogram latency(StorePhase phase) {
+				return phaseLatencies[phase.ordinal()];
+			}
+
+			@Override
+			public long bytesRead() {
+				return bytesRead.get();
+			}
+
+			@Override
+			public long bytesWritten() {
+				return bytesWritten.get();
+			}
 			
 		};
 	}
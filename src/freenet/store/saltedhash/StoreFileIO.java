@@ -0,0 +1,52 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional I/O on one of the files backing a {@link SaltedHashFreenetStore}, i.e. the
+ * metadata file or the header+data file. All methods must be safe to call from several
+ * threads at once, provided they don't touch the same slot (which the {@link LockManager}
+ * guarantees).
+ *
+ * @see ChannelStoreFileIO
+ * @see MappedStoreFileIO
+ * @see WriteBehindQueue
+ */
+interface StoreFileIO {
+
+	/**
+	 * Read until <code>buf</code> is full.
+	 *
+	 * @throws java.io.EOFException
+	 *             If the end of the file is reached first.
+	 */
+	void readFully(ByteBuffer buf, long position) throws IOException;
+
+	/**
+	 * Read as much as is available into <code>buf</code>, stopping at the end of the file.
+	 *
+	 * @return The number of bytes read, or -1 if <code>position</code> is at or beyond the end
+	 *         of the file.
+	 */
+	int read(ByteBuffer buf, long position) throws IOException;
+
+	/** Write the whole of <code>buf</code>, extending the file if necessary. */
+	void writeFully(ByteBuffer buf, long position) throws IOException;
+
+	/** Write all of <code>bufs</code> one after the other, starting at <code>position</code>.
+	 * Used to write a run of adjacent slots in one go. */
+	void writeFully(ByteBuffer[] bufs, long position) throws IOException;
+
+	/** Change the length of the underlying file. */
+	void setLength(long length) throws IOException;
+
+	/** Force all writes to disk. */
+	void force() throws IOException;
+
+	void close() throws IOException;
+
+}
@@ -0,0 +1,504 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Write-behind for the metadata and header+data files of a {@link SaltedHashFreenetStore}.
+ *
+ * Slot writes are copied into a bounded in-memory queue and the caller returns immediately.
+ * A single writer thread waits a little for more writes to arrive (group commit), then
+ * writes everything queued in offset order, merging runs of adjacent slots into one gathering
+ * write. The header+data file is always written before the metadata file, and the metadata of
+ * a slot whose header+data failed to write isn't written at all. Neither file is forced in
+ * between, so after a crash the OS may still have kept the metadata but not the block, as with
+ * the store's own writes, which are only forced on close. {@link #writeSlot} queues both
+ * halves of a slot at once, so the writer can't take one without the other.
+ *
+ * If a write fails, the slots stay queued and are retried, and the error is thrown from the
+ * next {@link #flush()} or write, so it isn't lost just because the caller has returned.
+ *
+ * Reads of a slot which is still queued are answered from the queue. A queued slot is only
+ * removed after it has been written, so a reader always sees either the queued copy or the
+ * data on disk, never a stale slot. Like the rest of the store, this relies on the
+ * {@link LockManager} to stop two threads touching the same slot at once.
+ *
+ * This sits at the same level as {@link freenet.store.caching.CachingFreenetStore}, but caches
+ * encrypted slots rather than blocks, has a hard memory limit, and preserves write order.
+ */
+class WriteBehindQueue {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(WriteBehindQueue.class);
+	}
+
+	/** How long the writer waits for more writes before flushing a partial batch. */
+	static final int DEFAULT_COMMIT_DELAY = 50;
+	/** Maximum size of a single gathering write. */
+	private static final int MAX_RUN_BYTES = 1024 * 1024;
+	/** How long the writer waits before retrying after a failed write. */
+	static final int RETRY_DELAY = 1000;
+
+	private final String name;
+	private final QueuedFileIO metaIO;
+	private final QueuedFileIO hdIO;
+	private final int maxPending;
+	private final int commitDelay;
+	private final Writer writer;
+
+	/** Set when a caller is waiting for the queue to drain, so the writer doesn't wait for a
+	 * full batch. */
+	private int flushWaiters;
+	/** True while the writer is writing a batch it has taken from the queue. */
+	private boolean writing;
+	private boolean shutdown;
+	/** The last write error, until it has been reported by flush() or a write. */
+	private IOException writeError;
+
+	/**
+	 * @param metaIO
+	 *            The metadata file.
+	 * @param hdIO
+	 *            The header+data file.
+	 * @param maxPending
+	 *            Maximum number of slots queued per file. Writers block when it is reached.
+	 */
+	WriteBehindQueue(String name, StoreFileIO metaIO, int metaRecordLength, StoreFileIO hdIO, int hdRecordLength,
+	        int maxPending, int commitDelay) {
+		if (maxPending <= 0)
+			throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+		this.name = name;
+		this.metaIO = new QueuedFileIO(metaIO, metaRecordLength);
+		this.hdIO = new QueuedFileIO(hdIO, hdRecordLength);
+		this.maxPending = maxPending;
+		this.commitDelay = commitDelay;
+		this.writer = new Writer();
+	}
+
+	WriteBehindQueue(String name, StoreFileIO metaIO, int metaRecordLength, StoreFileIO hdIO, int hdRecordLength,
+	        int maxPending) {
+		this(name, metaIO, metaRecordLength, hdIO, hdRecordLength, maxPending, DEFAULT_COMMIT_DELAY);
+	}
+
+	StoreFileIO getMetaIO() {
+		return metaIO;
+	}
+
+	StoreFileIO getHDIO() {
+		return hdIO;
+	}
+
+	void start() {
+		writer.start();
+	}
+
+	/** Number of slots waiting to be written, for both files. */
+	synchronized int pendingCount() {
+		return metaIO.pending.size() + hdIO.pending.size();
+	}
+
+	/** Wait until everything queued so far has been written.
+	 * @throws IOException If a write has failed since the last error was reported. The slots
+	 * concerned are still queued. */
+	void flush() throws IOException {
+		synchronized (this) {
+			flushWaiters++;
+			try {
+				notifyAll();
+				while ((!metaIO.pending.isEmpty() || !hdIO.pending.isEmpty() || writing) && writeError == null) {
+					if (!writer.isAlive() && !writing) {
+						// Not started, or already shut down. Write it ourselves.
+						break;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+			} finally {
+				flushWaiters--;
+			}
+		}
+		if (!writer.isAlive())
+			writeBatch();
+		checkWriteError();
+	}
+
+	/** Write everything and stop the writer thread. */
+	void shutdown() throws IOException {
+		try {
+			flush();
+		} finally {
+			synchronized (this) {
+				shutdown = true;
+				notifyAll();
+			}
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+			// Anything queued after the writer exited.
+			writeBatch();
+		}
+		checkWriteError();
+	}
+
+	/** Throw the last write error, if it hasn't been reported yet. */
+	private synchronized void checkWriteError() throws IOException {
+		IOException e = writeError;
+		if (e == null)
+			return;
+		writeError = null;
+		throw new IOException("Write-behind failed for " + name + " : " + e, e);
+	}
+
+	/**
+	 * Queue both halves of a slot in one go, so that the writer can never write the metadata
+	 * without the header+data it refers to.
+	 *
+	 * @param hd
+	 *            The header+data, or null to only write the metadata.
+	 */
+	void writeSlot(ByteBuffer meta, long metaPosition, ByteBuffer hd, long hdPosition) throws IOException {
+		long metaSlot = metaIO.checkSlot(meta, metaPosition);
+		ByteBuffer metaCopy = metaIO.copy(meta);
+		long hdSlot = -1;
+		ByteBuffer hdCopy = null;
+		if (hd != null) {
+			hdSlot = hdIO.checkSlot(hd, hdPosition);
+			hdCopy = hdIO.copy(hd);
+		}
+		synchronized (this) {
+			checkWriteError();
+			while (!metaIO.hasRoom(metaSlot) || (hdCopy != null && !hdIO.hasRoom(hdSlot))) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted: " + e);
+				}
+			}
+			if (hdCopy != null)
+				hdIO.pending.put(hdSlot, hdCopy);
+			metaIO.pending.put(metaSlot, metaCopy);
+			notifyAll();
+		}
+	}
+
+	private class Writer extends NativeThread {
+
+		Writer() {
+			super("Store-" + name + "-Writer", NativeThread.PriorityLevel.HIGH_PRIORITY.value, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void realRun() {
+			while (true) {
+				synchronized (WriteBehindQueue.this) {
+					while (metaIO.pending.isEmpty() && hdIO.pending.isEmpty()) {
+						if (shutdown)
+							return;
+						try {
+							WriteBehindQueue.this.wait();
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+					// Group commit: give other writers a chance to join this batch, unless the
+					// queue is getting full or somebody is waiting for it to drain.
+					long deadline = System.currentTimeMillis() + commitDelay;
+					while (flushWaiters == 0 && !shutdown && hdIO.pending.size() < maxPending / 2 &&
+					        metaIO.pending.size() < maxPending / 2) {
+						long now = System.currentTimeMillis();
+						if (now >= deadline)
+							break;
+						try {
+							WriteBehindQueue.this.wait(deadline - now);
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+				}
+				if (!writeBatch()) {
+					// Don't spin on a failing disk. The failed slots are still queued.
+					synchronized (WriteBehindQueue.this) {
+						// shutdown() makes the last attempt and reports the error.
+						if (shutdown)
+							return;
+						try {
+							WriteBehindQueue.this.wait(RETRY_DELAY);
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Write everything currently queued, then remove what was written from the queue.
+	 * @return False if a write failed. */
+	private boolean writeBatch() {
+		SortedMap<Long, ByteBuffer> hdBatch;
+		SortedMap<Long, ByteBuffer> metaBatch;
+		synchronized (this) {
+			if (metaIO.pending.isEmpty() && hdIO.pending.isEmpty())
+				return true;
+			while (writing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			writing = true;
+			hdBatch = new TreeMap<Long, ByteBuffer>(hdIO.pending);
+			metaBatch = new TreeMap<Long, ByteBuffer>(metaIO.pending);
+		}
+		IOException error = null;
+		try {
+			ArrayList<Long> failed = hdIO.writeRuns(hdBatch);
+			if (!failed.isEmpty()) {
+				error = hdIO.lastError;
+				// The metadata would refer to data which wasn't written.
+				metaBatch.keySet().removeAll(failed);
+			}
+			if (!metaIO.writeRuns(metaBatch).isEmpty())
+				error = metaIO.lastError;
+		} finally {
+			synchronized (this) {
+				// Only remove what we wrote: a slot may have been queued again meanwhile.
+				hdIO.removeWritten(hdBatch);
+				metaIO.removeWritten(metaBatch);
+				if (error != null)
+					writeError = error;
+				writing = false;
+				notifyAll();
+			}
+		}
+		if (logMINOR)
+			Logger.minor(this, "Wrote " + hdBatch.size() + " data slots and " + metaBatch.size() + " metadata slots for " + name);
+		return error == null;
+	}
+
+	/** One of the two files. All queue state is protected by the WriteBehindQueue. */
+	private class QueuedFileIO implements StoreFileIO {
+
+		private final StoreFileIO underlying;
+		private final int recordLength;
+		/** Queued slots by slot number. The buffers are never modified once queued. */
+		private final TreeMap<Long, ByteBuffer> pending = new TreeMap<Long, ByteBuffer>();
+		/** The last error from writeRuns(). Only used by the thread doing the writing. */
+		private IOException lastError;
+
+		QueuedFileIO(StoreFileIO underlying, int recordLength) {
+			this.underlying = underlying;
+			this.recordLength = recordLength;
+		}
+
+		@Override
+		public void readFully(ByteBuffer buf, long position) throws IOException {
+			if (buf.remaining() == recordLength && position % recordLength == 0) {
+				// Common case: a single slot.
+				synchronized (WriteBehindQueue.this) {
+					ByteBuffer queued = pending.get(position / recordLength);
+					if (queued != null) {
+						buf.put(queued.duplicate());
+						return;
+					}
+				}
+				underlying.readFully(buf, position);
+				return;
+			}
+			int start = buf.position();
+			int length = buf.remaining();
+			SortedMap<Long, ByteBuffer> queued = queuedIn(position, length);
+			underlying.readFully(buf, position);
+			if (queued != null)
+				overlay(queued, buf, start, position, length);
+		}
+
+		@Override
+		public int read(ByteBuffer buf, long position) throws IOException {
+			int start = buf.position();
+			int length = buf.remaining();
+			SortedMap<Long, ByteBuffer> queued = queuedIn(position, length);
+			int read = underlying.read(buf, position);
+			if (queued != null && read > 0)
+				overlay(queued, buf, start, position, read);
+			return read;
+		}
+
+		/**
+		 * @return A copy of the queued slots overlapping the range, or null if there are none.
+		 * Since the caller holds the locks, nothing else can be queued in the range. Anything in
+		 * the copy may be written and removed while we are reading the disk, so we may read a
+		 * half-written slot, but we then overlay the whole of it, so this doesn't matter.
+		 */
+		private SortedMap<Long, ByteBuffer> queuedIn(long position, int length) {
+			long first = position / recordLength;
+			long last = (position + length - 1) / recordLength;
+			synchronized (WriteBehindQueue.this) {
+				if (pending.isEmpty())
+					return null;
+				SortedMap<Long, ByteBuffer> queued = pending.subMap(first, last + 1);
+				return queued.isEmpty() ? null : new TreeMap<Long, ByteBuffer>(queued);
+			}
+		}
+
+		/** Copy queued slots over the data just read from disk. */
+		private void overlay(SortedMap<Long, ByteBuffer> queued, ByteBuffer buf, int start, long position, int length) {
+			for (Map.Entry<Long, ByteBuffer> e : queued.entrySet()) {
+				long slotStart = e.getKey() * recordLength;
+				long from = Math.max(slotStart, position);
+				long to = Math.min(slotStart + recordLength, position + length);
+				if (from >= to)
+					continue;
+				ByteBuffer src = e.getValue().duplicate();
+				src.position((int) (from - slotStart));
+				src.limit((int) (to - slotStart));
+				ByteBuffer dst = buf.duplicate();
+				dst.limit(dst.capacity());
+				dst.position(start + (int) (from - position));
+				dst.put(src);
+			}
+		}
+
+		@Override
+		public void writeFully(ByteBuffer buf, long position) throws IOException {
+			if (position % recordLength != 0 || buf.remaining() % recordLength != 0) {
+				// Not used by the store, but don't reorder it with queued writes.
+				flush();
+				underlying.writeFully(buf, position);
+				return;
+			}
+			long slot = position / recordLength;
+			int count = buf.remaining() / recordLength;
+			ByteBuffer[] copies = new ByteBuffer[count];
+			for (int i = 0; i < count; i++)
+				copies[i] = copy(buf);
+			synchronized (WriteBehindQueue.this) {
+				checkWriteError();
+				for (int i = 0; i < count; i++) {
+					while (!hasRoom(slot + i)) {
+						try {
+							WriteBehindQueue.this.wait();
+						} catch (InterruptedException e) {
+							throw new IOException("interrupted: " + e);
+						}
+					}
+					pending.put(slot + i, copies[i]);
+				}
+				WriteBehindQueue.this.notifyAll();
+			}
+		}
+
+		/** @return The slot number for a single slot write at <code>position</code>. */
+		private long checkSlot(ByteBuffer buf, long position) {
+			if (position % recordLength != 0 || buf.remaining() != recordLength)
+				throw new IllegalArgumentException("Not a single slot: " + buf.remaining() + " bytes at " + position);
+			return position / recordLength;
+		}
+
+		/** Copy the next slot out of <code>buf</code>, advancing its position. */
+		private ByteBuffer copy(ByteBuffer buf) {
+			ByteBuffer copy = ByteBuffer.allocate(recordLength);
+			ByteBuffer src = buf.duplicate();
+			src.limit(src.position() + recordLength);
+			copy.put(src);
+			copy.flip();
+			buf.position(buf.position() + recordLength);
+			return copy;
+		}
+
+		/** Caller must hold the lock. */
+		private boolean hasRoom(long slot) {
+			return pending.size() < maxPending || pending.containsKey(slot);
+		}
+
+		/** Write a snapshot of the queue, merging adjacent slots. Slots which fail to write are
+		 * removed from the batch, so they stay queued, and the error is kept in lastError.
+		 * @return The slots which failed. */
+		private ArrayList<Long> writeRuns(SortedMap<Long, ByteBuffer> batch) {
+			int maxRun = Math.max(1, MAX_RUN_BYTES / recordLength);
+			ArrayList<ByteBuffer> run = new ArrayList<ByteBuffer>(Math.min(maxRun, batch.size()));
+			ArrayList<Long> failed = new ArrayList<Long>();
+			long runStart = -1;
+			for (Map.Entry<Long, ByteBuffer> e : batch.entrySet()) {
+				long slot = e.getKey();
+				if (!run.isEmpty() && (slot != runStart + run.size() || run.size() >= maxRun)) {
+					writeRun(run, runStart, failed);
+					run.clear();
+				}
+				if (run.isEmpty())
+					runStart = slot;
+				run.add(e.getValue().duplicate());
+			}
+			if (!run.isEmpty())
+				writeRun(run, runStart, failed);
+			batch.keySet().removeAll(failed);
+			return failed;
+		}
+
+		private void writeRun(ArrayList<ByteBuffer> run, long slot, ArrayList<Long> failed) {
+			try {
+				underlying.writeFully(run.toArray(new ByteBuffer[run.size()]), slot * recordLength);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write " + run.size() + " slots at " + slot + " in " + name + ", will retry: " + e, e);
+				lastError = e;
+				for (int i = 0; i < run.size(); i++)
+					failed.add(slot + i);
+			}
+		}
+
+		private void removeWritten(SortedMap<Long, ByteBuffer> batch) {
+			for (Map.Entry<Long, ByteBuffer> e : batch.entrySet()) {
+				if (pending.get(e.getKey()) == e.getValue())
+					pending.remove(e.getKey());
+			}
+		}
+
+		@Override
+		public void writeFully(ByteBuffer[] bufs, long position) throws IOException {
+			for (ByteBuffer buf : bufs) {
+				int length = buf.remaining();
+				writeFully(buf, position);
+				position += length;
+			}
+		}
+
+		@Override
+		public void setLength(long length) throws IOException {
+			// Queued slots may be beyond the new end of file.
+			flush();
+			underlying.setLength(length);
+		}
+
+		@Override
+		public void force() throws IOException {
+			flush();
+			underlying.force();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			underlying.close();
+		}
+	}
+
+}
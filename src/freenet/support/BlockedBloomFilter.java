@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter for keys which are already hashes, e.g. salted routing keys.
+ *
+ * The older filters seed a MersenneTwister with every key to get the k indexes, and take a lock
+ * for every check. This one uses the key itself: the first 8 bytes choose a block of 512 bits
+ * (one cache line, or two if the array isn't aligned), and the next 8 bytes give two hashes a and
+ * b, from which the k indexes within the block are a + i*b (Kirsch and Mitzenmacher). So a check
+ * touches one block, and costs a few multiplications. The bits are held in an AtomicLongArray:
+ * checks don't lock at all, and adds and removes update one word at a time with compare and set.
+ *
+ * Keeping all of a key's bits in one block makes false positives slightly more likely than in an
+ * ordinary filter of the same size, and the indexes are different, so a filter written by
+ * {@link BinaryBloomFilter} or {@link CountingBloomFilter} must be rebuilt, not loaded. The
+ * serialized layout of the bits themselves is the same.
+ *
+ * A counting filter has 2-bit counters, which stick at 3, like {@link CountingBloomFilter}.
+ */
+public class BlockedBloomFilter extends BloomFilter {
+
+	/** Bits in each block. */
+	static final int BLOCK_BITS = 512;
+
+	private final boolean counting;
+	/** Bits per cell: 1, or 2 for a counting filter. */
+	private final int cellBits;
+	private final int cellsPerBlock;
+	private final int blocks;
+	private final int sizeBytes;
+	private final AtomicLongArray words;
+	private boolean warnOnRemoveFromEmpty;
+
+	/**
+	 * @param length Number of cells, i.e. bits, or counters if counting.
+	 * @param k Number of hashes.
+	 * @param counting If true, keys can be removed.
+	 */
+	public BlockedBloomFilter(int length, int k, boolean counting) {
+		super(length, k);
+		this.counting = counting;
+		cellBits = counting ? 2 : 1;
+		cellsPerBlock = BLOCK_BITS / cellBits;
+		blocks = (int) ((this.length + (long) cellsPerBlock - 1) / cellsPerBlock);
+		sizeBytes = (int) ((long) this.length * cellBits / 8);
+		words = new AtomicLongArray((sizeBytes + 7) / 8);
+	}
+
+	/**
+	 * Load a filter written by {@link #writeTo(OutputStream)}.
+	 * @param buf Must contain {@link #getSizeBytes()} bytes starting at offset.
+	 */
+	public BlockedBloomFilter(int length, int k, boolean counting, byte[] buf, int offset) {
+		this(length, k, counting);
+		for(int i = 0; i < sizeBytes; i++) {
+			long b = buf[offset + i] & 0xFFL;
+			if(b != 0)
+				words.set(i >> 3, words.get(i >> 3) | (b << ((i & 7) * 8)));
+		}
+	}
+
+	/** Log an error if a key is removed which isn't in the filter. Counting filters only. */
+	public void setWarnOnRemoveFromEmpty() {
+		warnOnRemoveFromEmpty = true;
+	}
+
+	public boolean isCounting() {
+		return counting;
+	}
+
+	//-- Core
+	@Override
+	public void addKey(byte[] key) {
+		if(k != 0) {
+			long h1 = hash1(key);
+			long h2 = hash2(key);
+			int start = blockStart(h1);
+			int cells = blockCells(start);
+			int a = (int) h2;
+			int b = (int) (h2 >>> 32) | 1;
+			for(int i = 0; i < k; i++)
+				setBit(start + ((a + i * b) & Integer.MAX_VALUE) % cells);
+		}
+
+		if (forkedFilter != null)
+			forkedFilter.addKey(key);
+	}
+
+	@Override
+	public boolean checkFilter(byte[] key) {
+		if(k == 0) return true;
+		long h1 = hash1(key);
+		long h2 = hash2(key);
+		int start = blockStart(h1);
+		int cells = blockCells(start);
+		int a = (int) h2;
+		int b = (int) (h2 >>> 32) | 1;
+		for(int i = 0; i < k; i++)
+			if(!getBit(start + ((a + i * b) & Integer.MAX_VALUE) % cells))
+				return false;
+		return true;
+	}
+
+	@Override
+	public void removeKey(byte[] key) {
+		if(!counting) return;
+		if(k != 0) {
+			long h1 = hash1(key);
+			long h2 = hash2(key);
+			int start = blockStart(h1);
+			int cells = blockCells(start);
+			int a = (int) h2;
+			int b = (int) (h2 >>> 32) | 1;
+			for(int i = 0; i < k; i++)
+				unsetBit(start + ((a + i * b) & Integer.MAX_VALUE) % cells);
+		}
+
+		if (forkedFilter != null)
+			forkedFilter.removeKey(key);
+	}
+
+	//-- Bits and Hashes
+	/** First cell of the block chosen by the first hash. */
+	private int blockStart(long h1) {
+		return (int) ((h1 & Long.MAX_VALUE) % blocks) * cellsPerBlock;
+	}
+
+	/** The last block may be shorter than the others. */
+	private int blockCells(int start) {
+		return Math.min(cellsPerBlock, length - start);
+	}
+
+	private static long hash1(byte[] key) {
+		if(key.length >= 16)
+			return Fields.bytesToLong(key, 0);
+		return mix(Fields.hashCode(key));
+	}
+
+	private static long hash2(byte[] key) {
+		if(key.length >= 16)
+			return Fields.bytesToLong(key, 8);
+		return mix(~Fields.hashCode(key));
+	}
+
+	/** Spread a short key's hash over 64 bits (the finalizer from MurmurHash3). */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private int cellValue(long word, int shift) {
+		return (int) (word >>> shift) & (counting ? 3 : 1);
+	}
+
+	@Override
+	protected boolean getBit(int offset) {
+		long bit = (long) offset * cellBits;
+		return cellValue(words.get((int) (bit >> 6)), (int) (bit & 63)) != 0;
+	}
+
+	@Override
+	protected void setBit(int offset) {
+		long bit = (long) offset * cellBits;
+		int index = (int) (bit >> 6);
+		int shift = (int) (bit & 63);
+		while(true) {
+			long old = words.get(index);
+			int v = cellValue(old, shift);
+			if(counting ? v == 3 : v == 1)
+				return; // already set, or overflow
+			if(words.compareAndSet(index, old, old + (1L << shift)))
+				return;
+		}
+	}
+
+	@Override
+	protected void unsetBit(int offset) {
+		if(!counting) return;
+		long bit = (long) offset * cellBits;
+		int index = (int) (bit >> 6);
+		int shift = (int) (bit & 63);
+		while(true) {
+			long old = words.get(index);
+			int v = cellValue(old, shift);
+			if (v == 0 && warnOnRemoveFromEmpty)
+				Logger.error(this, "Unsetting bit but already unset - probable double remove, can cause false negatives, is very bad!", new Exception("error"));
+			if(v == 0 || v == 3)
+				return; // overflow / underflow
+			if(words.compareAndSet(index, old, old - (1L << shift)))
+				return;
+		}
+	}
+
+	@Override
+	public void unsetAll() {
+		for(int i = 0; i < words.length(); i++)
+			words.set(i, 0);
+	}
+
+	//-- Fork & Merge
+	@Override
+	public void fork(int k) {
+		lock.writeLock().lock();
+		try {
+			forkedFilter = new BlockedBloomFilter(length, k, counting);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void merge() {
+		lock.writeLock().lock();
+		try {
+			if (forkedFilter == null)
+				return;
+			AtomicLongArray forked = ((BlockedBloomFilter) forkedFilter).words;
+			for(int i = 0; i < words.length(); i++)
+				words.set(i, forked.get(i));
+			forkedFilter.close();
+			forkedFilter = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//-- Misc.
+	@Override
+	public int getSizeBytes() {
+		return sizeBytes;
+	}
+
+	@Override
+	public int copyTo(byte[] buf, int offset) {
+		for(int i = 0; i < sizeBytes; i++)
+			buf[offset + i] = (byte) (words.get(i >> 3) >>> ((i & 7) * 8));
+		return sizeBytes;
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		byte[] buf = new byte[sizeBytes];
+		copyTo(buf, 0);
+		os.write(buf);
+	}
+
+}
@@ -21,6 +21,7 @@ package freenet.support;
 
 import java.io.DataInput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -50,18 +51,42 @@ public class Buffer implements WritableToDataOutputStream {
 	 */
 	public Buffer(DataInput dis) throws IOException {
 		_length = dis.readInt();
-		if(_length < 0)
-			throw new IllegalArgumentException("Negative Length: "+_length);
-		if (_length > Serializer.MAX_ARRAY_LENGTH) {
-			//TODO: Is it more appropriate for this to be an IOException?
-			throw new IllegalArgumentException("Length larger than " + Serializer.MAX_ARRAY_LENGTH);
-		}
-
+		checkLength(_length);
 		_data = new byte[_length];
 		_start = 0;
 		dis.readFully(_data);
 	}
 
+	/**
+	 * Read a Buffer in the same format as Buffer(DataInput), but without copying the data: the
+	 * Buffer is a slice of the array the stream reads from. Used when decoding messages, so
+	 * block data can be passed on and sent again without being copied, which is only safe
+	 * because the array is never changed afterwards.
+	 *
+	 * @param bb to read bytes from
+	 * @throws IllegalArgumentException If the length integer is negative or exceeds Serializer.MAX_ARRAY_LENGTH.
+	 * @throws IOException error reading from bb
+	 */
+	public static Buffer readShared(ByteBufferInputStream bb) throws IOException {
+		if(!bb.buf.hasArray()) return new Buffer(bb);
+		int length = bb.readInt();
+		checkLength(length);
+		if(bb.remaining() < length)
+			throw new EOFException();
+		Buffer b = new Buffer(bb.buf.array(), bb.buf.arrayOffset() + bb.buf.position(), length);
+		bb.skipBytes(length);
+		return b;
+	}
+
+	private static void checkLength(int length) {
+		if(length < 0)
+			throw new IllegalArgumentException("Negative Length: "+length);
+		if (length > Serializer.MAX_ARRAY_LENGTH) {
+			//TODO: Is it more appropriate for this to be an IOException?
+			throw new IllegalArgumentException("Length larger than " + Serializer.MAX_ARRAY_LENGTH);
+		}
+	}
+
 	/**
 	 * Create a Buffer from a byte array
 	 *
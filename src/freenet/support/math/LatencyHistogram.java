@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, for timing hot paths where a synchronized
+ * running average would cost more than the thing being timed.
+ *
+ * Buckets are log-linear, like HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so a percentile is accurate to within 1/8th of its value,
+ * from 1ns to the largest long, in under 4KB. Reading while other threads are reporting gives
+ * an approximate answer, which is fine for statistics.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS for each power of two up to 2^62. */
+	static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Record a duration. Negative durations, e.g. from a badly behaved clock, count as 0. */
+	public void report(long nanos) {
+		if(nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long oldMax;
+		while(nanos > (oldMax = max.get())) {
+			if(max.compareAndSet(oldMax, nanos)) break;
+		}
+	}
+
+	/** Record the time since start, which was taken from System.nanoTime(). */
+	public void reportSince(long start) {
+		report(System.nanoTime() - start);
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long totalNanos() {
+		return total.get();
+	}
+
+	public long maxNanos() {
+		return max.get();
+	}
+
+	public double meanNanos() {
+		long c = count.get();
+		return c == 0 ? 0.0 : (double) total.get() / c;
+	}
+
+	/**
+	 * @param p The fraction of reports, between 0.0 and 1.0.
+	 * @return The duration which that fraction of reports didn't exceed, rounded up to the top of
+	 * its bucket but never more than the maximum, or 0 if nothing has been reported.
+	 */
+	public long percentileNanos(double p) {
+		if(p < 0.0 || p > 1.0) throw new IllegalArgumentException();
+		long c = count.get();
+		if(c == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * c));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(highestInBucket(i), max.get());
+		}
+		// Reports arrived while we were counting.
+		return max.get();
+	}
+
+	static int bucketOf(long nanos) {
+		if(nanos < SUB_BUCKETS) return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long highestInBucket(int bucket) {
+		if(bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + sub) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+}
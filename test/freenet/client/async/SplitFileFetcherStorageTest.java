@@ -2,7 +2,10 @@ package freenet.client.async;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -1016,6 +1019,75 @@ public class SplitFileFetcherStorageTest {
         storage.close();
     }
     
+    private static int readFlags(LockableRandomAccessBuffer raf) throws IOException {
+        byte[] buf = new byte[4];
+        raf.pread(raf.size()-18, buf, 0, 4);
+        return new DataInputStream(new ByteArrayInputStream(buf)).readInt();
+    }
+    
+    /** Rewrite the flags in the footer, and the checksum which covers them. */
+    private static void writeFlags(LockableRandomAccessBuffer raf, int flags) throws IOException {
+        CRCChecksumChecker checker = new CRCChecksumChecker();
+        long offset = raf.size() - (22 + checker.checksumLength());
+        byte[] buf = new byte[14];
+        raf.pread(offset, buf, 0, 4);
+        raf.pread(raf.size()-18, buf, 4, 10);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new DataOutputStream(baos).writeInt(flags);
+        System.arraycopy(baos.toByteArray(), 0, buf, 4, 4);
+        byte[] checksum = checker.generateChecksum(buf);
+        raf.pwrite(offset + 4, checksum, 0, checksum.length);
+        raf.pwrite(raf.size()-18, buf, 4, 4);
+    }
+    
+    /** Test reloading a file written before the blocked bloom filters, without any flags. The old
+     * filters are regenerated, and only then is the flag set. */
+    @Test
+    public void testPersistenceReloadOldFooter() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, StorageFormatException {
+        int dataBlocks = 2;
+        int checkBlocks = 3;
+        long size = 32768*2-1;
+        assertTrue(dataBlocks * (long)BLOCK_SIZE >= size);
+        TestSplitfile test = TestSplitfile.constructSingleSegment(size, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        LockableRandomAccessBuffer raf = cb.getRAF();
+        assertEquals(SplitFileFetcherStorage.FLAG_BLOCKED_BLOOM_FILTERS, readFlags(raf));
+        // No need to shutdown the old storage.
+        writeFlags(raf, 0);
+        storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertTrue(storage.keyListener.needsKeys());
+        // Not marked as migrated until the filters have been rewritten.
+        assertEquals(0, readFlags(raf));
+        storage.start(false);
+        exec.waitForIdle();
+        assertFalse(storage.keyListener.needsKeys());
+        assertEquals(SplitFileFetcherStorage.FLAG_BLOCKED_BLOOM_FILTERS, readFlags(raf));
+        for(int i=0;i<dataBlocks+checkBlocks;i++) {
+            NodeCHK key = test.getCHK(i);
+            assertTrue(storage.keyListener.probablyWantKey(key, salt.saltKey(key)));
+        }
+        // And reloads as a new file.
+        storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertFalse(storage.keyListener.needsKeys());
+        storage.close();
+    }
+    
+    /** A file from a newer build, with flags we don't know about, is rejected. */
+    @Test
+    public void testPersistenceReloadUnknownFlags() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        TestSplitfile test = TestSplitfile.constructSingleSegment(32768*2-1, 3, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        test.createStorage(cb);
+        writeFlags(cb.getRAF(), SplitFileFetcherStorage.FLAGS | 2);
+        try {
+            test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+            fail();
+        } catch (StorageFormatException e) {
+            // Expected.
+        }
+    }
+    
     @Test
     public void testPersistenceReloadThenFetch() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
         int dataBlocks = 2;
@@ -77,4 +77,57 @@ public class MessageTest {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/**
+	 * Test that a message survives being encoded and decoded, including into the middle of a
+	 * buffer.
+	 */
+	@Test
+	public void testEncodeDecode() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-12);
+		msg.set(SHORT, (short)-456);
+		msg.set(INT, -78912);
+		msg.set(LONG, 0x0123456789abcdefL);
+		msg.set(DOUBLE, -Math.PI);
+		msg.set(FLOAT, 0.12345f);
+		msg.set(DOUBLE_ARRAY, new double[] { Math.PI, Math.E });
+		msg.set(FLOAT_ARRAY, new float[] { 1234.5678f });
+
+		byte[] encoded = msg.encodeToPacket();
+		assertEquals(encoded.length, msg.encodedLength());
+		byte[] buf = new byte[encoded.length + 10];
+		assertEquals(encoded.length, msg.encodeToPacket(buf, 5));
+		assertTrue(Arrays.equals(encoded, Arrays.copyOfRange(buf, 5, 5 + encoded.length)));
+
+		Message decoded = Message.decodeMessageLax(encoded, null, 0);
+		assertNotNull(decoded);
+		assertEquals(test, decoded.getSpec());
+		assertEquals(true, decoded.getBoolean(BOOLEAN));
+		assertEquals((byte)-12, decoded.getByte(BYTE));
+		assertEquals((short)-456, decoded.getShort(SHORT));
+		assertEquals(-78912, decoded.getInt(INT));
+		assertEquals(0x0123456789abcdefL, decoded.getLong(LONG));
+		assertEquals(-Math.PI, decoded.getDouble(DOUBLE), 0);
+		assertEquals(0.12345f, decoded.getFloat(FLOAT), 0);
+		assertEquals(Long.valueOf(0x0123456789abcdefL), decoded.getObject(LONG));
+		assertTrue(Arrays.equals(new double[] { Math.PI, Math.E }, decoded.getDoubleArray(DOUBLE_ARRAY)));
+		assertTrue(Arrays.equals(new float[] { 1234.5678f }, decoded.getFloatArray(FLOAT_ARRAY)));
+	}
+
+	/**
+	 * Test unset fields.
+	 */
+	@Test
+	public void testUnset() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		msg.set(LONG, 5L);
+		assertTrue(msg.isSet(LONG));
+		assertEquals(Long.valueOf(5), msg.getFromPayload(LONG));
+		assertFalse(msg.isSet("not a field"));
+		assertNull(msg.getObject("not a field"));
+	}
 }
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class MessageFilterIndexTest {
+
+	private static final MessageType typeA = new MessageType("MessageFilterIndexTestA", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static final MessageType typeB = new MessageType("MessageFilterIndexTestB", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static Message message(MessageType type, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	@Test
+	public void testMatchByTypeAndUID() {
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter a1 = MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(10000);
+		MessageFilter a2 = MessageFilter.create().setType(typeA).setField(DMT.UID, 2L).setTimeout(10000);
+		MessageFilter b1 = MessageFilter.create().setType(typeB).setField(DMT.UID, 1L).setTimeout(10000);
+		index.add(a1);
+		index.add(a2);
+		index.add(b1);
+		assertEquals(3, index.size());
+		long now = System.currentTimeMillis();
+
+		assertNull(index.match(message(typeA, 3), now));
+		assertSame(a2, index.match(message(typeA, 2), now));
+		// Only matched once.
+		assertNull(index.match(message(typeA, 2), now));
+		assertSame(b1, index.match(message(typeB, 1), now));
+		assertSame(a1, index.match(message(typeA, 1), now));
+		assertEquals(0, index.size());
+		assertNull(index.takeTimedOut());
+	}
+
+	@Test
+	public void testEarliestTimeoutWins() {
+		MessageFilterIndex index = new MessageFilterIndex();
+		// Any UID, and a specific UID, so they are in different buckets.
+		MessageFilter anyUID = MessageFilter.create().setType(typeA).setTimeout(20000);
+		MessageFilter late = MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(30000);
+		MessageFilter early = MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(10000);
+		index.add(anyUID);
+		index.add(late);
+		index.add(early);
+		long now = System.currentTimeMillis();
+		assertSame(early, index.match(message(typeA, 1), now));
+		assertSame(anyUID, index.match(message(typeA, 1), now));
+		assertSame(late, index.match(message(typeA, 1), now));
+	}
+
+	@Test
+	public void testOr() {
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter orB = MessageFilter.create().setType(typeB).setField(DMT.UID, 5L).setTimeout(10000);
+		MessageFilter either = MessageFilter.create().setType(typeA).setField(DMT.UID, 5L).setTimeout(10000).or(orB);
+		index.add(either);
+		assertSame(either, index.match(message(typeB, 5), System.currentTimeMillis()));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testTimeout() {
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter expired = MessageFilter.create().setType(typeB).setField(DMT.UID, 7L).setTimeout(1000);
+		MessageFilter waiting = MessageFilter.create().setType(typeA).setField(DMT.UID, 7L).setTimeout(10000);
+		index.add(expired);
+		index.add(waiting);
+		long now = System.currentTimeMillis() + 5000;
+		// Expired filters are removed even if the message is for another filter.
+		assertSame(waiting, index.match(message(typeA, 7), now));
+		ArrayList<MessageFilter> timedOut = index.takeTimedOut();
+		assertNotNull(timedOut);
+		assertEquals(1, timedOut.size());
+		assertSame(expired, timedOut.get(0));
+		assertNull(index.takeTimedOut());
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter first = MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(10000);
+		MessageFilter second = MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(20000);
+		index.add(second);
+		index.add(first);
+		ArrayList<MessageFilter> order = new ArrayList<MessageFilter>();
+		for(MessageFilter f : index) order.add(f);
+		assertEquals(2, order.size());
+		assertSame(first, order.get(0));
+		assertSame(second, order.get(1));
+		java.util.Iterator<MessageFilter> it = index.iterator();
+		it.next();
+		it.remove();
+		assertEquals(1, index.size());
+		assertSame(second, index.match(message(typeA, 1), System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testUnclaimed() {
+		UnclaimedMessages unclaimed = new UnclaimedMessages();
+		Message m1 = message(typeA, 1);
+		Message m2 = message(typeA, 2);
+		Message m3 = message(typeB, 2);
+		unclaimed.add(m1);
+		unclaimed.add(m2);
+		unclaimed.add(m3);
+		long now = System.currentTimeMillis();
+		MessageFilter f = MessageFilter.create().setType(typeB).setField(DMT.UID, 2L).setTimeout(10000);
+		assertSame(m3, unclaimed.removeMatch(f, now));
+		assertNull(unclaimed.removeMatch(f, now));
+		MessageFilter anyA = MessageFilter.create().setType(typeA).setTimeout(10000);
+		assertSame(m1, unclaimed.oldest());
+		assertSame(m1, unclaimed.removeMatch(anyA, now));
+		assertEquals(1, unclaimed.size());
+		assertSame(m2, unclaimed.removeOldest());
+		assertNull(unclaimed.removeMatch(anyA, now));
+		assertEquals(0, unclaimed.size());
+	}
+
+}
@@ -0,0 +1,52 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import freenet.io.comm.Peer.LocalAddressException;
+
+public class PacketBatchTest {
+
+	@Test
+	public void testAddAndClear() throws Exception {
+		InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		PacketBatch batch = new PacketBatch();
+		// More than the initial capacity.
+		for(int i = 0; i < 20; i++)
+			batch.add(new byte[] { (byte) i }, new Peer(localhost, 10000 + i), true);
+		assertEquals(20, batch.size());
+		for(int i = 0; i < 20; i++) {
+			assertEquals((byte) i, batch.getData(i)[0]);
+			assertEquals(10000 + i, batch.getDestination(i).getPort());
+			assertEquals(localhost, batch.getAddress(i));
+			assertTrue(batch.allowLocalAddresses(i));
+		}
+		batch.clear();
+		assertEquals(0, batch.size());
+		assertNull(batch.getData(0));
+		assertNull(batch.getDestination(19));
+		batch.add(new byte[1], new Peer(localhost, 20000), true);
+		assertEquals(1, batch.size());
+		assertEquals(20000, batch.getDestination(0).getPort());
+	}
+
+	@Test
+	public void testLocalAddress() throws Exception {
+		InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		PacketBatch batch = new PacketBatch();
+		try {
+			batch.add(new byte[1], new Peer(localhost, 10000), false);
+			fail();
+		} catch (LocalAddressException e) {
+			// expect this
+		}
+		assertEquals(0, batch.size());
+	}
+
+}
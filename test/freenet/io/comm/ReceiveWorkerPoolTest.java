@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+
+public class ReceiveWorkerPoolTest {
+
+	private static final int THREADS = 4;
+	private static final int QUEUE_LENGTH = 8;
+	private static final int BUFFER_SIZE = 64;
+	private static final int PEERS = 10;
+
+	private static Peer[] makePeers() throws UnknownHostException {
+		Peer[] peers = new Peer[PEERS];
+		InetAddress address = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		for(int i = 0; i < PEERS; i++)
+			peers[i] = new Peer(address, 10000 + i);
+		return peers;
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >> 24);
+		buf[offset + 1] = (byte) (value >> 16);
+		buf[offset + 2] = (byte) (value >> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+				((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	/** Several workers, with the receive side running ahead of them: no buffer may be handed out
+	 * again while a worker still has it, each peer's packets must arrive in order and intact,
+	 * and buffers must be recycled rather than allocated for every packet. */
+	@Test
+	public void testRecycling() throws Exception {
+		final Peer[] peers = makePeers();
+		// Buffers handed out by getBuffer() which the pool hasn't had back yet.
+		final Set<byte[]> outstanding = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+		final Map<Peer, Integer> lastSeen = new ConcurrentHashMap<Peer, Integer>();
+		final AtomicInteger processed = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		ReceiveWorkerPool pool = new ReceiveWorkerPool(THREADS, QUEUE_LENGTH, BUFFER_SIZE, new ReceiveWorkerPool.Processor() {
+
+			@Override
+			public void process(byte[] buf, int offset, int length, Peer peer, long now) {
+				int peerIndex = readInt(buf, offset);
+				int seq = readInt(buf, offset + 4);
+				if(peers[peerIndex] != peer)
+					failure.compareAndSet(null, "Packet for peer "+peerIndex+" given as from "+peer);
+				// Take a while, and check nobody else writes to the buffer meanwhile.
+				for(int i = 0; i < 100; i++) {
+					Thread.yield();
+					if(readInt(buf, offset + 4) != seq || buf[offset + length - 1] != (byte) seq)
+						failure.compareAndSet(null, "Buffer changed while processing");
+				}
+				Integer last = lastSeen.put(peer, seq);
+				if(last != null && last >= seq)
+					failure.compareAndSet(null, "Packet "+seq+" after "+last+" from "+peer);
+				synchronized(outstanding) {
+					outstanding.remove(buf);
+				}
+				processed.incrementAndGet();
+			}
+
+		});
+		PooledExecutor executor = new PooledExecutor();
+		pool.start(executor, "test");
+		try {
+			Set<byte[]> allocated = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+			int dispatched = 0;
+			for(int seq = 0; seq < 20000; seq++) {
+				byte[] buf = pool.getBuffer();
+				assertEquals(BUFFER_SIZE, buf.length);
+				synchronized(outstanding) {
+					assertTrue("Buffer reused while still referenced", outstanding.add(buf));
+				}
+				allocated.add(buf);
+				int peerIndex = seq % PEERS;
+				int length = 8 + seq % (BUFFER_SIZE - 8);
+				writeInt(buf, 0, peerIndex);
+				writeInt(buf, 4, seq);
+				buf[length - 1] = (byte) seq;
+				if(pool.dispatch(buf, length, peers[peerIndex], seq)) {
+					dispatched++;
+				} else {
+					// Dropped, so it's back in the pool already.
+					synchronized(outstanding) {
+						outstanding.remove(buf);
+					}
+				}
+			}
+			long deadline = System.currentTimeMillis() + 10000;
+			while(processed.get() < dispatched && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertNull(failure.get(), failure.get());
+			assertEquals(dispatched, processed.get());
+			assertTrue(dispatched > 0);
+			// At most every queue full, one being processed by each worker, and one being received.
+			assertTrue("Allocated "+allocated.size(), allocated.size() <= THREADS * (QUEUE_LENGTH + 1) + 1);
+		} finally {
+			pool.stop();
+		}
+	}
+
+	/** A full queue drops the packet and recycles its buffer. */
+	@Test
+	public void testQueueFull() throws Exception {
+		final Peer peer = makePeers()[0];
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger processed = new AtomicInteger();
+		ReceiveWorkerPool pool = new ReceiveWorkerPool(THREADS, QUEUE_LENGTH, BUFFER_SIZE, new ReceiveWorkerPool.Processor() {
+
+			@Override
+			public void process(byte[] buf, int offset, int length, Peer peer, long now) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+				processed.incrementAndGet();
+			}
+
+		});
+		pool.start(new PooledExecutor(), "test");
+		try {
+			// One packet being processed, and the worker's queue full.
+			assertTrue(pool.dispatch(pool.getBuffer(), 8, peer, 0));
+			blocked.await();
+			for(int i = 0; i < QUEUE_LENGTH; i++)
+				assertTrue(pool.dispatch(pool.getBuffer(), 8, peer, 0));
+			byte[] dropped = pool.getBuffer();
+			assertFalse(pool.dispatch(dropped, 8, peer, 0));
+			assertSame(dropped, pool.getBuffer());
+			release.countDown();
+			long deadline = System.currentTimeMillis() + 10000;
+			while(processed.get() < QUEUE_LENGTH + 1 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(QUEUE_LENGTH + 1, processed.get());
+		} finally {
+			release.countDown();
+			pool.stop();
+		}
+	}
+
+}
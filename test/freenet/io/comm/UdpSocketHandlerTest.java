@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class UdpSocketHandlerTest {
+
+	/** Records what sendBatch() reports. */
+	private static class Listener implements UdpSocketHandler.BatchListener {
+		final boolean sendAll;
+		final List<String> events = new ArrayList<String>();
+
+		Listener(boolean sendAll) {
+			this.sendAll = sendAll;
+		}
+
+		@Override
+		public boolean sendAll() {
+			return sendAll;
+		}
+
+		@Override
+		public void sendSlowly(byte[] data, Peer destination, boolean allowLocalAddresses) {
+			events.add("slow "+destination.getPort()+" "+data.length);
+		}
+
+		@Override
+		public void sent(Peer destination, InetAddress address, int packets, int bytes) {
+			events.add("sent "+destination.getPort()+" "+packets+" "+bytes);
+		}
+
+		@Override
+		public void failed(Peer destination, InetAddress address, IOException e) {
+			events.add("failed "+destination.getPort());
+		}
+	}
+
+	private static DatagramSocket receiver(InetAddress address) throws IOException {
+		DatagramSocket sock = new DatagramSocket(0, address);
+		sock.setSoTimeout(5000);
+		return sock;
+	}
+
+	private static byte[] receive(DatagramSocket sock) throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		sock.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private static byte[] packet(int id, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) id);
+		return data;
+	}
+
+	/** Runs of packets to the same peer are reported together, and a packet which can't be sent
+	 * doesn't stop the rest of the batch. */
+	@Test
+	public void testSendBatch() throws Exception {
+		InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		DatagramSocket a = receiver(localhost);
+		DatagramSocket b = receiver(localhost);
+		DatagramSocket sock = new DatagramSocket(0, localhost);
+		try {
+			Peer peerA = new Peer(localhost, a.getLocalPort());
+			Peer peerB = new Peer(localhost, b.getLocalPort());
+			PacketBatch batch = new PacketBatch();
+			batch.add(packet(1, 100), peerA, true);
+			batch.add(packet(2, 200), peerA, true);
+			// Too big for a UDP packet.
+			batch.add(packet(3, 70000), peerA, true);
+			batch.add(packet(4, 300), peerA, true);
+			batch.add(packet(5, 400), peerB, true);
+			batch.add(packet(6, 500), peerA, true);
+			Listener listener = new Listener(false);
+			UdpSocketHandler.sendBatch(sock, batch, listener);
+			assertEquals(Arrays.asList(
+					"failed "+peerA.getPort(),
+					"sent "+peerA.getPort()+" 3 600",
+					"sent "+peerB.getPort()+" 1 400",
+					"sent "+peerA.getPort()+" 1 500"), listener.events);
+			// The caller clears the batch.
+			assertEquals(6, batch.size());
+
+			assertArrayEquals(packet(1, 100), receive(a));
+			assertArrayEquals(packet(2, 200), receive(a));
+			assertArrayEquals(packet(4, 300), receive(a));
+			assertArrayEquals(packet(6, 500), receive(a));
+			assertArrayEquals(packet(5, 400), receive(b));
+		} finally {
+			sock.close();
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test
+	public void testSendAllSlowly() throws Exception {
+		InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		Peer peer = new Peer(localhost, 10000);
+		PacketBatch batch = new PacketBatch();
+		batch.add(packet(1, 100), peer, true);
+		batch.add(packet(2, 200), peer, true);
+		Listener listener = new Listener(true);
+		DatagramSocket sock = new DatagramSocket(0, localhost);
+		try {
+			UdpSocketHandler.sendBatch(sock, batch, listener);
+		} finally {
+			sock.close();
+		}
+		assertEquals(Arrays.asList("slow 10000 100", "slow 10000 200"), listener.events);
+	}
+
+}
@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PacketThrottleTest {
+
+	private static final int PACKET_SIZE = 1024;
+
+	@Test
+	public void testAIMD() {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE);
+		assertEquals(CongestionControlType.AIMD, throttle.getCongestionControl());
+		assertEquals(2.0, throttle.getWindowSize(), 0.0);
+		// Slow start.
+		throttle.notifyOfPacketAcknowledged(1000);
+		assertEquals(2.0 + 2.0 / AIMDCongestionControl.SLOW_START_DIVISOR, throttle.getWindowSize(), 0.001);
+		double window = throttle.getWindowSize();
+		throttle.notifyOfPacketsLost(2);
+		assertEquals(window * AIMDCongestionControl.PACKET_DROP_DECREASE_MULTIPLE * AIMDCongestionControl.PACKET_DROP_DECREASE_MULTIPLE,
+				throttle.getWindowSize(), 0.001);
+		// Never below one packet.
+		throttle.notifyOfPacketsLost(100);
+		assertEquals(1.0, throttle.getWindowSize(), 0.0);
+		throttle.setRoundTripTime(100);
+		assertEquals(100, throttle.getDelay());
+		assertEquals(PACKET_SIZE * 1000.0 / 100, throttle.getBandwidth(), 0.001);
+	}
+
+	/** Acknowledge a packet every millisecond for length milliseconds, with a constant RTT.
+	 * @return The time at the end. */
+	private static long ack(CongestionControl cc, long now, long length, long rtt) {
+		for(long end = now + length; now < end; now++) {
+			cc.onRoundTripTime(rtt, now);
+			cc.onPacketAcknowledged(100000, now);
+		}
+		return now;
+	}
+
+	@Test
+	public void testBandwidthDelay() {
+		BandwidthDelayCongestionControl cc = new BandwidthDelayCongestionControl(PACKET_SIZE);
+		// A bottleneck of one packet per millisecond, and a 100ms RTT, so the path holds 100 packets.
+		long now = ack(cc, 1000, 5000, 100);
+		double window = cc.getWindowSize();
+		assertTrue("Window "+window, window >= 2 * 100 * 0.75 && window <= 2 * 100 * 1.25);
+		double rate = cc.getPacingRate();
+		assertTrue("Rate "+rate, rate >= PACKET_SIZE * 1000 * 0.75 && rate <= PACKET_SIZE * 1000 * 1.25);
+
+		// A queue builds up: the RTT goes up, but the window stays the same.
+		now = ack(cc, now, 1000, 300);
+		assertEquals(window, cc.getWindowSize(), window * 0.5);
+
+		// A burst of losses only reduces the window once.
+		window = cc.getWindowSize();
+		for(int i = 0; i < 10; i++)
+			cc.onPacketsLost(1, now);
+		assertEquals(window * BandwidthDelayCongestionControl.LOSS_DECREASE_MULTIPLE, cc.getWindowSize(), 0.001);
+	}
+
+	@Test
+	public void testStartupEndsOnLoss() {
+		BandwidthDelayCongestionControl cc = new BandwidthDelayCongestionControl(PACKET_SIZE);
+		long now = ack(cc, 1000, 150, 100);
+		assertTrue(cc.getState().startsWith("startup"));
+		cc.onPacketsLost(1, now);
+		assertFalse(cc.getState().startsWith("startup"));
+		// Bandwidth estimate after one round of one packet per millisecond, draining.
+		assertEquals(BandwidthDelayCongestionControl.WINDOW_GAIN * 0.75 * 100, cc.getWindowSize(), 3.0);
+	}
+
+	@Test
+	public void testSwitch() {
+		PacketThrottle throttle = new PacketThrottle(PACKET_SIZE, CongestionControlType.AIMD);
+		for(int i = 0; i < 10; i++)
+			throttle.notifyOfPacketAcknowledged(1000);
+		assertTrue(throttle.getWindowSize() > 2.0);
+		throttle.setCongestionControl(CongestionControlType.BANDWIDTH_DELAY);
+		assertEquals(CongestionControlType.BANDWIDTH_DELAY, throttle.getCongestionControl());
+		assertEquals(BandwidthDelayCongestionControl.MIN_WINDOW, throttle.getWindowSize(), 0.0);
+		assertEquals(CongestionControlType.BANDWIDTH_DELAY, CongestionControlType.fromName("bandwidth_delay"));
+	}
+
+}
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.io.comm.RetrievalException;
+import freenet.support.Buffer;
+
+public class PartiallyReceivedBlockTest {
+
+	private static final int PACKETS = 4;
+	private static final int PACKET_SIZE = 16;
+
+	/** The packets of the block, each as a slice of its own message, as they arrive. */
+	private static Buffer[] packets(byte[] data) {
+		Buffer[] packets = new Buffer[PACKETS];
+		for(int i = 0; i < PACKETS; i++) {
+			byte[] message = new byte[PACKET_SIZE + 3];
+			System.arraycopy(data, i * PACKET_SIZE, message, 2, PACKET_SIZE);
+			packets[i] = new Buffer(message, 2, PACKET_SIZE);
+		}
+		return packets;
+	}
+
+	private static byte[] randomBlock() {
+		byte[] data = new byte[PACKETS * PACKET_SIZE];
+		new Random(1234).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testAssembleOnDemand() throws AbortedException {
+		byte[] data = randomBlock();
+		Buffer[] packets = packets(data);
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		// Out of order.
+		for(int i = PACKETS - 1; i > 0; i--)
+			prb.addPacket(i, packets[i]);
+		assertFalse(prb.allReceived());
+		try {
+			prb.getBlock();
+			fail();
+		} catch (RuntimeException e) {
+			// expect this
+		}
+		// Packets are passed on as they were received, without copying them.
+		assertSame(packets[2], prb.getPacket(2));
+
+		prb.addPacket(0, packets[0]);
+		assertTrue(prb.allReceived());
+		byte[] block = prb.getBlock();
+		assertArrayEquals(data, block);
+		// Only put together once.
+		assertSame(block, prb.getBlock());
+		// The packets are now slices of the block.
+		Buffer packet = prb.getPacket(1);
+		assertArrayEquals(packets[1].getData(), packet.getData());
+		assertNotSame(packets[1], packet);
+		block[PACKET_SIZE]++;
+		assertEquals(block[PACKET_SIZE], packet.byteAt(0));
+	}
+
+	@Test
+	public void testAbortAssembles() throws AbortedException {
+		byte[] data = randomBlock();
+		Buffer[] packets = packets(data);
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		for(int i = 0; i < PACKETS; i++)
+			prb.addPacket(i, packets[i]);
+		// Already received, so the data is returned rather than aborting.
+		assertArrayEquals(data, prb.abort(RetrievalException.UNKNOWN, "test", true));
+		assertFalse(prb.isAborted());
+		assertArrayEquals(data, prb.getBlock());
+
+		prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		prb.addPacket(0, packets[0]);
+		assertNull(prb.abort(RetrievalException.UNKNOWN, "test", true));
+		assertTrue(prb.isAborted());
+		try {
+			prb.getPacket(0);
+			fail();
+		} catch (AbortedException e) {
+			// expect this
+		}
+	}
+
+	@Test
+	public void testFromData() throws AbortedException {
+		byte[] data = randomBlock();
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, data);
+		assertTrue(prb.allReceived());
+		assertSame(data, prb.getBlock());
+		assertArrayEquals(Arrays.copyOfRange(data, 3 * PACKET_SIZE, 4 * PACKET_SIZE), prb.getPacket(3).getData());
+	}
+
+}
@@ -96,6 +96,39 @@ public class NPFPacketTest {
 		assertFalse(r.getError());
 	}
 
+	@Test
+	public void testPacketWithFragmentInBuffer() {
+		byte[] buf = new byte[] {
+		                (byte)0xFF, (byte)0xFF, (byte)0xFF, //Not part of the packet
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x07, //Sequence number 7
+		                (byte)0x00, // 0 acks
+		                (byte)0xB0, (byte)0x00, (byte)0x00, (byte)0x00,//Flags (short, first fragment and full id) and messageID 0
+		                (byte)0x04, //Fragment length
+		                (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67, //Data
+		                (byte)0xB0, (byte)0x00, (byte)0x00, (byte)0x01, (byte)0x01, (byte)0x00}; //Not part of the packet
+		NPFPacket r = NPFPacket.create(buf, 3, 14, pn);
+
+		assertEquals(7, r.getSequenceNumber());
+		assertEquals(1, r.getFragments().size());
+		assertEquals(14, r.getLength());
+		MessageFragment frag = r.getFragments().get(0);
+		assertTrue(Arrays.equals(frag.fragmentData, new byte[] { (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67 }));
+		assertFalse(r.getError());
+	}
+
+	@Test
+	public void testTruncatedAckInBuffer() {
+		byte[] buf = new byte[] {
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, //Sequence number 0
+		                (byte)0x01, //1 ack
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, //Ack for packet 0...
+		                (byte)0x01}; //...but the range size is beyond the end of the packet
+		NPFPacket r = NPFPacket.create(buf, 0, buf.length - 1, pn);
+
+		assertEquals(0, r.getAcks().size());
+		assertTrue(r.getError());
+	}
+
 	@Test
 	public void testPacketWithFragments() {
 		byte[] packet = new byte[] { (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // Sequence number 0
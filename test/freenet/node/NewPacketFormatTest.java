@@ -5,6 +5,8 @@ package freenet.node;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,12 +17,15 @@ import org.junit.Before;
 import org.junit.Test;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 
 public class NewPacketFormatTest {
 	@Before
@@ -461,4 +466,96 @@ public class NewPacketFormatTest {
 		assertTrue(Arrays.equals(message, copyOfMessage));
 		assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(0)));
 	}
+
+	/** Decode packets each containing a whole 1KB message, and report packets per second on one
+	 * core and bytes allocated per packet. Run with -Dtest.benchmark=true. */
+	@Test
+	public void testBenchmarkReceive() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int WARMUP = 10000;
+		final int PACKETS = 60000;
+		final int MESSAGE_SIZE = 1024;
+		Random random = new Random(180218);
+		byte[] incomingKey = new byte[32];
+		random.nextBytes(incomingKey);
+		BlockCipher incomingCipher = new Rijndael();
+		incomingCipher.initialize(incomingKey);
+		byte[] ivKey = new byte[32];
+		random.nextBytes(ivKey);
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(ivKey);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+
+		// Sequence numbers and message IDs both start at 0.
+		byte[][] packets = new byte[PACKETS][];
+		for(int i = 0; i < PACKETS; i++) {
+			byte[] packet = new byte[NewPacketFormat.HMAC_LENGTH + 4 + 1 + 4 + 2 + MESSAGE_SIZE];
+			random.nextBytes(packet);
+			int offset = NewPacketFormat.HMAC_LENGTH;
+			writeInt(packet, offset, i); // Sequence number
+			offset += 4;
+			packet[offset++] = 0; // No acks
+			writeInt(packet, offset, i); // Message ID...
+			packet[offset] |= 0x30; // ...of a whole, long message
+			offset += 4;
+			packet[offset++] = (byte) (MESSAGE_SIZE >> 8);
+			packet[offset++] = (byte) MESSAGE_SIZE;
+
+			byte[] IV = new byte[16];
+			System.arraycopy(ivNonce, 0, IV, 0, IV.length);
+			writeInt(IV, IV.length - 4, i);
+			ivCipher.encipher(IV, IV);
+			PCFBMode.create(incomingCipher, IV).blockEncipher(packet, NewPacketFormat.HMAC_LENGTH, packet.length - NewPacketFormat.HMAC_LENGTH);
+			byte[] hash = HMAC.macWithSHA256(hmacKey, Arrays.copyOfRange(packet, NewPacketFormat.HMAC_LENGTH, packet.length));
+			System.arraycopy(hash, 0, packet, 0, NewPacketFormat.HMAC_LENGTH);
+			packets[i] = packet;
+		}
+
+		final int[] received = new int[1];
+		NullBasePeerNode receiverNode = new NullBasePeerNode() {
+			@Override
+			protected void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+				received[0]++;
+			}
+		};
+		receiverNode.decryptedMessages = new ArrayList<byte[]>();
+		receiverNode.currentKey = new SessionKey(null, null, null, incomingCipher, incomingKey, ivCipher,
+				ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 0);
+		NewPacketFormat npf = new NewPacketFormat(receiverNode, 0, 0);
+		Peer peer = new Peer(new FreenetInetAddress("127.0.0.1", true), 1234);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean countAllocations = threads instanceof com.sun.management.ThreadMXBean;
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < WARMUP; i++) {
+			assertTrue(npf.handleReceivedPacket(packets[i], 0, packets[i].length, now, peer));
+		}
+		long allocated = countAllocations ? allocatedBytes(threads) : 0;
+		long start = System.nanoTime();
+		for(int i = WARMUP; i < PACKETS; i++) {
+			npf.handleReceivedPacket(packets[i], 0, packets[i].length, now, peer);
+		}
+		long elapsed = System.nanoTime() - start;
+		if(countAllocations) allocated = allocatedBytes(threads) - allocated;
+		assertEquals(PACKETS, received[0]);
+
+		int timed = PACKETS - WARMUP;
+		System.out.println("Received "+timed+" packets of "+packets[0].length+" bytes in "+(elapsed / 1000000)+"ms: "+
+				(timed * 1000L * 1000 * 1000 / elapsed)+" packets per second on one core, "+
+				(countAllocations ? String.valueOf(allocated / timed) : "unknown")+" bytes allocated per packet");
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	private static long allocatedBytes(ThreadMXBean threads) {
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
 }
@@ -0,0 +1,228 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.io.comm.PacketBatch;
+import freenet.io.comm.PacketSocketHandler;
+import freenet.io.comm.Peer;
+
+@SuppressWarnings("deprecation") // TokenBucket
+public class PacketSenderShardTest {
+
+	private static final int PACKET_SIZE = 1280;
+
+	/** A bucket which doesn't refill during the test. */
+	private static freenet.support.TokenBucket throttle(long tokens) {
+		return new freenet.support.TokenBucket(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, tokens);
+	}
+
+	/** Hash codes for the mock peers, which don't run the constructor. */
+	private static final AtomicInteger nextHashCode = new AtomicInteger();
+
+	/**
+	 * A peer which, like NewPacketFormat, pays for each packet it sends if it is throttled.
+	 * @param packets How many full packets the peer has queued.
+	 */
+	private static PeerNode peer(final int packets, final boolean throttled, final freenet.support.TokenBucket throttle) throws Exception {
+		PeerNode pn = mock(PeerNode.class);
+		setHashCode(pn);
+		final AtomicInteger queued = new AtomicInteger(packets);
+		when(pn.maybeSendPacket(anyLong(), anyBoolean())).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				if(queued.get() == 0) return false;
+				queued.decrementAndGet();
+				Thread.yield();
+				if(throttled) throttle.forceGrab(PACKET_SIZE);
+				return true;
+			}
+
+		});
+		when(pn.fullPacketQueued()).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return queued.get() > 0;
+			}
+
+		});
+		when(pn.shouldThrottle()).thenReturn(throttled);
+		return pn;
+	}
+
+	/** PacketSender.shardFor() uses the final hashCode(), which would be 0. */
+	private static void setHashCode(PeerNode pn) throws Exception {
+		Field field = PeerNode.class.getDeclaredField("hashCode");
+		field.setAccessible(true);
+		field.setInt(pn, nextHashCode.getAndIncrement());
+	}
+
+	@Test
+	public void testFlushLimit() throws Exception {
+		freenet.support.TokenBucket throttle = throttle(0);
+		PeerNode pn = peer(100, false, throttle);
+		assertEquals(PacketSender.MAX_PACKETS_PER_FLUSH, PacketSenderShard.sendBurst(pn, 0, throttle, PACKET_SIZE));
+		verify(pn, times(PacketSender.MAX_PACKETS_PER_FLUSH)).maybeSendPacket(0, false);
+	}
+
+	@Test
+	public void testQueueEmpty() throws Exception {
+		freenet.support.TokenBucket throttle = throttle(Integer.MAX_VALUE);
+		assertEquals(3, PacketSenderShard.sendBurst(peer(3, true, throttle), 0, throttle, PACKET_SIZE));
+		assertEquals(0, PacketSenderShard.sendBurst(peer(0, true, throttle), 0, throttle, PACKET_SIZE));
+		// Only the packets were paid for.
+		assertEquals(Integer.MAX_VALUE - 3 * PACKET_SIZE, throttle.getCount());
+	}
+
+	@Test
+	public void testThrottled() throws Exception {
+		// Enough for four packets, and not a token more.
+		freenet.support.TokenBucket throttle = throttle(PACKET_SIZE * 4);
+		assertEquals(4, PacketSenderShard.sendBurst(peer(100, true, throttle), 0, throttle, PACKET_SIZE));
+		assertEquals(0, throttle.getCount());
+		assertEquals(0, PacketSenderShard.sendBurst(peer(100, true, throttle), 0, throttle, PACKET_SIZE));
+		// An unthrottled peer isn't limited by the bandwidth.
+		assertEquals(PacketSender.MAX_PACKETS_PER_FLUSH, PacketSenderShard.sendBurst(peer(100, false, throttle), 0, throttle, PACKET_SIZE));
+	}
+
+	@Test
+	public void testShardFor() throws Exception {
+		PacketSender sender = new PacketSender(mock(Node.class), 3);
+		Set<PacketSenderShard> used = new HashSet<PacketSenderShard>();
+		for(int i = 0; i < 100; i++) {
+			PeerNode pn = peer(0, false, null);
+			PacketSenderShard shard = sender.shardFor(pn);
+			assertSame(shard, sender.shardFor(pn));
+			used.add(shard);
+		}
+		assertEquals(3, used.size());
+	}
+
+	/** Packets are only batched on a thread which is sending a burst, by the shard sending it,
+	 * and are sent together at the end. */
+	@Test
+	public void testGetBatch() throws Exception {
+		final PacketSender sender = new PacketSender(mock(Node.class), 2);
+		final PacketSocketHandler socket = mock(PacketSocketHandler.class);
+		final List<Integer> sentBatches = new ArrayList<Integer>();
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				PacketBatch batch = (PacketBatch) invocation.getArguments()[0];
+				sentBatches.add(batch.size());
+				batch.clear();
+				return null;
+			}
+
+		}).when(socket).sendPackets(any(PacketBatch.class));
+		final Peer peer = new Peer(InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 }), 10000);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final PeerNode pn = mock(PeerNode.class);
+		setHashCode(pn);
+		final AtomicInteger queued = new AtomicInteger(5);
+		when(pn.maybeSendPacket(anyLong(), anyBoolean())).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Exception {
+				final PacketBatch batch = sender.getBatch(socket);
+				if(batch == null || batch != sender.shardFor(pn).getBatch(socket))
+					failure.compareAndSet(null, "Not batched by the sending shard");
+				// Not on other threads.
+				Thread other = new Thread() {
+					@Override
+					public void run() {
+						if(sender.getBatch(socket) != null)
+							failure.compareAndSet(null, "Batched on another thread");
+					}
+				};
+				other.start();
+				other.join();
+				batch.add(new byte[10], peer, true);
+				queued.decrementAndGet();
+				return true;
+			}
+
+		});
+		when(pn.fullPacketQueued()).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return queued.get() > 0;
+			}
+
+		});
+		assertNull(sender.getBatch(socket));
+		assertEquals(5, sender.shardFor(pn).sendBatched(pn, 0, throttle(0), PACKET_SIZE));
+		assertNull(failure.get(), failure.get());
+		assertEquals(1, sentBatches.size());
+		assertEquals(5, (int) sentBatches.get(0));
+		assertNull(sender.getBatch(socket));
+	}
+
+	/** Several shards sending to throttled peers at once can't overdraw the shared throttle. */
+	@Test
+	public void testSharedThrottle() throws Exception {
+		final int shards = 4;
+		final int packets = 50;
+		final PacketSender sender = new PacketSender(mock(Node.class), shards);
+		final freenet.support.TokenBucket throttle = throttle(packets * PACKET_SIZE);
+		final AtomicInteger sent = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[shards * 2];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						// Plenty queued, so only the bandwidth stops us.
+						PeerNode pn = peer(packets, true, throttle);
+						PacketSenderShard shard = sender.shardFor(pn);
+						int count;
+						do {
+							synchronized(shard) {
+								count = shard.sendBatched(pn, 0, throttle, PACKET_SIZE);
+							}
+							sent.addAndGet(count);
+						} while(count > 0);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		assertNull(failure.get());
+		assertEquals(packets, sent.get());
+		assertEquals(0, throttle.getCount());
+	}
+
+}
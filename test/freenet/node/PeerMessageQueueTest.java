@@ -87,4 +87,64 @@ public class PeerMessageQueueTest {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	@Test
+	public void testSizeAndUrgency() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem first = new MessageItem(new byte[100], null, false, null, (short) 0, false, false);
+		MessageItem second = new MessageItem(new byte[200], null, false, null, (short) 0, false, false);
+		assertEquals(102, pmq.queueAndEstimateSize(first, 1024));
+		assertEquals(302 + 2, pmq.queueAndEstimateSize(second, 1024));
+		assertTrue(pmq.mustSendSize(1000, 1299));
+		assertFalse(pmq.mustSendSize(1000, 1300));
+		long now = System.currentTimeMillis();
+		assertFalse(pmq.mustSendNow(first.submitted - 1));
+		assertTrue(pmq.mustSendNow(now + 1000));
+
+		assertSame(first, pmq.grabQueuedMessageItem(0));
+		assertFalse(pmq.mustSendSize(1000, 1200));
+		assertEquals(second.submitted + PacketSender.MAX_COALESCING_DELAY, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+		// Put back, e.g. because it didn't fit.
+		pmq.pushfrontPrioritizedMessageItem(first);
+		assertTrue(pmq.mustSendSize(1000, 1299));
+		assertEquals(first.submitted + PacketSender.MAX_COALESCING_DELAY, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+
+		assertEquals(2, pmq.grabQueuedMessageItems().length);
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
+
+	/** Several threads queue messages while another takes them off the queue. */
+	@Test
+	public void testConcurrentQueueing() throws InterruptedException {
+		final PeerMessageQueue pmq = new PeerMessageQueue();
+		final int THREADS = 4;
+		final int MESSAGES = 2000;
+		Thread[] threads = new Thread[THREADS];
+		for(int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < MESSAGES; j++)
+						pmq.queueAndEstimateSize(new MessageItem(new byte[10], null, false, null, (short) (j % 3), false, false), 1024);
+				}
+			};
+			threads[i].start();
+		}
+		int grabbed = 0;
+		boolean running = true;
+		while(running) {
+			running = false;
+			for(Thread t : threads)
+				if(t.isAlive()) running = true;
+			pmq.getNextUrgentTime(Long.MAX_VALUE, 0);
+			while(pmq.grabQueuedMessageItem(0) != null)
+				grabbed++;
+		}
+		while(pmq.grabQueuedMessageItem(0) != null)
+			grabbed++;
+		assertEquals(THREADS * MESSAGES, grabbed);
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
 }
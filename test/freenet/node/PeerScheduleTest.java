@@ -0,0 +1,156 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+public class PeerScheduleTest {
+
+	@Test
+	public void testOrder() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		schedule.schedule("c", 30);
+		schedule.schedule("a", 10);
+		schedule.schedule("b", 20);
+		schedule.schedule("b2", 20);
+		assertEquals(4, schedule.size());
+		assertEquals(10, schedule.nextTime());
+
+		assertNull(schedule.pollDue(5));
+		assertEquals("a", schedule.pollDue(20));
+		assertEquals("b", schedule.pollDue(20));
+		assertEquals("b2", schedule.pollDue(20));
+		assertNull(schedule.pollDue(20));
+		assertEquals(1, schedule.size());
+		assertEquals(30, schedule.nextTime());
+		assertEquals("c", schedule.pollDue(100));
+		assertNull(schedule.pollDue(100));
+		assertEquals(Long.MAX_VALUE, schedule.nextTime());
+	}
+
+	@Test
+	public void testReschedule() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		schedule.schedule("a", 10);
+		schedule.schedule("b", 20);
+		schedule.schedule("a", 30);
+		assertEquals(2, schedule.size());
+		assertEquals(20, schedule.nextTime());
+		schedule.remove("b");
+		assertEquals(30, schedule.nextTime());
+		assertEquals("a", schedule.pollDue(30));
+		assertNull(schedule.pollDue(30));
+	}
+
+	@Test
+	public void testWakeUp() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		schedule.schedule("a", 10);
+		schedule.schedule("b", 1000);
+		schedule.wakeUp("b");
+		// Not scheduled, e.g. removed.
+		schedule.wakeUp("c");
+		List<String> due = new ArrayList<String>();
+		schedule.takeWoken(due);
+		assertEquals(Arrays.asList("b"), due);
+		assertEquals(1, schedule.size());
+		assertEquals(10, schedule.nextTime());
+		// Only woken once.
+		schedule.schedule("b", 1000);
+		due.clear();
+		schedule.takeWoken(due);
+		assertTrue(due.isEmpty());
+		assertEquals(2, schedule.size());
+	}
+
+	/**
+	 * Simulates the PacketSender with 1000 peers, each sending a packet every second or so
+	 * with 100ms coalescing, and ack/lost packet checks in between, and compares how many peers
+	 * it looks at when it scans every peer each time it wakes up with when it uses the schedule.
+	 * Run with -Dtest.benchmark=true.
+	 */
+	@Test
+	public void testBenchmarkSimulation() {
+		if(!TestProperty.BENCHMARK) return;
+		final int PEERS = 1000;
+		final long DURATION = 60 * 1000;
+		// PacketSender's MAX_COALESCING_DELAY and MAX_PEER_CHECK_INTERVAL, without loading the node.
+		final long COALESCING_DELAY = 100;
+		final int CHECK_INTERVAL = 1000;
+		Random random = new Random(190219);
+		long[] nextMessage = new long[PEERS];
+		long[] nextUrgent = new long[PEERS];
+		for(int i = 0; i < PEERS; i++) {
+			nextMessage[i] = random.nextInt(1000);
+			nextUrgent[i] = Long.MAX_VALUE;
+		}
+
+		PeerSchedule<Integer> schedule = new PeerSchedule<Integer>();
+		for(int i = 0; i < PEERS; i++)
+			schedule.schedule(i, 0);
+		List<Integer> due = new ArrayList<Integer>();
+		long scanned = 0;
+		long looked = 0;
+		long wakeups = 0;
+		long sent = 0;
+		long start = System.nanoTime();
+		for(long now = 0; now < DURATION; now++) {
+			// Messages are queued, to be sent within 100ms.
+			for(int i = 0; i < PEERS; i++) {
+				if(nextMessage[i] <= now) {
+					nextMessage[i] = now + 500 + random.nextInt(1000);
+					nextUrgent[i] = Math.min(nextUrgent[i], now + COALESCING_DELAY);
+					schedule.wakeUp(i);
+				}
+			}
+			// The sender wakes up every ms while there is work, or when woken, and looks at
+			// the woken peers, then the due peers until it finds one to send to.
+			due.clear();
+			schedule.takeWoken(due);
+			int chosen = -1;
+			for(int i = 0; ; i++) {
+				int peer;
+				if(i < due.size()) {
+					peer = due.get(i);
+				} else {
+					if(chosen != -1 && schedule.nextTime() > nextUrgent[chosen]) break;
+					Integer next = schedule.pollDue(now);
+					if(next == null) break;
+					peer = next;
+					due.add(peer);
+				}
+				if(nextUrgent[peer] <= now && (chosen == -1 || nextUrgent[peer] < nextUrgent[chosen]))
+					chosen = peer;
+			}
+			if(due.isEmpty()) continue;
+			wakeups++;
+			scanned += PEERS;
+			looked += due.size();
+			if(chosen != -1) {
+				// Acks for the packet will need checking later.
+				nextUrgent[chosen] = now + 200 + random.nextInt(200);
+				sent++;
+			}
+			for(int i : due) {
+				long time = now + CHECK_INTERVAL / 2 + random.nextInt(CHECK_INTERVAL / 2);
+				schedule.schedule(i, Math.min(time, Math.max(now, nextUrgent[i])));
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(PEERS+" peers, "+(DURATION / 1000)+"s: "+wakeups+" wakeups, "+sent+" packets sent, "+
+				"peers looked at: "+looked+" with the schedule ("+(looked / Math.max(1, sent))+" per packet), "+
+				scanned+" scanning all peers ("+(scanned / Math.max(1, sent))+" per packet); simulated in "+
+				(elapsed / 1000000)+"ms");
+	}
+
+}
@@ -0,0 +1,128 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SessionKeyIndexTest {
+
+	private static SessionKey makeKey() {
+		return new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+	}
+
+	private static byte[] makePacket(byte[] encryptedSeqNum) {
+		byte[] packet = new byte[NewPacketFormat.HMAC_LENGTH + 4 + 20];
+		System.arraycopy(encryptedSeqNum, 0, packet, NewPacketFormat.HMAC_LENGTH, 4);
+		return packet;
+	}
+
+	@Test
+	public void testAddGetRemove() {
+		SessionKeyIndex index = new SessionKeyIndex();
+		SessionKey key = makeKey();
+		byte[] seq = new byte[] { 1, 2, 3, 4 };
+		byte[] packet = makePacket(seq);
+		assertNull(index.get(packet, 0, packet.length));
+		index.add(seq, key);
+		assertSame(key, index.get(packet, 0, packet.length));
+
+		// Offset into a larger buffer.
+		byte[] buf = new byte[packet.length + 7];
+		System.arraycopy(packet, 0, buf, 7, packet.length);
+		assertSame(key, index.get(buf, 7, packet.length));
+
+		// Too short to contain a sequence number.
+		assertNull(index.get(packet, 0, NewPacketFormat.HMAC_LENGTH + 3));
+
+		// Only removed by the key which owns the entry.
+		index.remove(seq, makeKey());
+		assertSame(key, index.get(packet, 0, packet.length));
+		index.remove(seq, key);
+		assertNull(index.get(packet, 0, packet.length));
+	}
+
+	/** A key which is still in use, as if its peer still had it. */
+	private static SessionKey makeLiveKey() {
+		return new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1) {
+			@Override
+			boolean isInUse() {
+				return true;
+			}
+		};
+	}
+
+	private static byte[] toBytes(int i) {
+		return new byte[] { (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+	}
+
+	@Test
+	public void testPurge() {
+		SessionKeyIndex index = new SessionKeyIndex();
+		SessionKey dead = makeKey();
+		SessionKey live = makeLiveKey();
+		int count = SessionKeyIndex.MIN_CAPACITY * 2;
+		for(int i = 0; i < count; i++)
+			index.add(toBytes(i * 7919), i % 2 == 0 ? dead : live);
+		assertEquals(count, index.size());
+		assertTrue(index.capacity() > SessionKeyIndex.MIN_CAPACITY);
+		// Nothing is purged until we ask, and then a slice at a time.
+		index.purge(index.capacity() / 2);
+		assertTrue(index.size() > count / 2);
+		assertTrue(index.size() < count);
+		index.purge(index.capacity() / 2);
+		assertEquals(count / 2, index.size());
+		for(int i = 0; i < count; i++) {
+			byte[] packet = makePacket(toBytes(i * 7919));
+			assertSame(i % 2 == 0 ? null : live, index.get(packet, 0, packet.length));
+		}
+
+		// Shrinks once most of it is dead.
+		int capacity = index.capacity();
+		SessionKey dead2 = makeKey();
+		for(int i = 0; i < count; i++)
+			if(i % 2 == 1) index.add(toBytes(i * 7919), dead2);
+		index.purge(capacity);
+		assertEquals(0, index.size());
+		assertTrue(index.capacity() < capacity);
+	}
+
+	/** Compare with a HashMap, with sequence numbers which all want the same few slots. */
+	@Test
+	public void testCollisions() {
+		SessionKeyIndex index = new SessionKeyIndex();
+		Map<Integer, SessionKey> expected = new HashMap<Integer, SessionKey>();
+		SessionKey[] keys = new SessionKey[] { makeLiveKey(), makeLiveKey(), makeLiveKey() };
+		Random random = new Random(1234);
+		for(int i = 0; i < 100000; i++) {
+			// Wrap around the end of the table too.
+			int seqNum = (random.nextInt(64) - 32) * SessionKeyIndex.MIN_CAPACITY * 16 + random.nextInt(8) - 4;
+			SessionKey key = keys[random.nextInt(keys.length)];
+			if(random.nextBoolean()) {
+				index.add(toBytes(seqNum), key);
+				expected.put(seqNum, key);
+			} else {
+				index.remove(toBytes(seqNum), key);
+				if(expected.get(seqNum) == key)
+					expected.remove(seqNum);
+			}
+			if(i % 1000 == 0) {
+				assertEquals(expected.size(), index.size());
+				for(int j = -32 * 16; j < 32 * 16; j++) {
+					for(int k = -4; k < 4; k++) {
+						int s = j * SessionKeyIndex.MIN_CAPACITY + k;
+						byte[] packet = makePacket(toBytes(s));
+						assertSame(expected.get(s), index.get(packet, 0, packet.length));
+					}
+				}
+			}
+		}
+	}
+
+}
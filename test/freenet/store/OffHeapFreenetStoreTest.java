@@ -0,0 +1,203 @@
+package freenet.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Test for OffHeapFreenetStore */
+public class OffHeapFreenetStoreTest {
+
+	@Test
+	public void testSimpleCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		for(int i = 0; i < 5; i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test, (i & 1) == 1);
+			store.put(block.getBlock(), false);
+
+			ClientCHK key = block.getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlock(verify, key));
+		}
+		assertEquals(5, store.keyCount());
+		assertEquals(5, store.hits());
+
+		ClientCHKBlock missing = encodeBlock("missing", true);
+		assertNull(store.fetch(missing.getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(1, store.misses());
+	}
+
+	@Test
+	public void testOldBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test, false);
+		store.put(block.getBlock(), true);
+
+		ClientCHK key = block.getClientKey();
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(verify, key));
+
+		// ignoreOldBlocks works.
+		assertNull(store.fetch(key.getNodeCHK(), false, true, null));
+
+		// Put it with oldBlock = false should unset the flag.
+		store.put(block.getBlock(), false);
+		verify = store.fetch(key.getNodeCHK(), false, true, null);
+		assertEquals(test, decodeBlock(verify, key));
+		assertEquals(1, store.keyCount());
+	}
+
+	@Test
+	public void testEviction() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 5);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, "test", 20);
+		assertEquals(5, store.keyCount());
+		// The last block cannot have been evicted yet.
+		ClientCHKBlock last = blocks.get(19);
+		assertEquals("test19", decodeBlock(store.fetch(last.getClientKey().getNodeCHK(), false, false, null), last.getClientKey()));
+		assertEquals(5, countStored(store, blocks));
+	}
+
+	@Test
+	public void testResize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 20);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, "test", 20);
+		assertEquals(20, countStored(store, blocks));
+
+		store.setMaxKeys(5, true);
+		assertEquals(5, store.keyCount());
+		assertEquals(5, countStored(store, blocks));
+		assertTrue(offHeap.allocatedBytes() > 0);
+
+		store.setMaxKeys(30, true);
+		blocks.addAll(insertBlocks(store, "more", 20));
+		assertEquals(25, store.keyCount());
+		assertEquals(25, countStored(store, blocks));
+	}
+
+	@Test
+	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 10);
+		List<ClientCHKBlock> blocks = insertBlocks(store, "test", 5);
+
+		CHKStore target = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(target, 10);
+		offHeap.migrateTo(target, false);
+		offHeap.clear();
+
+		assertEquals(0, store.keyCount());
+		assertEquals(5, target.keyCount());
+		assertEquals(5, countStored(target, blocks));
+	}
+
+	@Test(timeout = 60000)
+	public void testConcurrentFetch() throws Exception {
+		final CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 20);
+		final List<ClientCHKBlock> blocks = insertBlocks(store, "test", 60);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] readers = new Thread[4];
+		for(int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int round = 0; round < 20; round++) {
+							for(int i = 0; i < blocks.size(); i++) {
+								ClientCHK key = blocks.get(i).getClientKey();
+								CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+								// Either a miss or the right block, never a mixture.
+								if(verify != null)
+									assertEquals("test" + i, decodeBlock(verify, key));
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			readers[t].start();
+		}
+		// Keep evicting and rewriting slots while they read.
+		for(int round = 0; round < 10; round++) {
+			for(ClientCHKBlock block : blocks)
+				store.put(block.getBlock(), false);
+		}
+		for(Thread reader : readers)
+			reader.join();
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(20, store.keyCount());
+	}
+
+	private List<ClientCHKBlock> insertBlocks(CHKStore store, String prefix, int count) throws CHKEncodeException, IOException {
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>(count);
+		for(int i = 0; i < count; i++) {
+			ClientCHKBlock block = encodeBlock(prefix + i, (i & 1) == 1);
+			store.put(block.getBlock(), false);
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	private int countStored(CHKStore store, List<ClientCHKBlock> blocks) throws IOException, CHKVerifyException, CHKDecodeException {
+		int found = 0;
+		for(int i = 0; i < blocks.size(); i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), true, false, null);
+			if(verify == null) continue;
+			assertNotNull(decodeBlock(verify, key));
+			found++;
+		}
+		return found;
+	}
+
+	private static String decodeBlock(CHKBlock verify, ClientCHK key)
+			throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private static ClientCHKBlock encodeBlock(String test, boolean newFormat) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short) -1, bucket.size(),
+				Compressor.DEFAULT_COMPRESSORDESCRIPTOR, null,
+				newFormat ? Key.ALGO_AES_CTR_256_SHA256 : Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+}
@@ -93,6 +93,59 @@ public class SlashdotStoreTest {
 		fail();
 	}
 
+	@Test
+	public void testSlotReuse() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SlashdotStore<CHKBlock> ss = new SlashdotStore<CHKBlock>(store, 5, 30*1000, 5*1000, new TrivialTicker(exec), tbf);
+		
+		// More blocks than slots: the oldest are dropped and their slots reused.
+		ClientCHKBlock[] blocks = new ClientCHKBlock[12];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertTrue(ss.keyCount() < 5);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), true, false, null);
+			if(i >= blocks.length - ss.keyCount())
+				assertEquals("test"+i, decodeBlock(verify, key));
+			else
+				assertNull(verify);
+		}
+		ss.close();
+	}
+	
+	@Test
+	public void testResize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SlashdotStore<CHKBlock> ss = new SlashdotStore<CHKBlock>(store, 10, 30*1000, 5*1000, new TrivialTicker(exec), tbf);
+		
+		ClientCHKBlock[] blocks = new ClientCHKBlock[8];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		// Grow: everything is kept.
+		ss.setMaxKeys(20, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test"+i, decodeBlock(store.fetch(key.getNodeCHK(), true, false, null), key));
+		}
+		// Shrink: only the most recently used survive.
+		ss.setMaxKeys(4, true);
+		assertEquals(3, ss.keyCount());
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), true, false, null);
+			if(i >= blocks.length - 3)
+				assertEquals("test"+i, decodeBlock(verify, key));
+			else
+				assertNull(verify);
+		}
+		ss.close();
+	}
+
 	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -0,0 +1,115 @@
+package freenet.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.io.FileUtil;
+
+/** Test for StoreTraceWriter and StoreTraceReplay */
+public class StoreTraceTest {
+
+	private File tempDir;
+
+	@Before
+	public void setUp() {
+		tempDir = new File("tmp-storetracetest");
+		tempDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		File f = new File(tempDir, "trace");
+		StoreTraceWriter trace = new StoreTraceWriter(f, new Random(1234));
+		byte[] key1 = new byte[32];
+		byte[] key2 = new byte[32];
+		key2[0] = 1;
+		trace.record(StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_STORE, true, false, 5000, 32804, key1);
+		trace.record(StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_STORE, false, true, 2000000, 32804, key1);
+		trace.record(StoreTraceRecord.TYPE_SSK, StoreTraceRecord.TIER_SLASHDOT, false, false, 100, 0, key2);
+		trace.close();
+		// Ignored once closed.
+		trace.record(StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_STORE, false, false, 100, 0, key2);
+		assertEquals(8 + 4 + 8 + 3 * StoreTraceRecord.LENGTH, f.length());
+
+		DataInputStream dis = new DataInputStream(new FileInputStream(f));
+		try {
+			StoreTraceWriter.readHeader(dis);
+			StoreTraceRecord put = StoreTraceRecord.read(dis);
+			assertTrue(put.isPut());
+			assertEquals(5, put.latency);
+			assertEquals(32804, put.size);
+			StoreTraceRecord hit = StoreTraceRecord.read(dis);
+			assertFalse(hit.isPut());
+			assertTrue(hit.isHit());
+			assertEquals(2000, hit.latency);
+			assertEquals(put.keyHash, hit.keyHash);
+			StoreTraceRecord miss = StoreTraceRecord.read(dis);
+			assertFalse(miss.isHit());
+			assertEquals(StoreTraceRecord.TYPE_SSK, miss.type);
+			assertEquals(StoreTraceRecord.TIER_SLASHDOT, miss.tier);
+			assertNotEquals(put.keyHash, miss.keyHash);
+			assertNull(StoreTraceRecord.read(dis));
+		} finally {
+			dis.close();
+		}
+	}
+
+	@Test
+	public void testLongTrace() throws IOException {
+		// More than 2^31 milliseconds after the trace started.
+		long time = 30L * 24 * 60 * 60 * 1000;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		new StoreTraceRecord(1234, time, 5, 32804, StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_STORE, 0).writeTo(dos);
+		dos.close();
+		assertEquals(StoreTraceRecord.LENGTH, baos.size());
+		StoreTraceRecord record = StoreTraceRecord.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+		assertEquals(time, record.time);
+		assertEquals(1234, record.keyHash);
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		File f = new File(tempDir, "trace");
+		StoreTraceWriter trace = new StoreTraceWriter(f, new Random(1234));
+		Random random = new Random(5678);
+		byte[][] keys = new byte[20][];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = new byte[32];
+			random.nextBytes(keys[i]);
+			trace.record(StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_CACHE, true, false, 1000, 32804, keys[i]);
+		}
+		for(int i = 0; i < keys.length; i++)
+			trace.record(StoreTraceRecord.TYPE_CHK, StoreTraceRecord.TIER_CACHE, false, true, 1000, 32804, keys[i]);
+		trace.close();
+
+		StoreTraceReplay replay = new StoreTraceReplay("ram", 10, new File(tempDir, "replay"));
+		try {
+			replay.replay(f);
+		} finally {
+			replay.close();
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+package freenet.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Test for TieredFreenetStore */
+public class TieredFreenetStoreTest {
+
+	@Test
+	public void testPromotion() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fast = new RAMFreenetStore<CHKBlock>(store, 5);
+		RAMFreenetStore<CHKBlock> slow = new RAMFreenetStore<CHKBlock>(store, 20);
+		new TieredFreenetStore<CHKBlock>(store, fast, slow);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, 10);
+		assertEquals(0, fast.keyCount());
+		assertEquals(10, slow.keyCount());
+
+		ClientCHK key = blocks.get(0).getClientKey();
+		for(int i = 0; i < TieredFreenetStore.PROMOTE_HITS; i++)
+			assertEquals("test0", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		assertEquals(1, fast.keyCount());
+		assertEquals(0, fast.hits());
+
+		assertEquals("test0", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		assertEquals(1, fast.hits());
+		assertEquals(TieredFreenetStore.PROMOTE_HITS + 1, store.hits());
+
+		StoreAccessStats[] tiers = store.getSessionAccessStats().tiers();
+		assertNotNull(tiers);
+		assertEquals(2, tiers.length);
+		assertEquals(1, tiers[0].hits());
+		assertEquals(TieredFreenetStore.PROMOTE_HITS, tiers[1].hits());
+		assertEquals(TieredFreenetStore.PROMOTE_HITS + 1, tiers[0].readRequests());
+	}
+
+	@Test
+	public void testDontPromote() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fast = new RAMFreenetStore<CHKBlock>(store, 5);
+		RAMFreenetStore<CHKBlock> slow = new RAMFreenetStore<CHKBlock>(store, 20);
+		new TieredFreenetStore<CHKBlock>(store, fast, slow);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, 3);
+		for(int i = 0; i < 10; i++)
+			assertNotNull(store.fetch(blocks.get(1).getClientKey().getNodeCHK(), true, false, null));
+		assertEquals(0, fast.keyCount());
+	}
+
+	@Test
+	public void testDemotion() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fast = new RAMFreenetStore<CHKBlock>(store, 5);
+		RAMFreenetStore<CHKBlock> slow = new RAMFreenetStore<CHKBlock>(store, 20);
+		new TieredFreenetStore<CHKBlock>(store, fast, slow);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, 20);
+		for(int round = 0; round < TieredFreenetStore.PROMOTE_HITS; round++) {
+			for(ClientCHKBlock block : blocks)
+				assertNotNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+		}
+		// Only the last few promoted fit, but nothing is lost.
+		assertEquals(5, fast.keyCount());
+		for(int i = 0; i < blocks.size(); i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), true, false, null), key));
+		}
+		assertNull(store.fetch(encodeBlock("missing").getClientKey().getNodeCHK(), false, false, null));
+	}
+
+	@Test
+	public void testOldBlockUpdatesCopy() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fast = new RAMFreenetStore<CHKBlock>(store, 5);
+		RAMFreenetStore<CHKBlock> slow = new RAMFreenetStore<CHKBlock>(store, 20);
+		new TieredFreenetStore<CHKBlock>(store, fast, slow);
+
+		ClientCHKBlock block = encodeBlock("test");
+		store.put(block.getBlock(), true);
+		for(int i = 0; i < TieredFreenetStore.PROMOTE_HITS; i++)
+			assertNotNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(1, fast.keyCount());
+		// The promoted copy is old too.
+		assertNull(store.fetch(block.getClientKey().getNodeCHK(), false, true, null));
+
+		store.put(block.getBlock(), false);
+		assertNotNull(store.fetch(block.getClientKey().getNodeCHK(), false, true, null));
+	}
+
+	/** Inserts don't go to the fast store, even if it can't tell what it holds. */
+	@Test
+	public void testInsertsStaySlow() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fast = new RAMFreenetStore<CHKBlock>(store, 5) {
+			@Override
+			public boolean probablyInStore(byte[] routingKey) {
+				return true;
+			}
+		};
+		RAMFreenetStore<CHKBlock> slow = new RAMFreenetStore<CHKBlock>(store, 20);
+		new TieredFreenetStore<CHKBlock>(store, fast, slow);
+
+		List<ClientCHKBlock> blocks = insertBlocks(store, 10);
+		assertEquals(0, fast.keyCount());
+		assertEquals(10, slow.keyCount());
+		// Putting a block again doesn't promote it either.
+		store.put(blocks.get(0).getBlock(), false);
+		assertEquals(0, fast.keyCount());
+	}
+
+	private List<ClientCHKBlock> insertBlocks(CHKStore store, int count) throws CHKEncodeException, IOException {
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>(count);
+		for(int i = 0; i < count; i++) {
+			ClientCHKBlock block = encodeBlock("test" + i);
+			store.put(block.getBlock(), false);
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	private static String decodeBlock(CHKBlock verify, ClientCHK key)
+			throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private static ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short) -1, bucket.size(),
+				Compressor.DEFAULT_COMPRESSORDESCRIPTOR, null, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+}
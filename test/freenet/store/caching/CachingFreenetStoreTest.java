@@ -691,6 +691,86 @@ public class CachingFreenetStoreTest {
 		}
 	}
 
+	/* Hit, miss and eviction counters */
+	@Test
+ 	public void testAccessStats() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 10);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize,
+				cachingFreenetStorePeriod, ticker);
+		try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, ramStore, tracker)) {
+			cachingStore.start(null, true);
+
+			ClientCHKBlock block = encodeBlockCHK("test");
+			store.put(block.getBlock(), false);
+			assertNotNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+			assertNull(store.fetch(encodeBlockCHK("other").getClientKey().getNodeCHK(), false, false, null));
+
+			assertEquals(1, cachingStore.getSessionAccessStats().cacheHits());
+			assertEquals(1, cachingStore.getSessionAccessStats().cacheMisses());
+			assertEquals(1, cachingStore.getSessionAccessStats().hits());
+			assertEquals(1, cachingStore.getSessionAccessStats().misses());
+			assertEquals(0, cachingStore.getSessionAccessStats().cacheEvictions());
+
+			assertEquals(store.getTotalBlockSize(), cachingStore.pushLeastRecentlyBlock());
+			assertEquals(1, cachingStore.getSessionAccessStats().cacheEvictions());
+			assertTrue(cachingStore.isEmpty());
+			// Now from the underlying store.
+			assertNotNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+			assertEquals(2, cachingStore.getSessionAccessStats().hits());
+			assertEquals(2, cachingStore.getSessionAccessStats().cacheMisses());
+		}
+	}
+
+	/* Many threads putting and fetching at once, with the tracker writing blocks out meanwhile */
+	@Test
+ 	public void testConcurrentPutFetch() throws Exception {
+		final CHKStore store = new CHKStore();
+		final int blockCount = 256;
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, blockCount);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize,
+				cachingFreenetStorePeriod, ticker);
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[blockCount];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+		try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, ramStore, tracker)) {
+			cachingStore.start(null, true);
+
+			final int threadCount = 8;
+			List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>();
+			for (int t = 0; t < threadCount; t++) {
+				final int first = t;
+				tasks.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for (int i = first; i < blocks.length; i += threadCount) {
+							store.put(blocks[i].getBlock(), false);
+							CHKBlock verify = store.fetch(blocks[i].getClientKey().getNodeCHK(), false, false, null);
+							if (!("test" + i).equals(decodeBlockCHK(verify, blocks[i].getClientKey())))
+								return false;
+						}
+						return true;
+					}
+				}));
+			}
+			for (FutureTask<Boolean> task : tasks)
+				Executors.newCachedThreadPool().execute(task);
+			for (FutureTask<Boolean> task : tasks)
+				assertTrue(task.get());
+
+			// Every block is either still cached or in the underlying store.
+			for (int i = 0; i < blocks.length; i++) {
+				CHKBlock verify = store.fetch(blocks[i].getClientKey().getNodeCHK(), false, false, null);
+				assertEquals("test" + i, decodeBlockCHK(verify, blocks[i].getClientKey()));
+			}
+		}
+		// Closing writes everything out.
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertNotNull(ramStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null));
+		}
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key)
 			throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
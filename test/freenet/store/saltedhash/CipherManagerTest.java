@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+import freenet.crypt.ciphers.Rijndael;
+
+public class CipherManagerTest {
+
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	@Test
+	public void testKeyCache() {
+		Random random = new Random(1234);
+		CipherManager.KeyCache<String> cache = new CipherManager.KeyCache<String>(16);
+		byte[] key = randomBytes(random, 32);
+		assertNull(cache.get(key));
+		cache.put(key, "a");
+		assertEquals("a", cache.get(key));
+		// Looked up by value, not identity, and the caller may reuse its array.
+		byte[] copy = key.clone();
+		assertEquals("a", cache.get(copy));
+		key[0]++;
+		assertNull(cache.get(key));
+		assertEquals("a", cache.get(copy));
+		cache.clear();
+		assertNull(cache.get(copy));
+	}
+
+	@Test
+	public void testKeyCacheEviction() {
+		Random random = new Random(1234);
+		CipherManager.KeyCache<String> cache = new CipherManager.KeyCache<String>(2);
+		byte[][] keys = new byte[3][];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = randomBytes(random, 32);
+			cache.put(keys[i], "key "+i);
+		}
+		// Two slots, so at least one of the first two has been replaced, and the last is still there.
+		assertEquals("key 2", cache.get(keys[2]));
+		int hits = 0;
+		for(int i = 0; i < 2; i++) {
+			String value = cache.get(keys[i]);
+			if(value != null) {
+				assertEquals("key "+i, value);
+				hits++;
+			}
+		}
+		assertTrue(hits <= 1);
+		// Nothing else is ever returned for a key.
+		for(int i = 0; i < 1000; i++) {
+			byte[] key = randomBytes(random, 32);
+			cache.put(key, "other");
+			assertEquals("other", cache.get(key));
+			for(int j = 0; j < keys.length; j++) {
+				String value = cache.get(keys[j]);
+				assertTrue(value == null || value.equals("key "+j));
+			}
+		}
+	}
+
+	@Test
+	public void testDigestedKey() {
+		Random random = new Random(1234);
+		byte[] salt = randomBytes(random, 16);
+		CipherManager cipherManager = new CipherManager(salt, salt.clone());
+		byte[] key = randomBytes(random, 32);
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(key);
+		md.update(salt);
+		byte[] expected = md.digest();
+		byte[] digested = cipherManager.getDigestedKey(key);
+		assertArrayEquals(expected, digested);
+		// Cached.
+		assertSame(digested, cipherManager.getDigestedKey(key.clone()));
+		assertArrayEquals(expected, cipherManager.getDigestedKey(key));
+	}
+
+	/** A cached key schedule encrypts the same as a new one, and decrypts what it encrypted,
+	 * even after other keys have been used in between. */
+	@Test
+	public void testCachedCipher() throws Exception {
+		Random random = new Random(1234);
+		byte[] salt = randomBytes(random, 16);
+		final AtomicInteger keySchedules = new AtomicInteger();
+		CipherManager cipherManager = new CipherManager(salt.clone(), salt.clone()) {
+
+			@Override
+			BlockCipher makeBlockCipher(byte[] key) {
+				keySchedules.incrementAndGet();
+				return super.makeBlockCipher(key);
+			}
+
+		};
+		byte[][] keys = new byte[4][];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = randomBytes(random, 32);
+		for(int round = 0; round < 3; round++) {
+			for(byte[] key : keys) {
+				byte[] iv = randomBytes(random, 16);
+				byte[] plaintext = randomBytes(random, 1024 + 4);
+				byte[] data = plaintext.clone();
+				cipherManager.makeCipher(iv, key).blockEncipher(data, 0, data.length);
+				assertFalse(Arrays.equals(plaintext, data));
+
+				// Without the cache.
+				byte[] iv2 = new byte[32];
+				System.arraycopy(salt, 0, iv2, 0, 16);
+				System.arraycopy(iv, 0, iv2, 16, 16);
+				Rijndael aes = new Rijndael(256, 256);
+				aes.initialize(key);
+				byte[] expected = plaintext.clone();
+				PCFBMode.create(aes, iv2).blockEncipher(expected, 0, expected.length);
+				assertArrayEquals(expected, data);
+
+				cipherManager.makeCipher(iv, key.clone()).blockDecipher(data, 0, data.length);
+				assertArrayEquals(plaintext, data);
+			}
+		}
+		// Each key schedule was only computed once.
+		assertEquals(keys.length, keySchedules.get());
+		cipherManager.shutdown();
+	}
+
+}
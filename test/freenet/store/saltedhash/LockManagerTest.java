@@ -0,0 +1,165 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+public class LockManagerTest {
+
+	private static final int SLOTS = 4096;
+	/** Same as SaltedHashFreenetStore.OPTION_MAX_PROBE */
+	private static final int PROBES = 5;
+
+	@Test
+	public void testLockUnlock() {
+		LockManager lm = new LockManager(64);
+		int[] locked = lm.lockEntries(new long[] { 1, 65, 2, 2 }, 4);
+		assertNotNull(locked);
+		// 1 and 65 share a stripe, 2 is duplicated.
+		assertEquals(2, locked.length);
+		assertTrue(locked[0] < locked[1]);
+		lm.unlockEntries(locked);
+		locked = lm.lockEntries(0, 128);
+		assertNotNull(locked);
+		assertEquals(64, locked.length);
+		lm.unlockEntries(locked);
+		lm.shutdown();
+	}
+
+	@Test
+	public void testShutdown() {
+		LockManager lm = new LockManager(64);
+		lm.shutdown();
+		assertNull(lm.lockEntries(new long[] { 1 }, 1));
+	}
+
+	@Test
+	public void testNestingForbidden() {
+		boolean assertions = false;
+		assert assertions = true;
+		if (!assertions)
+			return;
+		LockManager lm = new LockManager(64);
+		int[] locked = lm.lockEntries(new long[] { 1 }, 1);
+		try {
+			// Even an offset on the same stripe, which used to be allowed.
+			lm.lockEntries(new long[] { 65 }, 1);
+			fail("Nested lockEntries() allowed");
+		} catch (AssertionError e) {
+			// Expected.
+		}
+		lm.unlockEntries(locked);
+		// Locking again after unlocking is fine.
+		locked = lm.lockEntries(new long[] { 1, 2 }, 2);
+		assertNotNull(locked);
+		lm.unlockEntries(locked);
+		lm.shutdown();
+	}
+
+	/** Several threads lock random sets of offsets while a "Cleaner" locks consecutive
+	 * batches. Nobody must ever see a slot in use by somebody else, and it must not deadlock. */
+	@Test(timeout = 60000)
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager(1024);
+		final AtomicIntegerArray inUse = new AtomicIntegerArray(SLOTS);
+		final AtomicBoolean failed = new AtomicBoolean();
+		final int iterations = TestProperty.EXTENSIVE ? 100000 : 10000;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean cleaner = t == 0;
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					long[] offsets = new long[PROBES];
+					for (int i = 0; i < iterations && !failed.get(); i++) {
+						int count;
+						if (cleaner) {
+							long start = (i * 128L) % SLOTS;
+							offsets = new long[128];
+							for (int j = 0; j < 128; j++)
+								offsets[j] = start + j;
+							count = 128;
+						} else {
+							for (int j = 0; j < offsets.length; j++)
+								offsets[j] = random.nextInt(SLOTS);
+							count = offsets.length;
+						}
+						int[] locked = lm.lockEntries(offsets, count);
+						if (locked == null) {
+							failed.set(true);
+							break;
+						}
+						boolean[] mine = new boolean[SLOTS];
+						for (int j = 0; j < count; j++) {
+							int slot = (int) offsets[j];
+							if (mine[slot])
+								continue;
+							mine[slot] = true;
+							if (!inUse.compareAndSet(slot, 0, 1))
+								failed.set(true);
+						}
+						for (int j = 0; j < SLOTS; j++)
+							if (mine[j])
+								inUse.set(j, 0);
+						lm.unlockEntries(locked);
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertFalse(failed.get());
+		lm.shutdown();
+	}
+
+	/** Lock throughput for a fetch/put-like pattern (5 random probe slots) from 1 to 32
+	 * threads. */
+	@Test
+	public void testBenchmark() throws InterruptedException {
+		if (!TestProperty.BENCHMARK)
+			return;
+
+		for (int threadCount = 1; threadCount <= 32; threadCount *= 2) {
+			final LockManager lm = new LockManager();
+			final AtomicLong ops = new AtomicLong();
+			final long end = System.currentTimeMillis() + 2000;
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threadCount; t++) {
+				final Random random = new Random(t);
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						long[] offsets = new long[PROBES];
+						long count = 0;
+						while (System.currentTimeMillis() < end) {
+							for (int i = 0; i < 1000; i++) {
+								for (int j = 0; j < offsets.length; j++)
+									offsets[j] = random.nextInt(1 << 24);
+								int[] locked = lm.lockEntries(offsets, offsets.length);
+								lm.unlockEntries(locked);
+							}
+							count += 1000;
+						}
+						ops.addAndGet(count);
+					}
+				};
+			}
+			for (Thread t : threads)
+				t.start();
+			for (Thread t : threads)
+				t.join();
+			System.out.println("LockManager: " + threadCount + " threads: " + (ops.get() / 2) + " lock/unlock per second");
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.io.FileUtil;
+
+/** Test for MappedPersistentIntBuffer */
+public class MappedPersistentIntBufferTest {
+
+	private static final int REGION = MappedPersistentIntBuffer.REGION_INTS;
+
+	private File tempDir;
+	private int persistenceTime;
+
+	@Before
+	public void setUp() {
+		tempDir = new File("tmp-mappedpersistentintbuffertest");
+		tempDir.mkdir();
+		persistenceTime = ResizablePersistentIntBuffer.getPersistenceTime();
+	}
+
+	@After
+	public void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
+		FileUtil.removeAll(tempDir);
+	}
+
+	@Test
+	public void testPersistOnShutdown() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slotfilter");
+		MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, 3 * REGION);
+		assertTrue(buffer.isNew());
+		buffer.fill(1);
+		buffer.forceWrite();
+		for(int i = 0; i < buffer.size(); i += 1000)
+			buffer.put(i, i + 2);
+		buffer.shutdown();
+
+		buffer = new MappedPersistentIntBuffer(f, 3 * REGION);
+		assertFalse(buffer.isNew());
+		assertTrue(buffer.recoversFromCrash());
+		for(int i = 0; i < buffer.size(); i++)
+			assertEquals((i % 1000 == 0) ? i + 2 : 1, buffer.get(i));
+		buffer.shutdown();
+	}
+
+	@Test
+	public void testCrashResetsChangedRegions() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slotfilter");
+		MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, 4 * REGION);
+		buffer.fill(1);
+		buffer.forceWrite();
+		// Change the second and last regions, then crash.
+		buffer.put(REGION + 5, 7);
+		buffer.put(4 * REGION - 1, 7);
+		buffer.abort();
+
+		buffer = new MappedPersistentIntBuffer(f, 4 * REGION);
+		assertTrue(buffer.recoversFromCrash());
+		for(int i = 0; i < buffer.size(); i++) {
+			int region = i / REGION;
+			assertEquals((region == 1 || region == 3) ? 0 : 1, buffer.get(i));
+		}
+		// Reopening again after a clean shutdown resets nothing.
+		buffer.put(5, 9);
+		buffer.shutdown();
+		buffer = new MappedPersistentIntBuffer(f, 4 * REGION);
+		assertEquals(9, buffer.get(5));
+		assertEquals(0, buffer.get(REGION + 5));
+		assertEquals(1, buffer.get(2 * REGION));
+		buffer.shutdown();
+	}
+
+	/** Puts racing with writes: afterwards only the regions changed since the last write are
+	 * reset after a crash. */
+	@Test
+	public void testPutsDuringWrites() throws Exception {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slotfilter");
+		final MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, 4 * REGION);
+		buffer.fill(1);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[3];
+		for(int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Random random = new Random(thread);
+						while(!stop.get()) {
+							int offset = random.nextInt(4 * REGION);
+							buffer.put(offset, 2);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(int i = 0; i < 20; i++)
+			buffer.forceWrite();
+		stop.set(true);
+		for(Thread t : threads)
+			t.join();
+		assertNull(failure.get());
+		buffer.forceWrite();
+		int[] values = new int[buffer.size()];
+		for(int i = 0; i < values.length; i++)
+			values[i] = buffer.get(i);
+		buffer.put(2 * REGION, 3);
+		values[2 * REGION] = 3;
+		buffer.abort();
+
+		MappedPersistentIntBuffer reopened = new MappedPersistentIntBuffer(f, 4 * REGION);
+		for(int i = 0; i < values.length; i++)
+			assertEquals(i / REGION == 2 ? 0 : values[i], reopened.get(i));
+		reopened.shutdown();
+	}
+
+	@Test
+	public void testImmediateWrites() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		File f = new File(tempDir, "slotfilter");
+		MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, 2 * REGION);
+		buffer.fill(1);
+		buffer.put(REGION + 1, 3);
+		buffer.abort();
+
+		// Writes went straight to the file, so there is nothing to reset.
+		buffer = new MappedPersistentIntBuffer(f, 2 * REGION);
+		assertEquals(3, buffer.get(REGION + 1));
+		assertEquals(1, buffer.get(REGION + 2));
+		buffer.shutdown();
+	}
+
+	@Test
+	public void testResize() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slotfilter");
+		MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, REGION + 10);
+		buffer.fill(1);
+		buffer.resize(3 * REGION);
+		assertEquals(3 * REGION, buffer.size());
+		assertEquals(1, buffer.get(REGION + 9));
+		assertEquals(0, buffer.get(REGION + 10));
+		buffer.put(3 * REGION - 1, 5);
+		buffer.resize(REGION);
+		buffer.put(REGION - 1, 6);
+		buffer.shutdown();
+
+		buffer = new MappedPersistentIntBuffer(f, REGION);
+		assertEquals(6, buffer.get(REGION - 1));
+		assertEquals(1, buffer.get(0));
+		buffer.shutdown();
+		assertEquals(REGION * 4L, f.length());
+	}
+
+	@Test
+	public void testOldFileNeedsRebuild() throws IOException {
+		File f = new File(tempDir, "slotfilter");
+		ResizablePersistentIntBuffer old = new ResizablePersistentIntBuffer(f, REGION);
+		old.fill(1);
+		old.shutdown();
+
+		// Written without a dirty file, so we can't know what was lost.
+		MappedPersistentIntBuffer buffer = new MappedPersistentIntBuffer(f, REGION);
+		assertFalse(buffer.recoversFromCrash());
+		assertEquals(1, buffer.get(REGION - 1));
+		buffer.shutdown();
+	}
+
+}
@@ -4,7 +4,13 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
@@ -40,8 +46,10 @@ import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
+import freenet.support.HexUtil;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -101,6 +109,401 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* Memory mapped I/O must read back what it wrote, also after reopening and growing the store */
+	@Test
+	public void testSimpleCHKMmap() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMmap", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+
+		saltStore.close();
+
+		// Reopen with a bigger size, so the files are remapped during the resize.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMmap", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.close();
+	}
+
+	/* With write-behind, fetches must see queued blocks, and close must write everything */
+	@Test
+	public void testSimpleCHKWriteBehind() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKWriteBehind", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, false, 4);
+		saltStore.start(null, true);
+
+		// More blocks than the queue holds, fetched straight after being put, so some of them
+		// come from the queue and some from disk.
+		ClientCHKBlock[] blocks = new ClientCHKBlock[8];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+
+		saltStore.close();
+
+		// Everything must have been written on close.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKWriteBehind", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if(verify == null) {
+				// May have been overwritten, the store only has 10 slots. But not the last one.
+				assertTrue(i < blocks.length - 1);
+				continue;
+			}
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.close();
+	}
+
+	/* Growing and shrinking with several Cleaner threads, each taking small chunks, must keep the blocks */
+	@Test
+	public void testParallelResize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		int threads = SaltedHashFreenetStore.CLEANER_THREADS;
+		int chunk = SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES;
+		SaltedHashFreenetStore.CLEANER_THREADS = 3;
+		SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES = 4;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		try {
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreParallelResize", store, weakPRNG, 40, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(ticker, true);
+
+			List<ClientCHKBlock> stored = new ArrayList<ClientCHKBlock>();
+			for(int i=0;i<10;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				store.put(block.getBlock(), false);
+				if(store.fetch(block.getClientKey().getNodeCHK(), false, false, null) != null)
+					stored.add(block);
+			}
+
+			saltStore.setMaxKeys(80, true);
+			for(ClientCHKBlock block : stored) {
+				CHKBlock verify = store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+				assertNotNull(verify);
+			}
+
+			saltStore.setMaxKeys(30, true);
+			int found = 0;
+			for(ClientCHKBlock block : stored) {
+				ClientCHK key = block.getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				if(verify == null) continue; // Shrinking may cause collisions.
+				assertTrue(decodeBlockCHK(verify, key).startsWith("test"));
+				found++;
+			}
+			assertTrue(found > 0);
+			assertEquals(30, saltStore.getMaxKeys());
+
+			saltStore.close();
+		} finally {
+			SaltedHashFreenetStore.CLEANER_THREADS = threads;
+			SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES = chunk;
+			SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
+		}
+	}
+
+	/** Read a long from the store's .config file, see writeConfigFile(). */
+	private static long readConfigLong(File configFile, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(configFile, "r");
+		try {
+			raf.seek(offset);
+			return raf.readLong();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int readConfigInt(File configFile, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(configFile, "r");
+		try {
+			raf.seek(offset);
+			return raf.readInt();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/* Interrupt a resize, then check it resumes from the checkpoint in the .config file
+	 * without losing or duplicating any keys. */
+	@Test
+	public void testResumeResize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		String name = "testSaltedHashFreenetStoreResumeResize";
+		File configFile = new File(f, name + ".config");
+
+		int threads = SaltedHashFreenetStore.CLEANER_THREADS;
+		int chunk = SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES;
+		SaltedHashFreenetStore.CLEANER_THREADS = 3;
+		SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES = 4;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		try {
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, 400, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(ticker, true);
+			List<ClientCHKBlock> stored = new ArrayList<ClientCHKBlock>();
+			for(int i=0;i<100;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				store.put(block.getBlock(), false);
+				if(store.fetch(block.getClientKey().getNodeCHK(), false, false, null) != null)
+					stored.add(block);
+			}
+			assertTrue(stored.size() > 90);
+			saltStore.close();
+
+			// Grow it. The Cleaner does the resize in the background, a batch every 100ms.
+			store = new CHKStore();
+			saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, 800, true, SemiOrderedShutdownHook.get(), true, false, ticker, null);
+			saltStore.start(ticker, true);
+			long deadline = System.currentTimeMillis() + 60000;
+			long checkpoint = 0;
+			while(checkpoint == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+				try {
+					checkpoint = readConfigLong(configFile, 0x38);
+				} catch (IOException e) {
+					// Being replaced, try again.
+				}
+			}
+			saltStore.close();
+
+			assertEquals(800, readConfigLong(configFile, 0x10));
+			assertEquals("Resize should have been interrupted", 400, readConfigLong(configFile, 0x18));
+			checkpoint = readConfigLong(configFile, 0x38);
+			assertTrue("Checkpoint " + checkpoint, checkpoint > 0 && checkpoint < 400);
+			assertEquals(0, checkpoint % 4);
+			int generation = readConfigInt(configFile, 0x28);
+
+			// Finish the resize while opening.
+			store = new CHKStore();
+			saltStore = SaltedHashFreenetStore.construct(f, name, store, weakPRNG, 800, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(ticker, true);
+			assertEquals(0, readConfigLong(configFile, 0x18));
+			assertEquals(0, readConfigLong(configFile, 0x38));
+			// A fresh start would have moved on to the next generation.
+			assertEquals(generation, readConfigInt(configFile, 0x28));
+
+			for(ClientCHKBlock block : stored) {
+				ClientCHK key = block.getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				assertNotNull(verify);
+				assertTrue(decodeBlockCHK(verify, key).startsWith("test"));
+			}
+			assertEquals(stored.size(), saltStore.keyCount());
+			saltStore.close();
+
+			// Each key is in exactly one slot.
+			RandomAccessFile meta = new RandomAccessFile(new File(f, name + ".metadata"), "r");
+			try {
+				HashSet<String> keys = new HashSet<String>();
+				byte[] entry = new byte[0x80]; // METADATA_LENGTH
+				for(long offset = 0; offset + entry.length <= meta.length(); offset += entry.length) {
+					meta.seek(offset);
+					meta.readFully(entry);
+					// The digested key, then the IV, then the flags.
+					if((entry[0x37] & 1) == 0) continue; // Not occupied.
+					String key = HexUtil.bytesToHex(Arrays.copyOf(entry, 0x20));
+					assertTrue("Duplicate " + key, keys.add(key));
+				}
+				assertEquals(stored.size(), keys.size());
+			} finally {
+				meta.close();
+			}
+		} finally {
+			SaltedHashFreenetStore.CLEANER_THREADS = threads;
+			SaltedHashFreenetStore.CLEANER_CHUNK_ENTRIES = chunk;
+			SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
+		}
+	}
+
+	/* Fetch/put throughput from 1 to 32 threads, mostly a test of the LockManager */
+	@Test
+	public void testBenchmarkConcurrentFetchPut() throws IOException, CHKEncodeException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, 4096, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final CHKBlock[] blocks = new CHKBlock[1024];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i).getBlock();
+			store.put(blocks[i], false);
+		}
+
+		for(int threadCount=1;threadCount<=32;threadCount*=2) {
+			final AtomicLong ops = new AtomicLong();
+			final long end = System.currentTimeMillis() + 5000;
+			Thread[] threads = new Thread[threadCount];
+			for(int t=0;t<threadCount;t++) {
+				final Random random = new Random(t);
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						long count = 0;
+						try {
+							while(System.currentTimeMillis() < end) {
+								CHKBlock block = blocks[random.nextInt(blocks.length)];
+								// 1 put for every 4 fetches.
+								if(random.nextInt(5) == 0)
+									store.put(block, false);
+								else
+									store.fetch(block.getKey(), false, false, null);
+								count++;
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						ops.addAndGet(count);
+					}
+				};
+			}
+			for(Thread t : threads)
+				t.start();
+			for(Thread t : threads)
+				t.join();
+			System.out.println("Salted hash store: " + threadCount + " threads: " + (ops.get() / 5) + " fetch/put per second");
+		}
+
+		saltStore.close();
+	}
+
+	/* Per-entry crypto cost, with and without a cached key schedule, against store read throughput */
+	@Test
+	public void testBenchmarkEntryCrypto() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+
+		byte[] salt = new byte[16];
+		weakPRNG.nextBytes(salt);
+		CipherManager cipherManager = new CipherManager(salt, salt.clone());
+		byte[][] keys = new byte[64][32];
+		for(byte[] key : keys)
+			weakPRNG.nextBytes(key);
+		byte[] iv = new byte[16];
+		byte[] data = new byte[CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH];
+		int rounds = 20000;
+
+		long start = System.nanoTime();
+		for(int i=0;i<rounds;i++)
+			cipherManager.makeBlockCipher(keys[i % keys.length]);
+		long keySchedule = (System.nanoTime() - start) / rounds;
+
+		start = System.nanoTime();
+		for(int i=0;i<rounds;i++)
+			cipherManager.makeCipher(iv, keys[i % keys.length]);
+		long cachedKeySchedule = (System.nanoTime() - start) / rounds;
+
+		start = System.nanoTime();
+		for(int i=0;i<rounds/10;i++)
+			cipherManager.makeCipher(iv, keys[i % keys.length]).blockDecipher(data, 0, data.length);
+		long decrypt = (System.nanoTime() - start) / (rounds/10);
+
+		System.out.println("Key schedule: " + keySchedule + "ns, cached: " + cachedKeySchedule + "ns, decrypt CHK entry: " + decrypt + "ns");
+		System.out.println("Crypto alone limits one thread to " + (1000L * 1000 * 1000 / decrypt) + " CHK entries per second");
+
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCryptoBenchmark", store, weakPRNG, 1024, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		CHKBlock[] blocks = new CHKBlock[256];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i).getBlock();
+			store.put(blocks[i], false);
+		}
+		start = System.nanoTime();
+		for(int i=0;i<rounds/10;i++)
+			store.fetch(blocks[i % blocks.length].getKey(), false, false, null);
+		long fetch = (System.nanoTime() - start) / (rounds/10);
+		System.out.println("Salted hash store fetch: " + fetch + "ns, " + (1000L * 1000 * 1000 / fetch) + " per second");
+
+		saltStore.close();
+	}
+
+	/* Bulk check and fetch of CHKs, with slotFilter */
+	@Test
+	public void testBulkCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBulkCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		// Every other key is in the store.
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		byte[][] routingKeys = new byte[blocks.length][];
+		byte[][] fullKeys = new byte[blocks.length][];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			if(i % 2 == 0)
+				store.put(blocks[i].getBlock(), false);
+			routingKeys[i] = blocks[i].getKey().getRoutingKey();
+			fullKeys[i] = blocks[i].getKey().getFullKey();
+		}
+
+		boolean[] present = saltStore.probablyInStore(routingKeys);
+		long hits = saltStore.hits();
+		long misses = saltStore.misses();
+		List<CHKBlock> fetched = saltStore.fetch(routingKeys, fullKeys, false, false, false, false);
+		assertEquals(blocks.length, fetched.size());
+		// Each key is counted once.
+		assertEquals(hits + blocks.length / 2, saltStore.hits());
+		assertEquals(misses + blocks.length / 2, saltStore.misses());
+		for(int i=0;i<blocks.length;i++) {
+			if(i % 2 == 0) {
+				assertTrue(present[i]);
+				assertEquals("test" + i, decodeBlockCHK(fetched.get(i), blocks[i].getClientKey()));
+			} else {
+				assertFalse(present[i]);
+				assertNull(fetched.get(i));
+			}
+		}
+
+		saltStore.close();
+	}
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
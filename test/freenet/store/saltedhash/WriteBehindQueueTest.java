@@ -0,0 +1,209 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.io.FileUtil;
+
+public class WriteBehindQueueTest {
+
+	private static final int META_LENGTH = 16;
+	private static final int HD_LENGTH = 64;
+	private static final int SLOTS = 32;
+
+	private File tempDir;
+	private RandomAccessFile metaRAF;
+	private RandomAccessFile hdRAF;
+	private StoreFileIO metaDisk;
+	private StoreFileIO hdDisk;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = new File("tmp-writebehindqueuetest");
+		tempDir.mkdir();
+		metaRAF = new RandomAccessFile(new File(tempDir, "test.metadata"), "rw");
+		hdRAF = new RandomAccessFile(new File(tempDir, "test.hd"), "rw");
+		metaRAF.setLength(META_LENGTH * SLOTS);
+		hdRAF.setLength(HD_LENGTH * SLOTS);
+		metaDisk = new ChannelStoreFileIO(metaRAF);
+		hdDisk = new ChannelStoreFileIO(hdRAF);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		metaRAF.close();
+		hdRAF.close();
+		FileUtil.removeAll(tempDir);
+	}
+
+	private static ByteBuffer slot(int length, int value) {
+		byte[] buf = new byte[length];
+		Arrays.fill(buf, (byte) value);
+		return ByteBuffer.wrap(buf);
+	}
+
+	private static byte[] read(StoreFileIO io, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		io.readFully(buf, position);
+		return buf.array();
+	}
+
+	@Test
+	public void testReadQueued() throws IOException {
+		// Not started, so nothing is written until we flush.
+		WriteBehindQueue queue = new WriteBehindQueue("test", metaDisk, META_LENGTH, hdDisk, HD_LENGTH, SLOTS);
+		StoreFileIO hd = queue.getHDIO();
+		hd.writeFully(slot(HD_LENGTH, 1), 3 * HD_LENGTH);
+		hd.writeFully(slot(HD_LENGTH, 2), 4 * HD_LENGTH);
+		hd.writeFully(slot(HD_LENGTH, 3), 3 * HD_LENGTH); // Replaces the first.
+		assertEquals(2, queue.pendingCount());
+
+		assertArrayEquals(slot(HD_LENGTH, 3).array(), read(hd, 3 * HD_LENGTH, HD_LENGTH));
+		assertArrayEquals(slot(HD_LENGTH, 0).array(), read(hdDisk, 3 * HD_LENGTH, HD_LENGTH));
+
+		// A read over several slots sees the queued ones on top of the disk.
+		byte[] range = read(hd, 2 * HD_LENGTH + HD_LENGTH / 2, 2 * HD_LENGTH);
+		for (int i = 0; i < range.length; i++) {
+			int expected = i < HD_LENGTH / 2 ? 0 : (i < HD_LENGTH * 3 / 2 ? 3 : 2);
+			assertEquals("byte " + i, expected, range[i]);
+		}
+
+		queue.flush();
+		assertEquals(0, queue.pendingCount());
+		assertArrayEquals(slot(HD_LENGTH, 3).array(), read(hdDisk, 3 * HD_LENGTH, HD_LENGTH));
+		assertArrayEquals(slot(HD_LENGTH, 2).array(), read(hdDisk, 4 * HD_LENGTH, HD_LENGTH));
+		queue.shutdown();
+	}
+
+	@Test
+	public void testBatchWrite() throws IOException {
+		WriteBehindQueue queue = new WriteBehindQueue("test", metaDisk, META_LENGTH, hdDisk, HD_LENGTH, SLOTS);
+		StoreFileIO meta = queue.getMetaIO();
+		// Several slots at once, as the Cleaner does.
+		ByteBuffer batch = ByteBuffer.allocate(META_LENGTH * 4);
+		for (int i = 0; i < 4; i++)
+			batch.put(slot(META_LENGTH, 10 + i));
+		batch.flip();
+		meta.writeFully(batch, 8 * META_LENGTH);
+		assertFalse(batch.hasRemaining());
+		assertEquals(4, queue.pendingCount());
+		for (int i = 0; i < 4; i++)
+			assertArrayEquals(slot(META_LENGTH, 10 + i).array(), read(meta, (8 + i) * META_LENGTH, META_LENGTH));
+		queue.shutdown();
+		for (int i = 0; i < 4; i++)
+			assertArrayEquals(slot(META_LENGTH, 10 + i).array(), read(metaDisk, (8 + i) * META_LENGTH, META_LENGTH));
+	}
+
+	/** Fails every write while fail is set. */
+	private static class FailingFileIO implements StoreFileIO {
+
+		private final StoreFileIO underlying;
+		volatile boolean fail;
+
+		FailingFileIO(StoreFileIO underlying) {
+			this.underlying = underlying;
+		}
+
+		@Override
+		public void readFully(ByteBuffer buf, long position) throws IOException {
+			underlying.readFully(buf, position);
+		}
+
+		@Override
+		public int read(ByteBuffer buf, long position) throws IOException {
+			return underlying.read(buf, position);
+		}
+
+		@Override
+		public void writeFully(ByteBuffer buf, long position) throws IOException {
+			if (fail)
+				throw new IOException("test");
+			underlying.writeFully(buf, position);
+		}
+
+		@Override
+		public void writeFully(ByteBuffer[] bufs, long position) throws IOException {
+			if (fail)
+				throw new IOException("test");
+			underlying.writeFully(bufs, position);
+		}
+
+		@Override
+		public void setLength(long length) throws IOException {
+			underlying.setLength(length);
+		}
+
+		@Override
+		public void force() throws IOException {
+			underlying.force();
+		}
+
+		@Override
+		public void close() throws IOException {
+			underlying.close();
+		}
+	}
+
+	@Test
+	public void testWriteError() throws IOException {
+		FailingFileIO failingHD = new FailingFileIO(hdDisk);
+		WriteBehindQueue queue = new WriteBehindQueue("test", metaDisk, META_LENGTH, failingHD, HD_LENGTH, SLOTS);
+		queue.writeSlot(slot(META_LENGTH, 1), 2 * META_LENGTH, slot(HD_LENGTH, 2), 2 * HD_LENGTH);
+		queue.writeSlot(slot(META_LENGTH, 3), 5 * META_LENGTH, null, 0);
+		assertEquals(3, queue.pendingCount());
+		failingHD.fail = true;
+		try {
+			queue.flush();
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected.
+		}
+		// The data wasn't written, so neither was the metadata for the same slot. Both are
+		// still queued, and reads still see them.
+		assertEquals(2, queue.pendingCount());
+		assertArrayEquals(slot(META_LENGTH, 0).array(), read(metaDisk, 2 * META_LENGTH, META_LENGTH));
+		assertArrayEquals(slot(META_LENGTH, 3).array(), read(metaDisk, 5 * META_LENGTH, META_LENGTH));
+		assertArrayEquals(slot(HD_LENGTH, 2).array(), read(queue.getHDIO(), 2 * HD_LENGTH, HD_LENGTH));
+		assertArrayEquals(slot(META_LENGTH, 1).array(), read(queue.getMetaIO(), 2 * META_LENGTH, META_LENGTH));
+
+		// The error is only reported once.
+		failingHD.fail = false;
+		queue.shutdown();
+		assertEquals(0, queue.pendingCount());
+		assertArrayEquals(slot(HD_LENGTH, 2).array(), read(hdDisk, 2 * HD_LENGTH, HD_LENGTH));
+		assertArrayEquals(slot(META_LENGTH, 1).array(), read(metaDisk, 2 * META_LENGTH, META_LENGTH));
+	}
+
+	@Test(timeout = 60000)
+	public void testWriterThread() throws IOException, InterruptedException {
+		final WriteBehindQueue queue = new WriteBehindQueue("test", metaDisk, META_LENGTH, hdDisk, HD_LENGTH, 4, 1);
+		queue.start();
+		final StoreFileIO meta = queue.getMetaIO();
+		final StoreFileIO hd = queue.getHDIO();
+		// More than the queue holds, so writers have to wait for the writer thread.
+		for (int round = 1; round <= 5; round++) {
+			for (int i = 0; i < SLOTS; i++) {
+				hd.writeFully(slot(HD_LENGTH, round * i), i * HD_LENGTH);
+				meta.writeFully(slot(META_LENGTH, round * i), i * META_LENGTH);
+				assertArrayEquals(slot(HD_LENGTH, round * i).array(), read(hd, i * HD_LENGTH, HD_LENGTH));
+			}
+		}
+		meta.force();
+		assertEquals(0, queue.pendingCount());
+		for (int i = 0; i < SLOTS; i++) {
+			assertArrayEquals(slot(HD_LENGTH, 5 * i).array(), read(hdDisk, i * HD_LENGTH, HD_LENGTH));
+			assertArrayEquals(slot(META_LENGTH, 5 * i).array(), read(metaDisk, i * META_LENGTH, META_LENGTH));
+		}
+		queue.shutdown();
+	}
+
+}
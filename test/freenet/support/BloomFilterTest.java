@@ -2,6 +2,8 @@ package freenet.support;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -49,11 +51,26 @@ public class BloomFilterTest {
 		_testFilterPositive(filter);
 	}
 
+	@Test
+	public void testBlockedFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(new BlockedBloomFilter(FILTER_SIZE, K, false));
+		_testFilterPositive(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
 	@Test
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
-		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		_testFilterRemove(BloomFilter.createFilter(FILTER_SIZE, K, true));
+	}
 
+	@Test
+	public void testBlockedCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterRemove(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
+	private void _testFilterRemove(BloomFilter filter) {
 		Map<ByteArrayWrapper, byte[]> baseList = new HashMap<ByteArrayWrapper, byte[]>();
 
 		// Add Keys
@@ -156,4 +173,98 @@ public class BloomFilterTest {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	@Test
+	public void testBlockedFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(new BlockedBloomFilter(FILTER_SIZE, K, false));
+		_testFilterFalsePositive(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
+	@Test
+	public void testBlockedFilterOddSize() {
+		// Not a whole number of blocks, and smaller than one block.
+		for (int size : new int[] { FILTER_SIZE + 72, 200 }) {
+			BlockedBloomFilter filter = new BlockedBloomFilter(size, 3, true);
+			_testFilterPositive(filter);
+			assertEquals(size / 4, filter.getSizeBytes());
+		}
+	}
+
+	@Test
+	public void testBlockedFilterSerialize() throws IOException {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		for (boolean counting : new boolean[] { false, true }) {
+			BlockedBloomFilter filter = new BlockedBloomFilter(FILTER_SIZE, K, counting);
+			byte[][] keys = new byte[PASS_POS][];
+			for (int i = 0; i < PASS_POS; i++) {
+				keys[i] = new byte[32];
+				rand.nextBytes(keys[i]);
+				filter.addKey(keys[i]);
+			}
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			filter.writeTo(baos);
+			byte[] buf = baos.toByteArray();
+			assertEquals(filter.getSizeBytes(), buf.length);
+
+			byte[] padded = new byte[buf.length + 3];
+			System.arraycopy(buf, 0, padded, 3, buf.length);
+			BlockedBloomFilter copy = new BlockedBloomFilter(FILTER_SIZE, K, counting, padded, 3);
+			assertEquals(filter.getFilledCount(), copy.getFilledCount());
+			for (byte[] b : keys)
+				assertTrue(copy.checkFilter(b));
+			if (counting) {
+				// The counts were copied too.
+				for (byte[] b : keys) {
+					filter.removeKey(b);
+					copy.removeKey(b);
+				}
+				assertEquals(filter.getFilledCount(), copy.getFilledCount());
+				ByteArrayOutputStream removed = new ByteArrayOutputStream();
+				copy.writeTo(removed);
+				baos.reset();
+				filter.writeTo(baos);
+				assertArrayEquals(baos.toByteArray(), removed.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void testBenchmarkFilters() {
+		if (!TestProperty.BENCHMARK) return;
+		final int size = 1 << 20;
+		final int keys = size / 16;
+		final int rounds = 2000000;
+		int K = BloomFilter.optimialK(size, keys);
+		byte[][] list = new byte[keys][];
+		for (int i = 0; i < keys; i++) {
+			list[i] = new byte[32];
+			rand.nextBytes(list[i]);
+		}
+		BloomFilter[] filters = new BloomFilter[] {
+				BloomFilter.createFilter(size, K, false),
+				BloomFilter.createFilter(size, K, true),
+				new BlockedBloomFilter(size, K, false),
+				new BlockedBloomFilter(size, K, true)
+		};
+		String[] names = new String[] { "Binary", "Counting", "Blocked binary", "Blocked counting" };
+		for (int f = 0; f < filters.length; f++) {
+			BloomFilter filter = filters[f];
+			for (byte[] b : list)
+				filter.addKey(b);
+			// Warm up, then time a mixture of hits and misses.
+			int found = 0;
+			for (int i = 0; i < rounds; i++)
+				if (filter.checkFilter(list[i % keys])) found++;
+			long start = System.nanoTime();
+			byte[] miss = new byte[32];
+			for (int i = 0; i < rounds; i++) {
+				if (filter.checkFilter(list[i % keys])) found++;
+				miss[i & 31]++;
+				if (filter.checkFilter(miss)) found++;
+			}
+			long check = (System.nanoTime() - start) / (rounds * 2);
+			System.out.println(names[f] + ": check " + check + "ns (" + found + " found)");
+		}
+	}
 }
@@ -19,6 +19,7 @@ import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -118,6 +119,39 @@ public class BufferTest {
 		doTestBuffer(data, buffer);
 	}
 	
+	@Test
+	public void testReadShared() throws IOException {
+		byte[] data = DATA_STRING_1.getBytes();
+		// A byte before, the length, the data, and a byte after.
+		byte[] data2 = new byte[data.length + 6];
+		data2[0] = 42;
+		data2[1] = (byte)((data.length & 0xff000000) >> 24);
+		data2[2] = (byte)((data.length & 0xff0000)   >> 16);
+		data2[3] = (byte)((data.length & 0xff00)     >>  8);
+		data2[4] = (byte)((data.length & 0xff)            );
+		System.arraycopy(data, 0, data2, 5, data.length);
+		data2[data2.length - 1] = 43;
+
+		ByteBufferInputStream bb = new ByteBufferInputStream(data2, 1, data2.length - 1);
+		Buffer buffer = Buffer.readShared(bb);
+		doTestBuffer(data, buffer);
+		assertEquals(43, bb.readByte());
+		assertEquals(0, bb.remaining());
+
+		// Not copied.
+		data2[5]++;
+		assertEquals(data[0] + 1, buffer.byteAt(0));
+
+		// Too short.
+		bb = new ByteBufferInputStream(data2, 1, data2.length - 2 - 1);
+		try {
+			Buffer.readShared(bb);
+			fail();
+		} catch (EOFException e) {
+			// expect this
+		}
+	}
+
 	private void doTestBuffer(byte[] data, Buffer buffer) {
 		assertEquals(data.length, buffer.getLength());
 		
@@ -0,0 +1,86 @@
+package freenet.support.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.count());
+		assertEquals(0, h.percentileNanos(0.5));
+		assertEquals(0, h.maxNanos());
+		assertEquals(0.0, h.meanNanos(), 0.0);
+	}
+
+	@Test
+	public void testBuckets() {
+		int last = -1;
+		for(long v = 0; v < 100000; v++) {
+			int bucket = LatencyHistogram.bucketOf(v);
+			assertTrue(bucket == last || bucket == last + 1);
+			assertTrue(LatencyHistogram.highestInBucket(bucket) >= v);
+			if(bucket != last && bucket > 0)
+				assertEquals(v - 1, LatencyHistogram.highestInBucket(bucket - 1));
+			last = bucket;
+		}
+		int top = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+		assertEquals(LatencyHistogram.BUCKETS - 1, top);
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestInBucket(top));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 1; i <= 1000; i++)
+			h.report(i * 1000L);
+		assertEquals(1000, h.count());
+		assertEquals(500500.0, h.meanNanos(), 0.0);
+		assertEquals(1000000, h.maxNanos());
+		assertEquals(1000000, h.percentileNanos(1.0));
+		assertAccurate(500000, h.percentileNanos(0.5));
+		assertAccurate(990000, h.percentileNanos(0.99));
+		assertAccurate(1000, h.percentileNanos(0.0));
+	}
+
+	@Test
+	public void testNegative() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.report(-5);
+		assertEquals(1, h.count());
+		assertEquals(0, h.maxNanos());
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final LatencyHistogram h = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			final long seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					for(int j = 0; j < 100000; j++)
+						h.report(random.nextInt(1000000));
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(400000, h.count());
+		assertAccurate(500000, h.percentileNanos(0.5));
+	}
+
+	/** Percentiles are rounded up to the top of a bucket, 1/8th of a power of two wide. */
+	private static void assertAccurate(long expected, long actual) {
+		assertTrue("expected "+expected+" got "+actual, actual >= expected * 0.95 && actual <= expected * 1.15);
+	}
+
+}